@@ -114,7 +114,7 @@ public class SocketInputStream extends InputStream
      */
     byte[] buf = new byte[1];
     if (read(buf, 0, 1) > 0) {
-      return (byte)buf[0];
+      return (buf[0] & 0xff);
     }
     throw new IOException("Could not read from stream");
   }
@@ -56,6 +56,7 @@ public class Adsorption extends Configured implements Tool {
 	        
 	    job.setJarByClass(Adsorption.class);
 	    job.setActivatorClass(AdsorptionActivator.class);	
+	    //no delta combiner by default, set priter.combiner.class to combine the map outputs
 	    job.setUpdaterClass(AdsorptionUpdater.class);
 	    job.setMapOutputKeyClass(IntWritable.class);
 	    job.setMapOutputValueClass(DoubleWritable.class);
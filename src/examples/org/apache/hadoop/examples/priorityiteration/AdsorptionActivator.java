@@ -1,18 +1,11 @@
 package org.apache.hadoop.examples.priorityiteration;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.StringTokenizer;
 
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.mapred.Activator;
+import org.apache.hadoop.mapred.CSRGraph;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.PrIterBase;
 import org.apache.hadoop.mapred.OutputCollector;
@@ -23,63 +16,21 @@ import org.apache.hadoop.mapred.buffer.impl.InputPKVBuffer;
 public class AdsorptionActivator extends PrIterBase implements
 		Activator<IntWritable, DoubleWritable, DoubleWritable> {
 
-	private String subGraphsDir;
 	private int kvs = 0;
 	private int iter = 0;
 	private int partitions;
 	
-	class LinkWeight {
-		public int link;
-		public double weight;
-		
-		public LinkWeight(int link, double weight){
-			this.link = link;
-			this.weight = weight;
-		}
-	}
-	//graph in local memory
-	private HashMap<Integer, ArrayList<LinkWeight>> linkList = new HashMap<Integer, ArrayList<LinkWeight>>();
-	 
-	private synchronized void loadGraphToMem(JobConf conf, int n) {
-		subGraphsDir = conf.get(MainDriver.SUBGRAPH_DIR);
-		Path remote_link = new Path(subGraphsDir + "/part" + n);
-		
-		FileSystem hdfs = null;
-		try{
-			hdfs = FileSystem.get(conf);
-			FSDataInputStream in = hdfs.open(remote_link);
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			
-			String line;
-			while((line = reader.readLine()) != null){
-				int index = line.indexOf("\t");
-				if(index != -1){
-					String node = line.substring(0, index);
-					
-					String linkstring = line.substring(index+1);
-					ArrayList<LinkWeight> links = new ArrayList<LinkWeight>();
-					StringTokenizer st = new StringTokenizer(linkstring);
-					while(st.hasMoreTokens()){
-						String link = st.nextToken();
-						//System.out.println(link);
-						String item[] = link.split(",");
-						LinkWeight l = new LinkWeight(Integer.parseInt(item[0]), Double.parseDouble(item[1]));
-						links.add(l);
-					}
-
-					this.linkList.put(Integer.parseInt(node), links);
-				}
-			}
-			reader.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
+	//graph partition in CSR form
+	private CSRGraph graph;
 
 	@Override
 	public void configure(JobConf job) {
 		int taskid = Util.getTaskId(job);
-		this.loadGraphToMem(job, taskid);
+		try {
+			graph = loadGraph(job, job.get(MainDriver.SUBGRAPH_DIR), taskid);
+		} catch (IOException e) {
+			throw new RuntimeException("cannot load graph partition " + taskid, e);
+		}
 		partitions = job.getInt("priter.graph.partitions", 1);
 	}
 	
@@ -88,9 +39,9 @@ public class AdsorptionActivator extends PrIterBase implements
 			throws IOException {
 		double initvalue = Adsorption.RETAINFAC * 10000;
 		int count = 0;
-		for(int k : linkList.keySet()){
+		for(int row=0; row<graph.nodes(); row++){
 			if(++count > 25) break;
-			starter.init(new IntWritable(k), new DoubleWritable(initvalue));
+			starter.init(new IntWritable(graph.node(row)), new DoubleWritable(initvalue));
 		}
 	}
 
@@ -103,10 +54,9 @@ public class AdsorptionActivator extends PrIterBase implements
 		report.setStatus(String.valueOf(kvs));
 		
 		int page = key.get();
-		ArrayList<LinkWeight> links = null;
-		links = this.linkList.get(key.get());
+		int row = graph.row(page);
 
-		if(links == null){
+		if(row < 0){
 			System.out.println("no links found for page " + page);
 			for(int i=0; i<partitions; i++){
 				output.collect(new IntWritable(i), new DoubleWritable(0));
@@ -115,8 +65,8 @@ public class AdsorptionActivator extends PrIterBase implements
 		}	
 		double delta = value.get() * Adsorption.DAMPINGFAC;
 		
-		for(LinkWeight link : links){
-			output.collect(new IntWritable(link.link), new DoubleWritable(delta*link.weight));
+		for(int i=graph.start(row); i<graph.end(row); i++){
+			output.collect(new IntWritable(graph.edge(i)), new DoubleWritable(delta*graph.weight(i)));
 		}	
 	}
 
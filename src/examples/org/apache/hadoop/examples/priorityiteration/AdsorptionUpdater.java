@@ -8,7 +8,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.StringTokenizer;
 
-import org.apache.hadoop.examples.priorityiteration.AdsorptionActivator.LinkWeight;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -18,12 +17,12 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.PrIterBase;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.Updater;
+import org.apache.hadoop.mapred.buffer.impl.NumericUpdate;
 import org.apache.hadoop.mapred.buffer.impl.OutputPKVBuffer;
-import org.apache.hadoop.mapred.buffer.impl.PriorityRecord;
 
 
 public class AdsorptionUpdater extends PrIterBase implements
-		Updater<IntWritable, DoubleWritable, DoubleWritable> {
+		Updater<IntWritable, DoubleWritable, DoubleWritable>, NumericUpdate<IntWritable> {
 	
 	private JobConf job;
 	private int workload = 0;
@@ -112,21 +111,18 @@ public class AdsorptionUpdater extends PrIterBase implements
 			delta += values.next().get();	
 		}
 		
-		synchronized(buffer.stateTable){
-			PriorityRecord<DoubleWritable, DoubleWritable> pkvRecord;	
-			if(buffer.stateTable.containsKey(key)){
-				pkvRecord = buffer.stateTable.get(key);
-	
-				double iState = pkvRecord.getiState().get() + delta;
-				double cState = pkvRecord.getcState().get() + delta;
-				buffer.stateTable.get(key).getiState().set(iState);
-				buffer.stateTable.get(key).getcState().set(cState);
-				buffer.stateTable.get(key).getPriority().set(iState);
-			}else{
-				pkvRecord = new PriorityRecord<DoubleWritable, DoubleWritable>(
-						new DoubleWritable(delta), new DoubleWritable(delta), new DoubleWritable(delta));
-				buffer.stateTable.put(new IntWritable(key.get()), pkvRecord);
-			}
+		buffer.update(key, delta, this);
+	}
+
+	@Override
+	public boolean update(IntWritable key, double delta, double[] record, boolean found) {
+		if(found){
+			record[1] += delta;
+			record[2] += delta;
+			record[0] = record[1];
+		}else{
+			record[0] = record[1] = record[2] = delta;
 		}
+		return true;
 	}
 }
@@ -1,77 +1,42 @@
 package org.apache.hadoop.examples.priorityiteration;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.StringTokenizer;
 
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.mapred.Activator;
+import org.apache.hadoop.mapred.CSRGraph;
 import org.apache.hadoop.mapred.JobConf;
-import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.PrIterBase;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.buffer.impl.InputPKVBuffer;
 
 
-public class ConnectComponentActivator extends MapReduceBase implements
+public class ConnectComponentActivator extends PrIterBase implements
 		Activator<IntWritable, IntWritable, IntWritable> {
 
-	private String subGraphsDir;
 	private int kvs = 0;
 	private int iter = 0;
 	
-	//graph in local memory
-	private HashMap<Integer, ArrayList<Integer>> linkList = new HashMap<Integer, ArrayList<Integer>>();
-
+	//graph partition in CSR form
+	private CSRGraph graph;
 	
 	@Override
 	public void configure(JobConf job) {
 		int taskid = Util.getTaskId(job);
-		loadGraphToMem(job, taskid);
-	}
-	
-	private synchronized void loadGraphToMem(JobConf conf, int n){
-		subGraphsDir = conf.get(MainDriver.SUBGRAPH_DIR);
-		Path remote_link = new Path(subGraphsDir + "/part" + n);
-		
-		FileSystem hdfs = null;
-	    try {
-			hdfs = FileSystem.get(conf);
-			FSDataInputStream in = hdfs.open(remote_link);
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			
-			String line;
-			while((line = reader.readLine()) != null){
-				int index = line.indexOf("\t");
-				if(index != -1){
-					String node = line.substring(0, index);
-					
-					String linkstring = line.substring(index+1);
-					ArrayList<Integer> links = new ArrayList<Integer>();
-					StringTokenizer st = new StringTokenizer(linkstring);
-					while(st.hasMoreTokens()){
-						links.add(Integer.parseInt(st.nextToken()));
-					}
-					
-					this.linkList.put(Integer.parseInt(node), links);
-				}
-			}
+		try {
+			graph = loadGraph(job, job.get(MainDriver.SUBGRAPH_DIR), taskid);
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new RuntimeException("cannot load graph partition " + taskid, e);
 		}
 	}
 	
 	@Override
 	public void initStarter(InputPKVBuffer<IntWritable, IntWritable> starter)
 			throws IOException {
-		for(int k : linkList.keySet()){
-			starter.init(new IntWritable(k), new IntWritable(k));
+		for(int row=0; row<graph.nodes(); row++){
+			int node = graph.node(row);
+			starter.init(new IntWritable(node), new IntWritable(node));
 		}
 	}
 	
@@ -83,9 +48,10 @@ public class ConnectComponentActivator extends MapReduceBase implements
 		report.setStatus(String.valueOf(kvs));
 		
 		int node = key.get();
-		if(linkList.get(node) == null) return;
-		for(int linkend : linkList.get(node)){
-			output.collect(new IntWritable(linkend), value);
+		int row = graph.row(node);
+		if(row < 0) return;
+		for(int i=graph.start(row); i<graph.end(row); i++){
+			output.collect(new IntWritable(graph.edge(i)), value);
 		}
 	}
 
@@ -6,12 +6,12 @@ import java.util.Iterator;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.Updater;
+import org.apache.hadoop.mapred.buffer.impl.NumericUpdate;
 import org.apache.hadoop.mapred.buffer.impl.OutputPKVBuffer;
-import org.apache.hadoop.mapred.buffer.impl.PriorityRecord;
 import org.apache.hadoop.io.IntWritable;
 
 public class ConnectComponentUpdater extends MapReduceBase implements
-		Updater<IntWritable, IntWritable, IntWritable> {
+		Updater<IntWritable, IntWritable, IntWritable>, NumericUpdate<IntWritable> {
 
 	private int workload = 0;
 	private int iterate = 0;
@@ -51,22 +51,13 @@ public class ConnectComponentUpdater extends MapReduceBase implements
 		
 		int max_id = values.next().get();
 
-		synchronized(buffer.stateTable){
-			PriorityRecord<IntWritable, IntWritable> pkvRecord;	
-			if(buffer.stateTable.containsKey(key)){
-				pkvRecord = buffer.stateTable.get(key);
-	
-				int cState = pkvRecord.getcState().get();
-				if(max_id > cState){
-					buffer.stateTable.get(key).getiState().set(max_id);
-					buffer.stateTable.get(key).getcState().set(max_id);
-					buffer.stateTable.get(key).getPriority().set(max_id);
-				}
-			}else{
-				pkvRecord = new PriorityRecord<IntWritable, IntWritable>(
-						new IntWritable(max_id), new IntWritable(max_id), new IntWritable(max_id));
-				buffer.stateTable.put(new IntWritable(key.get()), pkvRecord);
-			}
-		}
+		buffer.update(key, max_id, this);
+	}
+
+	@Override
+	public boolean update(IntWritable key, double max_id, double[] record, boolean found) {
+		if(found && max_id <= record[2]) return false;
+		record[0] = record[1] = record[2] = max_id;
+		return true;
 	}
 }
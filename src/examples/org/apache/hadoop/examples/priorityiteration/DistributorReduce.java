@@ -8,9 +8,11 @@ import java.util.Iterator;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.CSRGraph;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.OutputCollector;
@@ -20,19 +22,26 @@ import org.apache.hadoop.mapred.Reporter;
 public class DistributorReduce extends MapReduceBase implements
 		Reducer<Writable, Text, NullWritable, NullWritable> {
 
+	private FileSystem fs;
+	private Path outPath;
 	private FSDataOutputStream out;
 	private BufferedWriter writer;
 	
+	//the partition in CSR form as well, mapped by the activators instead of parsing the text
+	private CSRGraph.Builder csr;
+	
 	@Override
 	public void configure(JobConf job){
 		String outDir = job.get(MainDriver.SUBGRAPH_DIR);
-		FileSystem fs;
 		try {
 			fs = FileSystem.get(job);
 			int taskid = Util.getTaskId(job);
-			Path outPath = new Path(outDir + "/part" + taskid);
+			outPath = new Path(outDir + "/part" + taskid);
 			out = fs.create(outPath);
 			writer = new BufferedWriter(new OutputStreamWriter(out));
+			if(job.getBoolean("priter.graph.csr", true) && job.getMapOutputKeyClass() == IntWritable.class){
+				csr = new CSRGraph.Builder();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}	
@@ -45,6 +54,9 @@ public class DistributorReduce extends MapReduceBase implements
 		while(values.hasNext()){
 			Text value = values.next();
 			writer.write(key + "\t" + value + "\n");
+			if(csr != null){
+				csr.add(((IntWritable)key).get(), value.toString());
+			}
 		}
 	}
 
@@ -53,6 +65,12 @@ public class DistributorReduce extends MapReduceBase implements
 		try {
 			writer.close();
 			out.close();
+			
+			if(csr != null){
+				FSDataOutputStream csrOut = fs.create(new Path(outPath + ".csr"));
+				csr.write(csrOut);
+				csrOut.close();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
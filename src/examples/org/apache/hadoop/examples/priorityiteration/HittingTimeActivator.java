@@ -1,18 +1,11 @@
 package org.apache.hadoop.examples.priorityiteration;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.StringTokenizer;
 
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.mapred.Activator;
+import org.apache.hadoop.mapred.CSRGraph;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.PrIterBase;
 import org.apache.hadoop.mapred.OutputCollector;
@@ -20,69 +13,22 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.buffer.impl.InputPKVBuffer;
 
 public class HittingTimeActivator extends PrIterBase implements Activator<IntWritable, DoubleWritable, DoubleWritable> {
-	private String subGraphsDir;
 	private int partitions;
 	private int iter = 0;
 	private int kvs = 0;
 	
-	//graph in local memory
-	private HashMap<Integer, ArrayList<Link>> linkList = new HashMap<Integer, ArrayList<Link>>();
+	//graph partition in CSR form
+	private CSRGraph graph;
 
-	private class Link{
-		int node;
-		double weight;
-		
-		public Link(int n, double w){
-			node = n;
-			weight = w;
-		}
-		
-		@Override
-		public String toString() {
-			return new String(node + "\t" + weight);
-		}
-	}
-
-	private synchronized void loadGraphToMem(JobConf conf, int n){
-		subGraphsDir = conf.get(MainDriver.SUBGRAPH_DIR);
-		Path remote_link = new Path(subGraphsDir + "/part" + n);
-		
-		FileSystem hdfs = null;
-	    try {
-			hdfs = FileSystem.get(conf);
-			FSDataInputStream in = hdfs.open(remote_link);
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			
-			String line;
-			while((line = reader.readLine()) != null){
-				int index = line.indexOf("\t");
-				if(index != -1){
-					String node = line.substring(0, index);
-					
-					String linkstring = line.substring(index+1);
-					ArrayList<Link> links = new ArrayList<Link>();
-					StringTokenizer st = new StringTokenizer(linkstring);
-					while(st.hasMoreTokens()){
-						String link = st.nextToken();
-						//System.out.println(node + "\t" + link);
-						String item[] = link.split(",");
-						Link l = new Link(Integer.parseInt(item[0]), Double.parseDouble(item[1]));
-						links.add(l);
-					}
-
-					this.linkList.put(Integer.parseInt(node), links);
-				}
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-	
 	@Override
 	public void configure(JobConf job){   
 	    int taskid = Util.getTaskId(job);
 	    partitions = job.getInt("priter.graph.partitions", -1);
-		this.loadGraphToMem(job, taskid);
+		try {
+			graph = loadGraph(job, job.get(MainDriver.SUBGRAPH_DIR), taskid);
+		} catch (IOException e) {
+			throw new RuntimeException("cannot load graph partition " + taskid, e);
+		}
 	}
 	
 	@Override
@@ -93,10 +39,9 @@ public class HittingTimeActivator extends PrIterBase implements Activator<IntWri
 		report.setStatus(String.valueOf(kvs));
 			
 		int node = key.get();
-		ArrayList<Link> links = null;	
-		links = this.linkList.get(node);
+		int row = graph.row(node);
 
-		if(links == null) {
+		if(row < 0) {
 			System.out.println("no links found for node " + node);
 			for(int i=0; i<partitions; i++){
 				output.collect(new IntWritable(i), new DoubleWritable(0.0));
@@ -105,8 +50,8 @@ public class HittingTimeActivator extends PrIterBase implements Activator<IntWri
 		}
 		
 		double distance = value.get();
-		for(Link l : links){				
-			output.collect(new IntWritable(l.node), new DoubleWritable(distance*l.weight));
+		for(int i=graph.start(row); i<graph.end(row); i++){				
+			output.collect(new IntWritable(graph.edge(i)), new DoubleWritable(distance*graph.weight(i)));
 		}
 	}
 
@@ -16,10 +16,10 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.PrIterBase;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.Updater;
+import org.apache.hadoop.mapred.buffer.impl.NumericUpdate;
 import org.apache.hadoop.mapred.buffer.impl.OutputPKVBuffer;
-import org.apache.hadoop.mapred.buffer.impl.PriorityRecord;
 
-public class HittingTimeUpdater extends PrIterBase implements Updater<IntWritable, DoubleWritable, DoubleWritable> {
+public class HittingTimeUpdater extends PrIterBase implements Updater<IntWritable, DoubleWritable, DoubleWritable>, NumericUpdate<IntWritable> {
 	
 	private JobConf job;
 	private int workload = 0;
@@ -104,31 +104,21 @@ public class HittingTimeUpdater extends PrIterBase implements Updater<IntWritabl
 			delta += values.next().get();	
 		}
 		
-		synchronized(buffer.stateTable){
-			PriorityRecord<DoubleWritable, DoubleWritable> pkvRecord;	
-			if(buffer.stateTable.containsKey(key)){
-				String node = key.toString();
-				int nodeid = Integer.parseInt(node);
-				if(nodeid == 0)			//start node 0
-				{
-					buffer.stateTable.get(key).getiState().set(0.0);
-					buffer.stateTable.get(key).getcState().set(0.0);
-					buffer.stateTable.get(key).getPriority().set(0.0);
-				}
-				else
-				{
-					pkvRecord = buffer.stateTable.get(key);
-					double iState = pkvRecord.getiState().get() + delta;
-					double cState = pkvRecord.getcState().get() + delta;
-					buffer.stateTable.get(key).getiState().set(iState);
-					buffer.stateTable.get(key).getcState().set(cState);
-					buffer.stateTable.get(key).getPriority().set(iState * weightMap.get(node));
-				}	
-			}else{
-				pkvRecord = new PriorityRecord<DoubleWritable, DoubleWritable>(
-						new DoubleWritable(delta+1.0), new DoubleWritable(delta+1.0), new DoubleWritable(delta+1.0));
-				buffer.stateTable.put(new IntWritable(key.get()), pkvRecord);
-			}
+		buffer.update(key, delta, this);
+	}
+
+	@Override
+	public boolean update(IntWritable key, double delta, double[] record, boolean found) {
+		if(!found){
+			record[0] = record[1] = record[2] = delta + 1.0;
+		}else if(key.get() == 0){
+			//start node 0
+			record[0] = record[1] = record[2] = 0.0;
+		}else{
+			record[1] += delta;
+			record[2] += delta;
+			record[0] = record[1] * weightMap.get(key.get());
 		}
+		return true;
 	}
 }
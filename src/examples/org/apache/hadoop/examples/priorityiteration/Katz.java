@@ -15,6 +15,7 @@ import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.TextOutputFormat;
 import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.hadoop.mapred.lib.SumDeltaCombiner;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -53,6 +54,7 @@ public class Katz extends Configured implements Tool {
 	    		
 	    job.setJarByClass(Katz.class);
 	    job.setActivatorClass(KatzActivator.class);	
+	    job.setDeltaCombinerClass(SumDeltaCombiner.class);
 	    job.setUpdaterClass(KatzUpdater.class);
 	    job.setMapOutputKeyClass(IntWritable.class);
 	    job.setMapOutputValueClass(FloatWritable.class);
@@ -15,13 +15,13 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.PrIterBase;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.Updater;
+import org.apache.hadoop.mapred.buffer.impl.NumericUpdate;
 import org.apache.hadoop.mapred.buffer.impl.OutputPKVBuffer;
-import org.apache.hadoop.mapred.buffer.impl.PriorityRecord;
 
 
 
 public class KatzUpdater extends PrIterBase implements
-		Updater<IntWritable, FloatWritable, FloatWritable> {
+		Updater<IntWritable, FloatWritable, FloatWritable>, NumericUpdate<IntWritable> {
 	
 	private int workload = 0;
 	private int iterate = 0;
@@ -101,21 +101,18 @@ public class KatzUpdater extends PrIterBase implements
 			delta += values.next().get();	
 		}
 
-		synchronized(buffer.stateTable){
-			PriorityRecord<FloatWritable, FloatWritable> pkvRecord;	
-			if(buffer.stateTable.containsKey(key)){
-				pkvRecord = buffer.stateTable.get(key);
-	
-				float iState = pkvRecord.getiState().get() + delta;
-				float cState = pkvRecord.getcState().get() + delta;
-				buffer.stateTable.get(key).getiState().set(iState);
-				buffer.stateTable.get(key).getcState().set(cState);
-				buffer.stateTable.get(key).getPriority().set(iState*this.degreeMap.get(key.get()));
-			}else{
-				pkvRecord = new PriorityRecord<FloatWritable, FloatWritable>(
-						new FloatWritable(delta), new FloatWritable(delta), new FloatWritable(delta));
-				buffer.stateTable.put(new IntWritable(key.get()), pkvRecord);
-			}
+		buffer.update(key, delta, this);
+	}
+
+	@Override
+	public boolean update(IntWritable key, double delta, double[] record, boolean found) {
+		if(found){
+			record[1] += delta;
+			record[2] += delta;
+			record[0] = record[1] * this.degreeMap.get(key.get());
+		}else{
+			record[0] = record[1] = record[2] = delta;
 		}
+		return true;
 	}
 }
@@ -582,21 +582,21 @@ public class PWClusterUpdater extends MapReduceBase implements
 				
 				IntWritable iwi = new IntWritable(i);
 				
-				if(buffer.stateTable.containsKey(iwi)){
-					buffer.stateTable.get(iwi).getiState().setNodeid(node);
-					buffer.stateTable.get(iwi).getiState().setClusterid(newc);
-					buffer.stateTable.get(iwi).getiState().setAddvalue(max);
-					buffer.stateTable.get(iwi).getcState().setNodeid(node);
-					buffer.stateTable.get(iwi).getcState().setClusterid(newc);
-					buffer.stateTable.get(iwi).getcState().setAddvalue(max);
-					buffer.stateTable.get(iwi).getPriority().set(max);
+				pkvRecord = buffer.stateTable.get(iwi);
+				if(pkvRecord != null){
+					pkvRecord.getiState().setNodeid(node);
+					pkvRecord.getiState().setClusterid(newc);
+					pkvRecord.getiState().setAddvalue(max);
+					pkvRecord.getcState().setNodeid(node);
+					pkvRecord.getcState().setClusterid(newc);
+					pkvRecord.getcState().setAddvalue(max);
+					pkvRecord.getPriority().set(max);
+					buffer.stateTable.put(iwi, pkvRecord.getPriority(), pkvRecord.getiState(), pkvRecord.getcState());
 				}
 				else
 				{
 					ClusterWritable cw = new ClusterWritable(node, newc, max);
-					pkvRecord = new PriorityRecord<DoubleWritable, ClusterWritable>(
-							new DoubleWritable(max), cw, cw);
-					buffer.stateTable.put(iwi, pkvRecord);
+					buffer.stateTable.put(iwi, new DoubleWritable(max), cw, cw);
 					//buffer.nTableKeys++;
 					//System.out.println(i + " call incrKey()");
 				}
@@ -16,6 +16,7 @@ import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.TextOutputFormat;
 import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.hadoop.mapred.lib.SumDeltaCombiner;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -65,6 +66,7 @@ public class PageRank extends Configured implements Tool {
 	    
 	    if(inmem){
 		    job.setActivatorClass(PageRankActivator.class);	
+		    job.setDeltaCombinerClass(SumDeltaCombiner.class);
 		    job.setUpdaterClass(PageRankUpdater.class);
 	    }else{
 		    job.setFileActivatorClass(PageRankFileActivator.class);	
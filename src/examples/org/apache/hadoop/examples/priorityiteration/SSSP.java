@@ -16,6 +16,7 @@ import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.TextOutputFormat;
 import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.apache.hadoop.mapred.lib.MinDeltaCombiner;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -64,6 +65,7 @@ public class SSSP extends Configured implements Tool {
       	    
       if(inmem){
 		    job.setActivatorClass(SSSPActivator.class);	
+		    job.setDeltaCombinerClass(MinDeltaCombiner.class);
 		    job.setUpdaterClass(SSSPUpdater.class);
 	    }else{
         job.setInt("sssp.totalnodes", totalnodes);
@@ -7,12 +7,12 @@ import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapred.PrIterBase;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.Updater;
+import org.apache.hadoop.mapred.buffer.impl.NumericUpdate;
 import org.apache.hadoop.mapred.buffer.impl.OutputPKVBuffer;
-import org.apache.hadoop.mapred.buffer.impl.PriorityRecord;
 
 
 public class SSSPUpdater extends PrIterBase implements
-		Updater<IntWritable, FloatWritable, FloatWritable> {
+		Updater<IntWritable, FloatWritable, FloatWritable>, NumericUpdate<IntWritable> {
 	private int workload = 0;
 	private int iterate = 0;
 	
@@ -51,21 +51,14 @@ public class SSSPUpdater extends PrIterBase implements
 		report.setStatus(String.valueOf(workload));
 		
 		float min_len = values.next().get();
-		synchronized(buffer.stateTable){
-			PriorityRecord<FloatWritable, FloatWritable> pkvRecord;	
-			if(buffer.stateTable.containsKey(key)){
-				pkvRecord = buffer.stateTable.get(key);
-				float cState = pkvRecord.getcState().get();
-				if(min_len < cState){
-					buffer.stateTable.get(key).getiState().set(min_len);
-					buffer.stateTable.get(key).getcState().set(min_len);
-					buffer.stateTable.get(key).getPriority().set(-min_len);
-				}
-			}else{
-				pkvRecord = new PriorityRecord<FloatWritable, FloatWritable>(
-						new FloatWritable(-min_len), new FloatWritable(min_len), new FloatWritable(min_len));
-				buffer.stateTable.put(new IntWritable(key.get()), pkvRecord);
-			}
-		}
+		buffer.update(key, min_len, this);
+	}
+
+	@Override
+	public boolean update(IntWritable key, double min_len, double[] record, boolean found) {
+		if(found && min_len >= record[2]) return false;
+		record[0] = -min_len;
+		record[1] = record[2] = min_len;
+		return true;
 	}
 }
@@ -0,0 +1,148 @@
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.buffer.impl.ActivationBatch;
+import org.apache.hadoop.mapred.buffer.impl.InputPKVBuffer;
+import org.apache.hadoop.mapred.buffer.impl.LocalOutputBuffer;
+import org.apache.hadoop.mapred.buffer.impl.UnSortOutputBuffer;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Parallel activation of a prioritized iteration map (priter.activation.threads
+ * > 1). The activation queue is drained in rounds, each round hands a batch of up
+ * to priter.activation.batch records to every thread, which activates them into
+ * its own LocalOutputBuffer. The thread outputs are merged into the map's
+ * UnSortOutputBuffer after every round, with a delta combiner only once the queue
+ * is drained, so they are combined across the rounds first.
+ *
+ * Every thread activates with its own activator, the first one with the
+ * activator of the map and the others with instances configured from the job,
+ * so each of them holds its own copy of the graph partition. The map ends an
+ * iteration on all of them with iterate.
+ */
+class ActivationPool<K, V> {
+	private static final Log LOG = LogFactory.getLog(ActivationPool.class.getName());
+
+	private final int threads;
+	private final int batchSize;
+	private final boolean combining;
+	private final ExecutorService executor;
+	private final UnSortOutputBuffer<K, V> output;
+	private final ActivationBatch<K, V>[] batches;
+	private final LocalOutputBuffer<K, V>[] locals;
+	private final List<Callable<Integer>> workers;
+	private final Activator[] activators;
+
+	public ActivationPool(JobConf job, Activator activator, InputPKVBuffer<K, V> input,
+			UnSortOutputBuffer<K, V> output, final Reporter reporter) throws IOException {
+		this.threads = job.getInt("priter.activation.threads", 1);
+		this.batchSize = job.getInt("priter.activation.batch", 4096);
+		this.combining = job.getDeltaCombinerClass() != null;
+		this.output = output;
+		this.batches = new ActivationBatch[threads];
+		this.locals = new LocalOutputBuffer[threads];
+		this.workers = new ArrayList<Callable<Integer>>(threads);
+		this.activators = new Activator[threads];
+
+		for(int i=0; i<threads; i++){
+			final Activator threadActivator = (i == 0) ? activator :
+				(Activator) ReflectionUtils.newInstance(job.getActivatorClass(), job);
+			final ActivationBatch<K, V> batch = input.newBatch();
+			final LocalOutputBuffer<K, V> local = output.newLocalBuffer();
+			activators[i] = threadActivator;
+			batches[i] = batch;
+			locals[i] = local;
+			workers.add(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					int activated = 0;
+					while(batch.next()){
+						threadActivator.activate(batch.getKey(), batch.getValue(), local, reporter);
+						activated++;
+					}
+					return activated;
+				}
+			});
+		}
+
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "activation thread " + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		LOG.info("parallel activation with " + threads + " threads and batches of " + batchSize + " records");
+	}
+
+	/**
+	 * @return the activators of the threads, the first is the one of the map
+	 */
+	public Activator[] activators() {
+		return activators;
+	}
+
+	/**
+	 * end the iteration on the activators of the other threads, the map ends it
+	 * on its own
+	 */
+	public void iterate() {
+		for(int i=1; i<threads; i++){
+			activators[i].iterate();
+		}
+	}
+
+	/**
+	 * activate all the records in the queue of input, from the map loop
+	 * @return the number of activated records
+	 */
+	public long activate(InputPKVBuffer<K, V> input) throws IOException {
+		long activated = 0;
+		while(true){
+			int busy = 0;
+			while(busy < threads && input.nextBatch(batches[busy], batchSize) > 0){
+				busy++;
+			}
+			if(busy == 0) break;
+
+			try {
+				for(Future<Integer> done : executor.invokeAll(workers.subList(0, busy))){
+					activated += done.get();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted while activating");
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+
+			if(!combining){
+				for(int i=0; i<busy; i++){
+					output.merge(locals[i]);
+				}
+			}
+		}
+
+		if(combining && activated > 0){
+			for(int i=0; i<threads; i++){
+				output.merge(locals[i]);
+			}
+		}
+		return activated;
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+}
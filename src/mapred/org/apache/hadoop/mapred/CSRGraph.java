@@ -0,0 +1,455 @@
+package org.apache.hadoop.mapred;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * Adjacency lists of a graph partition in compressed sparse row form: the rows
+ * are the nodes in increasing id, the links of row r are edge(i) (and weight(i)
+ * for a weighted graph) for start(r) <= i < end(r). A link costs 4 bytes, 8
+ * when weighted, instead of a boxed Integer in an ArrayList of a HashMap.
+ *
+ * DistributorReduce writes the partitions as partN.csr next to the text
+ * partN files:
+ *   int magic, int flags (weighted, dense ids), int nodes, int links,
+ *   int ids[nodes], int offsets[nodes + 1], int edges[links], float weights[links]
+ * A task copies its file to the local job cache once and maps it, the arrays
+ * are then read in place and cost no heap. Without a .csr file the text
+ * partition is parsed into heap arrays of the same layout.
+ *
+ * When live rebalancing moves vertices to a task, the partitions they come from
+ * are attached behind its own: their rows and links are numbered after the ones
+ * of this graph, so an activator reads them through the same methods.
+ */
+public class CSRGraph {
+	private static final Log LOG = LogFactory.getLog(CSRGraph.class.getName());
+
+	private static final int MAGIC = 0x50435352;
+	private static final int WEIGHTED = 1;
+	private static final int DENSE = 2;
+	private static final int HEADER_LENGTH = 16;
+
+	private final int nodes;
+	private final int links;
+	private final boolean weighted;
+	//ids are base + row when the ids of the partition are consecutive
+	private final boolean dense;
+	private final int base;
+	private final IntBuffer ids;
+	private final IntBuffer offsets;
+	private final IntBuffer edges;
+	private final FloatBuffer weights;
+	//attached partitions
+	private volatile CSRGraph next = null;
+
+	private CSRGraph(int nodes, int links, int flags, IntBuffer ids, IntBuffer offsets,
+			IntBuffer edges, FloatBuffer weights) {
+		this.nodes = nodes;
+		this.links = links;
+		this.weighted = (flags & WEIGHTED) != 0;
+		this.dense = (flags & DENSE) != 0;
+		this.base = nodes > 0 ? ids.get(0) : 0;
+		this.ids = ids;
+		this.offsets = offsets;
+		this.edges = edges;
+		this.weights = weights;
+	}
+
+	/**
+	 * @return the nodes of this graph and the attached ones
+	 */
+	public int nodes() {
+		CSRGraph attached = next;
+		return attached == null ? nodes : nodes + attached.nodes();
+	}
+
+	public int links() {
+		CSRGraph attached = next;
+		return attached == null ? links : links + attached.links();
+	}
+
+	public boolean isWeighted() {
+		return weighted;
+	}
+
+	/**
+	 * @return the row of node, -1 if the partition has no such node
+	 */
+	public int row(int node) {
+		if(dense){
+			int row = node - base;
+			if(row >= 0 && row < nodes) return row;
+		}else{
+			int low = 0;
+			int high = nodes - 1;
+			while(low <= high){
+				int mid = (low + high) >>> 1;
+				int id = ids.get(mid);
+				if(id < node) low = mid + 1;
+				else if(id > node) high = mid - 1;
+				else return mid;
+			}
+		}
+		CSRGraph attached = next;
+		if(attached == null) return -1;
+		int row = attached.row(node);
+		return row < 0 ? -1 : nodes + row;
+	}
+
+	public int node(int row) {
+		return row < nodes ? ids.get(row) : next.node(row - nodes);
+	}
+
+	public int start(int row) {
+		return row < nodes ? offsets.get(row) : links + next.start(row - nodes);
+	}
+
+	public int end(int row) {
+		return row < nodes ? offsets.get(row + 1) : links + next.end(row - nodes);
+	}
+
+	public int degree(int row) {
+		return row < nodes ? offsets.get(row + 1) - offsets.get(row) : next.degree(row - nodes);
+	}
+
+	public int edge(int i) {
+		return i < links ? edges.get(i) : next.edge(i - links);
+	}
+
+	/**
+	 * @return the weight of link i, 1 for an unweighted graph
+	 */
+	public float weight(int i) {
+		if(i >= links) return next.weight(i - links);
+		return weighted ? weights.get(i) : 1f;
+	}
+
+	/**
+	 * attach the partition of vertices moved to this task behind the graph
+	 */
+	public synchronized void attach(CSRGraph graph) {
+		if(next == null){
+			next = graph;
+		}else{
+			next.attach(graph);
+		}
+	}
+
+	/**
+	 * load partition n from dir, mapping dir/partn.csr if there is one and
+	 * parsing the text file dir/partn otherwise
+	 */
+	public static CSRGraph load(JobConf conf, String dir, int n) throws IOException {
+		long start = System.currentTimeMillis();
+		FileSystem fs = FileSystem.get(conf);
+		Path csr = new Path(dir + "/part" + n + ".csr");
+		CSRGraph graph;
+		if(fs.exists(csr)){
+			graph = map(conf, fs, csr);
+		}else{
+			Path text = new Path(dir + "/part" + n);
+			LOG.info("no " + csr + ", parsing " + text);
+			Builder builder = new Builder();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(text)));
+			try{
+				String line;
+				while((line = reader.readLine()) != null){
+					builder.addLine(line);
+				}
+			}finally{
+				reader.close();
+			}
+			graph = builder.build();
+		}
+		LOG.info("loaded graph partition " + n + " with " + graph.nodes() + " nodes " + graph.links() +
+				" links, takes " + (System.currentTimeMillis() - start) + " ms");
+		return graph;
+	}
+
+	private static CSRGraph map(JobConf conf, FileSystem fs, Path csr) throws IOException {
+		long length = fs.getFileStatus(csr).getLen();
+		if(length > Integer.MAX_VALUE){
+			throw new IOException(csr + " is too large to map");
+		}
+
+		File file;
+		if(fs instanceof LocalFileSystem){
+			file = ((LocalFileSystem)fs).pathToFile(csr);
+		}else{
+			//copy to the local job cache once, a restarted task maps the same copy
+			String jobid = conf.get("mapred.job.id", "local");
+			LocalDirAllocator lDirAlloc = new LocalDirAllocator("mapred.local.dir");
+			Path local = lDirAlloc.getLocalPathForWrite(TaskTracker.getLocalJobDir(jobid) +
+					"/priter/" + csr.getName(), length, conf);
+			file = new File(local.toUri().getPath());
+			if(!file.exists() || file.length() != length){
+				fs.copyToLocalFile(csr, new Path(file.getPath() + ".tmp"));
+				if(!new File(file.getPath() + ".tmp").renameTo(file)){
+					throw new IOException("cannot rename the local copy of " + csr);
+				}
+			}
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buf;
+		try{
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+		}finally{
+			//the mapping stays valid after the channel is closed
+			raf.close();
+		}
+
+		if(buf.getInt(0) != MAGIC){
+			throw new IOException(csr + " is not a CSR graph file");
+		}
+		int flags = buf.getInt(4);
+		int nodes = buf.getInt(8);
+		int links = buf.getInt(12);
+		int pos = HEADER_LENGTH;
+		IntBuffer ids = slice(buf, pos, nodes).asIntBuffer();
+		pos += 4 * nodes;
+		IntBuffer offsets = slice(buf, pos, nodes + 1).asIntBuffer();
+		pos += 4 * (nodes + 1);
+		IntBuffer edges = slice(buf, pos, links).asIntBuffer();
+		pos += 4 * links;
+		FloatBuffer weights = null;
+		if((flags & WEIGHTED) != 0){
+			weights = slice(buf, pos, links).asFloatBuffer();
+			pos += 4 * links;
+		}
+		if(pos != length){
+			throw new IOException(csr + " has " + length + " bytes, expected " + pos);
+		}
+		return new CSRGraph(nodes, links, flags, ids, offsets, edges, weights);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, int pos, int ints) {
+		ByteBuffer dup = buf.duplicate();
+		dup.position(pos);
+		dup.limit(pos + 4 * ints);
+		return dup.slice();
+	}
+
+	/**
+	 * collects the adjacency lists of a partition, in any order of the nodes, and
+	 * writes them in CSR form. A node added twice keeps its last list.
+	 */
+	public static class Builder implements IndexedSortable {
+		private int nodes = 0;
+		private int links = 0;
+		private boolean weighted = false;
+		private boolean sorted = true;
+
+		//per added row: id, start and length in edges
+		private int[] ids = new int[1024];
+		private int[] starts = new int[1024];
+		private int[] lengths = new int[1024];
+		private int[] order = new int[1024];
+
+		private int[] edges = new int[4096];
+		private float[] weights = new float[4096];
+
+		/**
+		 * add a text line: node \t link link ... or node \t link,weight link,weight ...
+		 */
+		public void addLine(String line) {
+			int index = line.indexOf('\t');
+			if(index == -1) return;
+			add(Integer.parseInt(line.substring(0, index)), line, index + 1);
+		}
+
+		/**
+		 * add a node with its links in text form: link link ... or link,weight ...
+		 */
+		public void add(int node, String linkstring) {
+			add(node, linkstring, 0);
+		}
+
+		private void add(int node, String s, int from) {
+			int start = links;
+			int length = s.length();
+			int i = from;
+			while(i < length){
+				while(i < length && Character.isWhitespace(s.charAt(i))) i++;
+				if(i >= length) break;
+				int end = i;
+				while(end < length && !Character.isWhitespace(s.charAt(end))) end++;
+
+				int comma = s.indexOf(',', i);
+				if(comma != -1 && comma < end){
+					weighted = true;
+					addLink(Integer.parseInt(s.substring(i, comma)), Float.parseFloat(s.substring(comma + 1, end)));
+				}else{
+					addLink(Integer.parseInt(s.substring(i, end)), 1f);
+				}
+				i = end;
+			}
+			addRow(node, start, links - start);
+		}
+
+		public void add(int node, int[] nodeLinks, float[] nodeWeights, int degree) {
+			int start = links;
+			for(int i=0; i<degree; i++){
+				addLink(nodeLinks[i], nodeWeights == null ? 1f : nodeWeights[i]);
+			}
+			if(nodeWeights != null) weighted = true;
+			addRow(node, start, degree);
+		}
+
+		private void addLink(int link, float weight) {
+			if(links == edges.length){
+				int[] grownEdges = new int[edges.length * 2];
+				System.arraycopy(edges, 0, grownEdges, 0, links);
+				edges = grownEdges;
+				float[] grownWeights = new float[weights.length * 2];
+				System.arraycopy(weights, 0, grownWeights, 0, links);
+				weights = grownWeights;
+			}
+			edges[links] = link;
+			weights[links] = weight;
+			links++;
+		}
+
+		private void addRow(int node, int start, int length) {
+			if(nodes == ids.length){
+				ids = grow(ids);
+				starts = grow(starts);
+				lengths = grow(lengths);
+				order = grow(order);
+			}
+			if(nodes > 0 && node <= ids[order[nodes - 1]]) sorted = false;
+			ids[nodes] = node;
+			starts[nodes] = start;
+			lengths[nodes] = length;
+			order[nodes] = nodes;
+			nodes++;
+		}
+
+		private static int[] grow(int[] array) {
+			int[] grown = new int[array.length * 2];
+			System.arraycopy(array, 0, grown, 0, array.length);
+			return grown;
+		}
+
+		/**
+		 * by id, then by the order the rows were added
+		 */
+		public int compare(int i, int j) {
+			int a = order[i];
+			int b = order[j];
+			if(ids[a] != ids[b]) return ids[a] < ids[b] ? -1 : 1;
+			return a < b ? -1 : (a > b ? 1 : 0);
+		}
+
+		public void swap(int i, int j) {
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+
+		/**
+		 * sort the rows by id and drop all but the last row of a node
+		 * @return the number of rows kept
+		 */
+		private int sortRows() {
+			if(sorted) return nodes;
+			new QuickSort().sort(this, 0, nodes);
+			int kept = 0;
+			for(int i=0; i<nodes; i++){
+				if(i + 1 < nodes && ids[order[i + 1]] == ids[order[i]]) continue;
+				order[kept++] = order[i];
+			}
+			return kept;
+		}
+
+		private int flags(int rows) {
+			int flags = weighted ? WEIGHTED : 0;
+			if(rows > 0 && (long)ids[order[rows - 1]] - ids[order[0]] == rows - 1) flags |= DENSE;
+			return flags;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			int rows = sortRows();
+			int rowLinks = 0;
+			for(int r=0; r<rows; r++){
+				rowLinks += lengths[order[r]];
+			}
+
+			out.writeInt(MAGIC);
+			out.writeInt(flags(rows));
+			out.writeInt(rows);
+			out.writeInt(rowLinks);
+			for(int r=0; r<rows; r++){
+				out.writeInt(ids[order[r]]);
+			}
+			int offset = 0;
+			out.writeInt(offset);
+			for(int r=0; r<rows; r++){
+				offset += lengths[order[r]];
+				out.writeInt(offset);
+			}
+			for(int r=0; r<rows; r++){
+				int row = order[r];
+				for(int i=starts[row]; i<starts[row] + lengths[row]; i++){
+					out.writeInt(edges[i]);
+				}
+			}
+			if(weighted){
+				for(int r=0; r<rows; r++){
+					int row = order[r];
+					for(int i=starts[row]; i<starts[row] + lengths[row]; i++){
+						out.writeFloat(weights[i]);
+					}
+				}
+			}
+		}
+
+		/**
+		 * the graph in heap arrays
+		 */
+		public CSRGraph build() {
+			int rows = sortRows();
+			int[] rowIds = new int[rows];
+			int[] offsets = new int[rows + 1];
+			int rowLinks = 0;
+			for(int r=0; r<rows; r++){
+				rowIds[r] = ids[order[r]];
+				rowLinks += lengths[order[r]];
+				offsets[r + 1] = rowLinks;
+			}
+
+			int[] rowEdges = edges;
+			float[] rowWeights = weights;
+			if(!sorted){
+				rowEdges = new int[rowLinks];
+				rowWeights = new float[rowLinks];
+				for(int r=0; r<rows; r++){
+					int row = order[r];
+					System.arraycopy(edges, starts[row], rowEdges, offsets[r], lengths[row]);
+					System.arraycopy(weights, starts[row], rowWeights, offsets[r], lengths[row]);
+				}
+			}
+			return new CSRGraph(rows, rowLinks, flags(rows), IntBuffer.wrap(rowIds), IntBuffer.wrap(offsets),
+					IntBuffer.wrap(rowEdges, 0, rowLinks).slice(),
+					weighted ? FloatBuffer.wrap(rowWeights, 0, rowLinks).slice() : null);
+		}
+	}
+}
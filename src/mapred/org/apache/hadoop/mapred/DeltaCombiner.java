@@ -0,0 +1,12 @@
+package org.apache.hadoop.mapred;
+
+public interface DeltaCombiner extends JobConfigurable {
+	/*
+	 * for merge the activated values to the same key on map side, that is a partial 
+	 * update before shuffle. only for updates that are associative and commutative, 
+	 * e.g. sum for pagerank, min for sssp. keys have to be IntWritable and values 
+	 * IntWritable, FloatWritable or DoubleWritable.
+	 */
+	
+	double combine(double accumulated, double delta);
+}
@@ -308,6 +308,26 @@ public class FileHandle {
                        + "/static_" + reduceTaskId.getTaskID().getId() + ".file", conf);
   }
  
+  /** Get the page file of the paged state table.
+   * @param reduceTaskId a reduce task id
+   */
+  public Path getStateTableFile(TaskAttemptID reduceTaskId)
+    throws IOException {
+    return lDirAlloc.getLocalPathForWrite(TaskTracker.getIntermediateOutputDir(
+                       jobId.toString(), reduceTaskId.toString())
+                       + "/statetable_" + reduceTaskId.getTaskID().getId() + ".file", conf);
+  }
+  
+  /** Get the static data file of the paged state table.
+   * @param reduceTaskId a reduce task id
+   */
+  public Path getStateTableStaticFile(TaskAttemptID reduceTaskId)
+    throws IOException {
+    return lDirAlloc.getLocalPathForWrite(TaskTracker.getIntermediateOutputDir(
+                       jobId.toString(), reduceTaskId.toString())
+                       + "/statetable_static_" + reduceTaskId.getTaskID().getId() + ".file", conf);
+  }
+ 
   /** Get the priority queue file name.
    * @param mapTaskId a map task id
    * @param reduceTaskId a reduce task id
@@ -513,6 +513,31 @@ public class IFile {
         ++numRecordsWritten;
       }
     
+    /** append a record of serialized priority, key and value */
+    public void append(DataInputBuffer p, DataInputBuffer key, DataInputBuffer value)
+    throws IOException {
+      int priorityLength = p.getLength() - p.getPosition();
+      int keyLength = key.getLength() - key.getPosition();
+      int valueLength = value.getLength() - value.getPosition();
+      if (priorityLength < 0 || keyLength < 0 || valueLength < 0) {
+        throw new IOException("Negative length not allowed: " + priorityLength + 
+                              ", " + keyLength + ", " + valueLength);
+      }
+
+      WritableUtils.writeVInt(out, priorityLength);
+      WritableUtils.writeVInt(out, keyLength);
+      WritableUtils.writeVInt(out, valueLength);
+      out.write(p.getData(), p.getPosition(), priorityLength);
+      out.write(key.getData(), key.getPosition(), keyLength);
+      out.write(value.getData(), value.getPosition(), valueLength);
+
+      decompressedBytesWritten += priorityLength + keyLength + valueLength + 
+                                  WritableUtils.getVIntSize(priorityLength) + 
+                                  WritableUtils.getVIntSize(keyLength) + 
+                                  WritableUtils.getVIntSize(valueLength);
+      ++numRecordsWritten;
+    }
+    
     public long getRawLength() {
       return decompressedBytesWritten;
     }
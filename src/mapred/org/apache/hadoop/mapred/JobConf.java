@@ -786,6 +786,26 @@ public class JobConf extends Configuration {
     setClass("priter.activator.class", theClass, Activator.class);
   }
 
+  /**
+   * Get the {@link DeltaCombiner} class for the job.
+   * 
+   * @return the {@link DeltaCombiner} class for the job, or null if map 
+   *         outputs are not combined.
+   */
+  public Class<? extends DeltaCombiner> getDeltaCombinerClass() {
+    return getClass("priter.combiner.class", null, DeltaCombiner.class);
+  }
+  
+  /**
+   * Set the {@link DeltaCombiner} class for the job, the map outputs of a 
+   * prioritized iteration are then combined per key before the shuffle.
+   * 
+   * @param theClass the {@link DeltaCombiner} class for the job.
+   */
+  public void setDeltaCombinerClass(Class<? extends DeltaCombiner> theClass) {
+    setClass("priter.combiner.class", theClass, DeltaCombiner.class);
+  }
+
   /**
    * Get the {@link Mapper} class for the job.
    * 
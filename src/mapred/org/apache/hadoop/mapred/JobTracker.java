@@ -17,16 +17,13 @@
  */
 package org.apache.hadoop.mapred;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.net.BindException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -37,7 +34,6 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
@@ -49,21 +45,10 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
-import org.apache.hadoop.io.ClusterWritable;
-import org.apache.hadoop.io.DataInputBuffer;
-import org.apache.hadoop.io.DoubleWritable;
-import org.apache.hadoop.io.FloatWritable;
-import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.MapWritable;
-import org.apache.hadoop.io.Writable;
-import org.apache.hadoop.io.WritableComparable;
-import org.apache.hadoop.io.serializer.Deserializer;
-import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.ipc.RPC;
 import org.apache.hadoop.ipc.RemoteException;
 import org.apache.hadoop.ipc.Server;
@@ -130,8 +115,9 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   //record the local iteration progresses collected from workers
   private Map<JobID, HashMap<Integer, Double>> iterProgresses = new HashMap<JobID, HashMap<Integer, Double>>();
   
-  //TopK snapshot mergers for different jobs
-  private Map<JobID, Merger> mergerMap = new HashMap<JobID, Merger>();
+  //merges the topk snapshots of the reduces, off the jobtracker lock
+  private SnapshotMergeService snapshotMerger = new SnapshotMergeService();
+  private Thread snapshotMergerThread = null;
   
   //for fault tolerance
   private Map<JobID, Boolean> SnapshotIndexChanged = new HashMap<JobID, Boolean>();
@@ -167,6 +153,8 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   private long lastIterTime = 0;
   private int recoverIterations = 0;
   private Map<JobID, FailureCheckThread> migrateCheckMap = new HashMap<JobID, FailureCheckThread>();
+  //last routing version planned for a job with live rebalancing
+  private Map<JobID, Integer> rebalanceVersions = new HashMap<JobID, Integer>();
 
   
   class TimeSeq{
@@ -1435,6 +1423,9 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     this.retireJobsThread = new Thread(this.retireJobs, "retireJobs");
     this.retireJobsThread.start();
     expireLaunchingTaskThread.start();
+    this.snapshotMergerThread = new Thread(this.snapshotMerger, "snapshotMerger");
+    this.snapshotMergerThread.setDaemon(true);
+    this.snapshotMergerThread.start();
 
     if (completedJobStatusStore.isActive()) {
       completedJobsStoreThread = new Thread(completedJobStatusStore,
@@ -1485,6 +1476,15 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
         ex.printStackTrace();
       }
     }
+    if (this.snapshotMergerThread != null && this.snapshotMergerThread.isAlive()) {
+      LOG.info("Stopping snapshotMerger");
+      this.snapshotMergerThread.interrupt();
+      try {
+        this.snapshotMergerThread.join();
+      } catch (InterruptedException ex) {
+        ex.printStackTrace();
+      }
+    }
     if (taskScheduler != null) {
       taskScheduler.terminate();
     }
@@ -2696,7 +2696,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     job.kill();
     
 	this.snapshotCompletionMap.remove(jobid);
-	this.mergerMap.remove(jobid);
+	this.snapshotMerger.cancel(jobid);
 	this.recTimeSeq.remove(jobid);
 	this.taskReAssign = false;
 	this.taskReAssignMap.clear();
@@ -3255,6 +3255,8 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
   }
 
   private void completeJob(JobID job) throws IOException{
+	  //the snapshot the job stopped at is written before the job is killed
+	  snapshotMerger.finish(job);
 	  iterProgresses.remove(job);
 	  killJob(job);
   }
@@ -3279,13 +3281,6 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
 				Map<Integer, Integer> iterIndexes = new HashMap<Integer, Integer>();
 				this.itersMap.put(jobid, iterIndexes);
 				this.changedProgresses.put(jobid, 0);
-				
-				JobConf job = jobs.get(jobid).getJobConf();
-				Class priClass = job.getPriorityClass();
-			    Class valClass = job.getOutputValueClass();
-				Merger merger = new Merger(job, priClass, valClass, snapshotIndex);
-				this.mergerMap.put(jobid, merger);
-				LOG.info("put merger for job " + jobid);
 
 				HashMap<Integer, Double> iterProgress = new HashMap<Integer, Double>();
 				iterProgresses.put(jobid, iterProgress);
@@ -3307,8 +3302,6 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
 				}
 				
 				snapshotCompletionMap.get(jobid).get(snapshotIndex).add(reduceIndex);
-				if(jobs.get(jobid).getJobConf().getBoolean("priter.snapshot", true))
-					this.mergerMap.get(jobid).mergeTopKFile(snapshotIndex, reduceIndex);
 				ArrayList<Integer> tasks = this.snapshotCompletionMap.get(jobid).get(snapshotIndex);
 				totalUpdates.put(jobid, this.totalUpdates.get(jobid)+part_updates);
 				iterProgresses.get(jobid).put(snapshotIndex, iterProgresses.get(jobid).get(snapshotIndex) + local_progress);
@@ -3320,10 +3313,9 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
 						return;
 					}
           
-					WritableComparable total = new FloatWritable(Float.MAX_VALUE);
 					if(jobs.get(jobid).getJobConf().getBoolean("priter.snapshot.merge", true)){
-						//do merge sort
-						total = this.mergerMap.get(jobid).writeTopK(snapshotIndex);
+						//merge the topk files in the background
+						this.snapshotMerger.merge(jobid, jobs.get(jobid).getJobConf(), snapshotIndex, tasks);
 					}
 					
 					this.SnapshotIndexChanged.put(jobid, true);
@@ -3383,173 +3375,12 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
 				}else{
 					iterProgresses.get(jobid).put(snapshotIndex, local_progress);
 					snapshotCompletionMap.get(jobid).put(snapshotIndex, tasks);						
-					snapshotCompletionMap.get(jobid).get(snapshotIndex).add(reduceIndex);					
-          
-					if(!jobs.get(jobid).getJobConf().getBoolean("priter.snapshot", true)) return;
-          
-					try{
-						this.mergerMap.get(jobid).mergeTopKFile(snapshotIndex, reduceIndex);
-					}catch(Exception e){
-						e.printStackTrace();
-						LOG.info("jobid is " + jobid + " snapshotIndex " + snapshotIndex + " reduceIndex is " + reduceIndex);
-					}
+					snapshotCompletionMap.get(jobid).get(snapshotIndex).add(reduceIndex);
 				}
 			}
 		}
 	} 
 	
-	class Merger<P extends WritableComparable, V extends Object> {
-		
-		private JobConf job;
-		private FileSystem hdfs;
-		public Class<P> priClass;
-		public Class<V> valClass;
-		private Deserializer priDeserializer;	
-		private Deserializer keyDeserializer;	
-		private Deserializer valDeserializer;	
-		private DataInputBuffer priBuffer;
-		private DataInputBuffer keyBuffer;
-		private DataInputBuffer valBuffer;
-		private boolean descend;
-		private int topk;
-		private String outputDir;
-		private Comparator comparator;
-		private Comparator icomparator;
-		private HashMap<Integer, PriorityQueue<PKVRecord<P, IntWritable, V>>> topkQueues;
-		
-		public Merger(JobConf job, Class<P> priclass, Class<V> valclass, int snapshotindex) throws IOException{
-			this.job = job;
-			this.hdfs = FileSystem.get(conf);
-			this.priClass = priclass;
-			this.valClass = valclass;
-			SerializationFactory serializationFactory = new SerializationFactory(job);
-			this.priDeserializer = serializationFactory.getDeserializer(priClass);
-		    this.keyDeserializer = serializationFactory.getDeserializer(IntWritable.class);
-		    this.valDeserializer = serializationFactory.getDeserializer(valClass);
-		    this.priBuffer = new DataInputBuffer();
-		    this.keyBuffer = new DataInputBuffer();
-		    this.valBuffer = new DataInputBuffer();
-		    
-		    descend = job.getBoolean("mapred.iterative.snapshot.descend", true) ? true : false;			
-			topk = job.getInt("priter.snapshot.topk", 1000);
-			outputDir = job.get("mapred.output.dir");
-			if(outputDir == null) throw new IOException("no output dir");
-
-			topkQueues = new HashMap<Integer, PriorityQueue<PKVRecord<P, IntWritable, V>>>();
-		}
-		
-		public void mergeTopKFile(int snapshotindex, int taskid) throws IOException{
-			if(!topkQueues.containsKey(snapshotindex)){
-				PriorityQueue<PKVRecord<P, IntWritable, V>> topkQueue = new PriorityQueue<PKVRecord<P, IntWritable, V>>(topk/*, comparator*/);
-				topkQueues.put(snapshotindex, topkQueue);
-			}
-			
-			PriorityQueue<PKVRecord<P, IntWritable, V>> topkQueue = topkQueues.get(snapshotindex);
-			
-			Path topKPath = new Path(outputDir + "/" + taskid + "/topKsnapshot-" + snapshotindex);				
-			IFile.PriorityReader<P, IntWritable, V> reader = new IFile.PriorityReader<P, IntWritable, V>(job, hdfs, topKPath, null, null);
-			while(reader.next(priBuffer, keyBuffer, valBuffer)){
-				priDeserializer.open(priBuffer);
-				keyDeserializer.open(keyBuffer);
-				valDeserializer.open(valBuffer);
-				Object pri = null;
-				Object key = null;
-				Object val = null;
-				pri = priDeserializer.deserialize(pri);
-				key = keyDeserializer.deserialize(key);
-				val = valDeserializer.deserialize(val);
-				
-				PKVRecord<P, IntWritable, V> pkvrecord = new PKVRecord<P, IntWritable, V>((P)pri, (IntWritable)key, (V)val);
-				if(topkQueue.size() >= topk){
-					if(pkvrecord.compareTo(topkQueue.peek()) > 0){
-						topkQueue.poll();						
-						topkQueue.add(pkvrecord);
-					}
-				}else{
-					topkQueue.add(pkvrecord);
-				}
-			}
-
-			reader.close();
-		}
-		
-		public WritableComparable writeTopK(int snapshotindex) throws IOException{
-			String snapshot = outputDir + "/snapshot-" + snapshotindex;
-			FSDataOutputStream ostream = hdfs.create(new Path(snapshot), true);
-			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(ostream));
-
-			PKVRecord<P, IntWritable, V>[] recs = topkQueues.get(snapshotindex).toArray(new PKVRecord[topkQueues.get(snapshotindex).size()]);
-			Arrays.sort(recs, new Comparator<PKVRecord<P, IntWritable, V>>(){
-				public int compare(PKVRecord<P, IntWritable, V> o1,
-						PKVRecord<P, IntWritable, V> o2) {
-					return -o1.p.compareTo(o2.p);
-				}
-			});
-			//Arrays.sort(recs, icomparator);
-			topkQueues.remove(snapshotindex);	
-			
-			if(valClass == IntWritable.class){
-				int total = 0;
-				for(PKVRecord rec : recs){
-					writer.write(rec.k + "\t" + rec.v + "\n");
-					total += ((IntWritable)rec.p).get();
-				}				
-				writer.close();
-				ostream.close();
-				
-				return new IntWritable(total);
-			}else if(valClass == DoubleWritable.class){
-				double total = 0;
-				for(PKVRecord rec : recs){
-					writer.write(rec.k + "\t" + rec.v + "\n");
-					total += ((DoubleWritable)rec.p).get();
-				}
-				writer.close();
-				ostream.close();
-				
-				return new DoubleWritable(total);
-			}else if(valClass == FloatWritable.class){
-				float total = 0;
-				for(PKVRecord rec : recs){
-					writer.write(rec.k + "\t" + rec.v + "\n");
-					total += ((FloatWritable)rec.p).get();
-				}
-				writer.close();
-				ostream.close();
-				
-				return new FloatWritable(total);
-			}else if(valClass == ClusterWritable.class){
-				float total = 0;
-				for(PKVRecord rec : recs){
-					ClusterWritable clusterrec = (ClusterWritable)rec.v;
-					writer.write(rec.k + "\t" + clusterrec.nodeid + " " + clusterrec.clusterid + " "
-							+ clusterrec.addvalue + "\n");
-					total += ((DoubleWritable)rec.p).get();
-				}
-				writer.close();
-				ostream.close();
-				
-				return new FloatWritable(total);
-			}else if(valClass == MapWritable.class){
-				float total = 0;
-				for(PKVRecord rec : recs){
-					writer.write(rec.k + "\t" + rec.p + "\t");
-					for(Map.Entry<Writable, Writable> entry : ((MapWritable)rec.v).entrySet()){
-						writer.write(entry.getKey() + "," + entry.getValue() + " ");
-					}
-					writer.write("\n");
-					total += ((FloatWritable)rec.p).get();
-				}
-				writer.close();
-				ostream.close();
-				
-				return new FloatWritable(total);
-			}else{
-				return new IntWritable(-1);
-			}			
-		}
-	}
-
 	@Override
 	public synchronized void reportIterationCompletionEvent(IterationCompletionEvent event)
 			throws IOException {
@@ -3607,8 +3438,17 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
 				TimeSeq com2 = seq.get(0);
 				
 				if(recoverIterations == 0) recoverIterations = jobs.get(jobid).getJobConf().getInt("priter.checkpoint.frequency", 10);
+				
+				//move vertices of the slowest reduce to the fastest one instead of migrating with a rollback
+				JobConf jobConf = jobs.get(jobid).getJobConf();
+				boolean live = jobConf.getBoolean("priter.rebalance.live", false);
+				if(live && (iterIndex >= recoverIterations) && (com1.taskid != com2.taskid)
+						&& (com1.time - com2.time > jobConf.getLong("priter.rebalance.threshold", 5000))){
+					planRebalance(jobid, jobConf, com1.taskid, com2.taskid, iterIndex);
+				}
+				
 				//migrate task
-				if(!taskReAssign && (iterIndex >= recoverIterations) 
+				if(!live && !taskReAssign && (iterIndex >= recoverIterations) 
 						&& (com1.time - com2.time > jobs.get(jobid).getJobConf().getLong("priter.task.migration.threshold", 20000))
 						&& !SnapshotIndexChanged.get(jobid)){
 					String fromTT = ((PrIterTaskScheduler)taskScheduler).taskidTTMap.get(jobid).get(com1.taskid);
@@ -3686,6 +3526,30 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
 		}
 	}
 
+	/**
+	 * publish the next move plan of a job, once the previous move is done
+	 */
+	private void planRebalance(JobID jobid, JobConf conf, int from, int to, int iterIndex) {
+		Integer last = rebalanceVersions.get(jobid);
+		int version = (last == null) ? 0 : last;
+		try {
+			FileSystem fs = FileSystem.get(conf);
+			if(!Rebalancer.isReady(fs, conf, version)){
+				LOG.info("move " + version + " of job " + jobid + " is not done yet");
+				return;
+			}
+			float fraction = conf.getFloat("priter.rebalance.fraction", 0.1f);
+			Rebalancer.writePlan(fs, conf, version + 1, from, to, fraction);
+			rebalanceVersions.put(jobid, version + 1);
+			this.recoverIterations = iterIndex + conf.getInt("priter.rebalance.interval", 
+					conf.getInt("priter.checkpoint.frequency", 10));
+			LOG.info("plan move " + (version + 1) + " of job " + jobid + ": " + fraction + 
+					" of the records of reduce " + from + " to reduce " + to);
+		} catch (IOException e) {
+			LOG.error("cannot plan move " + (version + 1) + " of job " + jobid, e);
+		}
+	}
+
 	private class FailureCheckThread extends Thread {
 		
 		public IterationCompletionEvent event;
@@ -0,0 +1,461 @@
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.buffer.impl.InputPKVBuffer;
+import org.apache.hadoop.mapred.buffer.impl.IterationLatency;
+import org.apache.hadoop.mapred.buffer.impl.OutputPKVBuffer;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Runs a prioritized iteration job (priter.job) in the LocalJobRunner process,
+ * without trackers, sockets or spill files. The job has one logical partition
+ * per reduce, each with the activator and the activation queue
+ * (InputPKVBuffer) of map i and the updater and the state table
+ * (OutputPKVBuffer) of reduce i. The partitions run on priter.local.threads
+ * threads, by default one per core.
+ *
+ * An iteration is three rounds over all the partitions: the maps activate
+ * their queues into an in-memory outbox per reduce, the reduces update their
+ * tables with the outboxes addressed to them, and the reduces extract their
+ * top records into the queue of their map, with the same selection as
+ * OutputPKVBuffer.spillTops. A partition only writes its own outboxes and
+ * queue in a round, so a run does not depend on the thread scheduling.
+ *
+ * Snapshots are taken every priter.snapshot.interval ms, or every
+ * priter.local.snapshot.iterations iterations for a reproducible run, and are
+ * merged and checked for termination as JobTracker.reportSnapshotCompletionEvent
+ * does. The job also stops when no reduce has a record left to extract, a
+ * final snapshot is taken then.
+ *
+ * The iterations are synchronous, like with priter.job.mapsync. The delta
+ * combiner is not applied, the updater gets all the values of a key. Only the
+ * in-memory jobs (priter.job.inmem) are supported.
+ */
+class LocalIterativeRunner {
+	private static final Log LOG = LogFactory.getLog(LocalIterativeRunner.class.getName());
+
+	private final JobConf job;
+	private final JobID jobId;
+	private final String jobFile;
+	private final int partitions;
+	private final int threads;
+	private final Counters counters = new Counters();
+	private final Reporter reporter;
+	private final SnapshotMergeService merger = new SnapshotMergeService();
+	private Partition[] parts;
+	private ExecutorService executor;
+
+	//snapshot and termination
+	private final long snapshotInterval;
+	private final int snapshotIterations;
+	private int snapshotIndex = 0;
+	private double lastProgress = Double.MAX_VALUE;
+
+	/**
+	 * map i and reduce i of the job
+	 */
+	private class Partition implements OutputCollector<Object, Object> {
+		final int id;
+		final Activator activator;
+		final Updater updater;
+		final InputPKVBuffer queue;
+		final OutputPKVBuffer stateTable;
+		final Partitioner partitioner;
+
+		//serialized map outputs, one outbox per reduce
+		final DataOutputBuffer[] outbox;
+		final Serializer[] keySerializers;
+		final Serializer[] valSerializers;
+		final Deserializer keyDeserializer;
+		final Deserializer valDeserializer;
+		final DataInputBuffer inbox = new DataInputBuffer();
+
+		Partition(int id, MapTask map, ReduceTask reduce) throws IOException {
+			this.id = id;
+			JobConf mapConf = (JobConf) map.getConf();
+			JobConf reduceConf = (JobConf) reduce.getConf();
+
+			this.activator = (Activator) ReflectionUtils.newInstance(job.getActivatorClass(), mapConf);
+			this.partitioner = (Partitioner) ReflectionUtils.newInstance(job.getPartitionerClass(), mapConf);
+			this.queue = new InputPKVBuffer(null, map, mapConf, reporter, null,
+					job.getMapOutputKeyClass(), job.getMapOutputValueClass());
+			this.activator.initStarter(queue);
+
+			this.updater = (Updater) ReflectionUtils.newInstance(job.getUpdatorClass(), reduceConf);
+			this.stateTable = new OutputPKVBuffer(null, reduce, reduceConf, reporter, null,
+					job.getOutputKeyClass(), job.getPriorityClass(), job.getOutputValueClass(), updater);
+
+			SerializationFactory serializationFactory = new SerializationFactory(job);
+			this.outbox = new DataOutputBuffer[partitions];
+			this.keySerializers = new Serializer[partitions];
+			this.valSerializers = new Serializer[partitions];
+			for(int i=0; i<partitions; i++){
+				outbox[i] = new DataOutputBuffer();
+				keySerializers[i] = serializationFactory.getSerializer(job.getMapOutputKeyClass());
+				valSerializers[i] = serializationFactory.getSerializer(job.getMapOutputValueClass());
+				keySerializers[i].open(outbox[i]);
+				valSerializers[i].open(outbox[i]);
+			}
+			this.keyDeserializer = serializationFactory.getDeserializer(job.getMapOutputKeyClass());
+			this.valDeserializer = serializationFactory.getDeserializer(job.getMapOutputValueClass());
+			this.keyDeserializer.open(inbox);
+			this.valDeserializer.open(inbox);
+		}
+
+		/**
+		 * the map output of an activation, serialized into the outbox of its reduce
+		 */
+		public void collect(Object key, Object value) throws IOException {
+			int reduce = partitioner.getPartition(key, value, partitions);
+			keySerializers[reduce].serialize(key);
+			valSerializers[reduce].serialize(value);
+		}
+
+		/**
+		 * activate all the records in the queue of the map
+		 * @return the number of activated records
+		 */
+		long activate() throws IOException {
+			for(DataOutputBuffer out : outbox){
+				out.reset();
+			}
+			long activated = 0;
+			while(queue.next()){
+				activator.activate(queue.getTopKey(), queue.getTopValue(), this, reporter);
+				activated++;
+			}
+			activator.iterate();
+			reporter.incrCounter(Task.Counter.MAP_INPUT_RECORDS, activated);
+			return activated;
+		}
+
+		/**
+		 * update the state table with the outboxes of all the maps addressed to
+		 * this reduce, in map order
+		 * @return the number of updated keys
+		 */
+		long update() throws IOException {
+			long start = System.currentTimeMillis();
+			Map<Object, List<Object>> values = new HashMap<Object, List<Object>>();
+			for(Partition part : parts){
+				DataOutputBuffer in = part.outbox[id];
+				inbox.reset(in.getData(), in.getLength());
+				while(inbox.getPosition() < in.getLength()){
+					Object key = keyDeserializer.deserialize(null);
+					Object value = valDeserializer.deserialize(null);
+					List<Object> list = values.get(key);
+					if(list == null){
+						list = new ArrayList<Object>();
+						values.put(key, list);
+					}
+					list.add(value);
+				}
+			}
+
+			synchronized(stateTable.stateTable){
+				for(Map.Entry<Object, List<Object>> entry : values.entrySet()){
+					updater.updateState(entry.getKey(), entry.getValue().iterator(), stateTable, reporter);
+				}
+			}
+			stateTable.getQueueController().updated(System.currentTimeMillis() - start);
+			reporter.incrCounter(Task.Counter.REDUCE_INPUT_GROUPS, values.size());
+			return values.size();
+		}
+
+		/**
+		 * extract the top records of the state table into the queue of the map
+		 * @return the number of extracted records
+		 */
+		long extract() throws IOException {
+			int count = stateTable.extractTops(new OutputCollector<Object, Object>() {
+				public void collect(Object key, Object value) throws IOException {
+					queue.init(key, value);
+				}
+			});
+			updater.iterate();
+			return count;
+		}
+
+		/**
+		 * @return the progress of the table, written to topKsnapshot-index with priter.snapshot
+		 */
+		double snapshot(int index) throws IOException {
+			if(!job.getBoolean("priter.snapshot", true)){
+				return stateTable.measureProgress();
+			}
+			stateTable.snapshot(index);
+			double progress = stateTable.progress;
+			stateTable.progress = 0;
+			return progress;
+		}
+	}
+
+	/**
+	 * a step of all the partitions, run on the pool
+	 */
+	private static abstract class Step {
+		abstract long run(Partition part) throws IOException;
+	}
+
+	LocalIterativeRunner(JobConf job, JobID jobId, String jobFile) throws IOException {
+		if(!job.getBoolean("priter.job.inmem", true)){
+			throw new IOException("only in-memory PrIter jobs (priter.job.inmem) run locally");
+		}
+
+		this.jobId = jobId;
+		this.jobFile = jobFile;
+		this.partitions = Math.max(job.getNumReduceTasks(), 1);
+		if(job.getNumMapTasks() != partitions){
+			LOG.warn("running " + job.getNumMapTasks() + " maps as " + partitions + " partitions, one per reduce");
+		}
+
+		this.job = new JobConf(job);
+		this.job.setNumMapTasks(partitions);
+		if(this.job.getInt("priter.graph.partitions", 0) == 0){
+			this.job.setInt("priter.graph.partitions", partitions);
+		}
+		//no attempt is restarted in process, nothing to recover
+		this.job.setBoolean("priter.checkpoint", false);
+		this.job.setBoolean("priter.exequeue.persist", false);
+
+		this.threads = Math.min(job.getInt("priter.local.threads", Runtime.getRuntime().availableProcessors()), partitions);
+		this.snapshotInterval = job.getLong("priter.snapshot.interval", 20000);
+		this.snapshotIterations = job.getInt("priter.local.snapshot.iterations", 0);
+
+		this.reporter = new Reporter() {
+			public void setStatus(String status) {
+			}
+			public void progress() {
+			}
+			public Counters.Counter getCounter(String group, String name) {
+				return counters.findCounter(group, name);
+			}
+			public void incrCounter(Enum key, long amount) {
+				counters.incrCounter(key, amount);
+			}
+			public void incrCounter(String group, String counter, long amount) {
+				counters.incrCounter(group, counter, amount);
+			}
+			public InputSplit getInputSplit() throws UnsupportedOperationException {
+				throw new UnsupportedOperationException("no input split in a PrIter job");
+			}
+		};
+	}
+
+	/**
+	 * @return the counters of all the partitions
+	 */
+	Counters getCounters() {
+		return counters;
+	}
+
+	/**
+	 * run the iterations until the job terminates
+	 */
+	void run() throws IOException {
+		this.executor = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "local priter thread " + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		LOG.info("running " + jobId + " in process with " + partitions + " partitions on " + threads + " threads");
+
+		try {
+			//the graph partitions are loaded in parallel too
+			this.parts = new Partition[partitions];
+			List<Callable<Partition>> inits = new ArrayList<Callable<Partition>>(partitions);
+			for(int i=0; i<partitions; i++){
+				final int id = i;
+				final MapTask map = new MapTask(jobFile, new TaskAttemptID(new TaskID(jobId, true, id), 0), 
+						id, "", new BytesWritable(), true);
+				final ReduceTask reduce = new ReduceTask(jobFile, new TaskAttemptID(new TaskID(jobId, false, id), 0), 
+						id, partitions, true);
+				localize(map);
+				localize(reduce);
+				inits.add(new Callable<Partition>() {
+					public Partition call() throws IOException {
+						return new Partition(id, map, reduce);
+					}
+				});
+			}
+			List<Future<Partition>> created = invokeAll(inits);
+			for(int i=0; i<partitions; i++){
+				parts[i] = get(created.get(i));
+			}
+
+			iterate();
+		} finally {
+			executor.shutdownNow();
+			if(parts != null){
+				for(Partition part : parts){
+					if(part != null) part.queue.close();
+				}
+			}
+		}
+	}
+
+	private void localize(Task task) throws IOException {
+		JobConf conf = new JobConf(job);
+		task.localizeConfiguration(conf);
+		task.setConf(conf);
+	}
+
+	private void iterate() throws IOException {
+		IterationLatency latency = new IterationLatency(reporter);
+		long start = System.currentTimeMillis();
+		long lastSnapshot = start;
+		int iteration = 0;
+
+		while(true){
+			long activated = step(new Step() {
+				long run(Partition part) throws IOException {
+					return part.activate();
+				}
+			});
+			latency.lap(IterationLatency.Counter.MAP_ACTIVATE_MILLIS);
+
+			step(new Step() {
+				long run(Partition part) throws IOException {
+					return part.update();
+				}
+			});
+			latency.lap(IterationLatency.Counter.REDUCE_UPDATE_MILLIS);
+
+			long extracted = step(new Step() {
+				long run(Partition part) throws IOException {
+					return part.extract();
+				}
+			});
+			latency.lap(IterationLatency.Counter.REDUCE_EXTRACT_MILLIS);
+			latency.iterated();
+			iteration++;
+			LOG.info("iteration " + iteration + " activated " + activated + " extracted " + extracted);
+
+			if(extracted == 0){
+				LOG.info("no record left to extract, take the final snapshot");
+				snapshot(iteration, start);
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			boolean due = (snapshotIterations > 0) ? (iteration % snapshotIterations == 0) :
+								(now - lastSnapshot >= snapshotInterval);
+			if(due){
+				lastSnapshot = now;
+				if(snapshot(iteration, start)) return;
+			}
+		}
+	}
+
+	/**
+	 * take a snapshot of all the partitions, merge it and check for termination
+	 * like JobTracker.reportSnapshotCompletionEvent
+	 * @return true if the job terminates
+	 */
+	private boolean snapshot(int iteration, long start) throws IOException {
+		final int index = snapshotIndex++;
+		final double[] progresses = new double[partitions];
+		step(new Step() {
+			long run(Partition part) throws IOException {
+				progresses[part.id] = part.snapshot(index);
+				return 0;
+			}
+		});
+
+		double progress = 0;
+		long updates = 0;
+		List<Integer> tasks = new ArrayList<Integer>(partitions);
+		for(Partition part : parts){
+			progress += progresses[part.id];
+			updates += part.stateTable.total_map;
+			tasks.add(part.id);
+		}
+		LOG.info("snapshot " + index + " iteration " + iteration + " progress " + progress + " updates " + updates);
+
+		if(job.getBoolean("priter.snapshot", true) && job.getBoolean("priter.snapshot.merge", true)){
+			merger.mergeNow(jobId, job, index, tasks);
+		}
+
+		//stopcheck
+		int maxiter = job.getInt("priter.stop.maxiteration", Integer.MAX_VALUE);
+		long maxtime = job.getLong("priter.stop.maxtime", Long.MAX_VALUE);
+		float threshold = job.getFloat("priter.stop.difference", 0);
+		boolean stop = false;
+		if(maxiter != Integer.MAX_VALUE){
+			//1. max iteration
+			stop = iteration > maxiter;
+		}else if(maxtime != Long.MAX_VALUE){
+			//2. max time
+			stop = System.currentTimeMillis() - start > maxtime;
+		}else{
+			//3. obj difference
+			double delta = Math.abs(lastProgress - progress);
+			LOG.info("curr iteration progress is " + progress + " progress difference is " + delta);
+			stop = delta <= threshold;
+		}
+		lastProgress = progress;
+		if(stop) LOG.info("job " + jobId + " terminates at snapshot " + index + " iteration " + iteration);
+		return stop;
+	}
+
+	/**
+	 * run step on every partition and wait for all of them
+	 * @return the sum of the step results
+	 */
+	private long step(final Step step) throws IOException {
+		List<Callable<Long>> calls = new ArrayList<Callable<Long>>(partitions);
+		for(final Partition part : parts){
+			calls.add(new Callable<Long>() {
+				public Long call() throws IOException {
+					return step.run(part);
+				}
+			});
+		}
+		long sum = 0;
+		for(Future<Long> done : invokeAll(calls)){
+			sum += get(done);
+		}
+		return sum;
+	}
+
+	private <T> List<Future<T>> invokeAll(List<Callable<T>> calls) throws IOException {
+		try {
+			return executor.invokeAll(calls);
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while running " + jobId);
+		}
+	}
+
+	private <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while running " + jobId);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
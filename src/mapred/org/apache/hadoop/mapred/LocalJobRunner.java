@@ -118,6 +118,25 @@ class LocalJobRunner implements JobSubmissionProtocol {
         outputCommitter.setupJob(jContext);
         status.setSetupProgress(1.0f);
         
+        if (job.getBoolean("priter.job", false)) {
+          // prioritized iterations run in process, see LocalIterativeRunner
+          LocalIterativeRunner runner = 
+            new LocalIterativeRunner(job, jobId, localFile.toString());
+          try {
+            runner.run();
+          } finally {
+            completedTaskCounters.incrAllCounters(runner.getCounters());
+            currentCounters = completedTaskCounters;
+          }
+          status.setMapProgress(1.0f);
+          status.setReduceProgress(1.0f);
+          outputCommitter.cleanupJob(jContext);
+          status.setCleanupProgress(1.0f);
+          this.status.setRunState(JobStatus.SUCCEEDED);
+          JobEndNotifier.localRunnerNotification(job, status);
+          return;
+        }
+        
         DataOutputBuffer buffer = new DataOutputBuffer();
         for (int i = 0; i < splits.length; i++) {
           TaskAttemptID mapId = new TaskAttemptID(new TaskID(jobId, true, i),0);  
@@ -46,6 +46,7 @@ import org.apache.hadoop.mapred.buffer.BufferUmbilicalProtocol;
 import org.apache.hadoop.mapred.buffer.OutputFile;
 import org.apache.hadoop.mapred.buffer.impl.InputKVDFile;
 import org.apache.hadoop.mapred.buffer.impl.InputPKVBuffer;
+import org.apache.hadoop.mapred.buffer.impl.IterationLatency;
 import org.apache.hadoop.mapred.buffer.impl.JOutputBuffer;
 import org.apache.hadoop.mapred.buffer.impl.UnSortOutputBuffer;
 import org.apache.hadoop.mapred.buffer.net.BufferExchange;
@@ -81,13 +82,19 @@ public class MapTask extends Task {
 			Set<TaskID> finishedReduceTasks = new HashSet<TaskID>();
 			Set<TaskAttemptID>  reduceTasks = new HashSet<TaskAttemptID>();
 			int eid = 0;
+			//poll fast while events come in, back off while nothing changes
+			long pollMin = Math.max(conf.getLong("priter.fetcher.poll.min", 10), 1);
+			long pollMax = conf.getLong("priter.fetcher.poll.max", 1000);
+			long waittime = pollMin;
 			
 			while (!isInterrupted() && finishedReduceTasks.size() < getNumberOfInputs()+1) {
+				boolean changed = false;
 				try {
 					ReduceTaskCompletionEventsUpdate updates = 
 						trackerUmbilical.getReduceCompletionEvents(getJobID(), eid, Integer.MAX_VALUE);
 
 					eid += updates.events.length;
+					changed = updates.events.length > 0;
 
 					//LOG.info("get reduce task completion events : " + eid);
 					// Process the TaskCompletionEvents:
@@ -169,7 +176,8 @@ public class MapTask extends Task {
 				}
 
 				try {
-					Thread.sleep(1000);
+					waittime = changed ? pollMin : Math.max(Math.min(waittime * 2, pollMax), pollMin);
+					Thread.sleep(waittime);
 				} catch (InterruptedException e) { return; }
 			}
 		}
@@ -209,6 +217,7 @@ public class MapTask extends Task {
 							if(checkpointIter > 0){
 								LOG.info("rolled back to checkpoint " + checkpointIter);
 								pkvBuffer.free();
+								pkvBuffer.dropExeQueue();
 								srcs.rollbackForMap(this.task.getJobID());
 								pkvBuffer.iteration = checkpointIter+1;		//no use
 								nsortBuffer.iteration = checkpointIter+1;
@@ -484,7 +493,31 @@ public class MapTask extends Task {
 				
 				LOG.info("mapper initPKVBuffer phase");
 				if(this.checkpointIter <= 0){
-					activator.initStarter(pkvBuffer);
+					//a restarted attempt goes on with the queue persisted by the previous one
+					int loaded = pkvBuffer.loadExeQueue();
+					if(loaded > 0){
+						LOG.info("resume with " + loaded + " persisted records of iteration " + pkvBuffer.iteration);
+						this.nsortBuffer.iteration = pkvBuffer.iteration;
+					}else{
+						activator.initStarter(pkvBuffer);
+					}
+				}else{
+					pkvBuffer.dropExeQueue();
+				}
+				
+				//activate with a thread pool if configured
+				ActivationPool pool = null;
+				Activator[] activators = new Activator[]{activator};
+				if(job.getInt("priter.activation.threads", 1) > 1){
+					pool = new ActivationPool(job, activator, pkvBuffer, nsortBuffer, reporter);
+					activators = pool.activators();
+				}
+				
+				//live rebalancing, the graph of the vertices moved here is attached before any activation
+				Rebalancer rebalancer = null;
+				if(Rebalancer.enabled(job)){
+					rebalancer = new Rebalancer(job, getTaskID().getTaskID().getId(), true);
+					rebalancer.adopt(activators);
 				}
 				
 				if(ftsupport){
@@ -501,9 +534,20 @@ public class MapTask extends Task {
 						//for processing time measurement
 						long processstart = new Date().getTime();
 						long processend;
+						IterationLatency latency = new IterationLatency(reporter);
 						while(true) {
+							if(pool != null){
+								long activated = pool.activate(pkvBuffer);
+								reporter.incrCounter(Counter.MAP_INPUT_RECORDS, activated);
+								workload += activated;
+								counter += activated;
+							}
+							
 							while(!pkvBuffer.next()){
 								activator.iterate();
+								if(pool != null) pool.iterate();
+								if(rebalancer != null) rebalancer.mapBoundary(activators);
+								latency.lap(IterationLatency.Counter.MAP_ACTIVATE_MILLIS);
 								if(counter == 0){
 									LOG.info("no records left, do nothing");
 								}else if(mapsync){
@@ -522,7 +566,10 @@ public class MapTask extends Task {
 									}
 									
 									this.nsortBuffer.iterate();
+									pkvBuffer.drained();
 									counter = 0;
+									latency.lap(IterationLatency.Counter.MAP_FLUSH_MILLIS);
+									latency.iterated();
 								}
 								
 								//measure process time
@@ -539,6 +586,7 @@ public class MapTask extends Task {
 									// TODO Auto-generated catch block
 									e.printStackTrace();
 								}
+								latency.lap(IterationLatency.Counter.MAP_WAIT_MILLIS);
 								
 								processstart = new Date().getTime();
 								workload = 0;
@@ -553,6 +601,8 @@ public class MapTask extends Task {
 						}
 					}
 				}finally {
+						if(pool != null) pool.close();
+						pkvBuffer.close();
 						rof.interrupt();
 						rof = null;
 						if(ftsupport){
@@ -21,6 +21,10 @@ public class PrIterBase implements JobConfigurable {
 	//graph in local memory
 	private HashMap<Integer, ArrayList<Integer>> unweightedLinkList = new HashMap<Integer, ArrayList<Integer>>();
 	private HashMap<Integer, ArrayList<Link>> weightedLinkList = new HashMap<Integer, ArrayList<Link>>();
+	
+	//graph partition in CSR form, mapped from the partN.csr file written by the distributor
+	private CSRGraph graph;
+	private String graphDir;
 
 	protected class Link{
 		int node;
@@ -122,6 +126,32 @@ public class PrIterBase implements JobConfigurable {
 		}
 	}
 	
+	/**
+	 * load partition n of the graph under dir as a CSRGraph, once
+	 */
+	protected synchronized CSRGraph loadGraph(JobConf conf, String dir, int n) throws IOException {
+		if(graph == null){
+			graph = CSRGraph.load(conf, dir, n);
+			graphDir = dir;
+		}
+		return graph;
+	}
+	
+	/**
+	 * attach partition n behind the loaded graph, for the vertices live
+	 * rebalancing moved here from it
+	 */
+	public synchronized void adoptPartition(JobConf conf, int n) throws IOException {
+		if(graph == null){
+			throw new IOException(getClass().getSimpleName() + " has no CSRGraph loaded, cannot adopt partition " + n);
+		}
+		graph.attach(CSRGraph.load(conf, graphDir, n));
+	}
+	
+	protected CSRGraph getGraph(){
+		return this.graph;
+	}
+	
 	protected HashMap<Integer, ArrayList<Link>> getWeightedGraph(){
 		return this.weightedLinkList;
 	}
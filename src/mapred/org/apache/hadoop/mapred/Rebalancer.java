@@ -0,0 +1,430 @@
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.mapred.buffer.impl.OutputPKVBuffer;
+import org.apache.hadoop.mapred.lib.PrIterPartitioner;
+
+/**
+ * Live rebalancing of an in-memory PrIter job (priter.rebalance.live). Instead
+ * of migrating a straggling map/reduce pair to another tracker and rolling the
+ * job back to a checkpoint, the JobTracker moves the hottest vertices of the
+ * slowest partition to the fastest one, with their state table entries and
+ * adjacency, while the job goes on. The tasks take the steps of a move at their
+ * iteration boundaries, through files under <output>/_Rebalance for routing
+ * version v:
+ *   plan-v     JobTracker: from, to and the fraction of the records to move
+ *   move-v     reduce from: the records with the highest priority, which it
+ *              removes from its table
+ *   routing-v  reduce from: the routing table with the moved keys
+ *   adopted-v  map to: it attached the graph partitions of the moved vertices
+ *   ready-v    reduce to: it put the moved records into its table, every task
+ *              switches to routing-v at its next boundary
+ * Until all the maps have switched, records of a moved key may still reach its
+ * old reduce, which forwards them to the owner through forward/<owner>/ files,
+ * applied by the owner at its next boundary.
+ *
+ * Only jobs with int keys and an activator on a CSRGraph (PrIterBase.loadGraph)
+ * can be rebalanced. After a rollback a reduce redoes the moves that happened
+ * after the checkpoint it loaded, a moved vertex keeps the state it was moved
+ * with.
+ */
+class Rebalancer<K, V> {
+	private static final Log LOG = LogFactory.getLog(Rebalancer.class.getName());
+
+	private final JobConf job;
+	private final FileSystem fs;
+	private final Path dir;
+	private final int me;
+	private final boolean map;
+	private final int partitions;
+
+	//last version every task switched to, and the routing this task uses
+	private int version = 0;
+	private RoutingTable routing;
+	private PlanInfo plan = null;
+	private boolean moved = false;
+	private boolean loaded = false;
+
+	//map: partitions attached to the graph
+	private Set<Integer> adopted = new HashSet<Integer>();
+	private boolean adoptedNext = false;
+
+	//reduce: records of keys owned by others, by owner
+	private boolean receiving = false;
+	private Map<Integer, Forward> forwards = new HashMap<Integer, Forward>();
+	private Class<K> keyClass;
+	private Class<V> valClass;
+
+	static class PlanInfo {
+		final int from;
+		final int to;
+		final float fraction;
+
+		PlanInfo(int from, int to, float fraction) {
+			this.from = from;
+			this.to = to;
+			this.fraction = fraction;
+		}
+	}
+
+	/**
+	 * records forwarded to one owner in an iteration
+	 */
+	private class Forward {
+		final DataOutputBuffer data = new DataOutputBuffer();
+		final IFile.Writer<K, V> writer;
+		int records = 0;
+
+		Forward() throws IOException {
+			writer = new IFile.Writer<K, V>(job, new FSDataOutputStream(data, null), keyClass, valClass, null, null);
+		}
+	}
+
+	public static boolean enabled(JobConf job) {
+		if(!job.getBoolean("priter.rebalance.live", false) || !job.getBoolean("priter.job.inmem", true)){
+			return false;
+		}
+		if(job.getMapOutputKeyClass() != IntWritable.class){
+			LOG.warn("live rebalancing needs IntWritable keys, not " + job.getMapOutputKeyClass().getName());
+			return false;
+		}
+		if(!PrIterBase.class.isAssignableFrom(job.getActivatorClass())){
+			LOG.warn("live rebalancing needs an activator extending PrIterBase, not " + job.getActivatorClass().getName());
+			return false;
+		}
+		return true;
+	}
+
+	static Path dir(JobConf job) {
+		return new Path(job.get("mapred.output.dir") + "/_Rebalance");
+	}
+
+	private static Path file(Path dir, String name, int version) {
+		return new Path(dir, name + "-" + version);
+	}
+
+	/**
+	 * JobTracker: plan moving a fraction of the records of from to to
+	 */
+	static void writePlan(FileSystem fs, JobConf job, int version, int from, int to, float fraction)
+	throws IOException {
+		Path dir = dir(job);
+		Path tmp = new Path(dir, "_plan-" + version);
+		FSDataOutputStream out = fs.create(tmp, true);
+		try{
+			out.writeInt(from);
+			out.writeInt(to);
+			out.writeFloat(fraction);
+		}finally{
+			out.close();
+		}
+		if(!fs.rename(tmp, file(dir, "plan", version))){
+			throw new IOException("cannot publish plan " + version);
+		}
+	}
+
+	/**
+	 * @return true if the move of version is done, or nothing was planned yet
+	 */
+	static boolean isReady(FileSystem fs, JobConf job, int version) throws IOException {
+		return version == 0 || fs.exists(file(dir(job), "ready", version));
+	}
+
+	public Rebalancer(JobConf job, int me, boolean map) throws IOException {
+		this.job = job;
+		this.fs = FileSystem.get(job);
+		this.dir = dir(job);
+		this.me = me;
+		this.map = map;
+		this.partitions = job.getNumReduceTasks();
+		this.keyClass = (Class<K>)job.getMapOutputKeyClass();
+		this.valClass = (Class<V>)job.getMapOutputValueClass();
+		this.routing = new RoutingTable(partitions);
+
+		//a restarted task catches up with the moves done so far
+		while(fs.exists(file(dir, "ready", version + 1))){
+			version++;
+		}
+		if(version > 0){
+			routing = readRouting(version);
+			receiving = routing.movedTo(me).length > 0;
+			LOG.info("task " + me + " starts with " + routing);
+		}
+		if(map) PrIterPartitioner.setRouting(routing);
+	}
+
+	private PlanInfo readPlan(int version) throws IOException {
+		FSDataInputStream in = fs.open(file(dir, "plan", version));
+		try{
+			return new PlanInfo(in.readInt(), in.readInt(), in.readFloat());
+		}finally{
+			in.close();
+		}
+	}
+
+	private RoutingTable readRouting(int version) throws IOException {
+		FSDataInputStream in = fs.open(file(dir, "routing", version));
+		try{
+			RoutingTable table = new RoutingTable();
+			table.readFields(in);
+			return table;
+		}finally{
+			in.close();
+		}
+	}
+
+	private void publish(String name, int version, RoutingTable table, int iteration) throws IOException {
+		Path tmp = new Path(dir, "_" + name + "-" + version);
+		FSDataOutputStream out = fs.create(tmp, true);
+		try{
+			if(table != null) table.write(out);
+			out.writeInt(iteration);
+		}finally{
+			out.close();
+		}
+		if(!fs.rename(tmp, file(dir, name, version))){
+			throw new IOException("cannot publish " + name + "-" + version);
+		}
+	}
+
+	/**
+	 * reduce: false if key was moved to another reduce
+	 */
+	public boolean owns(K key) {
+		return routing.size() == 0 || routing.getPartition(((IntWritable)key).get()) == me;
+	}
+
+	/**
+	 * reduce: forward the values of a key this task does not own
+	 */
+	public void forward(K key, Iterator<V> values) throws IOException {
+		Forward forward = forwardTo(routing.getPartition(((IntWritable)key).get()));
+		while(values.hasNext()){
+			forward.writer.append(key, values.next());
+			forward.records++;
+		}
+	}
+
+	/**
+	 * reduce: forward a serialized record of a key this task does not own
+	 */
+	public void forward(K key, DataInputBuffer rawKey, DataInputBuffer rawValue) throws IOException {
+		Forward forward = forwardTo(routing.getPartition(((IntWritable)key).get()));
+		forward.writer.append(rawKey, rawValue);
+		forward.records++;
+	}
+
+	private Forward forwardTo(int owner) throws IOException {
+		Forward forward = forwards.get(owner);
+		if(forward == null){
+			forward = new Forward();
+			forwards.put(owner, forward);
+		}
+		return forward;
+	}
+
+	/**
+	 * reduce: the steps of a move at the end of an iteration
+	 */
+	public void reduceBoundary(OutputPKVBuffer<K, ?, ?> buffer, Updater updater, Reporter reporter)
+	throws IOException {
+		flushForwards(buffer.iteration);
+		if(receiving) applyForwards(buffer, updater, reporter);
+
+		int next = version + 1;
+		if(plan == null){
+			if(!fs.exists(file(dir, "plan", next))) return;
+			plan = readPlan(next);
+		}
+
+		if(plan.from == me && !moved){
+			//a restarted task finds its move done already
+			Path move = file(dir, "move", next);
+			if(!fs.exists(move)){
+				int count = (int)(buffer.size() * plan.fraction);
+				buffer.moveOut(move, count);
+			}
+			if(!fs.exists(file(dir, "routing", next))){
+				RoutingTable table = routing.next();
+				for(Object key : buffer.readMovedKeys(move)){
+					table.move(((IntWritable)key).get(), plan.to);
+				}
+				publish("routing", next, table, buffer.iteration);
+			}
+			routing = readRouting(next);
+			moved = true;
+			LOG.info("moved records to " + plan.to + ", " + routing);
+			return;
+		}
+
+		if(plan.to == me && !loaded){
+			if(!fs.exists(file(dir, "ready", next))){
+				//the map has to know the adjacency of the vertices before they are spilled to it
+				if(!fs.exists(file(dir, "adopted", next))) return;
+				buffer.moveIn(file(dir, "move", next));
+				publish("ready", next, null, buffer.iteration);
+			}
+			routing = readRouting(next);
+			loaded = true;
+			receiving = true;
+			return;
+		}
+
+		if(fs.exists(file(dir, "ready", next))){
+			if(!moved && !loaded) routing = readRouting(next);
+			version = next;
+			plan = null;
+			moved = false;
+			loaded = false;
+		}
+	}
+
+	private void flushForwards(int iteration) throws IOException {
+		for(Map.Entry<Integer, Forward> entry : forwards.entrySet()){
+			Forward forward = entry.getValue();
+			forward.writer.close();
+			Path tmp = new Path(dir, "forward/" + entry.getKey() + "/_" + me + "-" + iteration);
+			FSDataOutputStream out = fs.create(tmp, true);
+			try{
+				out.write(forward.data.getData(), 0, forward.data.getLength());
+			}finally{
+				out.close();
+			}
+			if(!fs.rename(tmp, new Path(dir, "forward/" + entry.getKey() + "/" + me + "-" + iteration))){
+				throw new IOException("cannot publish forward file " + tmp);
+			}
+			LOG.info("forwarded " + forward.records + " records to " + entry.getKey());
+		}
+		forwards.clear();
+	}
+
+	private void applyForwards(OutputPKVBuffer<K, ?, ?> buffer, Updater updater, Reporter reporter)
+	throws IOException {
+		Path inbox = new Path(dir, "forward/" + me);
+		FileStatus[] files = fs.listStatus(inbox);
+		if(files == null) return;
+
+		SerializationFactory serializationFactory = new SerializationFactory(job);
+		Deserializer<K> keyDeserializer = serializationFactory.getDeserializer(keyClass);
+		Deserializer<V> valDeserializer = serializationFactory.getDeserializer(valClass);
+		DataInputBuffer key = new DataInputBuffer();
+		DataInputBuffer value = new DataInputBuffer();
+		keyDeserializer.open(key);
+		valDeserializer.open(value);
+
+		for(FileStatus file : files){
+			if(file.getPath().getName().startsWith("_")) continue;
+			IFile.Reader<K, V> reader = new IFile.Reader<K, V>(job, fs, file.getPath(), null, null);
+			int records = 0;
+			try{
+				synchronized(buffer.stateTable){
+					while(reader.next(key, value)){
+						K k = keyDeserializer.deserialize(null);
+						V v = valDeserializer.deserialize(null);
+						updater.updateState(k, Collections.singletonList(v).iterator(), buffer, reporter);
+						records++;
+					}
+				}
+			}finally{
+				reader.close();
+			}
+			fs.delete(file.getPath(), false);
+			LOG.info("applied " + records + " forwarded records of " + file.getPath().getName());
+		}
+	}
+
+	/**
+	 * reduce: after the checkpoint of iteration is loaded, take the records moved
+	 * out since then out again and put the ones moved in since then back
+	 */
+	public void afterRollback(OutputPKVBuffer<K, ?, ?> buffer, int iteration) throws IOException {
+		for(int v = 1; fs.exists(file(dir, "plan", v)); v++){
+			PlanInfo info = readPlan(v);
+			Path move = file(dir, "move", v);
+			if(info.from == me && fs.exists(move)){
+				if(OutputPKVBuffer.readMoveIteration(fs, move) > iteration){
+					LOG.info("drop " + buffer.dropMoved(move) + " records moved out in version " + v);
+				}
+			}else if(info.to == me && fs.exists(file(dir, "ready", v))){
+				if(readReadyIteration(v) > iteration){
+					LOG.info("reload " + buffer.moveIn(move) + " records moved in in version " + v);
+				}
+			}
+		}
+	}
+
+	private int readReadyIteration(int version) throws IOException {
+		FSDataInputStream in = fs.open(file(dir, "ready", version));
+		try{
+			return in.readInt();
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * map: attach the partitions of the vertices this task owns to the graph of
+	 * the activator, before the first activation of a restarted task
+	 */
+	public void adopt(Activator... activators) throws IOException {
+		adopt(routing, activators);
+	}
+
+	private void adopt(RoutingTable table, Activator... activators) throws IOException {
+		for(int key : table.movedTo(me)){
+			int origin = table.origin(key);
+			if(origin == me || adopted.contains(origin)) continue;
+			for(Activator activator : activators){
+				((PrIterBase)activator).adoptPartition(job, origin);
+			}
+			adopted.add(origin);
+			LOG.info("adopted graph partition " + origin);
+		}
+	}
+
+	/**
+	 * map: the steps of a move at the end of an iteration
+	 */
+	public void mapBoundary(Activator... activators) throws IOException {
+		int next = version + 1;
+		if(fs.exists(file(dir, "ready", next))){
+			routing = readRouting(next);
+			adopt(routing, activators);
+			PrIterPartitioner.setRouting(routing);
+			version = next;
+			plan = null;
+			adoptedNext = false;
+			LOG.info("switched to " + routing);
+			return;
+		}
+
+		if(plan == null){
+			if(!fs.exists(file(dir, "plan", next))) return;
+			plan = readPlan(next);
+		}
+		if(plan.to == me && !adoptedNext && fs.exists(file(dir, "routing", next))){
+			adopt(readRouting(next), activators);
+			if(!fs.exists(file(dir, "adopted", next))) publish("adopted", next, null, 0);
+			adoptedNext = true;
+		}
+	}
+}
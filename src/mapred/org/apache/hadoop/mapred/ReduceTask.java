@@ -29,6 +29,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -48,6 +49,8 @@ import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.mapred.IFile.Reader;
 import org.apache.hadoop.mapred.buffer.BufferUmbilicalProtocol;
 import org.apache.hadoop.mapred.buffer.OutputFile;
+import org.apache.hadoop.mapred.buffer.impl.HashInputBuffer;
+import org.apache.hadoop.mapred.buffer.impl.IterationLatency;
 import org.apache.hadoop.mapred.buffer.impl.JInputBuffer;
 import org.apache.hadoop.mapred.buffer.impl.JOutputBuffer;
 import org.apache.hadoop.mapred.buffer.impl.JSnapshotBuffer;
@@ -88,13 +91,18 @@ public class ReduceTask extends Task {
 			Set<TaskAttemptID>  mapTasks = new HashSet<TaskAttemptID>();
 
 			int eid = 0;
+			//poll fast while events come in, back off while nothing changes
+			long pollMin = Math.max(conf.getLong("priter.fetcher.poll.min", 10), 1);
+			long waittime = pollMin;
 			while (!isInterrupted() && finishedMapTasks.size() < getNumberOfInputs()) {
+				boolean changed = false;
 				try {
 					MapTaskCompletionEventsUpdate updates = 
 						trackerUmbilical.getMapCompletionEvents(getJobID(), eid, Integer.MAX_VALUE, ReduceTask.this.getTaskID());
 
 					reporter.progress();
 					eid += updates.events.length;
+					changed = updates.events.length > 0;
 
 					// Process the TaskCompletionEvents:
 					// 1. Save the SUCCEEDED maps in knownOutputs to fetch the outputs.
@@ -154,7 +162,9 @@ public class ReduceTask extends Task {
 				}
 
 				try {
-					int waittime = mapTasks.size() == getNumberOfInputs() ? 60000 : 1000;
+					long pollMax = mapTasks.size() == getNumberOfInputs() ? 
+							conf.getLong("priter.fetcher.poll.idle", 10000) : conf.getLong("priter.fetcher.poll.max", 1000);
+					waittime = changed ? pollMin : Math.max(Math.min(waittime * 2, pollMax), pollMin);
 					sleep(waittime);
 				} catch (InterruptedException e) { return; }
 			}
@@ -310,7 +320,8 @@ public class ReduceTask extends Task {
 							checkpointIter = checkpointEvent.getIter();
 								
 							if(checkpointIter > 0){
-								int records = pkvBuffer.loadStateTable();
+								int records = pkvBuffer.loadStateTable(checkpointIter);
+								if(rebalancer != null) rebalancer.afterRollback(pkvBuffer, checkpointIter);
 								
 								synchronized(termCheckThread){
 									termCheckThread.bRecompute = true;
@@ -375,6 +386,8 @@ public class ReduceTask extends Task {
 	private Reducer reducer = null;
 	private Updater updater = null;
 	private FileBasedUpdater filebasedupdater = null;
+	private UpdatePool updatePool = null;
+	private Rebalancer rebalancer = null;
 	public boolean spillIter = false;
 	
 	private MapOutputFetcher fetcher = null;
@@ -528,6 +541,11 @@ public class ReduceTask extends Task {
 			inputCollector = new JSnapshotBuffer(job, this, reporter, copyPhase, 
 				                                 inputKeyClass, inputValClass, codecClass);
 		}
+		else if (iterative && job.getBoolean("priter.job.inmem", true) && job.getBoolean("priter.reduce.hashinput", false)) {
+			//in-memory updates do not need the input sorted, group it by key as it arrives
+			inputCollector = new HashInputBuffer(job, this, reporter, copyPhase, 
+				                                 inputKeyClass, inputValClass, codecClass);
+		}
 		else {
 			inputCollector = new JInputBuffer(job, this, reporter, copyPhase, 
 				                              inputKeyClass, inputValClass, codecClass);
@@ -599,6 +617,19 @@ public class ReduceTask extends Task {
 											outputKeyClass, priorityClass, outputValClass, 
 											this.updater);
 			}
+			
+			//parallel reduce on a striped state table, the threads are daemons living as long as the task
+			if(this.updatePool == null && job.getInt("priter.reduce.threads", 1) > 1){
+				this.updatePool = new UpdatePool(job, this.updater, this.pkvBuffer, reporter);
+				LOG.info("parallel reduce with " + job.getInt("priter.reduce.threads", 1) + 
+						" threads on " + this.pkvBuffer.stripes() + " stripes");
+			}
+			
+			//live rebalancing, records of keys moved away are forwarded to their owner
+			if(this.rebalancer == null && Rebalancer.enabled(job)){
+				this.rebalancer = new Rebalancer(job, getTaskID().getTaskID().getId(), false);
+				if(this.updatePool != null) this.updatePool.setRebalancer(this.rebalancer);
+			}
 		}else{
 			//output should be sorted in the number order, doesn't help
 			//since job is declared as final object
@@ -621,17 +652,22 @@ public class ReduceTask extends Task {
 				this.pkvFile = new OutputPKVFile(umbilical, this, job, reporter, progress, 
 						outputKeyClass, priorityClass, outputValClass, 
 						this.filebasedupdater, records);
+				if(priorityFilter.isPaged()) pkvFile.setPriorityFilter(priorityFilter);
 			}
 		}
 
 		
 		if(this.checkpointIter > 0){
 			pkvBuffer.iteration = checkpointIter;
-			int loadrecords = this.pkvBuffer.loadStateTable();
+			int loadrecords = this.pkvBuffer.loadStateTable(checkpointIter);
 			LOG.info("start new task, return to checkpoint " + checkpointIter + "load statetable with " + loadrecords + " records");
 			
 			sink.resetCursorPosition(checkpointIter+1);
 		}
+		
+		if(this.rebalancer != null){
+			this.rebalancer.afterRollback(this.pkvBuffer, this.checkpointIter);
+		}
 
 		//termination check thread, also do generating snapshot work
 		this.termCheckThread = new snapshotThread(taskUmbilical, this);
@@ -651,6 +687,7 @@ public class ReduceTask extends Task {
 			
 			long windowTimeStamp = System.currentTimeMillis();
 			lasttime = System.currentTimeMillis();
+			IterationLatency latency = new IterationLatency(reporter);
 			while(true) {
 				setProgressFlag();		
 				LOG.info("ReduceTask: " + getTaskID() + " perform reduce. window = " + 
@@ -663,8 +700,13 @@ public class ReduceTask extends Task {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
 				}
+				latency.lap(IterationLatency.Counter.REDUCE_WAIT_MILLIS);
 				
 				reduce(job, reporter, inputCollector, taskUmbilical, umbilical, sink.getProgress(), null);
+				long updateMillis = latency.lap(IterationLatency.Counter.REDUCE_UPDATE_MILLIS);
+				if(this.pkvBuffer != null){
+					this.pkvBuffer.getQueueController().updated(updateMillis);
+				}
 
 				if(this.spillIter || this.checkpointIter > 0){
 					if(this.checkpointIter > 0) {
@@ -695,6 +737,8 @@ public class ReduceTask extends Task {
 						umbilical.output(outputFile);
 						//LOG.info("output fake file " + outputFile);
 					}
+					latency.lap(IterationLatency.Counter.REDUCE_EXTRACT_MILLIS);
+					latency.iterated();
 
 					this.spillIter = false;
 					
@@ -714,6 +758,14 @@ public class ReduceTask extends Task {
 						}
 					}
 					
+					if(rebalancer != null){
+						try {
+							rebalancer.reduceBoundary(pkvBuffer, updater, reporter);
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+					
 					//LOG.info("iteration " + iterindex + "emit " + pkvBuffer.actualEmit + " reduce write/scan use time " + sorttime);
 					iterindex++;
 				}
@@ -799,21 +851,34 @@ public class ReduceTask extends Task {
 				if(conf.getBoolean("priter.job.inmem", true)){
 					//in memory version, use in-memory state table
 					OutputPKVBuffer outputpkvbuffer = (OutputPKVBuffer)output;
-					synchronized(((OutputPKVBuffer)output).stateTable){
+					if(updatePool != null){
+						//the update threads lock the stripes, whole table operations are on this thread
 						ValuesIterator values = input.valuesIterator();
-						while (values.more()) {	
-							count++;
-							updater.updateState(values.getKey(), values, outputpkvbuffer, reporter);
+						count = updatePool.update(values, progress);
+						values.close();
+						if (reporter != null) reporter.progress();
+						setProgressFlag();
+					}else{
+						synchronized(((OutputPKVBuffer)output).stateTable){
+							ValuesIterator values = input.valuesIterator();
+							while (values.more()) {	
+								count++;
+								if(rebalancer != null && !rebalancer.owns(values.getKey())){
+									rebalancer.forward(values.getKey(), values);
+								}else{
+									updater.updateState(values.getKey(), values, outputpkvbuffer, reporter);
+								}
 
-							values.nextKey();
+								values.nextKey();
 							
-					        if (progress != null) {
-					        	progress.set(values.getProgress().get());
-					        }
-					        if (reporter != null) reporter.progress();
-					        setProgressFlag();
+						        if (progress != null) {
+						        	progress.set(values.getProgress().get());
+						        }
+						        if (reporter != null) reporter.progress();
+						        setProgressFlag();
+							}
+							values.close();
 						}
-						values.close();
 					}
 				}else{
 					//on disk version, use file-based state table
@@ -826,7 +891,9 @@ public class ReduceTask extends Task {
 					ValuesIterator values = input.valuesIterator();
 					while (values.more()) {	
 						count++;
-						filebasedupdater.updateiState(values.getKey(), values, outputpkvfile, reporter);
+						//with the paged state table the old istate is not merged in, it leads the values
+						Iterator states = priorityFilter.isPaged() ? priorityFilter.withiState(values.getKey(), values) : values;
+						filebasedupdater.updateiState(values.getKey(), states, outputpkvfile, reporter);
 
 						values.nextKey();
 						
@@ -841,7 +908,8 @@ public class ReduceTask extends Task {
 					
 					//filter the records in pkvfile, and extract high-priority records to write to priority queue file
 					//notify map to process this priority queue file
-					priorityFilter.generatePrioriyQueue(outputpkvfile.getPriorityThreshold());
+					double threshold = outputpkvfile.getPriorityThreshold();
+					priorityFilter.generatePrioriyQueue(threshold, outputpkvfile.getThresholdTies());
 				}
 				
 			}else{
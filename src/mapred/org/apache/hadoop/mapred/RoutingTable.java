@@ -0,0 +1,175 @@
+package org.apache.hadoop.mapred;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Versioned routing of the int keys of a PrIter job to the reduce partitions. A
+ * key goes to key % partitions like PrIterPartitioner always did, unless live
+ * rebalancing moved it: the moved keys and their owners are kept in a primitive
+ * open addressing map. Every move creates a new version with next(), a table
+ * is never changed once it is published.
+ */
+public class RoutingTable implements Writable {
+
+	private static final int MIN_CAPACITY = 64;
+
+	private int version = 0;
+	private int partitions;
+	private int size = 0;
+	private int capacity;
+	private int shift;
+	private int[] keys;
+	//owner of the key at the same slot, -1 for a free slot
+	private int[] owners;
+
+	public RoutingTable() {
+		this(1);
+	}
+
+	public RoutingTable(int partitions) {
+		this.partitions = partitions;
+		allocate(MIN_CAPACITY);
+	}
+
+	private void allocate(int cap) {
+		this.capacity = cap;
+		this.shift = 32 - Integer.numberOfTrailingZeros(cap);
+		this.keys = new int[cap];
+		this.owners = new int[cap];
+		Arrays.fill(this.owners, -1);
+	}
+
+	private int hash(int key) {
+		return (key * 0x9E3779B9) >>> shift;
+	}
+
+	public int version() {
+		return version;
+	}
+
+	public int partitions() {
+		return partitions;
+	}
+
+	/**
+	 * @return the number of moved keys
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the partition key belongs to without any move
+	 */
+	public int origin(int key) {
+		return key % partitions;
+	}
+
+	public int getPartition(int key) {
+		if(size == 0) return key % partitions;
+
+		int mask = capacity - 1;
+		int slot = hash(key);
+		while(owners[slot] >= 0){
+			if(keys[slot] == key) return owners[slot];
+			slot = (slot + 1) & mask;
+		}
+		return key % partitions;
+	}
+
+	/**
+	 * route key to owner
+	 */
+	public void move(int key, int owner) {
+		if(owner < 0 || owner >= partitions){
+			throw new IllegalArgumentException("no partition " + owner + " of " + partitions);
+		}
+		if((size + 1) * 4 > capacity * 3) grow();
+
+		int mask = capacity - 1;
+		int slot = hash(key);
+		while(owners[slot] >= 0){
+			if(keys[slot] == key){
+				owners[slot] = owner;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		owners[slot] = owner;
+		size++;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldOwners = owners;
+		allocate(capacity << 1);
+		size = 0;
+		for(int i=0; i<oldKeys.length; i++){
+			if(oldOwners[i] >= 0) move(oldKeys[i], oldOwners[i]);
+		}
+	}
+
+	/**
+	 * @return the moved keys owned by partition
+	 */
+	public int[] movedTo(int partition) {
+		int count = 0;
+		int[] moved = new int[16];
+		for(int slot=0; slot<capacity; slot++){
+			if(owners[slot] != partition) continue;
+			if(count == moved.length) moved = Arrays.copyOf(moved, count * 2);
+			moved[count++] = keys[slot];
+		}
+		return Arrays.copyOf(moved, count);
+	}
+
+	/**
+	 * @return a copy of this table as the next version
+	 */
+	public RoutingTable next() {
+		RoutingTable next = new RoutingTable(partitions);
+		next.version = version + 1;
+		for(int slot=0; slot<capacity; slot++){
+			if(owners[slot] >= 0) next.move(keys[slot], owners[slot]);
+		}
+		return next;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(version);
+		out.writeInt(partitions);
+		out.writeInt(size);
+		for(int slot=0; slot<capacity; slot++){
+			if(owners[slot] < 0) continue;
+			out.writeInt(keys[slot]);
+			out.writeInt(owners[slot]);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		version = in.readInt();
+		partitions = in.readInt();
+		int moved = in.readInt();
+		int cap = MIN_CAPACITY;
+		while(moved * 4 > cap * 3) cap <<= 1;
+		allocate(cap);
+		size = 0;
+		for(int i=0; i<moved; i++){
+			int key = in.readInt();
+			move(key, in.readInt());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "routing v" + version + " of " + partitions + " partitions, " + size + " moved keys";
+	}
+}
@@ -0,0 +1,319 @@
+package org.apache.hadoop.mapred;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ClusterWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Valueable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+
+/**
+ * Merges the topKsnapshot-N files of the reduces of a PrIter job into the global
+ * top priter.snapshot.topk records, off the JobTracker lock:
+ * reportSnapshotCompletionEvent only queues the merge once every reduce has
+ * reported snapshot N, and a single daemon thread does the queued merges in order.
+ * A job that meets its stop condition waits for its merges (finish) before it is
+ * killed, a job killed from outside drops the queued ones (cancel).
+ *
+ * The task files are TopKSnapshotFiles, sorted from the highest priority down,
+ * so they are merged as sorted runs: a heap holds the head of every file, ordered
+ * by the raw comparator of the priority class, and the merge stops after k
+ * records. A file is never read past the global k-th priority and only the k
+ * merged records are deserialized. If the threshold a task cut its file at is
+ * above the global k-th priority, the task may have dropped records of the top k
+ * and the merge logs that the result is approximate. The result is written as
+ * text to snapshot-N as before, and in descending priority as an IFile priority
+ * file to snapshot-N.bin.
+ */
+class SnapshotMergeService implements Runnable {
+	private static final Log LOG = LogFactory.getLog(SnapshotMergeService.class.getName());
+
+	private static class Request {
+		final JobID jobid;
+		final JobConf job;
+		final int snapshotIndex;
+		final Collection<Integer> tasks;
+
+		Request(JobID jobid, JobConf job, int snapshotIndex, Collection<Integer> tasks) {
+			this.jobid = jobid;
+			this.job = job;
+			this.snapshotIndex = snapshotIndex;
+			this.tasks = tasks;
+		}
+	}
+
+	/**
+	 * serialized priority, key and value of a merged record
+	 */
+	private static class RawRecord {
+		byte[] data = new byte[32];
+		int priLength;
+		int keyLength;
+		int valLength;
+
+		void set(DataInputBuffer pri, DataInputBuffer key, DataInputBuffer val) {
+			priLength = pri.getLength() - pri.getPosition();
+			keyLength = key.getLength() - key.getPosition();
+			valLength = val.getLength() - val.getPosition();
+			int length = priLength + keyLength + valLength;
+			if(data.length < length){
+				data = new byte[Math.max(length, data.length * 2)];
+			}
+			System.arraycopy(pri.getData(), pri.getPosition(), data, 0, priLength);
+			System.arraycopy(key.getData(), key.getPosition(), data, priLength, keyLength);
+			System.arraycopy(val.getData(), val.getPosition(), data, priLength + keyLength, valLength);
+		}
+	}
+
+	/**
+	 * a task file and its current record
+	 */
+	private static class Run {
+		final Path file;
+		final TopKSnapshotFile.Reader reader;
+		DataInputBuffer pri = new DataInputBuffer();
+		DataInputBuffer key = new DataInputBuffer();
+		DataInputBuffer val = new DataInputBuffer();
+
+		Run(Path file, TopKSnapshotFile.Reader reader) {
+			this.file = file;
+			this.reader = reader;
+		}
+
+		boolean next() throws IOException {
+			return reader.next(pri, key, val);
+		}
+	}
+
+	//queued merges and the one being written, guarded by this
+	private final LinkedList<Request> requests = new LinkedList<Request>();
+	private Request running = null;
+
+	/**
+	 * queue the merge of snapshot snapshotIndex of the given reduce tasks
+	 */
+	public synchronized void merge(JobID jobid, JobConf job, int snapshotIndex, Collection<Integer> tasks) {
+		requests.add(new Request(jobid, job, snapshotIndex, new TreeSet<Integer>(tasks)));
+		notifyAll();
+	}
+
+	/**
+	 * wait until the queued merges of a job are written, a job that stops on
+	 * its own keeps the snapshot it stopped at
+	 */
+	public synchronized void finish(JobID jobid) throws IOException {
+		try {
+			while(pending(jobid)){
+				wait();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while merging the snapshots of " + jobid);
+		}
+	}
+
+	/**
+	 * drop the queued merges of a killed job, a merge already being written is
+	 * waited for so the job cleanup does not race it
+	 */
+	public synchronized void cancel(JobID jobid) {
+		for(Iterator<Request> it = requests.iterator(); it.hasNext(); ){
+			if(it.next().jobid.equals(jobid)) it.remove();
+		}
+		try {
+			while(running != null && running.jobid.equals(jobid)){
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean pending(JobID jobid) {
+		if(running != null && running.jobid.equals(jobid)) return true;
+		for(Request request : requests){
+			if(request.jobid.equals(jobid)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * merge snapshot snapshotIndex right away on the calling thread, for the
+	 * in-process runner of LocalJobRunner
+	 * @return the number of merged records
+	 */
+	int mergeNow(JobID jobid, JobConf job, int snapshotIndex, Collection<Integer> tasks) throws IOException {
+		return merge(new Request(jobid, job, snapshotIndex, new TreeSet<Integer>(tasks)));
+	}
+
+	public void run() {
+		while(true){
+			Request request;
+			synchronized(this){
+				try {
+					while(requests.isEmpty()){
+						wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				request = requests.removeFirst();
+				running = request;
+			}
+
+			try {
+				long start = System.currentTimeMillis();
+				int records = merge(request);
+				LOG.info("merged snapshot " + request.snapshotIndex + " of job " + request.jobid + " from " +
+						request.tasks.size() + " tasks, top " + records + " records, takes " +
+						(System.currentTimeMillis() - start) + " ms");
+			} catch (Throwable t) {
+				LOG.error("merging snapshot " + request.snapshotIndex + " of job " + request.jobid + " failed", t);
+			} finally {
+				synchronized(this){
+					running = null;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private int merge(Request request) throws IOException {
+		JobConf job = request.job;
+		String outputDir = job.get("mapred.output.dir");
+		if(outputDir == null) throw new IOException("no output dir");
+		FileSystem hdfs = FileSystem.get(job);
+		int topk = job.getInt("priter.snapshot.topk", 1000);
+		Class priClass = job.getPriorityClass();
+		Class valClass = job.getOutputValueClass();
+
+		final RawComparator priComparator = WritableComparator.get(priClass);
+		PriorityQueue<Run> heads = new PriorityQueue<Run>(Math.max(request.tasks.size(), 1), new Comparator<Run>() {
+			public int compare(Run r1, Run r2) {
+				return priComparator.compare(r2.pri.getData(), r2.pri.getPosition(), r2.pri.getLength() - r2.pri.getPosition(),
+						r1.pri.getData(), r1.pri.getPosition(), r1.pri.getLength() - r1.pri.getPosition());
+			}
+		});
+
+		//take the k highest heads, a file is read only as far as its records make it
+		List<Run> runs = new ArrayList<Run>(request.tasks.size());
+		List<RawRecord> recs = new ArrayList<RawRecord>(topk);
+		try{
+			for(int taskid : request.tasks){
+				Path topKPath = new Path(outputDir + "/" + taskid + "/topKsnapshot-" + request.snapshotIndex);
+				if(!hdfs.exists(topKPath)){
+					LOG.warn("no snapshot file " + topKPath);
+					continue;
+				}
+				Run run = new Run(topKPath, new TopKSnapshotFile.Reader(job, hdfs, topKPath));
+				runs.add(run);
+				if(run.next()) heads.add(run);
+			}
+
+			while(recs.size() < topk && !heads.isEmpty()){
+				Run run = heads.poll();
+				RawRecord record = new RawRecord();
+				record.set(run.pri, run.key, run.val);
+				recs.add(record);
+				if(run.next()) heads.add(run);
+			}
+		}finally{
+			for(Run run : runs){
+				run.reader.close();
+			}
+		}
+
+		DataInputBuffer priBuffer = new DataInputBuffer();
+		DataInputBuffer keyBuffer = new DataInputBuffer();
+		DataInputBuffer valBuffer = new DataInputBuffer();
+
+		//write both outputs from the highest priority down, deserializing only the top records
+		SerializationFactory serializationFactory = new SerializationFactory(job);
+		Deserializer priDeserializer = serializationFactory.getDeserializer(priClass);
+		Deserializer keyDeserializer = serializationFactory.getDeserializer(IntWritable.class);
+		Deserializer valDeserializer = serializationFactory.getDeserializer(valClass);
+		priDeserializer.open(priBuffer);
+		keyDeserializer.open(keyBuffer);
+		valDeserializer.open(valBuffer);
+		Object pri = null;
+		Object key = null;
+		Object val = null;
+
+		String snapshot = outputDir + "/snapshot-" + request.snapshotIndex;
+		FSDataOutputStream ostream = hdfs.create(new Path(snapshot), true);
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(ostream));
+		IFile.PriorityWriter binWriter = new IFile.PriorityWriter(job, hdfs, new Path(snapshot + ".bin"),
+				priClass, IntWritable.class, valClass, null, null);
+		try{
+			for(RawRecord rec : recs){
+				priBuffer.reset(rec.data, 0, rec.priLength);
+				keyBuffer.reset(rec.data, rec.priLength, rec.keyLength);
+				valBuffer.reset(rec.data, rec.priLength + rec.keyLength, rec.valLength);
+				binWriter.append(priBuffer, keyBuffer, valBuffer);
+
+				priBuffer.reset(rec.data, 0, rec.priLength);
+				keyBuffer.reset(rec.data, rec.priLength, rec.keyLength);
+				valBuffer.reset(rec.data, rec.priLength + rec.keyLength, rec.valLength);
+				pri = priDeserializer.deserialize(pri);
+				key = keyDeserializer.deserialize(key);
+				val = valDeserializer.deserialize(val);
+				writeText(writer, (WritableComparable)pri, (IntWritable)key, val);
+			}
+		}finally{
+			binWriter.close();
+			writer.close();
+			ostream.close();
+		}
+
+		//a task that cut its file above the k-th priority may have dropped records of the top k
+		if(pri instanceof Valueable){
+			double kth = ((Valueable)pri).getV();
+			for(Run run : runs){
+				if(run.reader.getThreshold() > kth){
+					LOG.warn("snapshot " + request.snapshotIndex + " of job " + request.jobid + " is approximate, " +
+							run.file + " is cut at " + run.reader.getThreshold() + " above the top " + recs.size() +
+							" threshold " + kth + ", set priter.snapshot.topk.scale higher");
+				}
+			}
+		}
+		return recs.size();
+	}
+
+	private void writeText(BufferedWriter writer, WritableComparable pri, IntWritable key, Object val) throws IOException {
+		if(val instanceof ClusterWritable){
+			ClusterWritable clusterrec = (ClusterWritable)val;
+			writer.write(key + "\t" + clusterrec.nodeid + " " + clusterrec.clusterid + " "
+					+ clusterrec.addvalue + "\n");
+		}else if(val instanceof MapWritable){
+			writer.write(key + "\t" + pri + "\t");
+			for(Map.Entry<Writable, Writable> entry : ((MapWritable)val).entrySet()){
+				writer.write(entry.getKey() + "," + entry.getValue() + " ");
+			}
+			writer.write("\n");
+		}else{
+			writer.write(key + "\t" + val + "\n");
+		}
+	}
+}
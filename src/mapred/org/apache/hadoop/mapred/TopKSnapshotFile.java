@@ -0,0 +1,194 @@
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * The topKsnapshot-N file of a reduce task: a header of magic, record count and
+ * the local threshold, then an IFile priority file of the records sorted from
+ * the highest priority down. The threshold is the priority the task cut its
+ * records at, Double.NEGATIVE_INFINITY if it wrote all of them, so a merge can
+ * tell whether the file covers the global top k.
+ *
+ * Records are sorted with the raw comparator of the priority class on their
+ * serialized bytes, so a file is read as a sorted run and a merge can stop
+ * reading it as soon as its priorities fall below the global k-th.
+ */
+public class TopKSnapshotFile {
+
+	private static final int MAGIC = 0x50544b53;
+	private static final int HEADER_LENGTH = 4 + 8 + 8;
+
+	//meta data of a record: start, priority length, key length, value length
+	private static final int META = 4;
+
+	/**
+	 * collects the records of a snapshot in memory, sorts them and writes the file
+	 * on close
+	 */
+	public static class Writer<P, K, V> implements IndexedSortable {
+		private final JobConf job;
+		private final FileSystem fs;
+		private final Path file;
+		private final Class<P> priClass;
+		private final Class<K> keyClass;
+		private final Class<V> valClass;
+		private final RawComparator<P> comparator;
+
+		private DataOutputBuffer records = new DataOutputBuffer();
+		private Serializer<P> priSerializer;
+		private Serializer<K> keySerializer;
+		private Serializer<V> valSerializer;
+		private int[] meta = new int[1024 * META];
+		private int count = 0;
+
+		public Writer(JobConf job, FileSystem fs, Path file,
+				Class<P> priClass, Class<K> keyClass, Class<V> valClass) throws IOException {
+			this.job = job;
+			this.fs = fs;
+			this.file = file;
+			this.priClass = priClass;
+			this.keyClass = keyClass;
+			this.valClass = valClass;
+			this.comparator = WritableComparator.get(priClass.asSubclass(org.apache.hadoop.io.WritableComparable.class));
+
+			SerializationFactory serializationFactory = new SerializationFactory(job);
+			this.priSerializer = serializationFactory.getSerializer(priClass);
+			this.priSerializer.open(records);
+			this.keySerializer = serializationFactory.getSerializer(keyClass);
+			this.keySerializer.open(records);
+			this.valSerializer = serializationFactory.getSerializer(valClass);
+			this.valSerializer.open(records);
+		}
+
+		public void append(P pri, K key, V val) throws IOException {
+			if((count + 1) * META > meta.length){
+				int[] grown = new int[meta.length * 2];
+				System.arraycopy(meta, 0, grown, 0, meta.length);
+				meta = grown;
+			}
+			int m = count * META;
+			int start = records.getLength();
+			priSerializer.serialize(pri);
+			int keyStart = records.getLength();
+			keySerializer.serialize(key);
+			int valStart = records.getLength();
+			valSerializer.serialize(val);
+			meta[m] = start;
+			meta[m + 1] = keyStart - start;
+			meta[m + 2] = valStart - keyStart;
+			meta[m + 3] = records.getLength() - valStart;
+			count++;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * highest priority first
+		 */
+		public int compare(int i, int j) {
+			int mi = i * META;
+			int mj = j * META;
+			byte[] data = records.getData();
+			return comparator.compare(data, meta[mj], meta[mj + 1], data, meta[mi], meta[mi + 1]);
+		}
+
+		public void swap(int i, int j) {
+			int mi = i * META;
+			int mj = j * META;
+			for(int n=0; n<META; n++){
+				int tmp = meta[mi + n];
+				meta[mi + n] = meta[mj + n];
+				meta[mj + n] = tmp;
+			}
+		}
+
+		/**
+		 * sort the records and write the file
+		 * @param threshold the priority the records were cut at
+		 */
+		public void close(double threshold) throws IOException {
+			if(count > 1) new QuickSort().sort(this, 0, count);
+
+			FSDataOutputStream out = fs.create(file, true);
+			try{
+				out.writeInt(MAGIC);
+				out.writeLong(count);
+				out.writeDouble(threshold);
+
+				IFile.PriorityWriter<P, K, V> writer = new IFile.PriorityWriter<P, K, V>(job, out,
+						priClass, keyClass, valClass, null, null);
+				DataInputBuffer pri = new DataInputBuffer();
+				DataInputBuffer key = new DataInputBuffer();
+				DataInputBuffer val = new DataInputBuffer();
+				byte[] data = records.getData();
+				for(int i=0; i<count; i++){
+					int m = i * META;
+					int start = meta[m];
+					pri.reset(data, start, meta[m + 1]);
+					key.reset(data, start + meta[m + 1], meta[m + 2]);
+					val.reset(data, start + meta[m + 1] + meta[m + 2], meta[m + 3]);
+					writer.append(pri, key, val);
+				}
+				writer.close();
+			}finally{
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * reads the records of a file from the highest priority down
+	 */
+	public static class Reader {
+		private final long records;
+		private final double threshold;
+		private final IFile.PriorityReader reader;
+
+		public Reader(JobConf job, FileSystem fs, Path file) throws IOException {
+			long length = fs.getFileStatus(file).getLen();
+			FSDataInputStream in = fs.open(file);
+			try{
+				if(length < HEADER_LENGTH || in.readInt() != MAGIC){
+					throw new IOException(file + " is not a topk snapshot file");
+				}
+				this.records = in.readLong();
+				this.threshold = in.readDouble();
+				this.reader = new IFile.PriorityReader(job, in, length - HEADER_LENGTH, null, null);
+			}catch(IOException e){
+				in.close();
+				throw e;
+			}
+		}
+
+		public long getRecords() {
+			return records;
+		}
+
+		public double getThreshold() {
+			return threshold;
+		}
+
+		public boolean next(DataInputBuffer pri, DataInputBuffer key, DataInputBuffer val) throws IOException {
+			return reader.next(pri, key, val);
+		}
+
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Valueable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.mapred.buffer.impl.OutputPKVBuffer;
+import org.apache.hadoop.mapred.buffer.impl.UpdateBatch;
+import org.apache.hadoop.mapred.buffer.impl.ValuesIterator;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * Parallel reduce of a prioritized iteration (priter.reduce.threads > 1). The
+ * state table is then a StripedStateTable and every key is routed by its stripe
+ * to the same thread, so the threads update disjoint stripes and their stripe
+ * locks are not contended, a thread owns stripes t, t + threads... The reduce
+ * thread routes the serialized records in rounds of about priter.reduce.batch
+ * records per thread, the threads group them back by key and call updateState.
+ * A round only ends where the key changes, so updateState gets all the values of
+ * a key at once.
+ *
+ * The threads share the updater, so Updater.updateState must be safe to call
+ * concurrently and lock OutputPKVBuffer.tableOf(key) rather than the whole table.
+ */
+class UpdatePool<K, P extends Valueable, V extends Valueable> {
+	private static final Log LOG = LogFactory.getLog(UpdatePool.class.getName());
+
+	private final int threads;
+	private final int batchSize;
+	private final OutputPKVBuffer<K, P, V> buffer;
+	private final ExecutorService executor;
+	private final UpdateBatch<K, V>[] batches;
+	private final int[] batched;
+	private final List<Callable<Integer>> workers;
+	private final List<Callable<Integer>> busy;
+
+	private Rebalancer<K, ?> rebalancer = null;
+
+	private DataInputBuffer keyIn = new DataInputBuffer();
+	private DataOutputBuffer lastKey = new DataOutputBuffer();
+	private Deserializer<K> keyDeserializer;
+	private K key;
+
+	public UpdatePool(JobConf job, final Updater<K, P, V> updater, final OutputPKVBuffer<K, P, V> buffer,
+			final Reporter reporter) throws IOException {
+		this.threads = job.getInt("priter.reduce.threads", 1);
+		this.batchSize = job.getInt("priter.reduce.batch", 4096);
+		this.buffer = buffer;
+		this.batches = new UpdateBatch[threads];
+		this.batched = new int[threads];
+		this.workers = new ArrayList<Callable<Integer>>(threads);
+		this.busy = new ArrayList<Callable<Integer>>(threads);
+
+		Class<K> keyClass = (Class<K>)job.getMapOutputKeyClass();
+		Class<V> valClass = (Class<V>)job.getMapOutputValueClass();
+		SerializationFactory serializationFactory = new SerializationFactory(job);
+		this.keyDeserializer = serializationFactory.getDeserializer(keyClass);
+		this.keyDeserializer.open(keyIn);
+
+		for(int i=0; i<threads; i++){
+			final UpdateBatch<K, V> batch = new UpdateBatch<K, V>(job, keyClass, valClass);
+			batches[i] = batch;
+			workers.add(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					int keys = 0;
+					while(batch.nextKey()){
+						updater.updateState(batch.getKey(), batch, buffer, reporter);
+						keys++;
+					}
+					return keys;
+				}
+			});
+		}
+
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "update thread " + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * records of keys not owned by the task any more are forwarded instead of updated
+	 */
+	public void setRebalancer(Rebalancer<K, ?> rebalancer) {
+		this.rebalancer = rebalancer;
+	}
+
+	/**
+	 * @return the thread updating key, the one owning its stripe
+	 */
+	int threadOf(K key) {
+		return buffer.stripeOf(key) % threads;
+	}
+
+	/**
+	 * update the state table with all the records of values, from the reduce thread
+	 * @return the number of updated key groups
+	 */
+	public int update(ValuesIterator<K, V> values, Progress progress) throws IOException {
+		//the iterator has already read the first record
+		RawKeyValueIterator in = values.getRawIterator();
+		boolean more = values.more();
+		int count = 0;
+
+		while(more){
+			int routed = 0;
+			while(more){
+				DataInputBuffer rawKey = in.getKey();
+				int keyLength = rawKey.getLength() - rawKey.getPosition();
+				if(routed >= batchSize * threads && WritableComparator.compareBytes(rawKey.getData(), rawKey.getPosition(), 
+						keyLength, lastKey.getData(), 0, lastKey.getLength()) != 0){
+					break;
+				}
+				lastKey.reset();
+				lastKey.write(rawKey.getData(), rawKey.getPosition(), keyLength);
+				
+				keyIn.reset(rawKey.getData(), rawKey.getPosition(), keyLength);
+				key = keyDeserializer.deserialize(key);
+				if(rebalancer != null && !rebalancer.owns(key)){
+					rebalancer.forward(key, rawKey, in.getValue());
+					more = in.next();
+					continue;
+				}
+				int t = threadOf(key);
+				batches[t].append(rawKey, in.getValue());
+				batched[t]++;
+				routed++;
+				more = in.next();
+			}
+
+			busy.clear();
+			for(int i=0; i<threads; i++){
+				if(batched[i] > 0) busy.add(workers.get(i));
+				batched[i] = 0;
+			}
+
+			try {
+				for(Future<Integer> done : executor.invokeAll(busy)){
+					count += done.get();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted while updating");
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+
+			if(progress != null){
+				progress.set(in.getProgress().get());
+			}
+		}
+		return count;
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+}
@@ -60,6 +60,10 @@ import org.apache.hadoop.mapred.buffer.net.BufferExchangeSource;
 import org.apache.hadoop.mapred.buffer.net.BufferRequest;
 import org.apache.hadoop.mapred.buffer.net.MapBufferRequest;
 import org.apache.hadoop.mapred.buffer.net.ReduceBufferRequest;
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
 import org.apache.hadoop.net.NetUtils;
 
 /**
@@ -188,6 +192,58 @@ public class Manager implements BufferUmbilicalProtocol {
 	};
 
 
+	/**
+	 * Reports how long the output files wait in this manager before they are
+	 * sent and how long the sends take, the part of an iteration between a
+	 * task registering its output and the other side receiving it.
+	 */
+	private class DispatchMetrics implements Updater {
+		private MetricsRecord dispatchMetricsRecord = null;
+		private int outputs = 0;
+		private long delayMillis = 0;
+		private long sendMillis = 0;
+		private int flushes = 0;
+		
+		DispatchMetrics() {
+			MetricsContext context = MetricsUtil.getContext("mapred");
+			dispatchMetricsRecord = MetricsUtil.createRecord(context, "bufferDispatch");
+			dispatchMetricsRecord.setTag("hostName", hostname);
+			context.registerUpdater(this);
+		}
+		
+		/**
+		 * A flush that started at start is over.
+		 * @param outs The output files it tried to send.
+		 */
+		synchronized void flushed(Collection<OutputFile> outs, long start) {
+			long now = System.currentTimeMillis();
+			for (OutputFile file : outs) {
+				/* Count the wait of a file once, at its first flush. */
+				if (file.received() > 0) {
+					delayMillis += Math.max(start - file.received(), 0);
+					file.received(0);
+					outputs++;
+				}
+			}
+			sendMillis += now - start;
+			flushes++;
+		}
+		
+		public void doUpdates(MetricsContext unused) {
+			synchronized (this) {
+				dispatchMetricsRecord.incrMetric("dispatch_outputs", outputs);
+				dispatchMetricsRecord.incrMetric("dispatch_flushes", flushes);
+				dispatchMetricsRecord.incrMetric("dispatch_delay_millis", delayMillis);
+				dispatchMetricsRecord.incrMetric("dispatch_send_millis", sendMillis);
+				outputs = 0;
+				flushes = 0;
+				delayMillis = 0;
+				sendMillis = 0;
+			}
+			dispatchMetricsRecord.update();
+		}
+	}
+
 	/**
 	 * Manages the output files generated by a given
 	 * task attempt. Task attempts will always generate
@@ -201,9 +257,14 @@ public class Manager implements BufferUmbilicalProtocol {
 	 */
 	private class FileManager implements Runnable {
 		/* Am I active and busy? */
-		private boolean open;
+		private volatile boolean open;
 		private boolean busy;
 		private boolean somethingToSend;
+		
+		/* Some send asked to be retried, back off before trying again
+		 * unless something new arrives in the meantime. */
+		private boolean retry;
+		private long backoff;
 
 		/* The task attempt whose output files I am managing. */
 		private TaskAttemptID taskid;
@@ -226,6 +287,8 @@ public class Manager implements BufferUmbilicalProtocol {
 			this.open = true;
 			this.busy = false;
 			this.somethingToSend = false;
+			this.retry = false;
+			this.backoff = 0;
 		}
 
 		@Override
@@ -274,20 +337,37 @@ public class Manager implements BufferUmbilicalProtocol {
 			}
 		}
 		
+		/**
+		 * Called by the flush itself when a destination wants no more output.
+		 */
+		private void terminate() {
+			synchronized (this) {
+				open = false;
+				this.notifyAll();
+				
+				for (BufferExchangeSource s : this.sources) {
+					s.close();
+				}
+			}
+		}
 		
 		@Override
 		public void run() {
 			try {
 				/* I don't want to block calls to new output files and/or requests.
 				 * I will copy the outputs and requests that I'm about to service
-				 * into these objects before servicing them. */
+				 * into these objects and send them without holding my lock, so
+				 * whatever arrives during a flush is sent together in the next one. */
 				SortedSet<OutputFile> out = new TreeSet<OutputFile>();
 				SortedSet<BufferExchangeSource> src = new TreeSet<BufferExchangeSource>();
 				while (open) {
 					synchronized (this) {
+						long deadline = System.currentTimeMillis() + backoff;
 						while (!somethingToSend && open) {
 							//LOG.info(this + " nothing to send.");
-							try { this.wait();
+							long wait = retry ? deadline - System.currentTimeMillis() : 0;
+							if (retry && wait <= 0) break;
+							try { this.wait(wait);
 							} catch (InterruptedException e) { }
 						}
 						
@@ -296,24 +376,26 @@ public class Manager implements BufferUmbilicalProtocol {
 						out.addAll(this.outputs); // Copy output files.
 						src.addAll(this.sources); // Copy requests.
 						somethingToSend = false;  // Assume we send everything.
+						retry = false;
 						busy = true;
+					}
 					
-						try {
-							flush(out, src);
-						} finally {
-							//synchronized (this) {
-								this.busy = false;
-								this.notifyAll();
-							//}
-							/*
-							for (BufferExchangeSource s : src) {
-								s.close();
-							}
-							*/
-							out.clear();
-							src.clear();
-							if (open) Thread.sleep(1000); // Have a smoke.
+					try {
+						long start = System.currentTimeMillis();
+						if (flush(out, src) > 0) {
+							backoff = backoff == 0 ? retryMin : Math.min(backoff * 2, retryMax);
+						}
+						else {
+							backoff = 0;
 						}
+						dispatchMetrics.flushed(out, start);
+					} finally {
+						synchronized (this) {
+							this.busy = false;
+							this.notifyAll();
+						}
+						out.clear();
+						src.clear();
 					}
 				}
 			} catch (Throwable t) {
@@ -391,9 +473,9 @@ public class Manager implements BufferUmbilicalProtocol {
 		 * Flush the output files to the request managers. 
 		 * @param outputs The output files.
 		 * @param requests The request managers.
-		 * @return Those requests that have been fully satisifed.
+		 * @return The number of sends to retry.
 		 */
-		private void flush(SortedSet<OutputFile> outs, Collection<BufferExchangeSource> srcs) {
+		private int flush(SortedSet<OutputFile> outs, Collection<BufferExchangeSource> srcs) {
 			float stalls = 0f;
 			float src_cnt = srcs.size();
 			for (OutputFile file : outs) {
@@ -402,7 +484,7 @@ public class Manager implements BufferUmbilicalProtocol {
 				
 				Iterator<BufferExchangeSource> siter = srcs.iterator();
 				while (siter.hasNext()) {			
-					if (!open) return;
+					if (!open) return (int) stalls;
 					BufferExchangeSource src = siter.next();
 					
 					//LOG.info("sources are: " + src);
@@ -413,19 +495,23 @@ public class Manager implements BufferUmbilicalProtocol {
 						//LOG.info("result is " + result);
 						if (result == BufferExchange.Transfer.TERMINATE) {
 							LOG.info("Terminating " + file.header() + " : " + src);
-							close();
-							return;
+							terminate();
+							return (int) stalls;
 						}
 						else if (BufferExchange.Transfer.RETRY == result) {
 							LOG.info("retrying " + file + " : " + src);
 							siter.remove();
 							stalls++;
-							somethingToSend = true; // Try again later.
+							synchronized (this) {
+								retry = true; // Try again later.
+							}
 						}
 						else if(BufferExchange.Transfer.CLOSED == result){
 							LOG.info("closed connection with " + src);
 							file.serviced(src.destination());
-							this.sources.remove(src);
+							synchronized (this) {
+								this.sources.remove(src);
+							}
 						}
 						else if (BufferExchange.Transfer.IGNORE == result ||
 								BufferExchange.Transfer.SUCCESS == result) {
@@ -446,13 +532,14 @@ public class Manager implements BufferUmbilicalProtocol {
 						e.printStackTrace();
 					}
 					
-					//synchronized(this) {
+					synchronized (this) {
 						this.outputs.remove(file);
-					//}
+					}
 				}
 			}
 			
 			this.stallfraction = stalls / src_cnt;
+			return (int) stalls;
 		}
 	}
 
@@ -501,6 +588,12 @@ public class Manager implements BufferUmbilicalProtocol {
 	private BlockingQueue<OutputFile> queue;
 	
 	private Thread serviceQueue;
+	
+	/* Bounds of the wait before a file manager retries a send, in ms. */
+	private long retryMin;
+	private long retryMax;
+	
+	private DispatchMetrics dispatchMetrics;
 
 	public Manager(TaskTracker tracker) throws IOException {
 		this.tracker   = tracker;
@@ -514,6 +607,11 @@ public class Manager implements BufferUmbilicalProtocol {
 		this.hostname      = InetAddress.getLocalHost().getCanonicalHostName();
 		
 		this.queue = new LinkedBlockingQueue<OutputFile>();
+		
+		Configuration conf = tracker.conf();
+		this.retryMin = Math.max(conf.getLong("mapred.buffer.manager.retry.min", 1), 1);
+		this.retryMax = Math.max(conf.getLong("mapred.buffer.manager.retry.max", 1000), this.retryMin);
+		this.dispatchMetrics = new DispatchMetrics();
 	}
 
 	public static InetSocketAddress getControlAddress(Configuration conf) {
@@ -709,6 +807,7 @@ public class Manager implements BufferUmbilicalProtocol {
 	@Override
 	public void output(OutputFile file) throws IOException {
 		if (file != null) {
+			file.received(System.currentTimeMillis());
 			this.queue.add(file);
 		}
 	}
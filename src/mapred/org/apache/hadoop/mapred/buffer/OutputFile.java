@@ -21,7 +21,6 @@ package org.apache.hadoop.mapred.buffer;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.SortedSet;
@@ -35,7 +34,6 @@ import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.TaskAttemptID;
 import org.apache.hadoop.mapred.TaskID;
 import org.apache.hadoop.mapred.buffer.impl.JOutputBuffer;
-import org.apache.hadoop.mapred.buffer.impl.KVRecord;
 
 public class OutputFile<K extends Object, V extends Object> implements Comparable<OutputFile>, Writable {
 	public static enum Type {FILE, SNAPSHOT, STREAM, PKVBUF};
@@ -138,17 +136,30 @@ public class OutputFile<K extends Object, V extends Object> implements Comparabl
 		
 		private long sequence;
 		
+		/* A pipelined map sends the output of a sequence in chunks, 
+		 * only the last one is eof. */
+		private int chunk;
+		
 		public StreamHeader() { super(Type.STREAM, null, 0f, true); }
 		
 		public StreamHeader(TaskAttemptID owner, long sequence) {
-			super(Type.STREAM, owner, 0f, true);
+			this(owner, sequence, 0, true);
+		}
+		
+		public StreamHeader(TaskAttemptID owner, long sequence, int chunk, boolean eof) {
+			super(Type.STREAM, owner, 0f, eof);
 			this.sequence = sequence;
+			this.chunk = chunk;
 		}
 		
 		public long sequence() {
 			return this.sequence;
 		}
 		
+		public int chunk() {
+			return this.chunk;
+		}
+		
 		public int compareTo(Header header) {
 			if (header instanceof StreamHeader) {
 				StreamHeader other = (StreamHeader) header;
@@ -159,7 +170,7 @@ public class OutputFile<K extends Object, V extends Object> implements Comparabl
 					else if (sequence > other.sequence) {
 						return 1;
 					}
-					else return 0;
+					else return chunk - other.chunk;
 				}
 			}
 			return -1;
@@ -182,12 +193,14 @@ public class OutputFile<K extends Object, V extends Object> implements Comparabl
 		public void readFields(DataInput in) throws IOException {
 			super.readFields(in);
 			this.sequence = in.readLong();
+			this.chunk = in.readInt();
 		}
 
 		@Override
 		public void write(DataOutput out) throws IOException {
 			super.write(out);
 			out.writeLong(this.sequence);
+			out.writeInt(this.chunk);
 		}
 		
 	}
@@ -419,7 +432,8 @@ public class OutputFile<K extends Object, V extends Object> implements Comparabl
 	
 	private transient Set<TaskAttemptID> serviced = new HashSet<TaskAttemptID>();
 	
-	public ArrayList<KVRecord<K, V>> outputMemQueue =  new ArrayList<KVRecord<K, V>>();
+	/* when the manager received me, for the dispatch latency */
+	private transient long received = 0;
 
 	public OutputFile() { 	}
 	
@@ -432,10 +446,14 @@ public class OutputFile<K extends Object, V extends Object> implements Comparabl
 	}
 
 	public OutputFile(TaskAttemptID owner, long sequence, Path data, Path index, int partitions) {
+		this(owner, sequence, 0, true, data, index, partitions);
+	}
+
+	public OutputFile(TaskAttemptID owner, long sequence, int chunk, boolean eof, Path data, Path index, int partitions) {
 		this.type = Type.STREAM;
 		this.data = data;
 		this.index = index;
-		this.header = new StreamHeader(owner, sequence);
+		this.header = new StreamHeader(owner, sequence, chunk, eof);
 		this.partitions = partitions;
 	}
 
@@ -493,6 +511,14 @@ public class OutputFile<K extends Object, V extends Object> implements Comparabl
 		this.serviced.add(taskid);
 	}
 	
+	public long received() {
+		return this.received;
+	}
+	
+	public void received(long time) {
+		this.received = time;
+	}
+	
 	public Header header() {
 		return this.header;
 	}
@@ -564,12 +590,6 @@ public class OutputFile<K extends Object, V extends Object> implements Comparabl
 		}
 	}
 
-	public Header seek2() throws IOException {
-		header.decompressed(100);
-		header.compressed(100);
-		return header;
-	}
-	
 	public FSDataInputStream dataInputStream() {
 		return this.dataIn;
 	}
@@ -0,0 +1,45 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.serializer.Deserializer;
+
+/**
+ * A batch of serialized activations taken from an InputPKVBuffer by nextBatch,
+ * for one activation thread. Like InputPKVBuffer, next() deserializes into a key
+ * and a value instance reused for every record. Not thread safe.
+ */
+public class ActivationBatch<K extends Object, V extends Object> {
+
+	final ActivationQueue queue;
+	private DataInputBuffer keyIn = new DataInputBuffer();
+	private DataInputBuffer valIn = new DataInputBuffer();
+	private Deserializer keyDeserializer;
+	private Deserializer valDeserializer;
+	private K key;
+	private V value;
+
+	ActivationBatch(Deserializer keyDeserializer, Deserializer valDeserializer, int chunkSize) throws IOException {
+		this.queue = new ActivationQueue(chunkSize);
+		this.keyDeserializer = keyDeserializer;
+		this.valDeserializer = valDeserializer;
+		this.keyDeserializer.open(keyIn);
+		this.valDeserializer.open(valIn);
+	}
+
+	public boolean next() throws IOException {
+		if(!queue.poll(keyIn, valIn)) return false;
+		key = (K) keyDeserializer.deserialize(key);
+		value = (V) valDeserializer.deserialize(value);
+		return true;
+	}
+
+	public K getKey() {
+		return key;
+	}
+
+	public V getValue() {
+		return value;
+	}
+}
@@ -0,0 +1,152 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Queue of serialized key/value records, kept as vint key length, vint value
+ * length, key bytes, value bytes in a chain of byte chunks. Records never span
+ * two chunks, a record larger than the chunk size gets a chunk of its own.
+ *
+ * One producer thread appends and one consumer thread polls without locking
+ * the queue: the producer publishes a chunk's limit after writing the bytes
+ * below it, and links the next chunk only after the final limit of the current
+ * one is published. A drained chunk is kept as a spare for the producer, so a
+ * steady stream of records allocates nothing. Whether the two sides actually
+ * overlap is up to the owner, in a map task they are serialized by the task
+ * monitor, see InputPKVBuffer.
+ */
+class ActivationQueue {
+
+	private static final class Chunk {
+		final byte[] data;
+		volatile int limit = 0;
+		volatile Chunk next = null;
+
+		Chunk(int size) {
+			this.data = new byte[size];
+		}
+	}
+
+	private final int chunkSize;
+
+	//producer side
+	private Chunk tail;
+	private int tailPos = 0;
+
+	//consumer side
+	private Chunk head;
+	private int headPos = 0;
+
+	private volatile Chunk spare = null;
+
+	ActivationQueue(int chunkSize) {
+		this.chunkSize = chunkSize;
+		this.tail = this.head = new Chunk(chunkSize);
+	}
+
+	/**
+	 * append a record, producer only
+	 */
+	void append(byte[] key, int keyOff, int keyLen, byte[] val, int valOff, int valLen) {
+		int need = WritableUtils.getVIntSize(keyLen) + WritableUtils.getVIntSize(valLen) + keyLen + valLen;
+		if(tail.data.length - tailPos < need){
+			Chunk chunk = null;
+			if(need <= chunkSize){
+				chunk = spare;
+				spare = null;
+			}
+			if(chunk == null) chunk = new Chunk(Math.max(chunkSize, need));
+			tail.next = chunk;
+			tail = chunk;
+			tailPos = 0;
+		}
+
+		byte[] data = tail.data;
+		int pos = writeVInt(data, tailPos, keyLen);
+		pos = writeVInt(data, pos, valLen);
+		System.arraycopy(key, keyOff, data, pos, keyLen);
+		pos += keyLen;
+		System.arraycopy(val, valOff, data, pos, valLen);
+		tailPos = pos + valLen;
+		tail.limit = tailPos;
+	}
+
+	/**
+	 * point key and value to the next record, consumer only. The buffers are
+	 * valid until the next call of poll.
+	 * @return false if the queue is empty
+	 */
+	boolean poll(DataInputBuffer key, DataInputBuffer value) {
+		while(headPos >= head.limit){
+			Chunk next = head.next;
+			if(next == null) return false;
+			//the limit is final once next is set, look again before leaving the chunk
+			if(headPos < head.limit) break;
+
+			Chunk drained = head;
+			head = next;
+			headPos = 0;
+			if(drained.data.length == chunkSize){
+				drained.limit = 0;
+				drained.next = null;
+				spare = drained;
+			}
+		}
+
+		byte[] data = head.data;
+		int keyLen = readVInt(data, headPos);
+		int pos = headPos + WritableUtils.decodeVIntSize(data[headPos]);
+		int valLen = readVInt(data, pos);
+		pos += WritableUtils.decodeVIntSize(data[pos]);
+		key.reset(data, pos, keyLen);
+		value.reset(data, pos + keyLen, valLen);
+		headPos = pos + keyLen + valLen;
+		return true;
+	}
+
+	/**
+	 * drop all the records, neither producer nor consumer may run meanwhile
+	 */
+	void clear() {
+		head = tail;
+		headPos = tailPos;
+	}
+
+	//vint coding of WritableUtils on a byte array
+	static int writeVInt(byte[] data, int pos, int i) {
+		long l = i;
+		if (l >= -112 && l <= 127) {
+			data[pos++] = (byte)l;
+			return pos;
+		}
+		int len = -112;
+		if (l < 0) {
+			l ^= -1L;
+			len = -120;
+		}
+		long tmp = l;
+		while (tmp != 0) {
+			tmp = tmp >> 8;
+			len--;
+		}
+		data[pos++] = (byte)len;
+		len = (len < -120) ? -(len + 120) : -(len + 112);
+		for (int idx = len; idx != 0; idx--) {
+			int shiftbits = (idx - 1) * 8;
+			data[pos++] = (byte)((l & (0xFFL << shiftbits)) >> shiftbits);
+		}
+		return pos;
+	}
+
+	private static int readVInt(byte[] data, int pos) {
+		byte first = data[pos];
+		int len = WritableUtils.decodeVIntSize(first);
+		if (len == 1) return first;
+		long l = 0;
+		for (int idx = 1; idx < len; idx++) {
+			l = (l << 8) | (data[pos + idx] & 0xFF);
+		}
+		return (int)(WritableUtils.isNegativeVInt(first) ? (l ^ -1L) : l);
+	}
+}
@@ -0,0 +1,144 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.DeltaCombiner;
+
+/**
+ * Map side hash aggregate of one partition, int keys to double values folded
+ * with a DeltaCombiner. Every fold is narrowed to the value class, so int and
+ * float deltas combine as they would in their own type and not in double.
+ * Open addressing with linear probing, clear() keeps the arrays for the next
+ * iteration.
+ */
+class DeltaAggregate {
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private final DeltaCombiner combiner;
+	private final boolean ints;
+	private final boolean floats;
+	private int[] keys;
+	private double[] values;
+	private long[] used;
+	private int shift;
+	private int size = 0;
+	private long collected = 0;
+
+	DeltaAggregate(DeltaCombiner combiner, Class<?> valClass, int expected) {
+		this.combiner = combiner;
+		this.ints = valClass == IntWritable.class;
+		this.floats = valClass == FloatWritable.class;
+		int cap = 64;
+		while(cap < (1 << 30) && cap * LOAD_FACTOR < expected){
+			cap <<= 1;
+		}
+		allocate(cap);
+	}
+
+	private void allocate(int cap) {
+		keys = new int[cap];
+		values = new double[cap];
+		used = new long[cap >>> 6];
+		shift = 32 - Integer.numberOfTrailingZeros(cap);
+	}
+
+	/**
+	 * round a folded value to the value class
+	 */
+	private double narrow(double value) {
+		if(ints) return (int)(long)value;
+		if(floats) return (float)value;
+		return value;
+	}
+
+	private int hash(int key) {
+		return (key * 0x9E3779B9) >>> shift;
+	}
+
+	void add(int key, double delta) {
+		collected++;
+		int mask = keys.length - 1;
+		int slot = hash(key);
+		while((used[slot >>> 6] & (1L << slot)) != 0){
+			if(keys[slot] == key){
+				values[slot] = narrow(combiner.combine(values[slot], delta));
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		used[slot >>> 6] |= 1L << slot;
+		keys[slot] = key;
+		values[slot] = narrow(delta);
+		if(++size > keys.length * LOAD_FACTOR) grow();
+	}
+
+	/**
+	 * fold all the values of other into this aggregate, other is cleared
+	 */
+	void merge(DeltaAggregate other) {
+		long count = collected + other.collected;
+		for(int slot = other.nextSlot(0); slot >= 0; slot = other.nextSlot(slot + 1)){
+			add(other.keys[slot], other.values[slot]);
+		}
+		collected = count;
+		other.clear();
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		double[] oldValues = values;
+		long[] oldUsed = used;
+		allocate(keys.length << 1);
+
+		int mask = keys.length - 1;
+		for(int from = 0; from < oldKeys.length; from++){
+			if((oldUsed[from >>> 6] & (1L << from)) == 0) continue;
+			int slot = hash(oldKeys[from]);
+			while((used[slot >>> 6] & (1L << slot)) != 0){
+				slot = (slot + 1) & mask;
+			}
+			used[slot >>> 6] |= 1L << slot;
+			keys[slot] = oldKeys[from];
+			values[slot] = oldValues[from];
+		}
+	}
+
+	/**
+	 * @return the first used slot not before from, or -1
+	 */
+	int nextSlot(int from) {
+		if(from >= keys.length) return -1;
+		int word = from >>> 6;
+		long bits = used[word] & (-1L << from);
+		while(true){
+			if(bits != 0) return (word << 6) + Long.numberOfTrailingZeros(bits);
+			if(++word == used.length) return -1;
+			bits = used[word];
+		}
+	}
+
+	int getKey(int slot) {
+		return keys[slot];
+	}
+
+	double getValue(int slot) {
+		return values[slot];
+	}
+
+	int size() {
+		return size;
+	}
+
+	/** the number of values added since the last clear */
+	long collected() {
+		return collected;
+	}
+
+	void clear() {
+		Arrays.fill(used, 0L);
+		size = 0;
+		collected = 0;
+	}
+}
@@ -0,0 +1,305 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.mapred.IFileInputStream;
+import org.apache.hadoop.mapred.InputCollector;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapred.TaskID;
+import org.apache.hadoop.mapred.buffer.OutputFile;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * Reduce input of an in-memory PrIter job (priter.reduce.hashinput, off by
+ * default). The updates of a key do not depend on the order of its values, so
+ * instead of merging the map outputs through a sorted spill file like
+ * JInputBuffer, the records are grouped by key in a hash table as they are read
+ * from the sink: flush has nothing to do and valuesIterator walks the table a
+ * key at a time, with no comparator sort and no local disk.
+ *
+ * The map outputs are kept as they arrived, the table only points into them, so
+ * a record is never copied after it is read off the network. Keys are hashed and
+ * compared by their bytes.
+ *
+ * All the map outputs of a reduce pass are held in memory until free, there is
+ * no spill: turn it on only when they fit in the reduce heap with the state
+ * table. The sink and the reduce both hold the task, so the table is never
+ * filled and reduced at the same time.
+ */
+public class HashInputBuffer<K extends Object, V extends Object>
+extends Buffer<K, V> implements InputCollector<K, V> {
+	private static final Log LOG = LogFactory.getLog(HashInputBuffer.class.getName());
+
+	private static final int EOF_MARKER = -1;
+
+	/**
+	 * the records of one reduce pass, grouped by key. A group keeps the position
+	 * of its key and a list of its values, linked through vNext in arrival order.
+	 */
+	private static class Table {
+		private List<byte[]> segments = new ArrayList<byte[]>();
+		private long bytes = 0;
+
+		//groups
+		private int groups = 0;
+		private int[] gSeg = new int[1024];
+		private int[] gKeyOff = new int[1024];
+		private int[] gKeyLen = new int[1024];
+		private int[] gHash = new int[1024];
+		private int[] gHead = new int[1024];
+		private int[] gTail = new int[1024];
+
+		//values
+		private int values = 0;
+		private int[] vSeg = new int[4096];
+		private int[] vOff = new int[4096];
+		private int[] vLen = new int[4096];
+		private int[] vNext = new int[4096];
+
+		//open addressing index of the groups, 0 is empty, otherwise group + 1
+		private int[] slots = new int[2048];
+
+		void add(byte[] data, int length) throws IOException {
+			int seg = segments.size();
+			segments.add(data);
+			bytes += length;
+
+			DataInputBuffer in = new DataInputBuffer();
+			in.reset(data, length);
+			while(true){
+				int keyLength = WritableUtils.readVInt(in);
+				int valLength = WritableUtils.readVInt(in);
+				if(keyLength == EOF_MARKER && valLength == EOF_MARKER) break;
+				if(keyLength < 0 || valLength < 0){
+					throw new IOException("negative key or value length " + keyLength + "/" + valLength);
+				}
+
+				int keyOff = in.getPosition();
+				int valOff = keyOff + keyLength;
+				if(valOff + valLength > length){
+					throw new IOException("record runs past the end of the map output");
+				}
+				add(seg, keyOff, keyLength, valOff, valLength);
+				in.reset(data, valOff + valLength, length - valOff - valLength);
+			}
+		}
+
+		private void add(int seg, int keyOff, int keyLength, int valOff, int valLength) {
+			byte[] data = segments.get(seg);
+			int hash = hashBytes(data, keyOff, keyLength);
+			int mask = slots.length - 1;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			int g = -1;
+			while(slots[slot] != 0){
+				int c = slots[slot] - 1;
+				if(gHash[c] == hash && WritableComparator.compareBytes(data, keyOff, keyLength,
+						segments.get(gSeg[c]), gKeyOff[c], gKeyLen[c]) == 0){
+					g = c;
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			if(values == vSeg.length){
+				vSeg = grow(vSeg);
+				vOff = grow(vOff);
+				vLen = grow(vLen);
+				vNext = grow(vNext);
+			}
+			int v = values++;
+			vSeg[v] = seg;
+			vOff[v] = valOff;
+			vLen[v] = valLength;
+			vNext[v] = -1;
+
+			if(g < 0){
+				if(groups == gSeg.length){
+					gSeg = grow(gSeg);
+					gKeyOff = grow(gKeyOff);
+					gKeyLen = grow(gKeyLen);
+					gHash = grow(gHash);
+					gHead = grow(gHead);
+					gTail = grow(gTail);
+				}
+				g = groups++;
+				gSeg[g] = seg;
+				gKeyOff[g] = keyOff;
+				gKeyLen[g] = keyLength;
+				gHash[g] = hash;
+				gHead[g] = v;
+				gTail[g] = v;
+				slots[slot] = g + 1;
+				if(groups * 4 > slots.length * 3) rehash();
+			}else{
+				vNext[gTail[g]] = v;
+				gTail[g] = v;
+			}
+		}
+
+		private void rehash() {
+			slots = new int[slots.length * 2];
+			int mask = slots.length - 1;
+			for(int g=0; g<groups; g++){
+				int slot = (gHash[g] ^ (gHash[g] >>> 16)) & mask;
+				while(slots[slot] != 0){
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = g + 1;
+			}
+		}
+
+		private static int hashBytes(byte[] bytes, int off, int length) {
+			int hash = 1;
+			for(int i=off; i<off+length; i++){
+				hash = 31 * hash + bytes[i];
+			}
+			return hash;
+		}
+
+		private static int[] grow(int[] array) {
+			int[] grown = new int[array.length * 2];
+			System.arraycopy(array, 0, grown, 0, array.length);
+			return grown;
+		}
+
+		void clear() {
+			segments.clear();
+			bytes = 0;
+			groups = 0;
+			values = 0;
+			Arrays.fill(slots, 0);
+		}
+	}
+
+	/**
+	 * the records of a table a group after the other, the key is repeated for
+	 * every value so the values of a key are adjacent for ValuesIterator
+	 */
+	private static class GroupIterator implements RawKeyValueIterator {
+		private final Table table;
+		private DataInputBuffer key = new DataInputBuffer();
+		private DataInputBuffer value = new DataInputBuffer();
+		private Progress scanProgress = new Progress();
+		private int group = -1;
+		private int v = -1;
+		private int visited = 0;
+
+		GroupIterator(Table table) {
+			this.table = table;
+		}
+
+		public boolean next() throws IOException {
+			if(v >= 0) v = table.vNext[v];
+			if(v < 0){
+				if(++group >= table.groups) return false;
+				v = table.gHead[group];
+				key.reset(table.segments.get(table.gSeg[group]), table.gKeyOff[group], table.gKeyLen[group]);
+			}
+			value.reset(table.segments.get(table.vSeg[v]), table.vOff[v], table.vLen[v]);
+			scanProgress.set((float)++visited / table.values);
+			return true;
+		}
+
+		public DataInputBuffer getKey() throws IOException {
+			return key;
+		}
+
+		public DataInputBuffer getValue() throws IOException {
+			return value;
+		}
+
+		public Progress getProgress() {
+			return scanProgress;
+		}
+
+		public void close() throws IOException {
+		}
+	}
+
+	//the records of the pass, filled by the sink and reduced at once
+	private Table table = new Table();
+
+	public HashInputBuffer(JobConf conf, Task task,
+			Reporter reporter, Progress progress,
+			Class<K> keyClass, Class<V> valClass,
+			Class<? extends CompressionCodec> codecClass)
+	throws IOException {
+		super(conf, task, reporter, progress, keyClass, valClass, codecClass);
+	}
+
+	@Override
+	public synchronized boolean read(DataInputStream istream, OutputFile.Header header)
+	throws IOException {
+		TaskID taskid = header.owner().getTaskID();
+		long compressedLength = header.compressed();
+		long decompressedLength = header.decompressed();
+
+		if (compressedLength < 0 || decompressedLength < 0 || decompressedLength > Integer.MAX_VALUE) {
+			LOG.warn("HashInputBuffer: invalid lengths in map output header: id: " +
+					taskid + " compressed len: " + compressedLength +
+					", decompressed len: " + decompressedLength);
+			return false;
+		}
+
+		long start = System.currentTimeMillis();
+		InputStream ins = new IFileInputStream(istream, compressedLength);
+		if (codec != null) {
+			decompressor.reset();
+			ins = codec.createInputStream(ins, decompressor);
+		}
+
+		byte[] data = new byte[(int)decompressedLength];
+		int bytesRead = 0;
+		int n = ins.read(data, 0, data.length);
+		while (n > 0) {
+			bytesRead += n;
+			reporter.progress();
+			n = ins.read(data, bytesRead, data.length - bytesRead);
+		}
+		if (bytesRead != decompressedLength) {
+			throw new IOException("Incomplete map output received for " +
+					taskid + " (" + bytesRead + " instead of " + decompressedLength + ")");
+		}
+
+		table.add(data, bytesRead);
+		LOG.info("Grouped " + decompressedLength + " bytes (" + compressedLength + " raw bytes) from " +
+				taskid + ", " + table.groups + " keys " + table.values + " records in table, use time " +
+				(System.currentTimeMillis() - start));
+		return true;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		//nothing is spilled, the records are grouped as they are read
+	}
+
+	@Override
+	public synchronized ValuesIterator<K, V> valuesIterator() throws IOException {
+		LOG.info("reducing " + table.groups + " keys " + table.values + " records, " +
+				table.bytes + " bytes in memory");
+		return new ValuesIterator<K, V>(new GroupIterator(table), comparator, keyClass, valClass, conf, reporter);
+	}
+
+	@Override
+	public synchronized void free() {
+		table.clear();
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,94 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Valueable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * State table on a HashMap of PriorityRecords, works for any key and value
+ * type. get returns the stored record.
+ */
+public class HashStateTable<K, P extends Valueable, V extends Valueable> implements StateTable<K, P, V> {
+
+	private JobConf job;
+	private Map<K, PriorityRecord<P, V>> table = new HashMap<K, PriorityRecord<P, V>>();
+
+	@Override
+	public void configure(JobConf job) {
+		this.job = job;
+	}
+
+	@Override
+	public int size() {
+		return table.size();
+	}
+
+	@Override
+	public boolean containsKey(K key) {
+		return table.containsKey(key);
+	}
+
+	@Override
+	public PriorityRecord<P, V> get(K key) {
+		return table.get(key);
+	}
+
+	@Override
+	public void put(K key, P priority, V iState, V cState) {
+		PriorityRecord<P, V> record = table.get(key);
+		if(record == null){
+			table.put(copyKey(key), new PriorityRecord<P, V>(priority, iState, cState));
+		}else{
+			record.setPriority(priority);
+			record.setiState(iState);
+			record.setcState(cState);
+		}
+	}
+
+	@Override
+	public boolean remove(K key) {
+		return table.remove(key) != null;
+	}
+
+	private K copyKey(K key) {
+		if(key instanceof IntWritable){
+			return (K) new IntWritable(((IntWritable)key).get());
+		}else if(key instanceof Writable){
+			return (K) WritableUtils.clone((Writable)key, job);
+		}
+		return key;
+	}
+
+	@Override
+	public StateTableIterator<K, P, V> iterator() {
+		final Iterator<Map.Entry<K, PriorityRecord<P, V>>> entries = table.entrySet().iterator();
+
+		return new StateTableIterator<K, P, V>() {
+			private Map.Entry<K, PriorityRecord<P, V>> entry;
+
+			public boolean next() {
+				if(!entries.hasNext()) return false;
+				entry = entries.next();
+				return true;
+			}
+			public K getKey() { return entry.getKey(); }
+			public P getPriority() { return entry.getValue().getPriority(); }
+			public V getiState() { return entry.getValue().getiState(); }
+			public V getcState() { return entry.getValue().getcState(); }
+			public void setPriority(P priority) { entry.getValue().setPriority(priority); }
+			public void setiState(V iState) { entry.getValue().setiState(iState); }
+			public void setcState(V cState) { entry.getValue().setcState(cState); }
+		};
+	}
+
+	@Override
+	public long memoryUsage() {
+		return -1;
+	}
+}
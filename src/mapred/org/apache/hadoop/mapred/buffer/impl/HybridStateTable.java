@@ -0,0 +1,786 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Valueable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * A state table for graphs larger than the heap, chosen with
+ * priter.statetable.hybrid. At most priter.statetable.hybrid.records records
+ * are kept in the in-memory table it wraps. When a new key exceeds that, the
+ * lowest priority records are spilled down to priter.statetable.hybrid.keep of
+ * the limit, to a local run file sorted by key.
+ *
+ * A spilled record is found by an open addressing index on the hash of its
+ * serialized key, holding the location and the priority of the record, 24
+ * bytes per spilled record. A spilled record is faulted back into memory when it
+ * is read or updated, the priority of a spilled record thus never changes and
+ * the top records are ranked without reading the runs, see rankSpilled and
+ * faultIn. A full iteration reads the runs sequentially after the memory.
+ *
+ * A run is deleted when all its records are faulted back in, and rewritten
+ * when less than half of them are left. When there are more than
+ * priter.statetable.hybrid.runs runs they are merged into one.
+ */
+public class HybridStateTable<K, P extends Valueable, V extends Valueable> implements StateTable<K, P, V> {
+	private static final Log LOG = LogFactory.getLog(HybridStateTable.class.getName());
+
+	private static final AtomicInteger tables = new AtomicInteger();
+
+	//locations of the index, a location is the run id in the high bits and the offset
+	private static final long EMPTY = 0;
+	private static final long DELETED = -1;
+	private static final int OFFSET_BITS = 40;
+
+	private static class Run {
+		final int id;
+		final File file;
+		RandomAccessFile raf;
+		int records;
+		int live;
+
+		Run(int id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+	}
+
+	private JobConf job;
+	private final StateTable<K, P, V> memory;
+	private final int limit;
+	private final int keep;
+	private final int maxRuns;
+	private final RawComparator<K> comparator;
+	private final String prefix;
+
+	private final Serializer<K> keySerializer;
+	private final Serializer<P> priSerializer;
+	private final Serializer<V> stateSerializer;
+	private final Deserializer<K> keyDeserializer;
+	private final Deserializer<P> priDeserializer;
+	private final Deserializer<V> stateDeserializer;
+	private final DataOutputBuffer keyOut = new DataOutputBuffer();
+	private final DataOutputBuffer fieldOut = new DataOutputBuffer();
+	private final DataInputBuffer in = new DataInputBuffer();
+
+	//index of the spilled records
+	private long[] hashes;
+	private long[] locs;
+	private double[] pris;
+	private int spilled = 0;
+	private int used = 0;
+
+	private final ArrayList<Run> runs = new ArrayList<Run>();
+	private final PrioritySelector selector;
+
+	//the record read by read(), 4 fields: key, priority, iState, cState
+	private byte[] record = new byte[1024];
+	private final int[] fieldStart = new int[4];
+	private final int[] fieldLength = new int[4];
+
+	public long faults = 0;
+
+	@SuppressWarnings("unchecked")
+	public HybridStateTable(JobConf job, StateTable<K, P, V> memory,
+			Class<K> keyClass, Class<P> priClass, Class<V> valClass) {
+		this.job = job;
+		this.memory = memory;
+		this.limit = Math.max(job.getInt("priter.statetable.hybrid.records", 1 << 20), 16);
+		this.keep = Math.max((int)(limit * job.getFloat("priter.statetable.hybrid.keep", 0.75f)), 1);
+		this.maxRuns = Math.max(job.getInt("priter.statetable.hybrid.runs", 32), 2);
+		this.comparator = job.getOutputKeyComparator();
+		this.prefix = "priter/statetable-" + job.get("mapred.task.id", "local") + "-" + tables.incrementAndGet() + "-";
+		this.selector = new PrioritySelector(job);
+
+		SerializationFactory serializationFactory = new SerializationFactory(job);
+		this.keySerializer = serializationFactory.getSerializer(keyClass);
+		this.priSerializer = serializationFactory.getSerializer(priClass);
+		this.stateSerializer = serializationFactory.getSerializer(valClass);
+		this.keyDeserializer = serializationFactory.getDeserializer(keyClass);
+		this.priDeserializer = serializationFactory.getDeserializer(priClass);
+		this.stateDeserializer = serializationFactory.getDeserializer(valClass);
+		try {
+			this.keySerializer.open(keyOut);
+			this.priSerializer.open(fieldOut);
+			this.stateSerializer.open(fieldOut);
+			this.keyDeserializer.open(in);
+			this.priDeserializer.open(in);
+			this.stateDeserializer.open(in);
+		} catch (IOException e) {
+			throw new RuntimeException("can not open the serializers", e);
+		}
+
+		allocate(1024);
+	}
+
+	@Override
+	public void configure(JobConf job) {
+		this.job = job;
+	}
+
+	/**
+	 * @return the in-memory part of the table
+	 */
+	public StateTable<K, P, V> memory() {
+		return memory;
+	}
+
+	public int spilledSize() {
+		return spilled;
+	}
+
+	@Override
+	public int size() {
+		return memory.size() + spilled;
+	}
+
+	@Override
+	public boolean containsKey(K key) {
+		return memory.containsKey(key) || find(key) >= 0;
+	}
+
+	@Override
+	public PriorityRecord<P, V> get(K key) {
+		PriorityRecord<P, V> record = memory.get(key);
+		if(record != null) return record;
+
+		int slot = find(key);
+		if(slot < 0) return null;
+		faultIn(slot, true);
+		return memory.get(key);
+	}
+
+	@Override
+	public void put(K key, P priority, V iState, V cState) {
+		if(memory.containsKey(key)){
+			memory.put(key, priority, iState, cState);
+			return;
+		}
+
+		int slot = find(key);
+		if(slot >= 0) remove(slot);
+		memory.put(key, priority, iState, cState);
+		if(memory.size() > limit){
+			try {
+				spill();
+			} catch (IOException e) {
+				throw new RuntimeException("can not spill the state table", e);
+			}
+		}
+	}
+
+	@Override
+	public boolean remove(K key) {
+		if(memory.remove(key)) return true;
+		int slot = find(key);
+		if(slot < 0) return false;
+		remove(slot);
+		return true;
+	}
+
+	@Override
+	public long memoryUsage() {
+		long bytes = memory.memoryUsage();
+		return bytes < 0 ? -1 : bytes + (long)locs.length * 24;
+	}
+
+	/**
+	 * add the priorities of the spilled records higher than above to selector,
+	 * no run is read
+	 */
+	public void rankSpilled(PrioritySelector selector, double above) {
+		for(int i=0; i<locs.length; i++){
+			if(locs[i] > EMPTY && pris[i] > above) selector.add(pris[i]);
+		}
+	}
+
+	/**
+	 * bring the spilled records with a priority higher than threshold, or equal
+	 * to it if inclusive, back into memory. The memory may exceed the limit until
+	 * the next put.
+	 * @return the number of records faulted in
+	 */
+	public int faultIn(double threshold, boolean inclusive) {
+		int n = 0;
+		long[] found = new long[16];
+		for(int i=0; i<locs.length; i++){
+			if(locs[i] > EMPTY && (pris[i] > threshold || (inclusive && pris[i] == threshold))){
+				if(n == found.length) found = Arrays.copyOf(found, n * 2);
+				found[n++] = locs[i];
+			}
+		}
+		if(n == 0) return 0;
+
+		//read the runs in order
+		Arrays.sort(found, 0, n);
+		for(int i=0; i<n; i++){
+			read(found[i]);
+			faultIn(slotOf(hash(record, fieldStart[0], fieldLength[0]), found[i]), true);
+		}
+		LOG.info("faulted in " + n + " spilled records above " + threshold + ", " + memory.size() +
+				" records in memory, " + spilled + " spilled");
+		return n;
+	}
+
+	@Override
+	public StateTableIterator<K, P, V> iterator() {
+		final StateTableIterator<K, P, V> mem = memory.iterator();
+
+		return new StateTableIterator<K, P, V>() {
+			private boolean inMemory = true;
+			private int run = 0;
+			private RunReader reader = null;
+			private int slot = -1;
+			private K key;
+			private P priority;
+			private V iState;
+			private V cState;
+
+			public boolean next() {
+				if(inMemory){
+					if(mem.next()) return true;
+					inMemory = false;
+				}
+
+				try {
+					while(true){
+						if(reader == null){
+							while(run < runs.size() && (runs.get(run) == null || runs.get(run).live == 0)) run++;
+							if(run >= runs.size()) return false;
+							reader = new RunReader(runs.get(run));
+						}
+
+						while(reader.nextLive()){
+							slot = reader.slot;
+
+							//fresh instances, a set on them moves the record into memory
+							in.reset(reader.data, reader.start[0], reader.length[0]);
+							key = keyDeserializer.deserialize(null);
+							in.reset(reader.data, reader.start[1], reader.length[1]);
+							priority = priDeserializer.deserialize(null);
+							in.reset(reader.data, reader.start[2], reader.length[2]);
+							iState = stateDeserializer.deserialize(null);
+							in.reset(reader.data, reader.start[3], reader.length[3]);
+							cState = stateDeserializer.deserialize(null);
+							return true;
+						}
+						reader.close();
+						reader = null;
+						run++;
+					}
+				} catch (IOException e) {
+					throw new RuntimeException("can not read the spilled state table", e);
+				}
+			}
+
+			public K getKey() { return inMemory ? mem.getKey() : key; }
+			public P getPriority() { return inMemory ? mem.getPriority() : priority; }
+			public V getiState() { return inMemory ? mem.getiState() : iState; }
+			public V getcState() { return inMemory ? mem.getcState() : cState; }
+
+			public void setPriority(P priority) {
+				if(inMemory){
+					mem.setPriority(priority);
+				}else{
+					this.priority = priority;
+					update();
+				}
+			}
+
+			public void setiState(V iState) {
+				if(inMemory){
+					mem.setiState(iState);
+				}else{
+					this.iState = iState;
+					update();
+				}
+			}
+
+			public void setcState(V cState) {
+				if(inMemory){
+					mem.setcState(cState);
+				}else{
+					this.cState = cState;
+					update();
+				}
+			}
+
+			//the memory is not iterated anymore, the record can move there
+			private void update() {
+				memory.put(key, priority, iState, cState);
+				if(slot >= 0){
+					remove(slot);
+					slot = -1;
+				}
+			}
+		};
+	}
+
+	/**
+	 * spill the lowest priority records of the memory to a new run
+	 */
+	private void spill() throws IOException {
+		long start = System.currentTimeMillis();
+		selector.clear();
+		StateTableIterator<K, P, V> it = memory.iterator();
+		while(it.next()){
+			selector.add(it.getPriority().getV());
+		}
+		double cut = selector.select(keep);
+		long ties = selector.ties(keep);
+
+		final DataOutputBuffer buf = new DataOutputBuffer();
+		int[] starts = new int[Math.max(memory.size() - keep, 16)];
+		double[] spris = new double[starts.length];
+		int count = 0;
+		it = memory.iterator();
+		while(it.next()){
+			double pri = it.getPriority().getV();
+			if(pri > cut || (pri == cut && ties-- > 0)) continue;
+
+			if(count == starts.length){
+				starts = Arrays.copyOf(starts, count * 2);
+				spris = Arrays.copyOf(spris, count * 2);
+			}
+			starts[count] = buf.getLength();
+			spris[count] = pri;
+			count++;
+			write(buf, it.getKey(), it.getPriority(), it.getiState(), it.getcState());
+		}
+		if(count == 0) return;
+
+		//take them out of memory
+		for(int i=0; i<count; i++){
+			parse(buf.getData(), starts[i]);
+			in.reset(buf.getData(), fieldStart[0], fieldLength[0]);
+			memory.remove(keyDeserializer.deserialize(null));
+		}
+
+		//sort the run by key
+		final int[] order = new int[count];
+		for(int i=0; i<count; i++) order[i] = i;
+		final int[] keyStart = new int[count];
+		final int[] keyLength = new int[count];
+		for(int i=0; i<count; i++){
+			parse(buf.getData(), starts[i]);
+			keyStart[i] = fieldStart[0];
+			keyLength[i] = fieldLength[0];
+		}
+		new QuickSort().sort(new IndexedSortable() {
+			public int compare(int i, int j) {
+				return comparator.compare(buf.getData(), keyStart[order[i]], keyLength[order[i]],
+						buf.getData(), keyStart[order[j]], keyLength[order[j]]);
+			}
+			public void swap(int i, int j) {
+				int t = order[i];
+				order[i] = order[j];
+				order[j] = t;
+			}
+		}, 0, count);
+
+		Run run = newRun();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.file), 64 * 1024));
+		long pos = 0;
+		try {
+			for(int i=0; i<count; i++){
+				int r = order[i];
+				int length = recordLength(buf.getData(), starts[r]);
+				out.write(buf.getData(), starts[r], length);
+				insert(hash(buf.getData(), keyStart[r], keyLength[r]), location(run.id, pos), spris[r]);
+				pos += length;
+			}
+		} finally {
+			out.close();
+		}
+		run.records = count;
+		run.live = count;
+		run.raf = new RandomAccessFile(run.file, "r");
+
+		LOG.info("spilled " + count + " records of priority up to " + cut + " to run " + run.id + " (" + pos + " bytes) in " +
+				(System.currentTimeMillis() - start) + " ms, " + memory.size() + " records in memory, " + spilled + " spilled");
+		compact();
+	}
+
+	private int recordLength(byte[] data, int start) throws IOException {
+		parse(data, start);
+		return fieldStart[3] + fieldLength[3] - start;
+	}
+
+	/**
+	 * delete the runs without live records, rewrite those with less than half
+	 * and merge them all when there are too many
+	 */
+	private void compact() throws IOException {
+		int live = 0;
+		for(int i=0; i<runs.size(); i++){
+			Run run = runs.get(i);
+			if(run == null) continue;
+			if(run.live == 0){
+				drop(run);
+			}else if(run.live * 2 < run.records && run.records >= 1024){
+				rewrite(run);
+				live++;
+			}else{
+				live++;
+			}
+		}
+		if(live > maxRuns) merge();
+	}
+	
+	private void drop(Run run) throws IOException {
+		run.raf.close();
+		run.file.delete();
+		runs.set(runs.indexOf(run), null);
+	}
+	
+	/**
+	 * merge the live records of all the runs into a new run, in key order
+	 */
+	private void merge() throws IOException {
+		long start = System.currentTimeMillis();
+		ArrayList<Run> merged = new ArrayList<Run>();
+		PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(maxRuns + 1, new Comparator<RunReader>() {
+			public int compare(RunReader r1, RunReader r2) {
+				return comparator.compare(r1.data, r1.start[0], r1.length[0], r2.data, r2.start[0], r2.length[0]);
+			}
+		});
+		for(Run run : runs){
+			if(run == null) continue;
+			merged.add(run);
+			RunReader reader = new RunReader(run);
+			if(reader.nextLive()){
+				heap.add(reader);
+			}else{
+				reader.close();
+			}
+		}
+		
+		Run run = newRun();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.file), 64 * 1024));
+		long pos = 0;
+		int count = 0;
+		try {
+			while(!heap.isEmpty()){
+				RunReader reader = heap.poll();
+				out.write(reader.data, 0, reader.size);
+				locs[reader.slot] = location(run.id, pos);
+				pos += reader.size;
+				count++;
+				if(reader.nextLive()){
+					heap.add(reader);
+				}else{
+					reader.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+		run.records = count;
+		run.live = count;
+		run.raf = new RandomAccessFile(run.file, "r");
+		
+		for(Run old : merged){
+			drop(old);
+		}
+		LOG.info("merged " + merged.size() + " runs to run " + run.id + " with " + count + " records in " + 
+				(System.currentTimeMillis() - start) + " ms");
+	}
+
+	private void rewrite(Run old) throws IOException {
+		Run run = newRun();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.file), 64 * 1024));
+		RunReader reader = new RunReader(old);
+		long pos = 0;
+		int count = 0;
+		try {
+			while(reader.nextLive()){
+				out.write(reader.data, 0, reader.size);
+				locs[reader.slot] = location(run.id, pos);
+				pos += reader.size;
+				count++;
+			}
+		} finally {
+			reader.close();
+			out.close();
+		}
+		run.records = count;
+		run.live = count;
+		run.raf = new RandomAccessFile(run.file, "r");
+
+		drop(old);
+		LOG.info("rewrote run " + old.id + " to run " + run.id + " with " + count + " of " + old.records + " records");
+	}
+
+	private Run newRun() throws IOException {
+		int id = runs.size() + 1;
+		Run run = new Run(id, new File(job.getLocalPath(prefix + id + ".run").toUri().getPath()));
+		runs.add(run);
+		return run;
+	}
+
+	private Run run(long loc) {
+		return runs.get((int)(loc >>> OFFSET_BITS) - 1);
+	}
+
+	private static long location(int run, long offset) {
+		return ((long)run << OFFSET_BITS) | offset;
+	}
+
+	//serialize a record, vint lengths of key, priority, iState and cState then the fields
+	private void write(DataOutputBuffer buf, K key, P priority, V iState, V cState) throws IOException {
+		keyOut.reset();
+		keySerializer.serialize(key);
+		fieldOut.reset();
+		priSerializer.serialize(priority);
+		int priLength = fieldOut.getLength();
+		stateSerializer.serialize(iState);
+		int iLength = fieldOut.getLength() - priLength;
+		stateSerializer.serialize(cState);
+		int cLength = fieldOut.getLength() - priLength - iLength;
+
+		WritableUtils.writeVInt(buf, keyOut.getLength());
+		WritableUtils.writeVInt(buf, priLength);
+		WritableUtils.writeVInt(buf, iLength);
+		WritableUtils.writeVInt(buf, cLength);
+		buf.write(keyOut.getData(), 0, keyOut.getLength());
+		buf.write(fieldOut.getData(), 0, fieldOut.getLength());
+	}
+
+	//the field positions of the record at start
+	private void parse(byte[] data, int start) throws IOException {
+		int pos = start;
+		for(int f=0; f<4; f++){
+			fieldLength[f] = WritableComparator.readVInt(data, pos);
+			pos += WritableUtils.decodeVIntSize(data[pos]);
+		}
+		for(int f=0; f<4; f++){
+			fieldStart[f] = pos;
+			pos += fieldLength[f];
+		}
+	}
+
+	//read the spilled record at loc into record
+	private void read(long loc) {
+		try {
+			RandomAccessFile raf = run(loc).raf;
+			raf.seek(loc & ((1L << OFFSET_BITS) - 1));
+			int size = 0;
+			for(int f=0; f<4; f++){
+				fieldLength[f] = WritableUtils.readVInt(raf);
+				size += fieldLength[f];
+			}
+			if(record.length < size) record = new byte[size * 2];
+			raf.readFully(record, 0, size);
+			int pos = 0;
+			for(int f=0; f<4; f++){
+				fieldStart[f] = pos;
+				pos += fieldLength[f];
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("can not read the spilled state table", e);
+		}
+	}
+
+	private void faultIn(int slot, boolean loaded) {
+		if(!loaded) read(locs[slot]);
+		try {
+			in.reset(record, fieldStart[0], fieldLength[0]);
+			K key = keyDeserializer.deserialize(null);
+			in.reset(record, fieldStart[1], fieldLength[1]);
+			P priority = priDeserializer.deserialize(null);
+			in.reset(record, fieldStart[2], fieldLength[2]);
+			V iState = stateDeserializer.deserialize(null);
+			in.reset(record, fieldStart[3], fieldLength[3]);
+			V cState = stateDeserializer.deserialize(null);
+			memory.put(key, priority, iState, cState);
+		} catch (IOException e) {
+			throw new RuntimeException("can not read the spilled state table", e);
+		}
+		remove(slot);
+		faults++;
+	}
+
+	/**
+	 * @return the index slot of the spilled record of key, -1 if it is not spilled
+	 */
+	private int find(K key) {
+		if(spilled == 0) return -1;
+		try {
+			keyOut.reset();
+			keySerializer.serialize(key);
+		} catch (IOException e) {
+			throw new RuntimeException("can not serialize " + key, e);
+		}
+		byte[] k = keyOut.getData();
+		int len = keyOut.getLength();
+		long h = hash(k, 0, len);
+
+		int mask = locs.length - 1;
+		for(int i=(int)h & mask; locs[i] != EMPTY; i=(i+1) & mask){
+			if(locs[i] != DELETED && hashes[i] == h){
+				read(locs[i]);
+				if(WritableComparator.compareBytes(record, fieldStart[0], fieldLength[0], k, 0, len) == 0) return i;
+			}
+		}
+		return -1;
+	}
+
+	private int slotOf(long h, long loc) {
+		int mask = locs.length - 1;
+		for(int i=(int)h & mask; locs[i] != EMPTY; i=(i+1) & mask){
+			if(locs[i] == loc) return i;
+		}
+		return -1;
+	}
+
+	private void insert(long h, long loc, double pri) {
+		if((used + 1) * 2 > locs.length){
+			rehash(spilled * 4 > locs.length ? locs.length * 2 : locs.length);
+		}
+		int mask = locs.length - 1;
+		int i = (int)h & mask;
+		while(locs[i] > EMPTY) i = (i+1) & mask;
+		if(locs[i] == EMPTY) used++;
+		hashes[i] = h;
+		locs[i] = loc;
+		pris[i] = pri;
+		spilled++;
+	}
+
+	private void remove(int slot) {
+		run(locs[slot]).live--;
+		locs[slot] = DELETED;
+		spilled--;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldHashes = hashes;
+		long[] oldLocs = locs;
+		double[] oldPris = pris;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for(int j=0; j<oldLocs.length; j++){
+			if(oldLocs[j] <= EMPTY) continue;
+			int i = (int)oldHashes[j] & mask;
+			while(locs[i] != EMPTY) i = (i+1) & mask;
+			hashes[i] = oldHashes[j];
+			locs[i] = oldLocs[j];
+			pris[i] = oldPris[j];
+			used++;
+		}
+	}
+
+	private void allocate(int capacity) {
+		hashes = new long[capacity];
+		locs = new long[capacity];
+		pris = new double[capacity];
+		used = 0;
+	}
+
+	//64 bit FNV-1a with a final mix
+	private static long hash(byte[] data, int start, int len) {
+		long h = 0xcbf29ce484222325L;
+		for(int i=start; i<start+len; i++){
+			h ^= data[i];
+			h *= 0x100000001b3L;
+		}
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		return h;
+	}
+
+	/**
+	 * sequential reader of a run
+	 */
+	private class RunReader {
+		private final Run run;
+		private final DataInputStream stream;
+		private long pos = 0;
+		byte[] data = new byte[1024];
+		final int[] start = new int[4];
+		final int[] length = new int[4];
+		int size;
+		long loc;
+		int slot;
+
+		RunReader(Run run) throws IOException {
+			this.run = run;
+			this.stream = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), 64 * 1024));
+		}
+
+		boolean next() throws IOException {
+			int header = 0;
+			int body = 0;
+			try {
+				length[0] = WritableUtils.readVInt(stream);
+			} catch (EOFException e) {
+				return false;
+			}
+			for(int f=1; f<4; f++){
+				length[f] = WritableUtils.readVInt(stream);
+			}
+			for(int f=0; f<4; f++){
+				header += WritableUtils.getVIntSize(length[f]);
+				body += length[f];
+			}
+			size = header + body;
+			if(data.length < size) data = new byte[size * 2];
+
+			int p = 0;
+			for(int f=0; f<4; f++){
+				p = ActivationQueue.writeVInt(data, p, length[f]);
+			}
+			stream.readFully(data, header, body);
+			for(int f=0; f<4; f++){
+				start[f] = p;
+				p += length[f];
+			}
+			loc = location(run.id, pos);
+			pos += size;
+			return true;
+		}
+
+		/**
+		 * move to the next record still indexed at its location
+		 */
+		boolean nextLive() throws IOException {
+			while(next()){
+				slot = slotOf(hash(data, start[0], length[0]), loc);
+				if(slot >= 0) return true;
+			}
+			return false;
+		}
+		
+		void close() throws IOException {
+			stream.close();
+		}
+	}
+}
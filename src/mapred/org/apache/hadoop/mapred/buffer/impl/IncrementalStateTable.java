@@ -0,0 +1,28 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import org.apache.hadoop.io.Valueable;
+
+/**
+ * A StateTable that remembers which records changed since the last call of
+ * clearChanges, so a checkpoint only has to persist those records.
+ */
+public interface IncrementalStateTable<K, P extends Valueable, V extends Valueable> extends StateTable<K, P, V> {
+
+	/**
+	 * start tracking changes, every record counts as changed at first
+	 */
+	void trackChanges();
+
+	/**
+	 * @return the number of records changed since the last clearChanges, or -1
+	 * if trackChanges was not called
+	 */
+	int changedSize();
+
+	/**
+	 * cursor over the records changed since the last clearChanges
+	 */
+	StateTableIterator<K, P, V> changedIterator();
+
+	void clearChanges();
+}
@@ -0,0 +1,34 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import org.apache.hadoop.io.Valueable;
+
+/**
+ * A StateTable that can index the records whose priority is above a bound,
+ * updating the index on every priority change, so the top k records are taken
+ * in O(k log N) instead of scanning the table.
+ */
+public interface IndexedStateTable<K, P extends Valueable, V extends Valueable> extends StateTable<K, P, V> {
+
+	/**
+	 * start indexing the records with priority higher than the given one
+	 */
+	void indexAbove(P priority);
+
+	/**
+	 * @return the number of indexed records, or -1 if indexAbove was not called
+	 */
+	int activeSize();
+
+	/**
+	 * @return the highest indexed priority, or Double.NEGATIVE_INFINITY if no
+	 * record is indexed
+	 */
+	double topPriority();
+
+	/**
+	 * cursor visiting the indexed records from the highest priority down. A
+	 * visited record is taken out of the index, setting its priority puts it
+	 * back if the priority is still above the bound.
+	 */
+	StateTableIterator<K, P, V> topIterator();
+}
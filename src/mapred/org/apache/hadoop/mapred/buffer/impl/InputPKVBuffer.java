@@ -1,22 +1,25 @@
 package org.apache.hadoop.mapred.buffer.impl;
 
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
-import org.apache.hadoop.io.DoubleWritable;
-import org.apache.hadoop.io.FloatWritable;
-import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.mapred.IFile;
@@ -28,6 +31,27 @@ import org.apache.hadoop.mapred.buffer.BufferUmbilicalProtocol;
 import org.apache.hadoop.mapred.buffer.OutputFile;
 import org.apache.hadoop.util.Progress;
 
+/**
+ * The activation queue of a map in a prioritized iteration. Records received from
+ * the reduces stay serialized in an ActivationQueue, next() deserializes the head
+ * record into a key and a value instance that are reused for every record, so an
+ * activator must not keep them after activate returns.
+ *
+ * The sink handler (read) and init are the producers, they are serialized by the
+ * lock of this buffer, the map loop (next) is the single consumer and takes no
+ * lock of the buffer. The hand-off is not concurrent though: the sink handler
+ * reads while it holds the task and the map loop activates while it holds the
+ * task, so records are appended only while the map waits. The queue saves the
+ * per record lock and objects, not the wait.
+ *
+ * With priter.exequeue.persist every batch read from a reduce is also written,
+ * as it was received, to a file of the execution queue by a background thread.
+ * When the map drained the queue the files of the batches it activated are
+ * deleted, so the files hold the pending activations. A map attempt restarted
+ * without a rollback loads them straight into the queue instead of starting
+ * over, see loadExeQueue. A rollback drops them, the reduces replay from the
+ * checkpoint then.
+ */
 public class InputPKVBuffer<K extends Object, V extends Object> implements
 		InputCollector<K, V> {
 
@@ -43,8 +67,141 @@ public class InputPKVBuffer<K extends Object, V extends Object> implements
 	private Deserializer keyDeserializer;	
 	private Deserializer valDeserializer;	
 	private JobConf job;
-	private Queue<KVRecord<K, V>> recordsQueue = null;
+	private ActivationQueue queue;
+	private DataInputBuffer keyIn = new DataInputBuffer();
+	private DataInputBuffer valIn = new DataInputBuffer();
+	private DataOutputBuffer initBuffer = new DataOutputBuffer();
+	private boolean bMemTrans = false;
+	private boolean readMapped = false;
 	public String exeQueueFile;
+	
+	//persistence of the execution queue, null if it is off
+	private ExeQueueWriter persister = null;
+	private int batches = 0;
+	private long appended = 0;
+	private volatile long consumed = 0;
+	
+	/**
+	 * a batch of records to write to file seq, or with no data a request to
+	 * delete the files whose records were all consumed
+	 */
+	private static class ExeQueueBatch {
+		final int seq;
+		final int iteration;
+		final int count;
+		final DataOutputBuffer data;
+		final long end;
+		
+		ExeQueueBatch(int seq, int iteration, int count, DataOutputBuffer data, long end) {
+			this.seq = seq;
+			this.iteration = iteration;
+			this.count = count;
+			this.data = data;
+			this.end = end;
+		}
+	}
+	
+	/**
+	 * writes the batches to exeQueueFile-seq as the iteration, the record count
+	 * and the records in the queue format (vint key length, vint value length,
+	 * key and value bytes of the job serializers). A file is written to a
+	 * temporary name and renamed, a loaded file is always complete.
+	 */
+	private class ExeQueueWriter extends Thread {
+		private final BlockingQueue<ExeQueueBatch> pending;
+		//written batches not consumed yet, by seq. The writer thread adds and
+		//deletes them, loadExeQueue adds the loaded ones, all under its lock
+		private final List<ExeQueueBatch> written = new ArrayList<ExeQueueBatch>();
+		
+		ExeQueueWriter(int capacity) {
+			this.pending = new ArrayBlockingQueue<ExeQueueBatch>(capacity);
+			setName("ExeQueueWriter");
+			setDaemon(true);
+		}
+		
+		void add(ExeQueueBatch batch) throws IOException {
+			try {
+				pending.put(batch);
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted persisting the execution queue");
+			}
+		}
+		
+		public void run() {
+			try {
+				while(true){
+					ExeQueueBatch batch = pending.take();
+					try {
+						if(batch.data == null){
+							delete(batch.end);
+						}else{
+							write(batch);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+						LOG.error("can not persist the execution queue: " + e);
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		
+		private void write(ExeQueueBatch batch) throws IOException {
+			Path file = new Path(exeQueueFile + "-" + batch.seq);
+			Path tmp = new Path(exeQueueFile + "-" + batch.seq + ".tmp");
+			FSDataOutputStream out = hdfs.create(tmp, true);
+			try {
+				out.writeInt(batch.iteration);
+				out.writeInt(batch.count);
+				out.write(batch.data.getData(), 0, batch.data.getLength());
+			} finally {
+				out.close();
+			}
+			hdfs.delete(file, false);
+			if(!hdfs.rename(tmp, file)){
+				throw new IOException("can not rename " + tmp + " to " + file);
+			}
+			synchronized(written){
+				written.add(new ExeQueueBatch(batch.seq, batch.iteration, batch.count, null, batch.end));
+			}
+		}
+		
+		void loaded(ExeQueueBatch batch) {
+			synchronized(written){
+				written.add(batch);
+			}
+		}
+		
+		private void delete(long consumed) throws IOException {
+			if(consumed == Long.MAX_VALUE){
+				//dropped, also the files of a previous attempt
+				Path exeQueue = new Path(exeQueueFile);
+				FileStatus[] files = hdfs.listStatus(exeQueue.getParent());
+				if(files != null){
+					for(FileStatus file : files){
+						if(file.getPath().getName().startsWith(exeQueue.getName() + "-")){
+							hdfs.delete(file.getPath(), false);
+						}
+					}
+				}
+				synchronized(written){
+					written.clear();
+				}
+				return;
+			}
+			
+			synchronized(written){
+				Iterator<ExeQueueBatch> it = written.iterator();
+				while(it.hasNext()){
+					ExeQueueBatch batch = it.next();
+					if(batch.end > consumed) break;
+					hdfs.delete(new Path(exeQueueFile + "-" + batch.seq), false);
+					it.remove();
+				}
+			}
+		}
+	}
 
 	public InputPKVBuffer(BufferUmbilicalProtocol umbilical, Task task, JobConf job, 
 			Reporter reporter, Progress progress, Class<K> keyClass, Class<V> valClass) throws IOException{	
@@ -57,18 +214,33 @@ public class InputPKVBuffer<K extends Object, V extends Object> implements
 		this.keyClass = keyClass;
 		this.valClass = valClass;
 		SerializationFactory serializationFactory = new SerializationFactory(job);
-	    this.keyDeserializer = serializationFactory.getDeserializer(IntWritable.class);
+	    this.keyDeserializer = serializationFactory.getDeserializer(keyClass);
 	    this.valDeserializer = serializationFactory.getDeserializer(valClass);
+	    this.keyDeserializer.open(keyIn);
+	    this.valDeserializer.open(valIn);
 	    
-	    this.recordsQueue = new LinkedList<KVRecord<K, V>>();
+	    this.queue = new ActivationQueue(job.getInt("priter.activation.queue.chunk", 1 << 16));
+	    this.bMemTrans = job.getBoolean("priter.transfer.mem", false);
 	    this.exeQueueFile = job.get("mapred.output.dir") + "/_ExeQueueTemp/" + 
 	    					task.getTaskID().getTaskID().getId() + "-exequeue";
+	    
+	    if(job.getBoolean("priter.exequeue.persist", false)){
+	    	if(job.getBoolean("priter.pipeline", false)){
+	    		//the pipelined chunks of a pass are already applied when the map restarts
+	    		LOG.warn("priter.exequeue.persist is ignored with priter.pipeline");
+	    	}else{
+	    		this.persister = new ExeQueueWriter(job.getInt("priter.exequeue.persist.pending", 4));
+	    		this.persister.start();
+	    	}
+	    }
 	}
 	
 	@Override
 	public void close() {
-		// TODO Auto-generated method stub
-
+		if(persister != null){
+			persister.interrupt();
+			persister = null;
+		}
 	}
 
 	@Override
@@ -78,116 +250,222 @@ public class InputPKVBuffer<K extends Object, V extends Object> implements
 	}
 	
 	@Override
-	public void free() {
-		this.recordsQueue.clear();
-		this.savedKey = null;
-		this.savedValue = null;
+	public synchronized void free() {
+		this.queue.clear();
 	}
 
 	//should be called in user-defined IterativeMapper.initPKVBuffer()
 	public synchronized void init(K key, V value) throws IOException {
-		synchronized(this.recordsQueue){
-			KVRecord<K, V> rec = new KVRecord<K, V>(key, value);
-			this.recordsQueue.add(rec);
-		}
+		enqueue((Writable)key, (Writable)value);
+	}
+	
+	private void enqueue(Writable key, Writable value) throws IOException {
+		initBuffer.reset();
+		key.write(initBuffer);
+		int keyLen = initBuffer.getLength();
+		value.write(initBuffer);
+		this.queue.append(initBuffer.getData(), 0, keyLen, 
+				initBuffer.getData(), keyLen, initBuffer.getLength() - keyLen);
 	}
 	
-	//load execution queue, for load balancing and fault tolerance, maybe not useful
+	/**
+	 * load the execution queue persisted by a previous attempt of this map
+	 * @return the number of loaded records, 0 if there is none or the queue is
+	 * not persisted
+	 */
 	public synchronized int loadExeQueue() throws IOException{
-		FSDataInputStream istream = hdfs.open(new Path(exeQueueFile));
-		BufferedReader reader = new BufferedReader(new InputStreamReader(istream));
+		if(persister == null) return 0;
+		
+		Path exeQueue = new Path(exeQueueFile);
+		FileStatus[] files = hdfs.listStatus(exeQueue.getParent());
+		if(files == null) return 0;
+		
+		String prefix = exeQueue.getName() + "-";
+		int[] seqs = new int[files.length];
+		int n = 0;
+		for(FileStatus file : files){
+			String name = file.getPath().getName();
+			if(!name.startsWith(prefix) || name.endsWith(".tmp")) continue;
+			try {
+				seqs[n++] = Integer.parseInt(name.substring(prefix.length()));
+			} catch (NumberFormatException e) {
+				LOG.warn("not an execution queue file " + file.getPath());
+			}
+		}
+		Arrays.sort(seqs, 0, n);
 		
 		int count = 0;
-		while(reader.ready()){
-			String line = reader.readLine();
-			String[] field = line.split("\t", 4);
+		DataInputBuffer in = new DataInputBuffer();
+		for(int i=0; i<n; i++){
+			Path file = new Path(exeQueueFile + "-" + seqs[i]);
+			FSDataInputStream fin = hdfs.open(file);
+			DataOutputBuffer data = new DataOutputBuffer();
+			int iter;
+			int records;
+			try {
+				iter = fin.readInt();
+				records = fin.readInt();
+				byte[] buf = new byte[64 * 1024];
+				int len;
+				while((len = fin.read(buf)) > 0){
+					data.write(buf, 0, len);
+				}
+			} finally {
+				fin.close();
+			}
 			
-			Writable key;
-			if(keyClass == IntWritable.class){
-				key = new IntWritable(Integer.parseInt(field[1]));
-			}else if(valClass == DoubleWritable.class){
-				key = new DoubleWritable(Double.parseDouble((field[1])));
-			}else if(valClass == FloatWritable.class){
-				key = new FloatWritable(Float.parseFloat((field[1])));
-			}else{
-				throw new IOException(keyClass + " not type matched for key class");
+			byte[] bytes = data.getData();
+			in.reset(bytes, data.getLength());
+			int loaded = 0;
+			while(in.getPosition() < data.getLength()){
+				int keyLen = WritableUtils.readVInt(in);
+				int valLen = WritableUtils.readVInt(in);
+				int pos = in.getPosition();
+				if(pos + keyLen + valLen > data.getLength()){
+					throw new IOException(file + " is truncated");
+				}
+				this.queue.append(bytes, pos, keyLen, bytes, pos + keyLen, valLen);
+				in.skip(keyLen + valLen);
+				loaded++;
 			}
-
-			if(valClass == IntWritable.class){
-				IntWritable val = new IntWritable(Integer.parseInt(field[1]));
-				this.recordsQueue.add(new KVRecord(key, val));
-			}else if(valClass == DoubleWritable.class){
-				DoubleWritable val = new DoubleWritable(Double.parseDouble((field[1])));
-				this.recordsQueue.add(new KVRecord(key, val));
-			}else if(valClass == FloatWritable.class){
-				FloatWritable val = new FloatWritable(Float.parseFloat((field[1])));
-				this.recordsQueue.add(new KVRecord(key, val));
-			}else{
-				throw new IOException(valClass + " not type matched for value class");
+			if(loaded != records){
+				throw new IOException(file + " has " + loaded + " records, " + records + " expected");
 			}
-			count++;
+			
+			//the file is kept until the loaded records are activated
+			this.appended += loaded;
+			persister.loaded(new ExeQueueBatch(seqs[i], iter, loaded, null, this.appended));
+			this.batches = seqs[i] + 1;
+			this.iteration = Math.max(this.iteration, iter);
+			count += loaded;
 		}
-		
-		reader.close();		
+		LOG.info("loaded " + count + " records of " + n + " execution queue files, iteration " + this.iteration);
 		return count;
 	}
 	
+	/**
+	 * the map activated all the queued records, the files of the persisted
+	 * batches are not needed anymore
+	 */
+	public void drained() throws IOException {
+		if(persister != null){
+			persister.add(new ExeQueueBatch(-1, -1, 0, null, consumed));
+		}
+	}
+	
+	/**
+	 * drop the persisted execution queue, after a rollback
+	 */
+	public void dropExeQueue() throws IOException {
+		if(persister != null){
+			persister.add(new ExeQueueBatch(-1, -1, 0, null, Long.MAX_VALUE));
+		}
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Override
 	public synchronized boolean read(DataInputStream istream, OutputFile.Header header)
 			throws IOException {	
+		//with the in-memory transfer the co-located reduce only sends the path of its spill
+		Path mapped = null;
+		if(this.bMemTrans && istream.readBoolean()){
+			mapped = new Path(WritableUtils.readString(istream));
+		}
+		this.readMapped = (mapped != null);
+		
 		if(this.iteration <= ((OutputFile.PKVBufferHeader)header).iteration()){
-			synchronized(this.recordsQueue){
-				long start = System.currentTimeMillis();
-				this.iteration = ((OutputFile.PKVBufferHeader)header).iteration();
-				
-				IFile.Reader reader = new IFile.Reader(job, istream, header.compressed(), null, null);
-				DataInputBuffer key = new DataInputBuffer();
-				DataInputBuffer value = new DataInputBuffer();
-				
-				while (reader.next(key, value)) {
-					keyDeserializer.open(key);
-					valDeserializer.open(value);
-					Object keyObject = null;
-					Object valObject = null;
-					keyObject = keyDeserializer.deserialize(keyObject);
-					valObject = valDeserializer.deserialize(valObject);
-
-					this.recordsQueue.add(new KVRecord<K, V>((K)keyObject, (V)valObject));
+			long start = System.currentTimeMillis();
+			this.iteration = ((OutputFile.PKVBufferHeader)header).iteration();
+			
+			DataInputStream in = (mapped == null) ? istream : MappedSpillFile.open(mapped, header.compressed());
+			IFile.Reader reader = new IFile.Reader(job, in, header.compressed(), null, null);
+			DataInputBuffer key = new DataInputBuffer();
+			DataInputBuffer value = new DataInputBuffer();
+			
+			//records are queued as they are, they are deserialized by next()
+			DataOutputBuffer batch = (persister == null) ? null : new DataOutputBuffer();
+			int count = 0;
+			while (reader.next(key, value)) {
+				int keyLen = key.getLength() - key.getPosition();
+				int valLen = value.getLength() - value.getPosition();
+				this.queue.append(key.getData(), key.getPosition(), keyLen, 
+						value.getData(), value.getPosition(), valLen);
+				if(batch != null){
+					WritableUtils.writeVInt(batch, keyLen);
+					WritableUtils.writeVInt(batch, valLen);
+					batch.write(key.getData(), key.getPosition(), keyLen);
+					batch.write(value.getData(), value.getPosition(), valLen);
 				}
-				
-				long end = System.currentTimeMillis();
-				LOG.info("map read use time " + (end-start));
-				this.notifyAll();			//notify MapTask's pkvBuffer.wait()				
-				return true;
+				count++;
+			}
+			//the map is done with the spill of the co-located reduce
+			if(mapped != null) in.close();
+			if(batch != null){
+				this.appended += count;
+				persister.add(new ExeQueueBatch(batches++, this.iteration, count, batch, this.appended));
 			}
+			
+			long end = System.currentTimeMillis();
+			LOG.info("map read " + count + " records use time " + (end-start));
+			this.notifyAll();			//notify MapTask's pkvBuffer.wait()				
+			return true;
 		}
 		
 		return false;
 	}
 
+	/**
+	 * @return true if the last read got the path of a spill of the co-located
+	 * reduce, which then waits for an ack before it deletes the spill
+	 */
+	public synchronized boolean readMapped() {
+		return this.readMapped;
+	}
+
 	public OutputFile.Header getRecentHeader() {
 		return this.savedHeader;
 	}
 
-	public synchronized boolean next() {
-		//LOG.info("doing next, for map . size is " + this.recordsQueue.size());
-		synchronized(this.recordsQueue){
-			KVRecord<K, V> record = this.recordsQueue.poll();
-			if(record == null){
-				this.recordsQueue.clear();
-				this.recordsQueue.notifyAll();
-				return false;
-			}
-			else{
-				this.savedKey = record.k;
-				this.savedValue = record.v;
-				return true;
-			}
+	public boolean next() {
+		if(!this.queue.poll(keyIn, valIn)){
+			return false;
+		}
+		consumed++;
+		
+		try {
+			this.savedKey = (K) keyDeserializer.deserialize(this.savedKey);
+			this.savedValue = (V) valDeserializer.deserialize(this.savedValue);
+		} catch (IOException e) {
+			throw new RuntimeException("can not deserialize the activation queue", e);
 		}
+		return true;
 	}
 	
 	
+	/**
+	 * @return an empty batch for nextBatch, for the parallel activation
+	 */
+	public ActivationBatch<K, V> newBatch() throws IOException {
+		SerializationFactory serializationFactory = new SerializationFactory(job);
+		return new ActivationBatch<K, V>(serializationFactory.getDeserializer(keyClass), 
+				serializationFactory.getDeserializer(valClass), job.getInt("priter.activation.queue.chunk", 1 << 16));
+	}
+	
+	/**
+	 * move up to max records to batch, from the consumer thread like next()
+	 * @return the number of records moved
+	 */
+	public int nextBatch(ActivationBatch<K, V> batch, int max) {
+		int count = 0;
+		while(count < max && this.queue.poll(keyIn, valIn)){
+			batch.queue.append(keyIn.getData(), keyIn.getPosition(), keyIn.getLength() - keyIn.getPosition(), 
+					valIn.getData(), valIn.getPosition(), valIn.getLength() - valIn.getPosition());
+			count++;
+		}
+		consumed += count;
+		return count;
+	}
+	
 	public K getTopKey() {
 		return this.savedKey;
 	}
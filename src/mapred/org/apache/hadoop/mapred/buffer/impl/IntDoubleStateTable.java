@@ -0,0 +1,84 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.nio.DoubleBuffer;
+
+import org.apache.hadoop.io.DoubleWritable;
+
+/**
+ * Primitive state table for IntWritable keys with DoubleWritable priority and
+ * state, 28 bytes per slot.
+ */
+public class IntDoubleStateTable extends NumericStateTable<DoubleWritable, DoubleWritable> {
+
+	private DoubleBuffer pris;
+	private DoubleBuffer iStates;
+	private DoubleBuffer cStates;
+	private DoubleBuffer[] old;
+
+	@Override
+	public double getPriority(int slot) {
+		return pris.get(slot);
+	}
+
+	@Override
+	public double getiState(int slot) {
+		return iStates.get(slot);
+	}
+
+	@Override
+	public double getcState(int slot) {
+		return cStates.get(slot);
+	}
+
+	@Override
+	protected void putPriority(int slot, double priority) {
+		pris.put(slot, priority);
+	}
+
+	@Override
+	protected void putiState(int slot, double iState) {
+		iStates.put(slot, iState);
+	}
+
+	@Override
+	protected void putcState(int slot, double cState) {
+		cStates.put(slot, cState);
+	}
+
+	@Override
+	protected void allocateValues(int cap) {
+		old = new DoubleBuffer[]{pris, iStates, cStates};
+		pris = newDoubleBuffer(cap);
+		iStates = newDoubleBuffer(cap);
+		cStates = newDoubleBuffer(cap);
+	}
+
+	@Override
+	protected void moveValues(int from, int to) {
+		pris.put(to, old[0].get(from));
+		iStates.put(to, old[1].get(from));
+		cStates.put(to, old[2].get(from));
+	}
+
+	@Override
+	protected void releaseValues() {
+		old = null;
+	}
+
+	@Override
+	protected int valueBytes() {
+		return 24;
+	}
+
+	@Override
+	protected DoubleWritable priority(DoubleWritable reuse, double v) {
+		return value(reuse, v);
+	}
+
+	@Override
+	protected DoubleWritable value(DoubleWritable reuse, double v) {
+		if(reuse == null) return new DoubleWritable(v);
+		reuse.set(v);
+		return reuse;
+	}
+}
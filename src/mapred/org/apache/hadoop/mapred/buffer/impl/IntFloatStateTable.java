@@ -0,0 +1,84 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.nio.FloatBuffer;
+
+import org.apache.hadoop.io.FloatWritable;
+
+/**
+ * Primitive state table for IntWritable keys with FloatWritable priority and
+ * state, 16 bytes per slot.
+ */
+public class IntFloatStateTable extends NumericStateTable<FloatWritable, FloatWritable> {
+
+	private FloatBuffer pris;
+	private FloatBuffer iStates;
+	private FloatBuffer cStates;
+	private FloatBuffer[] old;
+
+	@Override
+	public double getPriority(int slot) {
+		return pris.get(slot);
+	}
+
+	@Override
+	public double getiState(int slot) {
+		return iStates.get(slot);
+	}
+
+	@Override
+	public double getcState(int slot) {
+		return cStates.get(slot);
+	}
+
+	@Override
+	protected void putPriority(int slot, double priority) {
+		pris.put(slot, (float)priority);
+	}
+
+	@Override
+	protected void putiState(int slot, double iState) {
+		iStates.put(slot, (float)iState);
+	}
+
+	@Override
+	protected void putcState(int slot, double cState) {
+		cStates.put(slot, (float)cState);
+	}
+
+	@Override
+	protected void allocateValues(int cap) {
+		old = new FloatBuffer[]{pris, iStates, cStates};
+		pris = newFloatBuffer(cap);
+		iStates = newFloatBuffer(cap);
+		cStates = newFloatBuffer(cap);
+	}
+
+	@Override
+	protected void moveValues(int from, int to) {
+		pris.put(to, old[0].get(from));
+		iStates.put(to, old[1].get(from));
+		cStates.put(to, old[2].get(from));
+	}
+
+	@Override
+	protected void releaseValues() {
+		old = null;
+	}
+
+	@Override
+	protected int valueBytes() {
+		return 12;
+	}
+
+	@Override
+	protected FloatWritable priority(FloatWritable reuse, double v) {
+		return value(reuse, v);
+	}
+
+	@Override
+	protected FloatWritable value(FloatWritable reuse, double v) {
+		if(reuse == null) return new FloatWritable((float)v);
+		reuse.set((float)v);
+		return reuse;
+	}
+}
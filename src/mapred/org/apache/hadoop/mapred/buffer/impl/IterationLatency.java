@@ -0,0 +1,68 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Splits the wall time of a task into the stages of the iteration it is in
+ * and keeps each stage as a counter, so the job counters show where the time
+ * of a reduce->map->reduce round goes. lap(stage) charges the time since the
+ * previous lap to the stage, iterated() ends the iteration and logs its
+ * breakdown.
+ *
+ * The time between registering an output with the buffer manager and the
+ * other side receiving it is not seen by the tasks, the manager reports it as
+ * the bufferDispatch metrics record of the TaskTracker.
+ */
+public class IterationLatency {
+	private static final Log LOG = LogFactory.getLog(IterationLatency.class.getName());
+
+	public static enum Counter {
+		ITERATIONS,
+		MAP_WAIT_MILLIS,
+		MAP_ACTIVATE_MILLIS,
+		MAP_FLUSH_MILLIS,
+		REDUCE_WAIT_MILLIS,
+		REDUCE_UPDATE_MILLIS,
+		REDUCE_EXTRACT_MILLIS
+	}
+
+	private final Reporter reporter;
+	private long last = System.currentTimeMillis();
+	private long[] iteration = new long[Counter.values().length];
+	private int iterations = 0;
+
+	public IterationLatency(Reporter reporter) {
+		this.reporter = reporter;
+	}
+
+	/**
+	 * charge the millis since the last lap to the stage
+	 * @return the charged millis
+	 */
+	public long lap(Counter stage) {
+		long now = System.currentTimeMillis();
+		long millis = Math.max(now - last, 0);
+		last = now;
+		iteration[stage.ordinal()] += millis;
+		if(reporter != null && millis > 0) reporter.incrCounter(stage, millis);
+		return millis;
+	}
+
+	/**
+	 * the iteration is over, log what it spent in each stage
+	 */
+	public void iterated() {
+		iterations++;
+		if(reporter != null) reporter.incrCounter(Counter.ITERATIONS, 1);
+		if(LOG.isDebugEnabled()){
+			StringBuilder sb = new StringBuilder("iteration " + iterations + " latency:");
+			for(Counter c : Counter.values()){
+				if(iteration[c.ordinal()] > 0) sb.append(" " + c + "=" + iteration[c.ordinal()]);
+			}
+			LOG.debug(sb.toString());
+		}
+		for(int i=0; i<iteration.length; i++) iteration[i] = 0;
+	}
+}
@@ -2,6 +2,7 @@ package org.apache.hadoop.mapred.buffer.impl;
 
 import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -24,6 +25,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.compress.CompressionCodec;
@@ -45,6 +47,7 @@ import org.apache.hadoop.mapred.IFile.Writer;
 import org.apache.hadoop.mapred.Merger.MergeQueue;
 import org.apache.hadoop.mapred.Merger.Segment;
 import org.apache.hadoop.mapred.buffer.OutputFile;
+import org.apache.hadoop.mapred.buffer.net.ChannelDataInputStream;
 import org.apache.hadoop.metrics.MetricsContext;
 import org.apache.hadoop.metrics.MetricsRecord;
 import org.apache.hadoop.metrics.MetricsUtil;
@@ -316,6 +319,12 @@ extends Buffer<K, V> implements InputCollector<K, V> {
 	private FileSystem localFileSys;
 	
 	private FileSystem rfs;
+	
+	/* Move the inputs written to disk from the socket into the file directly. */
+	private boolean directRead;
+	
+	/* Copy buffer of the inputs written to disk otherwise. */
+	private byte[] copyBuffer = new byte[64 * 1024];
 
 	/* Number of files to merge at a time */
 	private int ioSortFactor;
@@ -412,6 +421,7 @@ extends Buffer<K, V> implements InputCollector<K, V> {
 
     	this.localFileSys = FileSystem.getLocal(conf);
     	this.rfs = ((LocalFileSystem)this.localFileSys).getRaw();
+    	this.directRead = conf.getBoolean("priter.transfer.zerocopy", true) && this.rfs instanceof RawLocalFileSystem;
 
     	//start the on-disk-merge thread
     	localFSMergerThread = new LocalFSMerger((LocalFileSystem)localFileSys, conf);
@@ -710,20 +720,31 @@ extends Buffer<K, V> implements InputCollector<K, V> {
 
 		// Copy data to local-disk
 		OutputStream outs = null;
-		int bytesRead = 0;
+		long bytesRead = 0;
 		try {
-			outs = rfs.create(filename);
-
-			byte[] buf = new byte[64 * 1024];
-			int n = ins.read(buf, 0, (int) Math.min(buf.length, mapOutputLength));
-			while (n > 0) {
-				bytesRead += n;
-				shuffleClientMetrics.inputBytes(n);
-				outs.write(buf, 0, n);
-
-				// indicate we're making progress
+			if (directRead && ins instanceof ChannelDataInputStream) {
+				rfs.mkdirs(filename.getParent());
+				FileOutputStream fos = new FileOutputStream(((RawLocalFileSystem) rfs).pathToFile(filename));
+				outs = fos;
+				((ChannelDataInputStream) ins).readFully(fos.getChannel(), 0, mapOutputLength);
+				bytesRead = mapOutputLength;
+				shuffleClientMetrics.inputBytes(mapOutputLength);
 				reporter.progress();
-				n = ins.read(buf, 0, (int) Math.min(buf.length, mapOutputLength - bytesRead));
+			}
+			else {
+				outs = rfs.create(filename);
+
+				byte[] buf = copyBuffer;
+				int n = ins.read(buf, 0, (int) Math.min(buf.length, mapOutputLength));
+				while (n > 0) {
+					bytesRead += n;
+					shuffleClientMetrics.inputBytes(n);
+					outs.write(buf, 0, n);
+
+					// indicate we're making progress
+					reporter.progress();
+					n = ins.read(buf, 0, (int) Math.min(buf.length, mapOutputLength - bytesRead));
+				}
 			}
 
 			LOG.info("Read " + bytesRead + " bytes from map-output for " + taskid);
@@ -886,8 +907,9 @@ extends Buffer<K, V> implements InputCollector<K, V> {
 				diskSegments.add(new Segment<K, V>(job, fs, file, codec, false));
 			}
 
-			//if it is file-based priter, add old istate file
-			if(conf.getBoolean("priter.job", false) && !conf.getBoolean("priter.job.inmem", true)){
+			//if it is file-based priter, add old istate file, the paged state table supplies it per key
+			if(conf.getBoolean("priter.job", false) && !conf.getBoolean("priter.job.inmem", true)
+					&& !conf.getBoolean("priter.statetable.paged", false)){
 				Path iStatefile = outputHandle.getiStateFile(task.getTaskID());
 
 				onDiskBytes += fs.getFileStatus(iStatefile).getLen();
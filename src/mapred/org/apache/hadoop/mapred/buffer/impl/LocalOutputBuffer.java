@@ -0,0 +1,105 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Getable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.DeltaCombiner;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Map output of one activation thread, created by UnSortOutputBuffer.newLocalBuffer.
+ * The records stay in the thread, serialized per partition or, with a delta
+ * combiner, combined per partition, until UnSortOutputBuffer.merge moves them
+ * into the collection buffer. Not thread safe, each thread has its own.
+ */
+public class LocalOutputBuffer<K extends Object, V extends Object> implements OutputCollector<K, V> {
+
+	private final int partitions;
+	private final Partitioner<K, V> partitioner;
+	final DeltaAggregate[] aggregates;
+	final DataOutputBuffer[] records;
+
+	private DataOutputBuffer scratch;
+	private Serializer<K> keySerializer;
+	private Serializer<V> valSerializer;
+
+	LocalOutputBuffer(JobConf job, Class<K> keyClass, Class<V> valClass, int partitions,
+			DeltaCombiner deltaCombiner) throws IOException {
+		this.partitions = partitions;
+		this.partitioner = (Partitioner<K, V>) ReflectionUtils.newInstance(job.getPartitionerClass(), job);
+
+		if(deltaCombiner != null){
+			this.aggregates = new DeltaAggregate[partitions];
+			this.records = null;
+			int expected = job.getInt("priter.combiner.capacity", 1024);
+			for(int i=0; i<partitions; i++){
+				aggregates[i] = new DeltaAggregate(deltaCombiner, valClass, expected);
+			}
+		}else{
+			this.aggregates = null;
+			this.records = new DataOutputBuffer[partitions];
+			for(int i=0; i<partitions; i++){
+				records[i] = new DataOutputBuffer();
+			}
+
+			SerializationFactory serializationFactory = new SerializationFactory(job);
+			this.scratch = new DataOutputBuffer();
+			this.keySerializer = serializationFactory.getSerializer(keyClass);
+			this.keySerializer.open(scratch);
+			this.valSerializer = serializationFactory.getSerializer(valClass);
+			this.valSerializer.open(scratch);
+		}
+	}
+
+	@Override
+	public void collect(K key, V value) throws IOException {
+		int partition = partitioner.getPartition(key, value, partitions);
+		if (partition < 0 || partition >= partitions) {
+			throw new IOException("Illegal partition for " + key + " (" + partition + ")");
+		}
+
+		if(aggregates != null){
+			aggregates[partition].add(((IntWritable)key).get(), ((Getable)value).getV());
+			return;
+		}
+
+		//vint key length, vint value length, key, value
+		scratch.reset();
+		keySerializer.serialize(key);
+		int keyLen = scratch.getLength();
+		valSerializer.serialize(value);
+		DataOutputBuffer out = records[partition];
+		WritableUtils.writeVInt(out, keyLen);
+		WritableUtils.writeVInt(out, scratch.getLength() - keyLen);
+		out.write(scratch.getData(), 0, scratch.getLength());
+	}
+
+	/**
+	 * point key and value to the next record of partition in in, which is reset
+	 * to the records of the partition by reset(partition, in)
+	 * @return false if there are no more records
+	 */
+	boolean next(DataInputBuffer in, DataInputBuffer key, DataInputBuffer value) throws IOException {
+		if(in.getPosition() >= in.getLength()) return false;
+		int keyLen = WritableUtils.readVInt(in);
+		int valLen = WritableUtils.readVInt(in);
+		int pos = in.getPosition();
+		key.reset(in.getData(), pos, keyLen);
+		value.reset(in.getData(), pos + keyLen, valLen);
+		in.skip(keyLen + valLen);
+		return true;
+	}
+
+	void reset(int partition, DataInputBuffer in) {
+		in.reset(records[partition].getData(), records[partition].getLength());
+	}
+}
@@ -0,0 +1,206 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Spill files of the in-memory transfer (priter.transfer.mem) between a reduce
+ * and the map of the same partition, which PrIterTaskScheduler places on the same
+ * tracker. The reduce writes the spill through a memory mapping of a file in the
+ * tracker's local dir and the map maps the same file, so the records only go
+ * through the page cache of the tracker. Only the path of the spill is sent over
+ * the socket, the tracker deletes the file once the map has read it.
+ *
+ * Both ends unmap explicitly when they are done instead of waiting for the
+ * garbage collector to release the mappings.
+ */
+public class MappedSpillFile {
+	private static final Log LOG = LogFactory.getLog(MappedSpillFile.class.getName());
+	
+	private static final int MIN_CHUNK = 64 * 1024;
+
+	private static File file(Path path) {
+		return new File(path.toUri().getPath());
+	}
+
+	/**
+	 * Writes a new file through a mapping of chunks of it, a chunk is unmapped
+	 * as soon as it is full. close cuts the file to the bytes written.
+	 */
+	public static class Writer extends OutputStream {
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private MappedByteBuffer chunk = null;
+		private long mapped = 0;
+		private int chunkSize;
+		
+		/**
+		 * @param chunkSize the bytes mapped at a time, the expected length of the file
+		 */
+		public Writer(Path path, int chunkSize) throws IOException {
+			File file = file(path);
+			File parent = file.getParentFile();
+			if(parent != null && !parent.exists() && !parent.mkdirs()){
+				throw new IOException("can not create directory " + parent);
+			}
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.chunkSize = Math.max(chunkSize, MIN_CHUNK);
+		}
+		
+		private void nextChunk() throws IOException {
+			if(chunk != null) unmap(chunk);
+			chunk = channel.map(FileChannel.MapMode.READ_WRITE, mapped, chunkSize);
+			mapped += chunkSize;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if(chunk == null || !chunk.hasRemaining()) nextChunk();
+			chunk.put((byte)b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0){
+				if(chunk == null || !chunk.hasRemaining()) nextChunk();
+				int n = Math.min(len, chunk.remaining());
+				chunk.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+		
+		/**
+		 * @return the bytes written so far
+		 */
+		public long getLength() {
+			return chunk == null ? 0 : mapped - chunk.remaining();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if(raf == null) return;
+			try{
+				long length = getLength();
+				if(chunk != null) unmap(chunk);
+				chunk = null;
+				channel.truncate(length);
+			}finally{
+				raf.close();
+				raf = null;
+			}
+		}
+	}
+
+	/**
+	 * map the first length bytes of the file at path, the mapping stays valid
+	 * after the file is deleted and is unmapped when the stream is closed
+	 */
+	public static DataInputStream open(Path path, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file(path), "r");
+		try{
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			return new DataInputStream(new BufferInputStream(buffer));
+		}finally{
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return true if address is an address of this host
+	 */
+	public static boolean isLocal(InetSocketAddress address) {
+		InetAddress addr = address.getAddress();
+		if(addr == null) return false;
+		if(addr.isLoopbackAddress() || addr.isAnyLocalAddress()) return true;
+		try{
+			return NetworkInterface.getByInetAddress(addr) != null;
+		}catch(SocketException e){
+			return false;
+		}
+	}
+
+	/**
+	 * release a mapping now, the buffer must not be used afterwards. Where the
+	 * JVM does not allow it the mapping is left to the garbage collector.
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		try{
+			//java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+			return;
+		}catch(Exception e){
+			//older JVMs have no invokeCleaner
+		}
+		try{
+			Method cleaner = buffer.getClass().getMethod("cleaner");
+			cleaner.setAccessible(true);
+			Object c = cleaner.invoke(buffer);
+			if(c != null) c.getClass().getMethod("clean").invoke(c);
+		}catch(Exception e){
+			LOG.debug("cannot unmap, left to the garbage collector", e);
+		}
+	}
+
+	private static class BufferInputStream extends InputStream {
+		private MappedByteBuffer buffer;
+
+		BufferInputStream(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(len == 0) return 0;
+			if(!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public void close() {
+			if(buffer == null) return;
+			unmap(buffer);
+			buffer = null;
+		}
+	}
+}
@@ -0,0 +1,502 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Valueable;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Base of the primitive state tables with int keys. The keys live in an open
+ * addressing table with linear probing, the subclass keeps the priority, iState
+ * and cState columns at the same slot. All columns are nio buffers, on the heap
+ * or, with priter.statetable.offheap, in direct memory, so a vertex costs a few
+ * bytes and no objects.
+ *
+ * Updaters can work on slots directly: find(key) returns the slot of a key or -1,
+ * insert(key) returns the slot of a key, adding it with zero state if absent.
+ * Slots stay valid until the next insert or remove.
+ *
+ * Once indexAbove is called, the slots with a priority above the bound are also
+ * kept in an indexed max-heap (two int arrays on the heap), every priority change
+ * moves the slot in the heap in O(log N).
+ *
+ * Once trackChanges is called, every changed slot is also marked in a bitmap,
+ * so incremental checkpoints only visit the changed records.
+ */
+public abstract class NumericStateTable<P extends Valueable, V extends Valueable>
+		implements IndexedStateTable<IntWritable, P, V>, IncrementalStateTable<IntWritable, P, V> {
+
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final int MIN_CAPACITY = 64;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	protected boolean offheap = false;
+	private IntBuffer keys;
+	private long[] used;
+	private int capacity;
+	private int shift;
+	private int size = 0;
+	private int threshold;
+	
+	private int[] heap;
+	private int[] heapPos;
+	private int heapSize = 0;
+	private double activeAbove;
+	
+	private long[] dirty;
+	private int changed = 0;
+
+	@Override
+	public void configure(JobConf job) {
+		this.offheap = job.getBoolean("priter.statetable.offheap", false);
+		int expected = job.getInt("priter.statetable.capacity", 1 << 16);
+		int cap = MIN_CAPACITY;
+		while(cap < MAX_CAPACITY && cap * LOAD_FACTOR < expected){
+			cap <<= 1;
+		}
+		allocateKeys(cap);
+		allocateValues(cap);
+	}
+
+	private void allocateKeys(int cap) {
+		this.capacity = cap;
+		this.shift = 32 - Integer.numberOfTrailingZeros(cap);
+		this.threshold = (int)(cap * LOAD_FACTOR);
+		this.keys = newIntBuffer(cap);
+		this.used = new long[cap >>> 6];
+	}
+
+	private int hash(int key) {
+		return (key * 0x9E3779B9) >>> shift;
+	}
+
+	private boolean isUsed(int slot) {
+		return (used[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	public int find(int key) {
+		int mask = capacity - 1;
+		int slot = hash(key);
+		while(isUsed(slot)){
+			if(keys.get(slot) == key) return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	public int insert(int key) {
+		if(size >= threshold) grow();
+
+		int mask = capacity - 1;
+		int slot = hash(key);
+		while(isUsed(slot)){
+			if(keys.get(slot) == key) return slot;
+			slot = (slot + 1) & mask;
+		}
+		used[slot >>> 6] |= 1L << slot;
+		keys.put(slot, key);
+		//a freed slot keeps the columns of its last record
+		putPriority(slot, 0);
+		putiState(slot, 0);
+		putcState(slot, 0);
+		size++;
+		if(heapPos != null) reindex(slot, getPriority(slot));
+		if(dirty != null) touch(slot);
+		return slot;
+	}
+
+	/**
+	 * remove key, the following slots of its probe run are shifted back so no
+	 * tombstones are left
+	 * @return false if key is not in the table
+	 */
+	public boolean remove(int key) {
+		int slot = find(key);
+		if(slot < 0) return false;
+
+		if(heapPos != null && heapPos[slot] > 0) removeAt(heapPos[slot] - 1);
+		if(dirty != null && (dirty[slot >>> 6] & (1L << slot)) != 0){
+			dirty[slot >>> 6] &= ~(1L << slot);
+			changed--;
+		}
+		used[slot >>> 6] &= ~(1L << slot);
+		size--;
+
+		int mask = capacity - 1;
+		int hole = slot;
+		for(int next = (hole + 1) & mask; isUsed(next); next = (next + 1) & mask){
+			//a slot may fill the hole if its home is not between the hole and itself
+			int home = hash(keys.get(next));
+			if(((next - home) & mask) < ((next - hole) & mask)) continue;
+			shift(next, hole);
+			hole = next;
+		}
+		return true;
+	}
+
+	/**
+	 * move the record at the used slot from to the free slot to
+	 */
+	private void shift(int from, int to) {
+		keys.put(to, keys.get(from));
+		putPriority(to, getPriority(from));
+		putiState(to, getiState(from));
+		putcState(to, getcState(from));
+		used[to >>> 6] |= 1L << to;
+		used[from >>> 6] &= ~(1L << from);
+
+		if(heapPos != null && heapPos[from] > 0){
+			heap[heapPos[from] - 1] = to;
+			heapPos[to] = heapPos[from];
+			heapPos[from] = 0;
+		}
+		if(dirty != null && (dirty[from >>> 6] & (1L << from)) != 0){
+			dirty[from >>> 6] &= ~(1L << from);
+			dirty[to >>> 6] |= 1L << to;
+		}
+	}
+
+	private void grow() {
+		if(capacity == MAX_CAPACITY){
+			throw new IllegalStateException("state table is full with " + size + " records");
+		}
+
+		IntBuffer oldKeys = keys;
+		long[] oldUsed = used;
+		long[] oldDirty = dirty;
+		if(dirty != null){
+			dirty = new long[(capacity << 1) >>> 6];
+			changed = 0;
+		}
+		int oldCapacity = capacity;
+		allocateKeys(capacity << 1);
+		allocateValues(capacity);
+
+		int mask = capacity - 1;
+		for(int from = 0; from < oldCapacity; from++){
+			if((oldUsed[from >>> 6] & (1L << from)) == 0) continue;
+			int key = oldKeys.get(from);
+			int slot = hash(key);
+			while(isUsed(slot)){
+				slot = (slot + 1) & mask;
+			}
+			used[slot >>> 6] |= 1L << slot;
+			keys.put(slot, key);
+			moveValues(from, slot);
+			if(oldDirty != null && (oldDirty[from >>> 6] & (1L << from)) != 0) touch(slot);
+		}
+		releaseValues();
+		
+		//slots have moved, rebuild the index
+		if(heapPos != null) buildIndex();
+	}
+
+	/**
+	 * @return the first used slot not before from, or -1
+	 */
+	public int nextSlot(int from) {
+		return nextBit(used, from);
+	}
+
+	private int nextBit(long[] bitmap, int from) {
+		if(from >= capacity) return -1;
+		int word = from >>> 6;
+		long bits = bitmap[word] & (-1L << from);
+		while(true){
+			if(bits != 0) return (word << 6) + Long.numberOfTrailingZeros(bits);
+			if(++word == bitmap.length) return -1;
+			bits = bitmap[word];
+		}
+	}
+
+	public int getKey(int slot) {
+		return keys.get(slot);
+	}
+
+	public abstract double getPriority(int slot);
+	public abstract double getiState(int slot);
+	public abstract double getcState(int slot);
+	protected abstract void putPriority(int slot, double priority);
+	protected abstract void putiState(int slot, double iState);
+	protected abstract void putcState(int slot, double cState);
+
+	public void setPriority(int slot, double priority) {
+		putPriority(slot, priority);
+		if(heapPos != null) reindex(slot, priority);
+		if(dirty != null) touch(slot);
+	}
+
+	public void setiState(int slot, double iState) {
+		putiState(slot, iState);
+		if(dirty != null) touch(slot);
+	}
+
+	public void setcState(int slot, double cState) {
+		putcState(slot, cState);
+		if(dirty != null) touch(slot);
+	}
+
+	public void set(int slot, double priority, double iState, double cState) {
+		setPriority(slot, priority);
+		setiState(slot, iState);
+		setcState(slot, cState);
+	}
+
+	@Override
+	public void indexAbove(P priority) {
+		this.activeAbove = priority.getV();
+		buildIndex();
+	}
+
+	@Override
+	public int activeSize() {
+		return heapPos == null ? -1 : heapSize;
+	}
+
+	@Override
+	public double topPriority() {
+		return heapSize == 0 ? Double.NEGATIVE_INFINITY : getPriority(heap[0]);
+	}
+
+	/**
+	 * remove the slot with the highest priority from the index
+	 * @return the slot, or -1 if no slot is above the bound
+	 */
+	public int pollTop() {
+		if(heapSize == 0) return -1;
+		int slot = heap[0];
+		removeAt(0);
+		return slot;
+	}
+
+	private void touch(int slot) {
+		long bit = 1L << slot;
+		if((dirty[slot >>> 6] & bit) == 0){
+			dirty[slot >>> 6] |= bit;
+			changed++;
+		}
+	}
+
+	@Override
+	public void trackChanges() {
+		dirty = used.clone();
+		changed = size;
+	}
+
+	@Override
+	public int changedSize() {
+		return dirty == null ? -1 : changed;
+	}
+
+	@Override
+	public void clearChanges() {
+		if(dirty == null) return;
+		Arrays.fill(dirty, 0);
+		changed = 0;
+	}
+
+	private void buildIndex() {
+		heap = new int[capacity];
+		heapPos = new int[capacity];
+		heapSize = 0;
+		for(int slot = nextSlot(0); slot >= 0; slot = nextSlot(slot + 1)){
+			if(getPriority(slot) > activeAbove){
+				heap[heapSize] = slot;
+				heapPos[slot] = ++heapSize;
+			}
+		}
+		for(int i = (heapSize >>> 1) - 1; i >= 0; i--){
+			siftDown(i);
+		}
+	}
+
+	private void reindex(int slot, double priority) {
+		int pos = heapPos[slot] - 1;
+		if(pos < 0){
+			if(priority > activeAbove){
+				heap[heapSize] = slot;
+				heapPos[slot] = ++heapSize;
+				siftUp(heapSize - 1);
+			}
+		}else if(priority > activeAbove){
+			siftUp(pos);
+			siftDown(heapPos[slot] - 1);
+		}else{
+			removeAt(pos);
+		}
+	}
+
+	private void removeAt(int pos) {
+		heapPos[heap[pos]] = 0;
+		int last = heap[--heapSize];
+		if(pos < heapSize){
+			heap[pos] = last;
+			heapPos[last] = pos + 1;
+			siftUp(pos);
+			siftDown(heapPos[last] - 1);
+		}
+	}
+
+	private void siftUp(int pos) {
+		int slot = heap[pos];
+		double pri = getPriority(slot);
+		while(pos > 0){
+			int parent = (pos - 1) >>> 1;
+			int p = heap[parent];
+			if(getPriority(p) >= pri) break;
+			heap[pos] = p;
+			heapPos[p] = pos + 1;
+			pos = parent;
+		}
+		heap[pos] = slot;
+		heapPos[slot] = pos + 1;
+	}
+
+	private void siftDown(int pos) {
+		int slot = heap[pos];
+		double pri = getPriority(slot);
+		int half = heapSize >>> 1;
+		while(pos < half){
+			int child = 2 * pos + 1;
+			int c = heap[child];
+			double cpri = getPriority(c);
+			int right = child + 1;
+			if(right < heapSize && getPriority(heap[right]) > cpri){
+				child = right;
+				c = heap[right];
+				cpri = getPriority(c);
+			}
+			if(pri >= cpri) break;
+			heap[pos] = c;
+			heapPos[c] = pos + 1;
+			pos = child;
+		}
+		heap[pos] = slot;
+		heapPos[slot] = pos + 1;
+	}
+
+	/**
+	 * allocate the value columns for cap slots, keeping the current columns
+	 * around for moveValues until releaseValues is called.
+	 */
+	protected abstract void allocateValues(int cap);
+	protected abstract void moveValues(int from, int to);
+	protected abstract void releaseValues();
+
+	/** bytes of the value columns per slot */
+	protected abstract int valueBytes();
+
+	/** set reuse to v, creating a new instance when reuse is null */
+	protected abstract P priority(P reuse, double v);
+	protected abstract V value(V reuse, double v);
+
+	protected IntBuffer newIntBuffer(int cap) {
+		return offheap ? direct(cap, 4).asIntBuffer() : IntBuffer.allocate(cap);
+	}
+
+	protected FloatBuffer newFloatBuffer(int cap) {
+		return offheap ? direct(cap, 4).asFloatBuffer() : FloatBuffer.allocate(cap);
+	}
+
+	protected DoubleBuffer newDoubleBuffer(int cap) {
+		return offheap ? direct(cap, 8).asDoubleBuffer() : DoubleBuffer.allocate(cap);
+	}
+
+	private ByteBuffer direct(int cap, int width) {
+		long bytes = (long)cap * width;
+		if(bytes > Integer.MAX_VALUE){
+			throw new IllegalStateException("off-heap column of " + cap + " slots exceeds 2GB");
+		}
+		return ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder());
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(IntWritable key) {
+		return find(key.get()) >= 0;
+	}
+
+	@Override
+	public PriorityRecord<P, V> get(IntWritable key) {
+		int slot = find(key.get());
+		if(slot < 0) return null;
+		return new PriorityRecord<P, V>(priority(null, getPriority(slot)),
+				value(null, getiState(slot)), value(null, getcState(slot)));
+	}
+
+	@Override
+	public void put(IntWritable key, P priority, V iState, V cState) {
+		set(insert(key.get()), priority.getV(), iState.getV(), cState.getV());
+	}
+
+	@Override
+	public boolean remove(IntWritable key) {
+		return remove(key.get());
+	}
+
+	@Override
+	public StateTableIterator<IntWritable, P, V> iterator() {
+		return new Cursor();
+	}
+
+	@Override
+	public StateTableIterator<IntWritable, P, V> changedIterator() {
+		return new Cursor() {
+			public boolean next() {
+				slot = nextBit(dirty, slot + 1);
+				return slot >= 0;
+			}
+		};
+	}
+
+	@Override
+	public StateTableIterator<IntWritable, P, V> topIterator() {
+		return new Cursor() {
+			public boolean next() {
+				slot = pollTop();
+				return slot >= 0;
+			}
+		};
+	}
+
+	private class Cursor implements StateTableIterator<IntWritable, P, V> {
+		protected int slot = -1;
+		private IntWritable key = new IntWritable();
+		private P pri = priority(null, 0);
+		private V iState = value(null, 0);
+		private V cState = value(null, 0);
+
+		public boolean next() {
+			slot = nextSlot(slot + 1);
+			return slot >= 0;
+		}
+		public IntWritable getKey() {
+			key.set(keys.get(slot));
+			return key;
+		}
+		public P getPriority() { return priority(pri, NumericStateTable.this.getPriority(slot)); }
+		public V getiState() { return value(iState, NumericStateTable.this.getiState(slot)); }
+		public V getcState() { return value(cState, NumericStateTable.this.getcState(slot)); }
+		public void setPriority(P priority) { NumericStateTable.this.setPriority(slot, priority.getV()); }
+		public void setiState(V v) { NumericStateTable.this.setiState(slot, v.getV()); }
+		public void setcState(V v) { NumericStateTable.this.setcState(slot, v.getV()); }
+	}
+
+	@Override
+	public long memoryUsage() {
+		long bytes = (long)capacity * (4 + valueBytes()) + used.length * 8L;
+		if(heapPos != null) bytes += capacity * 8L;
+		if(dirty != null) bytes += dirty.length * 8L;
+		return bytes;
+	}
+}
@@ -0,0 +1,20 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+/**
+ * Update of a record whose priority and states are numbers (IntWritable,
+ * FloatWritable or DoubleWritable), see OutputPKVBuffer.update. The record is
+ * given as doubles, so a primitive state table is updated in place and no
+ * writable is created.
+ */
+public interface NumericUpdate<K> {
+
+	/**
+	 * @param key the key of the record
+	 * @param value what the updater made of the values of key
+	 * @param record the priority, iState and cState of key, all zero when the
+	 * key is not in the table yet. The update sets them to the new ones.
+	 * @param found false if the key is not in the table
+	 * @return false to leave the table as it is
+	 */
+	boolean update(K key, double value, double[] record, boolean found);
+}
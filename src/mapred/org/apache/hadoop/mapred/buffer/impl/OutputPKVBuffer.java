@@ -1,19 +1,9 @@
 package org.apache.hadoop.mapred.buffer.impl;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.Set;
-import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -21,11 +11,16 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.FloatWritable;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Valueable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.FileHandle;
 import org.apache.hadoop.mapred.IFile;
@@ -36,17 +31,18 @@ import org.apache.hadoop.mapred.ReduceTask;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.mapred.TopKSnapshotFile;
 import org.apache.hadoop.mapred.Updater;
 import org.apache.hadoop.mapred.buffer.BufferUmbilicalProtocol;
 import org.apache.hadoop.mapred.buffer.OutputFile;
 import org.apache.hadoop.mapred.buffer.OutputFile.Header;
 import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
 
 
 public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Valueable> 
 		implements OutputCollector<K, V>{
 	
-	public int SAMPLESIZE;
 	//**************************************
 	private static final Log LOG = LogFactory.getLog(OutputPKVBuffer.class.getName());
 
@@ -58,7 +54,6 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 	private FileHandle outputHandle = null;
 	
 	private boolean bPriExec;
-	public String exeQueueFile;
 	public String stateTableFile;
 	private int checkFreq;
 	private boolean ftSupport;
@@ -69,8 +64,11 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 	private int topk;
 
     private Updater<K, P, V> updater = null;
-	public Map<K, PriorityRecord<P, V>> stateTable = new HashMap<K, PriorityRecord<P, V>>();
-	private ArrayList<KVRecord<K, V>> priorityQueue = new ArrayList<KVRecord<K, V>>();
+	public StateTable<K, P, V> stateTable;
+	private StateTableCheckpointer<K, P, V> checkpointer;
+	private PrioritySelector selector;
+	private PrioritySelector snapshotSelector;
+	private boolean bIndexed = false;
 	private K defaultKey;
     private V defaultiState;
     private Class<K> keyClass;
@@ -83,6 +81,7 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 	public double progress = 0;
 	public boolean start = false;
 	private boolean bMemTrans = false;
+	private int memSpillLength = 0;
 	
 	private int partitions = 0;
 	private boolean bPortion = false;
@@ -91,6 +90,7 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 	private double queueportion = 0.2;
 	private int queuelen = 0;
 	private int queuetop = -1;
+	private QueueSizeController queueController;
 	
 	public static int WAIT_ITER = 0;
 	
@@ -114,12 +114,9 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 		
 		this.bPriExec = job.getBoolean("priter.job.priority", true);
 		this.ftSupport = job.getBoolean("priter.checkpoint", true);
-		this.exeQueueFile = job.get("mapred.output.dir") + "/_ExeQueueTemp/" + 
-							taskAttemptID.getTaskID().getId() + "-exequeue";
 		this.stateTableFile = job.get("mapred.output.dir") + "/_StateTableTempDir/"
 								+ taskAttemptID.getTaskID().getId() + "-statetable";
 		this.checkFreq = job.getInt("priter.checkpoint.frequency", 10);
-		this.SAMPLESIZE = job.getInt("priter.job.samplesize", 1000);
 
 		this.topkDir = job.get("mapred.output.dir") + "/" + this.taskAttemptID.getTaskID().getId();
 		this.keyClass = keyClass;
@@ -133,7 +130,10 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 			partitions = 2 * status.getTaskTrackers();
 		}
 		
-		if(job.getFloat("priter.queue.portion", -1) != -1){
+		this.queueController = new QueueSizeController(job, reporter);
+		if(this.queueController.isAdaptive()){
+			LOG.info("queue length is tuned by the adaptive controller");
+		}else if(job.getFloat("priter.queue.portion", -1) != -1){
 			this.bPortion = true;
 			this.queueportion = job.getFloat("priter.queue.portion", 1);
 		}else if(job.getInt("priter.queue.length", -1) != -1){
@@ -148,10 +148,161 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 		this.topk = this.topk * job.getInt("priter.snapshot.topk.scale", 4) / partitions;
 		
 		this.bMemTrans = job.getBoolean("priter.transfer.mem", false);
+		this.selector = new PrioritySelector(job);
+		this.snapshotSelector = new PrioritySelector(job);
 		
+		this.stateTable = createStateTable();
 		this.updater.initStateTable(this);
+		
+		//keep the records above the default priority in an index, top records are then taken without a scan
+		if(this.bPriExec && job.getBoolean("priter.statetable.index", true) && (this.stateTable instanceof IndexedStateTable)){
+			P defaultPri = updater.decidePriority(defaultKey, updater.resetiState());
+			((IndexedStateTable<K, P, V>)this.stateTable).indexAbove(defaultPri);
+			this.bIndexed = true;
+		}
+		
+		this.checkpointer = new StateTableCheckpointer<K, P, V>(job, hdfs, stateTableFile, 
+				this.stateTable, keyClass, priClass, valClass);
+		
+		long bytes = this.stateTable.memoryUsage();
+		LOG.info("state table " + this.stateTable.getClass().getSimpleName() + " initialized with " + 
+				this.stateTable.size() + " records" + (bytes < 0 ? "" : 
+				" in " + bytes + " bytes (" + (bytes / Math.max(this.stateTable.size(), 1)) + " bytes per record)"));
+	}
+	
+	private StateTable<K, P, V> createStateTable() {
+		//a parallel reduce updates a striped table, by default four stripes per thread
+		int threads = job.getInt("priter.reduce.threads", 1);
+		int stripes = job.getInt("priter.statetable.stripes", threads > 1 ? 4 * threads : 1);
+		if(threads > 1 && stripes % threads != 0){
+			//every update thread owns the same number of stripes
+			stripes = (stripes / threads + 1) * threads;
+		}
+		if(stripes <= 1){
+			StateTable<K, P, V> table = createStateTable(job);
+			//spill the cold records of a table larger than the heap
+			if(job.getBoolean("priter.statetable.hybrid", false)){
+				table = new HybridStateTable<K, P, V>(job, table, keyClass, priClass, valClass);
+			}
+			return table;
+		}
+		if(job.getBoolean("priter.statetable.hybrid", false)){
+			LOG.warn("priter.statetable.hybrid is ignored with a striped state table");
+		}
+		
+		JobConf stripeConf = new JobConf(job);
+		stripeConf.setInt("priter.statetable.capacity", job.getInt("priter.statetable.capacity", 1 << 16) / stripes + 1);
+		StateTable<K, P, V>[] tables = new StateTable[stripes];
+		for(int i=0; i<stripes; i++){
+			tables[i] = createStateTable(stripeConf);
+		}
+		return StripedStateTable.create(tables);
+	}
+	
+	private StateTable<K, P, V> createStateTable(JobConf job) {
+		Class<? extends StateTable> tableClass = job.getClass("priter.statetable.class", null, StateTable.class);
+		if(tableClass == null){
+			tableClass = HashStateTable.class;
+			if(job.getBoolean("priter.statetable.primitive", true) && keyClass == IntWritable.class){
+				if(priClass == FloatWritable.class && valClass == FloatWritable.class){
+					tableClass = IntFloatStateTable.class;
+				}else if(priClass == DoubleWritable.class && valClass == DoubleWritable.class){
+					tableClass = IntDoubleStateTable.class;
+				}
+			}
+		}
+		return ReflectionUtils.newInstance(tableClass, job);
 	}
 
+	/**
+	 * @return the table the state of key is in, the stripe of a striped table or
+	 * the table itself. Updaters synchronize on it while updating key.
+	 */
+	public StateTable<K, P, V> tableOf(K key) {
+		if(stateTable instanceof StripedStateTable){
+			return ((StripedStateTable<K, P, V>)stateTable).stripe(key);
+		}
+		return stateTable;
+	}
+	
+	/**
+	 * update the numeric record of key under the lock of its table, in place
+	 * if the table is a NumericStateTable. The update may be shared by threads,
+	 * every call gets its own record.
+	 */
+	public void update(K key, double value, NumericUpdate<K> update) {
+		double[] record = new double[3];
+		StateTable<K, P, V> table = tableOf(key);
+		synchronized(table){
+			if(table instanceof NumericStateTable){
+				NumericStateTable<P, V> numeric = (NumericStateTable<P, V>)table;
+				int k = ((IntWritable)key).get();
+				int slot = numeric.find(k);
+				if(slot >= 0){
+					record[0] = numeric.getPriority(slot);
+					record[1] = numeric.getiState(slot);
+					record[2] = numeric.getcState(slot);
+				}
+				if(update.update(key, value, record, slot >= 0)){
+					numeric.set(slot >= 0 ? slot : numeric.insert(k), record[0], record[1], record[2]);
+				}
+			}else{
+				PriorityRecord<P, V> old = table.get(key);
+				if(old != null){
+					record[0] = old.getPriority().getV();
+					record[1] = old.getiState().getV();
+					record[2] = old.getcState().getV();
+				}
+				if(update.update(key, value, record, old != null)){
+					table.put(key, numeric(priClass, record[0]), numeric(valClass, record[1]), numeric(valClass, record[2]));
+				}
+			}
+		}
+	}
+	
+	private static <T extends Valueable> T numeric(Class<T> c, double v) {
+		Object w;
+		if(c == FloatWritable.class){
+			w = new FloatWritable((float)v);
+		}else if(c == DoubleWritable.class){
+			w = new DoubleWritable(v);
+		}else if(c == IntWritable.class){
+			w = new IntWritable((int)v);
+		}else{
+			throw new IllegalArgumentException(c.getName() + " is not numeric");
+		}
+		return c.cast(w);
+	}
+	
+	public int stripeOf(K key) {
+		if(stateTable instanceof StripedStateTable){
+			return ((StripedStateTable<K, P, V>)stateTable).stripeOf(key);
+		}
+		return 0;
+	}
+	
+	public int stripes() {
+		if(stateTable instanceof StripedStateTable){
+			return ((StripedStateTable<K, P, V>)stateTable).stripes();
+		}
+		return 1;
+	}
+	
+	/**
+	 * the parts of the state table that are locked on their own
+	 */
+	private StateTable<K, P, V>[] parts() {
+		StateTable<K, P, V>[] parts = new StateTable[stripes()];
+		if(parts.length == 1){
+			parts[0] = stateTable;
+		}else{
+			for(int i=0; i<parts.length; i++){
+				parts[i] = ((StripedStateTable<K, P, V>)stateTable).stripe(i);
+			}
+		}
+		return parts;
+	}
+	
 	public Header header() {
 		return new OutputFile.PKVBufferHeader(this.taskAttemptID, this.iteration);
 	}
@@ -166,237 +317,165 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 
 	public void init(K key, V iState, V cState){
 		P pri = updater.decidePriority(key, iState);
-		PriorityRecord<P, V> newpkvRecord = new PriorityRecord<P, V>(pri, iState, cState);
-		this.stateTable.put(key, newpkvRecord);
+		this.stateTable.put(key, pri, iState, cState);
 	}
 	
-	private synchronized void getAllRecords(ArrayList<KVRecord<K, V>> records) {
+	private synchronized int getAllRecords(OutputCollector<K, V> out) throws IOException {
 		synchronized(this.stateTable){	
 			int activations = 0;
-			for(K k : stateTable.keySet()){		
-				V v = stateTable.get(k).getiState();
-	
-				records.add(new KVRecord<K, V>(k, v));
-				V iState = updater.resetiState();
-				this.stateTable.get(k).setiState(iState);
-				P p = updater.decidePriority(k, iState);
-				this.stateTable.get(k).setPriority(p);
+			StateTableIterator<K, P, V> it = stateTable.iterator();
+			while(it.next()){
+				out.collect(it.getKey(), it.getiState());
+				resetRecord(it);
 				activations++;
 			}
 			LOG.info("iteration " + iteration + " activate " + activations + " k-v pairs");
+			return activations;
 		}
 	}
-	private synchronized void getTopRecords(ArrayList<KVRecord<K, V>> records) {
+	
+	private void resetRecord(StateTableIterator<K, P, V> it) {
+		V iState = updater.resetiState();
+		it.setiState(iState);
+		it.setPriority(updater.decidePriority(it.getKey(), iState));
+	}
+	
+	private synchronized int getTopRecords(OutputCollector<K, V> out) throws IOException {
+		if(this.bIndexed) return getIndexedTopRecords(out);
 		
 		synchronized(this.stateTable){	
 			int activations = 0;
-			P threshold = updater.decidePriority((K)(new IntWritable(0)), updater.resetiState());
+			double defaultPri = updater.decidePriority(defaultKey, updater.resetiState()).getV();
 			
-			//select eligible records to keys
-			List<K> keys = new ArrayList<K>();
-			for(K k : stateTable.keySet()){	
-				//compare with the default value
-				if(stateTable.get(k).getPriority().compareTo(threshold) > 0){
-					keys.add(k);
-				}
+			//the spilled records of a hybrid table are ranked on their indexed priority, without reading them
+			HybridStateTable<K, P, V> hybrid = (stateTable instanceof HybridStateTable) ? (HybridStateTable<K, P, V>)stateTable : null;
+			StateTable<K, P, V> scanned = (hybrid != null) ? hybrid.memory() : stateTable;
+			
+			//collect the priorities of the eligible records (higher than the default priority)
+			selector.clear();
+			StateTableIterator<K, P, V> it = scanned.iterator();
+			while(it.next()){
+				double pri = it.getPriority().getV();
+				if(pri > defaultPri) selector.add(pri);
 			}
+			if(hybrid != null) hybrid.rankSpilled(selector, defaultPri);
+			int eligible = (int)selector.seen();
 			
-			if(this.bPortion){
-				int actualqueuelen = (int) (keys.size() * this.queueportion);
-				//queulen extraction
-				if(keys.size() <= SAMPLESIZE){
-					for(K k : keys){		
-						V v = stateTable.get(k).getiState();
-						records.add(new KVRecord<K, V>(k, v));
-						V iState = updater.resetiState();
-						this.stateTable.get(k).setiState(iState);
-						P p = updater.decidePriority(k, iState);
-						this.stateTable.get(k).setPriority(p);
-						activations++;	
-					}
-					LOG.info("iteration " + iteration + "queuelen is " + actualqueuelen + " expend " + activations + " k-v pairs");
-				}else{
-					Random rand = new Random();
-					List<K> randomkeys = new ArrayList<K>(SAMPLESIZE);
-
-					for(int j=0; j<SAMPLESIZE; j++){
-						K randnode = keys.get(rand.nextInt(keys.size()));
-						randomkeys.add(randnode);
-					}
-					
-					final Map<K, PriorityRecord<P, V>> langForSort = stateTable;
-					Collections.sort(randomkeys, 
-							new Comparator(){
-								public int compare(Object left, Object right){
-									PriorityRecord<P, V> leftrecord = langForSort.get(left);
-									PriorityRecord<P, V> rightrecord = langForSort.get(right);
-									return -leftrecord.compareTo(rightrecord);
-								}
-							});
-					
-					//int cutindex = actualqueuelen * SAMPLESIZE / this.stateTable.size();
-					int cutindex = actualqueuelen * SAMPLESIZE / keys.size();
-
-					threshold = stateTable.get(randomkeys.get(cutindex-1>=0?cutindex-1:0)).getPriority();
-					
-					LOG.info("queuelen " + actualqueuelen + " eliglbe records " + keys.size() + 
-							" cut index " + cutindex + " threshold is " + threshold);
-					
-					//to avoid 0 output, we emit all the records have the equal value of threshld
-					if(cutindex==0 || stateTable.get(randomkeys.get(0)).getPriority() == threshold){
-						for(K k : stateTable.keySet()){	
-							V v = stateTable.get(k).getiState();
-							P pri = stateTable.get(k).getPriority();
-							
-							if(pri.compareTo(threshold) >= 0){
-								records.add(new KVRecord<K, V>(k, v));
-								V iState = updater.resetiState();
-								this.stateTable.get(k).setiState(iState);
-								P p = updater.decidePriority(k, iState);
-								this.stateTable.get(k).setPriority(p);
-								activations++;
-							}
-						}
-					}else{
-						for(K k : keys){		
-							V v = stateTable.get(k).getiState();
-							P pri = stateTable.get(k).getPriority();
-							
-							if(pri.compareTo(threshold) > 0){
-								records.add(new KVRecord<K, V>(k, v));
-								V iState = updater.resetiState();
-								this.stateTable.get(k).setiState(iState);
-								P p = updater.decidePriority(k, iState);
-								this.stateTable.get(k).setPriority(p);
-								activations++;
-							}
-						}
-					}
-
-					LOG.info("iteration " + iteration + " expend " + activations + " k-v pairs" + " threshold is " + threshold);
-				}
-			}else if(this.bLength){
-				int actualqueuelen = this.queuelen;
-				/*
-				//for asynchronous execution, determine the queue size based on how much portion of information received (from edges)
-				if(job.getBoolean("priter.job.async.self", false) || job.getBoolean("priter.job.async.time", false)){
-					actualqueuelen = (int) (queuelen * ((double)updatedEdges / totalEdges));
-					LOG.info("actual queue len " + actualqueuelen + " queuelen " + queuelen + " updated edges " + updatedEdges);
-					if(actualqueuelen > queuelen) actualqueuelen = queuelen;	
-				}
-				*/
+			//emit the records above threshold and ties of it up to the queue length, all eligible records by default
+			double threshold = defaultPri;
+			long ties = 0;
+			if(this.bPortion || this.bLength || queueController.isAdaptive()){
+				int actualqueuelen = this.bPortion ? (int) (eligible * this.queueportion) : this.queuelen;
+				if(queueController.isAdaptive()) actualqueuelen = queueController.queueLength(eligible);
+				//to avoid 0 output, we emit at least one record
+				if(actualqueuelen <= 0) actualqueuelen = 1;
 				
 				//queulen extraction
-				if(keys.size() <= SAMPLESIZE){
-					for(K k : keys){		
-						V v = stateTable.get(k).getiState();			
-						records.add(new KVRecord<K, V>(k, v));
-						V iState = updater.resetiState();
-						this.stateTable.get(k).setiState(iState);
-						P p = updater.decidePriority(k, iState);
-						this.stateTable.get(k).setPriority(p);
-						activations++;	
-					}
-					LOG.info("iteration " + iteration + "queuelen is " + actualqueuelen + " expend " + activations + " k-v pairs");
+				if(eligible <= actualqueuelen){
+					LOG.info("iteration " + iteration + "queuelen is " + actualqueuelen + " expend all " + eligible + " eligible k-v pairs");
 				}else{
-					Random rand = new Random();
-					List<K> randomkeys = new ArrayList<K>(SAMPLESIZE);
+					threshold = selector.select(actualqueuelen);
+					ties = selector.ties(actualqueuelen);
 					
-					for(int j=0; j<SAMPLESIZE; j++){
-						K randnode = keys.get(rand.nextInt(keys.size()));
-						randomkeys.add(randnode);
-					}
-					
-					final Map<K, PriorityRecord<P, V>> langForSort = stateTable;
-					Collections.sort(randomkeys, 
-							new Comparator(){
-								public int compare(Object left, Object right){
-									PriorityRecord<P, V> leftrecord = langForSort.get(left);
-									PriorityRecord<P, V> rightrecord = langForSort.get(right);
-									return -leftrecord.compareTo(rightrecord);
-								}
-							});
-					
-					int cutindex = actualqueuelen * SAMPLESIZE / keys.size();
-
-					threshold = stateTable.get(randomkeys.get(cutindex)).getPriority();
-					
-					LOG.info("queuelen " + actualqueuelen + " eliglbe records " + keys.size() + 
-							" cut index " + cutindex + " threshold is " + threshold);
-
-					//to avoid 0 output, we emit all the records have the equal value of threshld
-					if(cutindex==0 || stateTable.get(randomkeys.get(0)).getPriority() == threshold){
-						for(K k : stateTable.keySet()){	
-							V v = stateTable.get(k).getiState();
-							P pri = stateTable.get(k).getPriority();
-							
-							if(pri.compareTo(threshold) >= 0){
-								records.add(new KVRecord<K, V>(k, v));
-								V iState = updater.resetiState();
-								this.stateTable.get(k).setiState(iState);
-								P p = updater.decidePriority(k, iState);
-								this.stateTable.get(k).setPriority(p);
-								activations++;
-							}
-						}
-					}else{
-						for(K k : keys){		
-							V v = stateTable.get(k).getiState();
-							P pri = stateTable.get(k).getPriority();
-							
-							if(pri.compareTo(threshold) > 0){
-								records.add(new KVRecord<K, V>(k, v));
-								V iState = updater.resetiState();
-								this.stateTable.get(k).setiState(iState);
-								P p = updater.decidePriority(k, iState);
-								this.stateTable.get(k).setPriority(p);
-								activations++;
-							}
-						}
-					}
-					LOG.info("iteration " + iteration + " expend " + activations + " k-v pairs" + " threshold is " + threshold);
+					LOG.info("queuelen " + actualqueuelen + " eliglbe records " + eligible + 
+							(selector.exact() ? "" : " sampled") + " threshold is " + threshold + " ties " + ties);
 				}
-			}else if(this.bUniLen){
-				//queue top extraction
-				Random rand = new Random();
-				TreeSet<P> randomPris = new TreeSet<P>(new Comparator(){
-					@Override
-					public int compare(Object left, Object right) {
-						// TODO Auto-generated method stub
-						return -((P)left).compareTo((P)right);
-					}
-				});
+			}else if(this.bUniLen && eligible > 0){
+				//queue top extraction, the records of the queuetop highest distinct priorities
+				threshold = selector.distinct(queuetop);
+				ties = eligible;
+				LOG.info("queue top " + queuetop + " table size " + stateTable.size());
+			}
+			
+			//only the selected spilled records are read back
+			if(hybrid != null) hybrid.faultIn(threshold, ties > 0);
+			it = scanned.iterator();
+			while(it.next()){
+				double pri = it.getPriority().getV();
+				if(pri > threshold || (pri == threshold && ties-- > 0)){
+					out.collect(it.getKey(), it.getiState());
+					resetRecord(it);
+					activations++;
+				}
+			}
+			LOG.info("iteration " + iteration + " expend " + activations + " k-v pairs" + " threshold is " + threshold);
+			return activations;
+		}
+	}
 
-				for(int j=0; j<SAMPLESIZE; j++){
-					P randpri = stateTable.get(keys.get(rand.nextInt(keys.size()))).getPriority();
-					randomPris.add(randpri);
+	/**
+	 * take the top records from the index of the state table, the cost is
+	 * O(k log N) for k emitted records whatever the table size is. The priority
+	 * of the emitted records is reset after the extraction, a reset priority
+	 * depending on the key could put a record back above the cut otherwise.
+	 */
+	private synchronized int getIndexedTopRecords(OutputCollector<K, V> out) throws IOException {
+		synchronized(this.stateTable){
+			IndexedStateTable<K, P, V> table = (IndexedStateTable<K, P, V>)this.stateTable;
+			int eligible = table.activeSize();
+			int actualqueuelen = eligible;
+			if(this.bPortion){
+				actualqueuelen = (int) (eligible * this.queueportion);
+			}else if(this.bLength){
+				actualqueuelen = this.queuelen;
+			}else if(queueController.isAdaptive()){
+				actualqueuelen = queueController.queueLength(eligible);
+			}
+			//to avoid 0 output, we emit at least one record
+			if(actualqueuelen <= 0) actualqueuelen = 1;
+			
+			int activations = 0;
+			int levels = 0;
+			double threshold = 0;
+			
+			//the priorities of the emitted records are reset after the loop, a primitive
+			//table keeps their slots, which stay valid as nothing is inserted meanwhile
+			NumericStateTable<P, V> numeric = (table instanceof NumericStateTable) ? (NumericStateTable<P, V>)table : null;
+			int[] slots = null;
+			double[] pris = null;
+			DataOutputBuffer emitted = null;
+			Serializer<K> keySerializer = null;
+			if(numeric != null){
+				slots = new int[Math.min(actualqueuelen, numeric.size())];
+				pris = new double[slots.length];
+			}else{
+				emitted = new DataOutputBuffer();
+				keySerializer = new SerializationFactory(job).getSerializer(keyClass);
+				keySerializer.open(emitted);
+			}
+			StateTableIterator<K, P, V> it = table.topIterator();
+			while(activations < actualqueuelen && it.next()){
+				double pri = it.getPriority().getV();
+				if(this.bUniLen && (activations == 0 || pri != threshold) && ++levels > queuetop){
+					//put it back, only queuetop distinct priorities are emitted
+					it.setPriority(it.getPriority());
+					break;
 				}
+				threshold = pri;
 				
-				if(randomPris.size() <= queuetop){
-					threshold = randomPris.pollLast();
+				out.collect(it.getKey(), it.getiState());
+				it.setiState(updater.resetiState());
+				if(numeric != null){
+					slots[activations] = numeric.find(((IntWritable)it.getKey()).get());
+					pris[activations] = updater.decidePriority(it.getKey(), it.getiState()).getV();
 				}else{
-					for(int i=0; i<queuetop; i++){
-						threshold = randomPris.pollFirst();
-					}
+					keySerializer.serialize(it.getKey());
 				}
-
-				LOG.info("queue top " + queuetop + " table size " + stateTable.size());
-				
-				for(K k : keys){		
-					V v = stateTable.get(k).getiState();
-					P pri = stateTable.get(k).getPriority();
-					
-					if(pri.compareTo(threshold) > 0){
-						records.add(new KVRecord<K, V>(k, v));
-						V iState = updater.resetiState();
-						this.stateTable.get(k).setiState(iState);
-						P p = updater.decidePriority(k, iState);
-						this.stateTable.get(k).setPriority(p);
-						activations++;
-					}
+				activations++;
+			}
+			if(numeric != null){
+				for(int i=0; i<activations; i++){
+					numeric.setPriority(slots[i], pris[i]);
+				}
+			}else{
+				for(K key : readKeys(emitted, activations)){
+					PriorityRecord<P, V> record = table.get(key);
+					table.put(key, updater.decidePriority(key, record.getiState()), record.getiState(), record.getcState());
 				}
-				LOG.info("iteration " + iteration + " expend " + activations + " k-v pairs" + " threshold is " + threshold);
 			}
+			LOG.info("iteration " + iteration + " queuelen " + actualqueuelen + " eliglbe records " + eligible + 
+					" expend " + activations + " k-v pairs" + " threshold is " + threshold);
+			return activations;
 		}
 	}
 
@@ -412,150 +491,141 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 	public synchronized OutputFile spillTops() throws IOException {
 		start = true;
 		
-		if(bMemTrans){
-			//mem trans seems not work, i forgot whether I have implemented it or not
-			OutputFile outfile;
-			if(job.getBoolean("priter.job.mapsync", false)){
-				outfile = new OutputFile(this.taskAttemptID, this.iteration, new Path("/tmp/t1"), new Path("/tmp/t1"), partitions);
+		Path filename = null;
+		Path indexFilename = null;
+		try{
+			filename = outputHandle.getSpillFileForWrite(this.taskAttemptID, this.iteration, -1);
+			indexFilename = outputHandle.getSpillIndexFileForWrite(
+					this.taskAttemptID, this.iteration, 24);
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+		
+		if (localFs.exists(filename)) {
+			throw new IOException("PartitionBuffer::sortAndSpill -- spill file exists! " + filename);
+		}
+
+		FSDataOutputStream out = null;
+		FSDataOutputStream indexOut = null;
+		IFile.Writer<K, V> writer = null;
+		
+		try{
+			if(bMemTrans){
+				//the spill is written straight into a mapping for the co-located map, sized by the last one
+				out = new FSDataOutputStream(new MappedSpillFile.Writer(filename, memSpillLength), null);
+				indexOut = new FSDataOutputStream(new MappedSpillFile.Writer(indexFilename, 24), null);
 			}else{
-				outfile = new OutputFile(this.taskAttemptID, this.iteration, new Path("/tmp/t1"), new Path("/tmp/t1"), partitions);
+				out = localFs.create(filename, false);
+				indexOut = localFs.create(indexFilename, false);
 			}
+	
+			if (out == null ) throw new IOException("Unable to create spill file " + filename);
 			
 			synchronized(this.stateTable){
-				synchronized(outfile.outputMemQueue){
-					if(this.bPriExec){
-						getTopRecords(outfile.outputMemQueue);
-					}else{
-						getAllRecords(outfile.outputMemQueue);
-					}
-					
-					if(job.getBoolean("priter.job.mapsync", false)){
-						for(int i=0; i<partitions; i++){
-							outfile.outputMemQueue.add(new KVRecord(defaultKey, defaultiState));
-						}
-					}
-					
-					if(outfile.outputMemQueue.size() == 0){
-						LOG.info("no records to send");
-						outfile.outputMemQueue.add(new KVRecord(defaultKey, defaultiState));
-					}else{
-						total_map += outfile.outputMemQueue.size();
-					}
-					
-					LOG.info("iteration " + this.iteration + " expand " + outfile.outputMemQueue.size() + " k-v pairs, " +
-							"total maps " + total_map + " total collected " + total_reduce);
+	
+				writer = new IFile.Writer<K, V>(job, out, keyClass, valClass, null, null);
 
-					//periodically dump statetable and execution queue
-					if(ftSupport && iteration != 0 && (iteration % checkFreq == 0) && (checkpointIter < iteration)){
-						dumpStateTable();
-						checkpointIter = iteration;
-						checkpointSnapshot = this.relatedTask.snapshotIndex;
+				//records are written as they are selected, nothing is buffered
+				final IFile.Writer<K, V> spillWriter = writer;
+				OutputCollector<K, V> spillCollector = new OutputCollector<K, V>() {
+					public void collect(K key, V value) throws IOException {
+						spillWriter.append(key, value);
 					}
-					
-					this.iteration++;
+				};
+				
+				int count = 0;
+				if(this.bPriExec){
+					count = getTopRecords(spillCollector);
+				}else{
+					count = getAllRecords(spillCollector);
 				}
-			}
+						
+				if(count == 0){
+					LOG.info("no records to send");
+					writer.append(this.defaultKey, this.defaultiState);
+				}else{
+					total_map += count;
+				}		
 
-			return outfile;
-	
-		}else{
-			Path filename = null;
-			Path indexFilename = null;
-			try{
-				filename = outputHandle.getSpillFileForWrite(this.taskAttemptID, this.iteration, -1);
-				indexFilename = outputHandle.getSpillIndexFileForWrite(
-						this.taskAttemptID, this.iteration, 24);
-			}catch(IOException e){
-				e.printStackTrace();
+				writer.close();
+				
+				//feed the queue size controller, it measures the progress once an epoch
+				if(queueController.iterated(count, writer.getCompressedLength())){
+					queueController.adjust(measureProgress());
+				}
+				
+				LOG.info("iteration " + this.iteration + " expand " + count + " k-v pairs, " +
+						"total maps " + total_map + " total collected " + total_reduce);
+				writeIndexRecord(indexOut, out, 0, writer);
+				writer = null;
+				if(bMemTrans) memSpillLength = (int)Math.min(out.getPos(), Integer.MAX_VALUE);
+				
+				//periodically checkpoint statetable
+				checkpoint();
+				
+				this.iteration++;
+			}
+		} catch(IOException e){
+			e.printStackTrace();
+		}finally {
+			if (null != writer) {
+				writer.close();
+				writer = null;
 			}
 			
-			if (localFs.exists(filename)) {
-				throw new IOException("PartitionBuffer::sortAndSpill -- spill file exists! " + filename);
+			if (out != null){
+				out.close();
+				out = null;
+			}
+			if (indexOut != null) {
+				indexOut.close();
+				indexOut = null;
 			}
-
-			FSDataOutputStream out = null;
-			FSDataOutputStream indexOut = null;
-			IFile.Writer<K, V> writer = null;
 			
-			try{		
-				out = localFs.create(filename, false);
-				indexOut = localFs.create(indexFilename, false);
-		
-				if (out == null ) throw new IOException("Unable to create spill file " + filename);
+			//LOG.info("generated a spill file " + filename);
+			//LOG.info("generated a spill index file " + indexFilename);
+		}
 				
-				synchronized(this.stateTable){
-		
-					//ArrayList<KVRecord<K, V>> entries = null;
-					if(this.bPriExec){
-						getTopRecords(priorityQueue);
-					}else{
-						getAllRecords(priorityQueue);
-					}
-						
-					writer = new IFile.Writer<K, V>(job, out, keyClass, valClass, null, null);
-
-					//if(entries != null) this.priorityQueue.addAll(entries);
-					int count = 0;
-							
-					if(priorityQueue.size() == 0){
-						LOG.info("no records to send");
-						writer.append(this.defaultKey, this.defaultiState);
-					}else{
-						for(KVRecord<K, V> entry : priorityQueue){		
-							writer.append(entry.k, entry.v);
-							//LOG.info("send records: " + entry.k + " : " + entry.v);
-							entry = null;
-							count++;
-						}
-						
-						total_map += count;
-					}		
+		int partition_num = job.getBoolean("priter.job.mapsync", false) ? this.partitions : 1;
+		return new OutputFile(this.taskAttemptID, this.iteration, filename, indexFilename, partition_num);
+	}
+	
+	/**
+	 * extract the records of this iteration like spillTops, straight into out
+	 * instead of a spill file, for the in-process runner of LocalJobRunner
+	 * @return the number of extracted records, 0 if no record is eligible
+	 */
+	public synchronized int extractTops(OutputCollector<K, V> out) throws IOException {
+		start = true;
 
-					writer.close();
-					
-					LOG.info("iteration " + this.iteration + " expand " + count + " k-v pairs, " +
-							"total maps " + total_map + " total collected " + total_reduce);
-					writeIndexRecord(indexOut, out, 0, writer);
-					writer = null;
-					
-					
-					//periodically dump statetable and execution queue
-					if(ftSupport && iteration != 0 && (iteration % checkFreq == 0) && (checkpointIter < iteration)){
-						//dumpExeQueue();
-						dumpStateTable();
-						checkpointIter = iteration;
-						checkpointSnapshot = this.relatedTask.snapshotIndex;
-					}
-					
-					this.iteration++;
-					priorityQueue.clear();
-				}
-			} catch(IOException e){
-				e.printStackTrace();
-			}finally {
-				if (null != writer) {
-					writer.close();
-					writer = null;
-				}
-				
-				if (out != null){
-					out.close();
-					out = null;
-				}
-				if (indexOut != null) {
-					indexOut.close();
-					indexOut = null;
+		synchronized(this.stateTable){
+			final long[] bytes = new long[1];
+			final OutputCollector<K, V> target = out;
+			final DataOutputBuffer sizer = new DataOutputBuffer();
+			OutputCollector<K, V> counting = new OutputCollector<K, V>() {
+				public void collect(K key, V value) throws IOException {
+					//the bytes the records would take in a spill, for the queue size controller
+					sizer.reset();
+					((Writable)key).write(sizer);
+					value.write(sizer);
+					bytes[0] += sizer.getLength();
+					target.collect(key, value);
 				}
-				
-				//LOG.info("generated a spill file " + filename);
-				//LOG.info("generated a spill index file " + indexFilename);
+			};
+
+			int count = this.bPriExec ? getTopRecords(counting) : getAllRecords(counting);
+			total_map += count;
+
+			if(queueController.iterated(count, bytes[0])){
+				queueController.adjust(measureProgress());
 			}
-					
-			int partition_num = job.getBoolean("priter.job.mapsync", false) ? this.partitions : 1;
-			return new OutputFile(this.taskAttemptID, this.iteration, filename, indexFilename, partition_num);
+			LOG.info("iteration " + this.iteration + " extract " + count + " k-v pairs, " +
+					"total maps " + total_map);
+			this.iteration++;
+			return count;
 		}
 	}
-	
+
 	private void writeIndexRecord(FSDataOutputStream indexOut,
 			FSDataOutputStream out, long start,
 			IFile.Writer<K, V> writer)
@@ -569,145 +639,289 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 				start + ", " + writer.getRawLength() + ", " + segmentLength);
 	}
 	
-	private void dumpExeQueue() throws IOException {
-		FSDataOutputStream ostream = hdfs.create(new Path(exeQueueFile), true);
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(ostream));
+	/**
+	 * checkpoint the state table every checkFreq iterations, the caller holds the
+	 * table lock. The checkpoint is written in the background, checkpointIter is
+	 * the last checkpoint that is already on the file system. Every task writes
+	 * every checkFreq-th iteration, the checkpointer waits rather than skip one.
+	 */
+	private void checkpoint() throws IOException {
+		if(!ftSupport) return;
 		
-		int count = 0;
-		for(KVRecord<K, V> entry : priorityQueue) {
-		    writer.write(entry.k + "\t" + entry.v + "\n");
-		    count++;
+		if(iteration != 0 && (iteration % checkFreq == 0) && (checkpointer.lastIteration() < iteration)){
+			checkpointer.checkpoint(iteration, this.relatedTask.snapshotIndex);
 		}
-		writer.close();
-		ostream.close();
-		
-		LOG.info("dumped ExecutionQueue with " + count + " records");
+		checkpointIter = checkpointer.lastIteration();
+		checkpointSnapshot = checkpointer.lastSnapshot();
+	}
+	
+	public int loadStateTable(int iteration) throws IOException {
+		int count = checkpointer.load(iteration);
+		checkpointIter = checkpointer.lastIteration();
+		checkpointSnapshot = checkpointer.lastSnapshot();
+		return count;
 	}
 	
-	private void dumpStateTable() throws IOException {
-		FSDataOutputStream ostream = hdfs.create(new Path(stateTableFile), true);
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(ostream));
+	/**
+	 * the next checkpoint is a full one, after records are moved in or out
+	 */
+	public void forceFullCheckpoint() {
+		checkpointer.forceFull();
+	}
+	
+	/**
+	 * move the count records with the highest priority out of the table for live
+	 * rebalancing, writing them to file: the iteration, the number of records,
+	 * the keys in the job serialization, then priority, iState and cState of
+	 * every key. The records are selected, written and removed with all the
+	 * parts of the table locked, so no update gets lost in between.
+	 * @return the moved keys
+	 */
+	public synchronized List<K> moveOut(Path file, int count) throws IOException {
+		return moveOut(parts(), 0, file, count);
+	}
+	
+	private List<K> moveOut(StateTable<K, P, V>[] parts, int i, Path file, int count) throws IOException {
+		if(i < parts.length){
+			synchronized(parts[i]){
+				return moveOut(parts, i + 1, file, count);
+			}
+		}
+		
+		int size = 0;
+		for(StateTable<K, P, V> part : parts){
+			size += part.size();
+		}
+		double[] priorities = new double[size];
+		int n = 0;
+		for(StateTable<K, P, V> part : parts){
+			StateTableIterator<K, P, V> it = part.iterator();
+			while(n < priorities.length && it.next()){
+				priorities[n++] = it.getPriority().getV();
+			}
+		}
+		count = Math.min(count, n);
 		
-		long start = System.currentTimeMillis();
-		int count = 0;
-		Set<Map.Entry<K, PriorityRecord<P, V>>> entries = this.stateTable.entrySet();
-		for(Map.Entry<K, PriorityRecord<P, V>> entry : entries) {
-		    K key = entry.getKey();
-		    PriorityRecord<P, V> record = entry.getValue();
-		    writer.write(key + "\t" + record + "\n");
-		    count++;
-		}
-		writer.close();
-		ostream.close();
-		long end = System.currentTimeMillis();
+		//records at the cut are taken until count is reached
+		DataOutputBuffer keyData = new DataOutputBuffer();
+		DataOutputBuffer records = new DataOutputBuffer();
+		Serializer<K> keySerializer = new SerializationFactory(job).getSerializer(keyClass);
+		keySerializer.open(keyData);
+		double cut = (count == 0) ? Double.POSITIVE_INFINITY : PrioritySelector.select(priorities, 0, n, n - count);
+		int moved = 0;
+		for(StateTable<K, P, V> part : parts){
+			StateTableIterator<K, P, V> it = part.iterator();
+			while(moved < count && it.next()){
+				P pri = it.getPriority();
+				if(pri.getV() < cut) continue;
+				keySerializer.serialize(it.getKey());
+				pri.write(records);
+				it.getiState().write(records);
+				it.getcState().write(records);
+				moved++;
+			}
+		}
+		writeMove(file, moved, keyData, records);
 		
-		LOG.info("dumped StateTable with " + count + " records takes " + (end-start) + " ms");
+		List<K> keys = readKeys(keyData, moved);
+		for(K key : keys){
+			tableOf(key).remove(key);
+		}
+		if(moved > 0) forceFullCheckpoint();
+		LOG.info("moved " + moved + " records with priority from " + cut + " out to " + file);
+		return keys;
 	}
 	
-	public int loadStateTable() throws IOException {
-		FSDataInputStream istream = hdfs.open(new Path(stateTableFile));
-		BufferedReader reader = new BufferedReader(new InputStreamReader(istream));
-		
-		int count = 0;
-		while(reader.ready()){
-			String line = reader.readLine();
-			String[] field = line.split("\t", 4);
+	private List<K> readKeys(DataOutputBuffer keyData, int count) throws IOException {
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(keyData.getData(), keyData.getLength());
+		return readKeys(in, count);
+	}
+	
+	private List<K> readKeys(InputStream in, int count) throws IOException {
+		Deserializer<K> keyDeserializer = new SerializationFactory(job).getDeserializer(keyClass);
+		keyDeserializer.open(in);
+		List<K> keys = new ArrayList<K>(count);
+		for(int i=0; i<count; i++){
+			keys.add(keyDeserializer.deserialize(null));
+		}
+		return keys;
+	}
+	
+	private void writeMove(Path file, int count, DataOutputBuffer keys, DataOutputBuffer records) throws IOException {
+		Path tmp = new Path(file.getParent(), "_" + file.getName());
+		FSDataOutputStream out = hdfs.create(tmp, true);
+		try{
+			out.writeInt(this.iteration);
+			out.writeInt(count);
+			out.write(keys.getData(), 0, keys.getLength());
+			out.write(records.getData(), 0, records.getLength());
+		}finally{
+			out.close();
+		}
+		if(!hdfs.rename(tmp, file)){
+			throw new IOException("cannot rename " + tmp + " to " + file);
+		}
+	}
+	
+	/**
+	 * put the records moved out by another task into the table
+	 * @return the number of records
+	 */
+	public synchronized int moveIn(Path file) throws IOException {
+		FSDataInputStream in = hdfs.open(file);
+		try{
+			in.readInt();
+			int count = in.readInt();
+			List<K> keys = readKeys(in, count);
 			
-			K key = null;
-			if(keyClass == IntWritable.class){
-				key = (K) new IntWritable(Integer.parseInt(field[0]));
-			}else if(keyClass == Text.class){
-				key = (K) new Text(field[0]);
-			}else if(keyClass == FloatWritable.class){
-				key = (K) new FloatWritable(Float.parseFloat(field[0]));
-			}else if(keyClass == DoubleWritable.class){
-				key = (K) new DoubleWritable(Double.parseDouble(field[0]));
+			for(K key : keys){
+				P pri = ReflectionUtils.newInstance(priClass, job);
+				V iState = ReflectionUtils.newInstance(valClass, job);
+				V cState = ReflectionUtils.newInstance(valClass, job);
+				pri.readFields(in);
+				iState.readFields(in);
+				cState.readFields(in);
+				StateTable<K, P, V> table = tableOf(key);
+				synchronized(table){
+					table.put(key, pri, iState, cState);
+				}
 			}
-
-			if(valClass == IntWritable.class){
-				IntWritable pri = new IntWritable(Integer.parseInt(field[1]));
-				IntWritable iState = new IntWritable(Integer.parseInt(field[2]));
-				IntWritable cState = new IntWritable(Integer.parseInt(field[3]));
-				stateTable.put(key, new PriorityRecord(pri, iState, cState));
-			}else if(valClass == DoubleWritable.class){
-				DoubleWritable pri = new DoubleWritable(Double.parseDouble((field[1])));
-				DoubleWritable iState = new DoubleWritable(Double.parseDouble((field[2])));
-				DoubleWritable cState = new DoubleWritable(Double.parseDouble((field[3])));
-				stateTable.put(key, new PriorityRecord(pri, iState, cState));
-			}else if(valClass == FloatWritable.class){
-				FloatWritable pri = new FloatWritable(Float.parseFloat((field[1])));
-				FloatWritable iState = new FloatWritable(Float.parseFloat((field[2])));
-				FloatWritable cState = new FloatWritable(Float.parseFloat((field[3])));
-				stateTable.put(key, new PriorityRecord(pri, iState, cState));
-			}else{
-				throw new IOException(valClass + " not type matched");
+			forceFullCheckpoint();
+			LOG.info("moved " + count + " records in from " + file);
+			return count;
+		}finally{
+			in.close();
+		}
+	}
+	
+	/**
+	 * remove the records listed in a move file again, after a checkpoint from
+	 * before the move is loaded
+	 * @return the number of removed records
+	 */
+	public synchronized int dropMoved(Path file) throws IOException {
+		int removed = 0;
+		for(K key : readMovedKeys(file)){
+			StateTable<K, P, V> table = tableOf(key);
+			synchronized(table){
+				if(table.remove(key)) removed++;
 			}
-			count++;
 		}
-		
-		reader.close();
-		return count;
+		if(removed > 0) forceFullCheckpoint();
+		return removed;
+	}
+	
+	/**
+	 * @return the iteration a move file was written at
+	 */
+	public static int readMoveIteration(FileSystem fs, Path file) throws IOException {
+		FSDataInputStream in = fs.open(file);
+		try{
+			return in.readInt();
+		}finally{
+			in.close();
+		}
 	}
 	
+	/**
+	 * @return the keys of a move file
+	 */
+	public List<K> readMovedKeys(Path file) throws IOException {
+		FSDataInputStream in = hdfs.open(file);
+		try{
+			in.readInt();
+			return readKeys(in, in.readInt());
+		}finally{
+			in.close();
+		}
+	}
+	
+	/**
+	 * write the top records by cState to topKsnapshot-index. The records are
+	 * captured in memory with all the parts of the table locked, so the snapshot
+	 * is a consistent cut of the table between two key updates (not an iteration
+	 * boundary); updates wait for the two scans of the capture, the file is
+	 * sorted and written without any lock. The topk cut is selected out of the
+	 * priorities of all the records, the file records it so the merge can check
+	 * its cut.
+	 */
 	public void snapshot(int index) throws IOException {
-		Path topkFile = new Path(topkDir + "/topKsnapshot-" + index);
-		IFile.PriorityWriter<P, K, V> writer = new IFile.PriorityWriter<P, K, V>(job, hdfs, topkFile, priClass, keyClass, valClass, null, null);
-
-		synchronized(this.stateTable){		
-			if(stateTable.size() <= topk || stateTable.size() <= SAMPLESIZE){
-				for(K k : stateTable.keySet()){	
-					V v = stateTable.get(k).getcState();
-					P pri = updater.decideTopK(k, v);
-					writer.append(pri, k, stateTable.get(k).getcState());	
-					progress += v.getV();
+		TopKSnapshotFile.Writer<P, K, V> writer = new TopKSnapshotFile.Writer<P, K, V>(job, hdfs,
+				new Path(topkDir + "/topKsnapshot-" + index), priClass, keyClass, valClass);
+		double threshold = capture(parts(), 0, writer);
+		writer.close(threshold);
+	}
+	
+	/**
+	 * lock parts[i] and the following ones, in order, then capture the top
+	 * records of all the parts into writer
+	 * @return the cut, NEGATIVE_INFINITY if every record is written
+	 */
+	private double capture(StateTable<K, P, V>[] parts, int i, TopKSnapshotFile.Writer<P, K, V> writer) throws IOException {
+		if(i < parts.length){
+			synchronized(parts[i]){
+				return capture(parts, i + 1, writer);
+			}
+		}
+		
+		int tablesize = 0;
+		for(StateTable<K, P, V> part : parts){
+			tablesize += part.size();
+		}
+		boolean all = (tablesize <= topk);
+		double threshold = 0;
+		long ties = 0;
+		
+		if(!all){
+			//rank the topk priorities of all the records
+			snapshotSelector.clear();
+			for(StateTable<K, P, V> part : parts){
+				StateTableIterator<K, P, V> it = part.iterator();
+				while(it.next()){
+					snapshotSelector.add(updater.decideTopK(it.getKey(), it.getcState()).getV());
 				}
+			}
+			if(snapshotSelector.seen() <= topk){
+				all = true;
 			}else{
-				Random rand = new Random();
-				List<K> randomkeys = new ArrayList<K>(SAMPLESIZE);
-				List<K> keys = new ArrayList<K>(stateTable.keySet());
-				
-				for(int j=0; j<SAMPLESIZE; j++){
-					K randnode = keys.get(rand.nextInt(stateTable.size()));
-					if(!randomkeys.contains(randnode)){
-						randomkeys.add(randnode);
-					}
-				}
-				
-				final Map<K, PriorityRecord<P, V>> langForSort = stateTable;
-				Collections.sort(randomkeys, 
-						new Comparator(){
-							public int compare(Object left, Object right){
-								V leftrecord = langForSort.get(left).getcState();
-								V rightrecord = langForSort.get(right).getcState();
-								P leftpriority = updater.decideTopK((K)left, leftrecord);
-								P rightpriority = updater.decideTopK((K)right, rightrecord);
-								return -leftpriority.compareTo(rightpriority);
-							}
-						});
-				
-				int cutindex = this.topk * randomkeys.size() / this.stateTable.size()+1;
-				P threshold = (P) updater.decideTopK(randomkeys.get(cutindex), stateTable.get(randomkeys.get(cutindex)).getcState());
+				threshold = snapshotSelector.select(topk);
+				ties = snapshotSelector.ties(topk);
+			}
+			LOG.info("table size " + tablesize + " topk " + topk + " threshold " + threshold + " ties " + ties);
+		}
 		
-				LOG.info("table size " + this.stateTable.size() + " cutindex " + cutindex + " threshold " + threshold);
-				for(K k : stateTable.keySet()){		
-					V v = stateTable.get(k).getcState();
-					P pri = updater.decideTopK(k, v);
-					if(pri.compareTo(threshold) > 0){
-						writer.append(pri, k, stateTable.get(k).getcState());
-					}
-					progress += v.getV();
-				}	
+		for(StateTable<K, P, V> part : parts){
+			StateTableIterator<K, P, V> it = part.iterator();
+			while(it.next()){
+				K k = it.getKey();
+				V v = it.getcState();
+				P pri = updater.decideTopK(k, v);
+				double p = pri.getV();
+				if(all || p > threshold || (p == threshold && ties-- > 0)){
+					writer.append(pri, k, v);	
+				}
+				progress += v.getV();
 			}
-		}	
-		writer.close();
+		}
+		return all ? Double.NEGATIVE_INFINITY : threshold;
+	}
+	
+	public QueueSizeController getQueueController() {
+		return queueController;
 	}
 	
 	public double measureProgress(){
 		double progress = 0;
 		double defaultV = defaultiState.getV();
-		for(K k : stateTable.keySet()){	
-			V cstate = stateTable.get(k).getcState();
-			if(cstate.getV() != defaultV) progress += cstate.getV();
+		for(StateTable<K, P, V> part : parts()){
+			synchronized(part){
+				StateTableIterator<K, P, V> it = part.iterator();
+				while(it.next()){
+					double cstate = it.getcState().getV();
+					if(cstate != defaultV) progress += cstate;
+				}
+			}
 		}
 		return progress;
 	}
@@ -718,9 +932,13 @@ public class OutputPKVBuffer<K extends Object, P extends Valueable, V extends Va
 	}
 	
 	public int size() {
-		synchronized(this.stateTable){
-			return this.stateTable.size();
-		}		
+		int size = 0;
+		for(StateTable<K, P, V> part : parts()){
+			synchronized(part){
+				size += part.size();
+			}
+		}
+		return size;
 	}
 
 	@Override
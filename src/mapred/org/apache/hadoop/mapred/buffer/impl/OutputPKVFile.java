@@ -1,9 +1,6 @@
 package org.apache.hadoop.mapred.buffer.impl;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -26,16 +23,6 @@ public class OutputPKVFile<K extends Object, P extends Valueable, V extends Valu
 			implements OutputCollector<K, V> {
 	private static final Log LOG = LogFactory.getLog(OutputPKVFile.class.getName());
 	
-	class KPRecord<K, P>{
-		K key;
-		P pri;
-		
-		public KPRecord(K k, P p){
-			key = k;
-			pri = p;
-		}
-	}
-	
 	private JobConf job;
 	private FileHandle outputHandle;
 	private FileSystem localFs;
@@ -45,14 +32,13 @@ public class OutputPKVFile<K extends Object, P extends Valueable, V extends Valu
 	private Class<V> valClass;
 	private IFile.Writer<K, V> writer;
 	private FileBasedUpdater<K, P, V, D> updater;
-	private ArrayList<KPRecord<K, P>> samples;
-	private int SAMPLESIZE;
+	private PrioritySelector selector;
+	private PriorityFilter<K, P, V, D> filter = null;
+	private long ties = 0;
 	private boolean bPortion = false;
 	private boolean bLength = false;
 	private double queueportion = 0.2;
 	private int queuelen = 0;
-	private int counter = 0;
-	private long checkInterval;
 	private long totalRecords;
 	
 	public OutputPKVFile(BufferUmbilicalProtocol umbilical, Task task, JobConf job, 
@@ -68,15 +54,11 @@ public class OutputPKVFile<K extends Object, P extends Valueable, V extends Valu
     	this.keyClass = keyClass;
     	this.valClass = valClass;
 		this.intermediatefile = outputHandle.getiStateFileIntermediate(taskAttemptID);
-		this.writer = new IFile.Writer<K, V>(job, localFs, intermediatefile, keyClass, valClass, null, null);
 		this.updater = updater;
 		
 		totalRecords = records;
-		SAMPLESIZE = job.getInt("priter.job.samplesize", 1000);
-		checkInterval = totalRecords / SAMPLESIZE + 1;
-		samples = new ArrayList<KPRecord<K, P>>(totalRecords > SAMPLESIZE ? SAMPLESIZE : (int)totalRecords);
+		selector = new PrioritySelector(job);
 		
-    LOG.info("checkinterval is " + checkInterval);
 		if(job.getFloat("priter.queue.portion", -1) != -1){
 			this.bPortion = true;
 			this.queueportion = job.getFloat("priter.queue.portion", 1);
@@ -86,55 +68,60 @@ public class OutputPKVFile<K extends Object, P extends Valueable, V extends Valu
 		}
 	}
 	
+	/**
+	 * write the istates to the paged state table of filter instead of the
+	 * intermediate file
+	 */
+	public void setPriorityFilter(PriorityFilter<K, P, V, D> filter){
+		this.filter = filter;
+	}
+	
 	public void initIntermediateFile() throws IOException{
+		if(filter != null) return;
 		this.writer = new IFile.Writer<K, V>(job, localFs, intermediatefile, keyClass, valClass, null, null);
 	}
 	
 	@Override
 	public void collect(K key, V value) throws IOException {
-		writer.append(key, value);
-		if(++counter % checkInterval == 0){
-			P pri = updater.decidePriority(key, value);
-			samples.add(new KPRecord<K, P>(key, pri));
+		if(filter != null){
+			filter.update(key, value);
+			return;
 		}
+		writer.append(key, value);
+		selector.add(updater.decidePriority(key, value).getV());
 	}
 	
-	public P getPriorityThreshold(){
-		//retrieve the priority threshold at the same time
-		Collections.sort(samples, 
-				new Comparator(){
-					public int compare(Object left, Object right){
-						P leftrecord = ((KPRecord<K, P>)left).pri;
-						P rightrecord = ((KPRecord<K, P>)right).pri;
-						return -leftrecord.compareTo(rightrecord);
-					}
-				});
+	/**
+	 * select the priority cut of the collected records, the records above it and
+	 * getThresholdTies() of the records equal to it make the queue. With the
+	 * paged state table only the pending records are ranked, the portion is
+	 * still one of the whole table
+	 */
+	public double getPriorityThreshold() throws IOException{
+		if(filter != null) filter.rankPending(selector);
+		long records = selector.seen();
+		long tablesize = (filter != null) ? totalRecords : records;
+		long actualqueuelen = this.bPortion ? (long) (tablesize * this.queueportion) : this.queuelen;
+		if(actualqueuelen <= 0) actualqueuelen = 1;
 		
-		if(counter > Long.MAX_VALUE / 2) counter = 0;
-		if(this.bPortion){
-			int actualqueuelen = (int) (this.totalRecords * this.queueportion);
-			
-			int cutindex = (int) (queueportion * samples.size());
-			P threshold = samples.get(cutindex-1>=0?cutindex-1:0).pri;
-			
-			LOG.info("1queuelen " + actualqueuelen + " eliglbe records " + totalRecords + " sample size " + samples.size()
-					+ " cut index " + cutindex + " threshold is " + threshold);
-			samples.clear();
-			return threshold;
-		} else{
-			int cutindex = (int) (queuelen * samples.size() / totalRecords);
-			P threshold = samples.get(cutindex-1>=0?cutindex-1:0).pri;
-
-      
-			LOG.info("2queuelen " + queuelen + " eliglbe records " + totalRecords + 
-					" cut index " + cutindex + " threshold is " + threshold);
-			samples.clear();
-			return threshold;
-		}	
+		double threshold = Double.NEGATIVE_INFINITY;
+		ties = 0;
+		if(records > actualqueuelen && (this.bPortion || this.bLength)){
+			threshold = selector.select(actualqueuelen);
+			ties = selector.ties(actualqueuelen);
+		}
+		LOG.info("queuelen " + actualqueuelen + " records " + records + " total records " + totalRecords +
+				(selector.exact() ? "" : " sampled") + " threshold is " + threshold + " ties " + ties);
+		selector.clear();
+		return threshold;
+	}
+	
+	public long getThresholdTies(){
+		return ties;
 	}
 	
 	public void close() throws IOException{
-		writer.close();
+		if(writer != null) writer.close();
 		/*
 		 * renaming files results in crc checksum problems, I change method
 		//rename the istatefile_for_write to istatefile_for_read
@@ -0,0 +1,580 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.IFile;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * The state table of an out-of-core job (priter.job.inmem=false) with
+ * priter.statetable.paged, instead of the istate, cstate and static files that
+ * are read and rewritten as a whole every iteration.
+ *
+ * The records are kept in key order in pages of priter.statetable.page bytes of
+ * a local file: vint key length, key, vint istate length, istate, vint cstate
+ * length, cstate and the offset of the static data in a second file, which is
+ * written once and only read for the activated records. The first key of every
+ * page is kept in memory, a key is found by binary search in the index and in
+ * its page. priter.statetable.cache pages are cached, a page is written back
+ * only when it is evicted dirty, so the I/O of an iteration follows the keys it
+ * updates and activates, not the size of the table.
+ *
+ * Every page counts its pending records, those whose istate is not the reset
+ * istate. Only the pages with pending records are scanned to find the priority
+ * queue, the others are not read at all. A page that outgrows its size when a
+ * state gets longer is split, the new page is appended to the file.
+ *
+ * Not thread safe, PriorityFilter serializes the access.
+ */
+public class PagedStateTable<K extends Object, V extends Object, D extends Object> {
+	private static final Log LOG = LogFactory.getLog(PagedStateTable.class.getName());
+
+	//length of the static data offset at the end of a record
+	private static final int OFFSET = 8;
+	//length of the used bytes at the start of a page
+	private static final int HEADER = 4;
+
+	private static class Page {
+		final int slot;
+		byte[] firstKey;
+		int pending = 0;
+
+		//the content, null when the page is not cached
+		byte[] data;
+		int used;
+		int[] offsets;
+		int count;
+		boolean dirty;
+
+		Page(int slot) {
+			this.slot = slot;
+		}
+	}
+
+	private final int pageSize;
+	private final int cacheLimit;
+	private final RawComparator<K> comparator;
+	private final File pageFile;
+	private final File staticFile;
+	private RandomAccessFile pages;
+	private RandomAccessFile statics;
+
+	//the pages in key order
+	private final ArrayList<Page> index = new ArrayList<Page>();
+	private final LinkedHashMap<Integer, Page> cache = new LinkedHashMap<Integer, Page>(16, 0.75f, true);
+	private int slots = 0;
+	private long records = 0;
+
+	private final Serializer<K> keySerializer;
+	private final Serializer<V> stateSerializer;
+	private final Deserializer<K> keyDeserializer;
+	private final Deserializer<V> stateDeserializer;
+	private final Deserializer<D> dataDeserializer;
+	private final DataOutputBuffer keyOut = new DataOutputBuffer();
+	private final DataOutputBuffer stateOut = new DataOutputBuffer();
+	private final DataInputBuffer in = new DataInputBuffer();
+	private byte[] defaultiState;
+
+	//read window of the static file
+	private byte[] window = new byte[64 * 1024];
+	private long windowStart = 0;
+	private int windowLength = 0;
+
+	public long pageReads = 0;
+	public long pageWrites = 0;
+
+	@SuppressWarnings("unchecked")
+	public PagedStateTable(JobConf job, File pageFile, File staticFile,
+			Class<K> keyClass, Class<V> valClass, Class<D> dataClass, V defaultiState) throws IOException {
+		this.pageSize = Math.max(job.getInt("priter.statetable.page", 64 * 1024), 1024);
+		this.cacheLimit = Math.max(job.getInt("priter.statetable.cache", 1024), 4);
+		this.comparator = job.getOutputKeyComparator();
+		this.pageFile = pageFile;
+		this.staticFile = staticFile;
+
+		SerializationFactory serializationFactory = new SerializationFactory(job);
+		this.keySerializer = serializationFactory.getSerializer(keyClass);
+		this.stateSerializer = serializationFactory.getSerializer(valClass);
+		this.keyDeserializer = serializationFactory.getDeserializer(keyClass);
+		this.stateDeserializer = serializationFactory.getDeserializer(valClass);
+		this.dataDeserializer = serializationFactory.getDeserializer(dataClass);
+		this.keySerializer.open(keyOut);
+		this.stateSerializer.open(stateOut);
+
+		stateOut.reset();
+		stateSerializer.serialize(defaultiState);
+		this.defaultiState = Arrays.copyOf(stateOut.getData(), stateOut.getLength());
+	}
+
+	/**
+	 * fill the table from the istate, cstate and static files written by
+	 * FileBasedUpdater.initFiles, they are read in lockstep and must be sorted
+	 * by key
+	 * @return the number of records
+	 */
+	public long build(IFile.Reader<K, V> istateReader, IFile.Reader<K, V> cstateReader,
+			IFile.Reader<K, D> staticReader) throws IOException {
+		pageFile.getParentFile().mkdirs();
+		this.pages = new RandomAccessFile(pageFile, "rw");
+		this.pages.setLength(0);
+		DataOutputStream staticOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(staticFile), 64 * 1024));
+		long staticPos = 0;
+
+		DataInputBuffer keyIn = new DataInputBuffer();
+		DataInputBuffer istateIn = new DataInputBuffer();
+		DataInputBuffer cstateIn = new DataInputBuffer();
+		DataInputBuffer dataIn = new DataInputBuffer();
+		DataOutputBuffer record = new DataOutputBuffer();
+		DataOutputBuffer lastKey = new DataOutputBuffer();
+
+		Page page = newPage();
+		while(istateReader.next(keyIn, istateIn)){
+			int keyLen = keyIn.getLength() - keyIn.getPosition();
+			if(records > 0 && comparator.compare(lastKey.getData(), 0, lastKey.getLength(),
+					keyIn.getData(), keyIn.getPosition(), keyLen) >= 0){
+				throw new IOException("the state files are not sorted by key");
+			}
+			lastKey.reset();
+			lastKey.write(keyIn.getData(), keyIn.getPosition(), keyLen);
+
+			if(!cstateReader.next(keyIn, cstateIn)){
+				throw new IOException("cstate file length not match to istate file");
+			}
+			if(!staticReader.next(keyIn, dataIn)){
+				throw new IOException("static file length not match to istate file");
+			}
+
+			//the static data goes to its own file
+			int dataLen = dataIn.getLength() - dataIn.getPosition();
+			WritableUtils.writeVInt(staticOut, dataLen);
+			staticOut.write(dataIn.getData(), dataIn.getPosition(), dataLen);
+			long offset = staticPos;
+			staticPos += WritableUtils.getVIntSize(dataLen) + dataLen;
+
+			record.reset();
+			WritableUtils.writeVInt(record, lastKey.getLength());
+			record.write(lastKey.getData(), 0, lastKey.getLength());
+			int istateLen = istateIn.getLength() - istateIn.getPosition();
+			WritableUtils.writeVInt(record, istateLen);
+			record.write(istateIn.getData(), istateIn.getPosition(), istateLen);
+			int cstateLen = cstateIn.getLength() - cstateIn.getPosition();
+			WritableUtils.writeVInt(record, cstateLen);
+			record.write(cstateIn.getData(), cstateIn.getPosition(), cstateLen);
+			record.writeLong(offset);
+
+			if(record.getLength() > pageSize - HEADER){
+				throw new IOException("record of " + record.getLength() + " bytes does not fit in a page of " + pageSize);
+			}
+			if(page.used + record.getLength() > pageSize - HEADER){
+				write(page);
+				page.data = null;
+				page = newPage();
+			}
+			if(page.count == 0){
+				page.firstKey = Arrays.copyOf(lastKey.getData(), lastKey.getLength());
+			}
+			System.arraycopy(record.getData(), 0, page.data, page.used, record.getLength());
+			page.used += record.getLength();
+			page.count++;
+			if(!isDefault(istateIn.getData(), istateIn.getPosition(), istateLen)) page.pending++;
+			records++;
+		}
+		if(page.count > 0){
+			write(page);
+		}else{
+			index.remove(index.size() - 1);
+		}
+		page.data = null;
+		staticOut.close();
+
+		this.statics = new RandomAccessFile(staticFile, "r");
+		LOG.info("state table of " + records + " records in " + index.size() + " pages of " + pageSize +
+				" bytes, static data " + staticPos + " bytes");
+		return records;
+	}
+
+	private Page newPage() {
+		Page page = new Page(slots++);
+		page.data = new byte[pageSize];
+		index.add(page);
+		return page;
+	}
+
+	public long size() {
+		return records;
+	}
+
+	public int pages() {
+		return index.size();
+	}
+
+	public int pendingPages() {
+		int n = 0;
+		for(Page page : index){
+			if(page.pending > 0) n++;
+		}
+		return n;
+	}
+
+	/**
+	 * write back the dirty cached pages
+	 */
+	public void flush() throws IOException {
+		for(Page page : cache.values()){
+			if(page.dirty) write(page);
+		}
+	}
+
+	public void close() throws IOException {
+		flush();
+		pages.close();
+		statics.close();
+	}
+
+	/**
+	 * @return a cursor on the records of the table in key order, with pendingOnly
+	 * on the pending records only
+	 */
+	public Cursor cursor(boolean pendingOnly) {
+		return new Cursor(pendingOnly);
+	}
+
+	/**
+	 * A position in the table. It is valid as long as no other cursor modifies
+	 * the table.
+	 */
+	public class Cursor {
+		private final boolean pendingOnly;
+		private int pos = -1;
+		private Page page = null;
+		private int rec = -1;
+
+		private Cursor(boolean pendingOnly) {
+			this.pendingOnly = pendingOnly;
+		}
+
+		/**
+		 * move to the next record
+		 * @return false at the end of the table
+		 */
+		public boolean next() throws IOException {
+			while(true){
+				if(page != null){
+					load(page);
+					while(++rec < page.count){
+						if(!pendingOnly || PagedStateTable.this.isPending(page, rec)) return true;
+					}
+				}
+
+				pos++;
+				while(pendingOnly && pos < index.size() && index.get(pos).pending == 0) pos++;
+				if(pos >= index.size()){
+					page = null;
+					return false;
+				}
+				page = index.get(pos);
+				rec = -1;
+			}
+		}
+
+		/**
+		 * move to the record of key
+		 * @return false if there is no such record
+		 */
+		public boolean seek(K key) throws IOException {
+			keyOut.reset();
+			keySerializer.serialize(key);
+			byte[] k = keyOut.getData();
+			int len = keyOut.getLength();
+
+			//the last page whose first key is not greater than key
+			int lo = 0, hi = index.size() - 1, found = -1;
+			while(lo <= hi){
+				int mid = (lo + hi) >>> 1;
+				byte[] first = index.get(mid).firstKey;
+				if(comparator.compare(first, 0, first.length, k, 0, len) <= 0){
+					found = mid;
+					lo = mid + 1;
+				}else{
+					hi = mid - 1;
+				}
+			}
+			if(found < 0) return false;
+
+			Page p = index.get(found);
+			load(p);
+			lo = 0;
+			hi = p.count - 1;
+			while(lo <= hi){
+				int mid = (lo + hi) >>> 1;
+				int start = p.offsets[mid];
+				int keyLen = WritableComparator.readVInt(p.data, start);
+				int keyStart = start + WritableUtils.decodeVIntSize(p.data[start]);
+				int c = comparator.compare(p.data, keyStart, keyLen, k, 0, len);
+				if(c == 0){
+					pos = found;
+					page = p;
+					rec = mid;
+					return true;
+				}else if(c < 0){
+					lo = mid + 1;
+				}else{
+					hi = mid - 1;
+				}
+			}
+			return false;
+		}
+
+		public boolean isPending() throws IOException {
+			load(page);
+			return PagedStateTable.this.isPending(page, rec);
+		}
+
+		public K getKey(K key) throws IOException {
+			return deserialize(keyDeserializer, key, 0);
+		}
+
+		public V getiState(V istate) throws IOException {
+			return deserialize(stateDeserializer, istate, 1);
+		}
+
+		public V getcState(V cstate) throws IOException {
+			return deserialize(stateDeserializer, cstate, 2);
+		}
+
+		public D getData(D data) throws IOException {
+			load(page);
+			int end = field(page, rec, 3);
+			readStatic(WritableComparator.readLong(page.data, end), in);
+			dataDeserializer.open(in);
+			return dataDeserializer.deserialize(data);
+		}
+
+		public void setiState(V istate) throws IOException {
+			set(1, istate);
+		}
+
+		public void setcState(V cstate) throws IOException {
+			set(2, cstate);
+		}
+
+		private <T> T deserialize(Deserializer<T> deserializer, T reuse, int f) throws IOException {
+			load(page);
+			int start = field(page, rec, f);
+			int len = WritableComparator.readVInt(page.data, start);
+			in.reset(page.data, start + WritableUtils.decodeVIntSize(page.data[start]), len);
+			deserializer.open(in);
+			return deserializer.deserialize(reuse);
+		}
+
+		private void set(int f, V state) throws IOException {
+			stateOut.reset();
+			stateSerializer.serialize(state);
+			load(page);
+			replace(page, rec, f, stateOut.getData(), stateOut.getLength());
+
+			//the record moved to a following page if the page was split
+			while(rec >= page.count){
+				rec -= page.count;
+				page = index.get(++pos);
+			}
+		}
+	}
+
+	private boolean isDefault(byte[] b, int start, int len) {
+		return WritableComparator.compareBytes(b, start, len, defaultiState, 0, defaultiState.length) == 0;
+	}
+
+	private boolean isPending(Page p, int rec) throws IOException {
+		int start = field(p, rec, 1);
+		int len = WritableComparator.readVInt(p.data, start);
+		return !isDefault(p.data, start + WritableUtils.decodeVIntSize(p.data[start]), len);
+	}
+
+	/**
+	 * @return the start of field f of record rec, 0 key, 1 istate, 2 cstate and
+	 * 3 the static data offset
+	 */
+	private int field(Page p, int rec, int f) throws IOException {
+		int pos = p.offsets[rec];
+		for(int i=0; i<f; i++){
+			pos += WritableUtils.decodeVIntSize(p.data[pos]) + WritableComparator.readVInt(p.data, pos);
+		}
+		return pos;
+	}
+
+	private void replace(Page p, int rec, int f, byte[] b, int len) throws IOException {
+		int start = field(p, rec, f);
+		int oldLen = WritableComparator.readVInt(p.data, start);
+		int oldSize = WritableUtils.decodeVIntSize(p.data[start]) + oldLen;
+		int newSize = WritableUtils.getVIntSize(len) + len;
+
+		boolean wasPending = false;
+		if(f == 1) wasPending = !isDefault(p.data, start + oldSize - oldLen, oldLen);
+
+		if(newSize != oldSize){
+			int delta = newSize - oldSize;
+			if(p.used + delta > p.data.length){
+				p.data = Arrays.copyOf(p.data, p.used + delta + 1024);
+			}
+			System.arraycopy(p.data, start + oldSize, p.data, start + newSize, p.used - start - oldSize);
+			p.used += delta;
+			for(int r=rec+1; r<p.count; r++){
+				p.offsets[r] += delta;
+			}
+		}
+		int pos = ActivationQueue.writeVInt(p.data, start, len);
+		System.arraycopy(b, 0, p.data, pos, len);
+		p.dirty = true;
+
+		if(f == 1){
+			boolean pending = !isDefault(b, 0, len);
+			if(pending && !wasPending) p.pending++;
+			if(!pending && wasPending) p.pending--;
+		}
+
+		if(p.used > pageSize - HEADER) split(p);
+	}
+
+	/**
+	 * move the records of an overfull page that do not fit to a new page after it
+	 */
+	private void split(Page p) throws IOException {
+		int keep = 0;
+		while(keep < p.count && recordEnd(p, keep) <= pageSize - HEADER) keep++;
+		if(keep == 0){
+			throw new IOException("record of " + recordEnd(p, 0) + " bytes does not fit in a page of " + pageSize);
+		}
+
+		Page q = new Page(slots++);
+		int from = p.offsets[keep];
+		q.data = new byte[Math.max(pageSize, p.used - from)];
+		q.used = p.used - from;
+		System.arraycopy(p.data, from, q.data, 0, q.used);
+		scan(q);
+		int keyLen = WritableComparator.readVInt(q.data, 0);
+		int keyStart = WritableUtils.decodeVIntSize(q.data[0]);
+		q.firstKey = Arrays.copyOfRange(q.data, keyStart, keyStart + keyLen);
+		for(int r=0; r<q.count; r++){
+			if(isPending(q, r)) q.pending++;
+		}
+		q.dirty = true;
+
+		p.used = from;
+		p.count = keep;
+		p.pending -= q.pending;
+		if(p.data.length > pageSize) p.data = Arrays.copyOf(p.data, pageSize);
+
+		index.add(index.indexOf(p) + 1, q);
+		cache.put(q.slot, q);
+		evict();
+		if(q.used > pageSize - HEADER) split(q);
+	}
+
+	private int recordEnd(Page p, int rec) throws IOException {
+		return field(p, rec, 3) + OFFSET;
+	}
+
+	//compute the record offsets of a page
+	private void scan(Page p) throws IOException {
+		if(p.offsets == null) p.offsets = new int[64];
+		p.count = 0;
+		int pos = 0;
+		while(pos < p.used){
+			if(p.count == p.offsets.length) p.offsets = Arrays.copyOf(p.offsets, p.count * 2);
+			p.offsets[p.count++] = pos;
+			for(int i=0; i<3; i++){
+				pos += WritableUtils.decodeVIntSize(p.data[pos]) + WritableComparator.readVInt(p.data, pos);
+			}
+			pos += OFFSET;
+		}
+	}
+
+	private void load(Page p) throws IOException {
+		if(p.data != null){
+			cache.get(p.slot);
+			return;
+		}
+
+		p.data = new byte[pageSize];
+		pages.seek((long)p.slot * pageSize);
+		p.used = pages.readInt();
+		pages.readFully(p.data, 0, p.used);
+		p.dirty = false;
+		scan(p);
+		pageReads++;
+
+		cache.put(p.slot, p);
+		evict();
+	}
+
+	private void evict() throws IOException {
+		Iterator<Page> it = cache.values().iterator();
+		while(cache.size() > cacheLimit && it.hasNext()){
+			Page p = it.next();
+			if(p.dirty) write(p);
+			p.data = null;
+			p.offsets = null;
+			it.remove();
+		}
+	}
+
+	private void write(Page p) throws IOException {
+		pages.seek((long)p.slot * pageSize);
+		pages.writeInt(p.used);
+		pages.write(p.data, 0, p.used);
+		p.dirty = false;
+		pageWrites++;
+	}
+
+	//point in at the static data stored at offset
+	private void readStatic(long offset, DataInputBuffer in) throws IOException {
+		if(offset < windowStart || offset + 5 > windowStart + windowLength){
+			fill(offset, 5);
+		}
+		int start = (int)(offset - windowStart);
+		int size = WritableUtils.decodeVIntSize(window[start]);
+		int len = WritableComparator.readVInt(window, start);
+		if(offset + size + len > windowStart + windowLength){
+			fill(offset, size + len);
+			start = 0;
+			if(size + len > windowLength){
+				throw new IOException("static data at " + offset + " is truncated in " + staticFile);
+			}
+		}
+		in.reset(window, start + size, len);
+	}
+
+	private void fill(long offset, int need) throws IOException {
+		if(need > window.length) window = new byte[need];
+		statics.seek(offset);
+		int n = 0;
+		while(n < window.length){
+			int r = statics.read(window, n, window.length - n);
+			if(r < 0) break;
+			n += r;
+		}
+		if(n == 0) throw new IOException("static data offset " + offset + " out of " + staticFile);
+		windowStart = offset;
+		windowLength = n;
+	}
+}
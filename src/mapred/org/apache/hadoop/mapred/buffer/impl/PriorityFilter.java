@@ -2,10 +2,8 @@ package org.apache.hadoop.mapred.buffer.impl;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -15,6 +13,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.IntWritable;
@@ -29,6 +28,7 @@ import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.mapred.TopKSnapshotFile;
 import org.apache.hadoop.mapred.IFile.Reader;
 import org.apache.hadoop.mapred.IFile.Writer;
 import org.apache.hadoop.mapred.IFile.PriorityQueueWriter;
@@ -37,21 +37,11 @@ import org.apache.hadoop.mapred.buffer.OutputFile;
 public class PriorityFilter<K extends Object, P extends Valueable, V extends Valueable, D extends Object> {
 	private static final Log LOG = LogFactory.getLog(PriorityFilter.class.getName());
 	
-	class KPRecord<K, P>{
-		K key;
-		P pri;
-		
-		public KPRecord(K k, P p){
-			key = k;
-			pri = p;
-		}
-	}
-	
 	private JobConf conf;
 	private FileHandle outputHandle = null;
 	private TaskAttemptID taskAttemptID;
 	private FileSystem hdfs;
-	private final FileSystem localFs;
+	private final LocalFileSystem localFs;
 	private int iteration = 0;
 
     private Class<K> keyClass;
@@ -69,15 +59,18 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
     public boolean init = false;
     private int partitions = 0;
     
-    private int SAMPLESIZE;
-    private ArrayList<KPRecord<K, P>> samples;
+    //priorities of the cstate file of the current iteration, for the topk snapshot
+    private PrioritySelector selector;
     private String topkDir = null;
-    private P topk_threshold;
-    private long counter = 0;
     private int topk;
-    private long checkInterval;
     
     private Object synclock = new Object();
+    
+    //the paged state table, null if the state is kept in the istate, cstate and static files
+    private final boolean paged;
+    private PagedStateTable<K, V, D> table = null;
+    private PagedStateTable<K, V, D>.Cursor lookup;
+    private V storedistate;
 	
 	private Deserializer<K> keyDeserializer;
 	private Deserializer<V> istateDeserializer;
@@ -136,8 +129,8 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
 		topkDir = job.get("mapred.output.dir") + "/" + this.taskAttemptID.getTaskID().getId();
 		this.topk = job.getInt("priter.snapshot.topk", 1000);
 		this.topk = this.topk * job.getInt("priter.snapshot.topk.scale", 4) / partitions;
-		SAMPLESIZE = job.getInt("priter.job.samplesize", 1000);
-		topk_threshold = (P)updater.resetiState();
+		selector = new PrioritySelector(job);
+		paged = job.getBoolean("priter.statetable.paged", false);
 	}
 	
 	public long initFiles() throws IOException{
@@ -160,22 +153,114 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
 		static_writer.close();
 		priqueue_writer.close();
 		
-		localFs.create(signalFile);
+		if(paged){
+			//move the initial state into the paged table, the files are not used anymore
+			Path tableFile = outputHandle.getStateTableFile(taskAttemptID);
+			Path tableStaticFile = outputHandle.getStateTableStaticFile(taskAttemptID);
+			table = new PagedStateTable<K, V, D>(conf, localFs.pathToFile(tableFile), localFs.pathToFile(tableStaticFile), 
+					keyClass, valClass, dataClass, updater.resetiState());
+			
+			Reader<K, V> istate_reader = new Reader<K, V>(conf, localFs, iStateFile, null, null);
+			Reader<K, V> cstate_reader = new Reader<K, V>(conf, localFs, cStateFileCurr, null, null);
+			Reader<K, D> static_reader = new Reader<K, D>(conf, localFs, staticFile, null, null);
+			long built = table.build(istate_reader, cstate_reader, static_reader);
+			istate_reader.close();
+			cstate_reader.close();
+			static_reader.close();
+			if(built != localRecords){
+				throw new IOException("state table has " + built + " records but " + localRecords + " were initialized");
+			}
+			
+			localFs.delete(iStateFile, false);
+			localFs.delete(cStateFileCurr, false);
+			localFs.delete(staticFile, false);
+			lookup = table.cursor(false);
+		}
 		
-		checkInterval = localRecords / SAMPLESIZE + 1;
-		samples = new ArrayList<KPRecord<K, P>>(localRecords > SAMPLESIZE ? SAMPLESIZE : (int)localRecords);
+		localFs.create(signalFile);
 		
 		init = true;
 
 		return localRecords;
 	}
 	
-	/*input: istate file, cstate file, static file, priority threshold
+	public boolean isPaged(){
+		return paged;
+	}
+	
+	/**
+	 * with the paged state table the reduce input holds the new values of a key
+	 * only, the stored istate is put in front of them as the istate file did
+	 */
+	public Iterator<V> withiState(K key, final Iterator<V> values) throws IOException{
+		synchronized(synclock){
+			if(!lookup.seek(key)){
+				throw new IOException("key " + key + " is not in the state table");
+			}
+			storedistate = lookup.getiState(storedistate);
+		}
+		
+		final V stored = storedistate;
+		return new Iterator<V>(){
+			private boolean first = true;
+			
+			public boolean hasNext() {
+				return first || values.hasNext();
+			}
+
+			public V next() {
+				if(first){
+					first = false;
+					return stored;
+				}
+				return values.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	/**
+	 * store the istate computed by the reduce in the paged state table
+	 */
+	public void update(K key, V istate) throws IOException{
+		synchronized(synclock){
+			if(!lookup.seek(key)){
+				throw new IOException("key " + key + " is not in the state table");
+			}
+			lookup.setiState(istate);
+		}
+	}
+	
+	/**
+	 * rank the priorities of the pending records of the paged state table
+	 */
+	public void rankPending(PrioritySelector ranking) throws IOException{
+		synchronized(synclock){
+			PagedStateTable<K, V, D>.Cursor cursor = table.cursor(true);
+			while(cursor.next()){
+				key = cursor.getKey(key);
+				istate = cursor.getiState(istate);
+				ranking.add(updater.decidePriority(key, istate).getV());
+			}
+		}
+	}
+	
+	/*input: istate file, cstate file, static file, priority threshold and how many
+	 * records equal to it are taken
 	 * output: istate file, cstate file, priorityqueue file
 	 * */
-	public void generatePrioriyQueue(P prithreshold) throws IOException{
+	public void generatePrioriyQueue(double prithreshold, long ties) throws IOException{
 
 		synchronized(synclock){
+			if(table != null){
+				extractPriorityQueue(prithreshold, ties);
+				this.iteration++;
+				return;
+			}
+			
 			cStateFileCurr = outputHandle.getcStateFile(taskAttemptID, iteration);
 			cStateFileNext = outputHandle.getcStateFile(taskAttemptID, iteration+1);
 			
@@ -191,7 +276,7 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
 			DataInputBuffer cstateIn = new DataInputBuffer();
 			DataInputBuffer dataIn = new DataInputBuffer();
 			
-			samples.clear();
+			selector.clear();
 			V defaultistate = updater.resetiState();
 			while (istate_reader.next(keyIn, istateIn)) {
 				keyDeserializer.open(keyIn);
@@ -217,8 +302,9 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
 				//key = keyDeserializer.deserialize(key);
 				data = dataDeserializer.deserialize(data);
 				
-				P pri = updater.decidePriority(key, istate);
-				if(pri.compareTo(prithreshold) > 0){
+				double pri = updater.decidePriority(key, istate).getV();
+				V written = cstate;
+				if(pri > prithreshold || (pri == prithreshold && ties-- > 0)){
 					//LOG.info("key " + key + " value " + istate + " threshold " + prithreshold);
 					V accum = updater.updatecState(istate, cstate);
           
@@ -232,21 +318,17 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
             istate_writer.append(key, defaultistate);			
             
             activations++;
+            written = accum;
           }
 				}else{
 					istate_writer.append(key, istate);
 					cstate_writer.append(key, cstate);
 				}
 				
-				//sampling for topk extraction
-				if(++counter % checkInterval == 0){
-					samples.add(new KPRecord<K, P>(key, pri));
-				}
-				
+				//rank the written cstate for topk extraction
+				selector.add(updater.decidePriority(key, written).getV());
 			}
 			
-			LOG.info("we have collected samples " + samples.size() + " counter is " + counter);
-			
 			istate_reader.close();
 			cstate_reader.close();
 			static_reader.close();
@@ -267,6 +349,44 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
 		}
 	}
 	
+	/*
+	 * the paged version of generatePrioriyQueue, only the pages with pending
+	 * records are read and only the updated ones are written
+	 */
+	private void extractPriorityQueue(double prithreshold, long ties) throws IOException{
+		PriorityQueueWriter<K, V, D> priqueue_writer = new PriorityQueueWriter<K, V, D>(conf, localFs, priQueueFile, keyClass, valClass, dataClass, null, null);
+		long reads = table.pageReads;
+		long writes = table.pageWrites;
+		int pendingPages = table.pendingPages();
+		long extracted = 0;
+		
+		V defaultistate = updater.resetiState();
+		PagedStateTable<K, V, D>.Cursor cursor = table.cursor(true);
+		while(cursor.next()){
+			key = cursor.getKey(key);
+			istate = cursor.getiState(istate);
+			double pri = updater.decidePriority(key, istate).getV();
+			if(pri > prithreshold || (pri == prithreshold && ties-- > 0)){
+				cstate = cursor.getcState(cstate);
+				V accum = updater.updatecState(istate, cstate);
+				
+				//if no change, don't output
+				if(accum.compareTo(cstate) != 0){
+					cursor.setcState(accum);
+					data = cursor.getData(data);
+					priqueue_writer.append(key, istate, data);
+					cursor.setiState(defaultistate);
+					activations++;
+					extracted++;
+				}
+			}
+		}
+		priqueue_writer.close();
+		
+		LOG.info("iteration " + iteration + " extracted " + extracted + " records of " + pendingPages + " pending pages out of " + 
+				table.pages() + ", pages read " + (table.pageReads - reads) + " written " + (table.pageWrites - writes));
+	}
+	
 	private void writeIndexRecord(FSDataOutputStream indexOut,
 			FSDataOutputStream out, long start,
 			IFile.Writer<K, V> writer)
@@ -335,19 +455,24 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
 		
 		//before entering the lock area, check whether the cstate file for next iteration have been generated
 		cStateFileNext = outputHandle.getcStateFile(taskAttemptID, iteration);
-		while(!localFs.exists(cStateFileNext) || iteration < 2){
+		while((table == null && !localFs.exists(cStateFileNext)) || iteration < 2){
 			Thread.sleep(500);
 		}
 		
 		synchronized(synclock){
-			if(counter > Long.MAX_VALUE / 2) counter = 0;
+			if(table != null){
+				snapshotTable(index);
+				return;
+			}
 			
 			//LOG.info("OK, lock is released");
 			
 			cStateFileNext = outputHandle.getcStateFile(taskAttemptID, iteration);
 			Reader<K, V> cstate_reader = new Reader<K, V>(conf, localFs, cStateFileNext, null, null);
 			Path topkFile = new Path(topkDir + "/topKsnapshot-" + index);
-			IFile.PriorityWriter<P, K, V> topkwriter = new IFile.PriorityWriter<P, K, V>(conf, hdfs, topkFile, priClass, keyClass, valClass, null, null);
+			TopKSnapshotFile.Writer<P, K, V> topkwriter = new TopKSnapshotFile.Writer<P, K, V>(conf, hdfs, topkFile, priClass, keyClass, valClass);
+			double threshold = Double.NEGATIVE_INFINITY;
+			long ties = 0;
 	
 			DataInputBuffer keyIn = new DataInputBuffer();
 			DataInputBuffer cstateIn = new DataInputBuffer();
@@ -355,10 +480,9 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
 			progress = 0;
 			
 			Date start = new Date();
-			int cutindex = 0;
       V defaultiState = updater.resetiState();
 			
-			if(localRecords <= topk || localRecords <= SAMPLESIZE){
+			if(localRecords <= topk || selector.seen() <= topk){
 				while (cstate_reader.next(keyIn, cstateIn)) {
 					keyDeserializer.open(keyIn);
 					cstateDeserializer.open(cstateIn);
@@ -370,26 +494,8 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
 					progress += cstate.getV();
 				}
 			}else{
-				if(samples.size() == 0){
-					//in the interval period, we didn't finish one subpass, so samples set is empty
-					LOG.warn("the snapshot interval is set too short, please set it longer!!!");
-				}else{
-					Collections.sort(samples, 
-							new Comparator(){
-								public int compare(Object left, Object right){
-									P leftrecord = ((KPRecord<K, P>)left).pri;
-									P rightrecord = ((KPRecord<K, P>)right).pri;
-									return -leftrecord.compareTo(rightrecord);
-								}
-							});
-		
-					if(samples.size() == 0){
-						throw new IOException("no samples iteration " + iteration);
-					}
-					
-					cutindex = (int)(this.topk * samples.size() / localRecords) + 1;
-					topk_threshold = samples.get(cutindex-1>=0?cutindex-1:0).pri;
-				}
+				threshold = selector.select(topk);
+				ties = selector.ties(topk);
 			
 				while (cstate_reader.next(keyIn, cstateIn)) {
 					keyDeserializer.open(keyIn);
@@ -398,7 +504,8 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
 					cstate = cstateDeserializer.deserialize(cstate);
 					P pri = updater.decidePriority(key, cstate);
 					
-					if(pri.compareTo(topk_threshold) >= 0){
+					double p = pri.getV();
+					if(p > threshold || (p == threshold && ties-- > 0)){
 						topkwriter.append(pri, key, cstate);
 					}
 					
@@ -409,17 +516,76 @@ public class PriorityFilter<K extends Object, P extends Valueable, V extends Val
 			}
 			Date end = new Date();
 			long spendtime = (end.getTime() - start.getTime());
-			LOG.info("table size " + localRecords + " sample size " + samples.size() 
-				+ " cutindex " + cutindex + " threshold " + topk_threshold + " use time " + spendtime);
+			LOG.info("table size " + localRecords + " ranked " + selector.seen() + (selector.exact() ? "" : " sampled")
+				+ " topk " + topk + " threshold " + threshold + " use time " + spendtime);
 			
-			samples.clear();
 			cstate_reader.close();
-			topkwriter.close();
+			topkwriter.close(threshold);
 		}
 	}
 	
+	/*
+	 * the paged version of snapshot, the cstates of the whole table are ranked
+	 * first and the topk records written in a second scan
+	 */
+	private void snapshotTable(int index) throws IOException{
+		Path topkFile = new Path(topkDir + "/topKsnapshot-" + index);
+		TopKSnapshotFile.Writer<P, K, V> topkwriter = new TopKSnapshotFile.Writer<P, K, V>(conf, hdfs, topkFile, priClass, keyClass, valClass);
+		
+		progress = 0;
+		Date start = new Date();
+		V defaultiState = updater.resetiState();
+		
+		selector.clear();
+		PagedStateTable<K, V, D>.Cursor cursor = table.cursor(false);
+		while(cursor.next()){
+			key = cursor.getKey(key);
+			cstate = cursor.getcState(cstate);
+			selector.add(updater.decidePriority(key, cstate).getV());
+			if(cstate.getV() != defaultiState.getV()){
+				progress += cstate.getV();
+			}
+		}
+		
+		double threshold = Double.NEGATIVE_INFINITY;
+		long ties = 0;
+		boolean all = selector.seen() <= topk;
+		if(!all){
+			threshold = selector.select(topk);
+			ties = selector.ties(topk);
+		}
+		
+		cursor = table.cursor(false);
+		while(cursor.next()){
+			key = cursor.getKey(key);
+			cstate = cursor.getcState(cstate);
+			P pri = updater.decidePriority(key, cstate);
+			double p = pri.getV();
+			if(all || p > threshold || (p == threshold && ties-- > 0)){
+				topkwriter.append(pri, key, cstate);
+			}
+		}
+		
+		Date end = new Date();
+		LOG.info("table size " + localRecords + " ranked " + selector.seen() + (selector.exact() ? "" : " sampled")
+				+ " topk " + topk + " threshold " + threshold + " use time " + (end.getTime() - start.getTime()));
+		topkwriter.close(threshold);
+	}
+	
 	public double measureProgress() throws IOException{
 		synchronized(synclock){
+			if(table != null){
+				V defaultiState = updater.resetiState();
+				PagedStateTable<K, V, D>.Cursor cursor = table.cursor(false);
+				while(cursor.next()){
+					cstate = cursor.getcState(cstate);
+					if(cstate.getV() != defaultiState.getV()){
+						progress += cstate.getV();
+					}
+				}
+				return progress;
+			}
+			
 			Reader<K, V> cstate_reader = new Reader<K, V>(conf, localFs, cStateFileNext, null, null);
 			DataInputBuffer keyIn = new DataInputBuffer();
 			DataInputBuffer cstateIn = new DataInputBuffer();
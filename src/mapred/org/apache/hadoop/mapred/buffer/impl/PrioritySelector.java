@@ -0,0 +1,183 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Selects the k-th highest priority out of the priorities added since the last
+ * clear, to cut the top records of an iteration or of a snapshot. The
+ * priorities are kept in a primitive array and the cut is found by quickselect
+ * in expected linear time, no record object is created and nothing is sorted.
+ *
+ * Up to priter.select.limit priorities the cut is exact and ties(k) tells how
+ * many of the records equal to the cut belong to the top k, so exactly k
+ * records can be taken. Above the limit a uniform reservoir of limit
+ * priorities is kept instead, the rank of the cut is then off by about
+ * n/sqrt(limit) records of n.
+ */
+public class PrioritySelector {
+
+	private final int limit;
+	private double[] values;
+	private int size = 0;
+	private long seen = 0;
+	private Random rand = null;
+
+	//the last selection
+	private long selectedK = -1;
+	private double selected;
+	private long above;
+
+	public PrioritySelector(JobConf job) {
+		this(job.getInt("priter.select.limit", 1 << 22));
+	}
+
+	public PrioritySelector(int limit) {
+		this.limit = Math.max(limit, 1);
+		this.values = new double[Math.min(this.limit, 1024)];
+	}
+
+	public void clear() {
+		size = 0;
+		seen = 0;
+		selectedK = -1;
+	}
+
+	public void add(double pri) {
+		if(pri != pri) return;
+		selectedK = -1;
+		if(size < limit){
+			if(size == values.length) values = Arrays.copyOf(values, (int)Math.min((long)size * 2, limit));
+			values[size++] = pri;
+		}else{
+			if(rand == null) rand = new Random();
+			long r = (long)(rand.nextDouble() * (seen + 1));
+			if(r < limit) values[(int)r] = pri;
+		}
+		seen++;
+	}
+
+	/**
+	 * @return the number of priorities added
+	 */
+	public long seen() {
+		return seen;
+	}
+
+	/**
+	 * @return true if every added priority is kept, the selection is exact then
+	 */
+	public boolean exact() {
+		return seen == size;
+	}
+
+	/**
+	 * @param k from 1 to seen()
+	 * @return the k-th highest priority
+	 */
+	public double select(long k) {
+		if(seen == 0) throw new IllegalStateException("no priority to select from");
+		k = Math.min(Math.max(k, 1), seen);
+		if(k == selectedK) return selected;
+
+		//the rank in the kept values, scaled when they are a sample
+		int rank = exact() ? (int)k : (int)Math.min(Math.max(Math.round((double)k * size / seen), 1), size);
+		selected = select(values, 0, size, size - rank);
+
+		//the values after the cut are not lower than it
+		int greater = 0;
+		for(int i=size-rank+1; i<size; i++){
+			if(values[i] > selected) greater++;
+		}
+		above = exact() ? greater : Math.round((double)greater * seen / size);
+		selectedK = k;
+		return selected;
+	}
+
+	/**
+	 * @return how many records equal to select(k) are in the top k, the others
+	 * in the top k are higher than it
+	 */
+	public long ties(long k) {
+		select(k);
+		return Math.max(selectedK - above, 0);
+	}
+
+	/**
+	 * @return the k-th highest distinct priority, the lowest one if there are
+	 * less than k
+	 */
+	public double distinct(int k) {
+		if(seen == 0) throw new IllegalStateException("no priority to select from");
+		Arrays.sort(values, 0, size);
+		selectedK = -1;
+		int levels = 0;
+		double pri = values[size - 1];
+		for(int i=size-1; i>=0; i--){
+			if(i == size-1 || values[i] != values[i+1]){
+				pri = values[i];
+				if(++levels == k) break;
+			}
+		}
+		return pri;
+	}
+
+	/**
+	 * rearrange values[from, to) so that values[index] holds the value it would
+	 * hold in ascending order, lower values before it and higher ones after
+	 * @return values[index]
+	 */
+	public static double select(double[] values, int from, int to, int index) {
+		int lo = from;
+		int hi = to - 1;
+		while(hi - lo > 16){
+			int mid = (lo + hi) >>> 1;
+			double pivot = median(values[lo], values[mid], values[hi]);
+
+			//three way partition, ties with the pivot end up in [lt, gt]
+			int lt = lo, i = lo, gt = hi;
+			while(i <= gt){
+				double v = values[i];
+				if(v < pivot){
+					values[i++] = values[lt];
+					values[lt++] = v;
+				}else if(v > pivot){
+					values[i] = values[gt];
+					values[gt--] = v;
+				}else{
+					i++;
+				}
+			}
+			if(index < lt){
+				hi = lt - 1;
+			}else if(index > gt){
+				lo = gt + 1;
+			}else{
+				return pivot;
+			}
+		}
+
+		for(int i=lo+1; i<=hi; i++){
+			double v = values[i];
+			int j = i - 1;
+			while(j >= lo && values[j] > v){
+				values[j + 1] = values[j];
+				j--;
+			}
+			values[j + 1] = v;
+		}
+		return values[index];
+	}
+
+	private static double median(double a, double b, double c) {
+		if(a < b){
+			if(b < c) return b;
+			return a < c ? c : a;
+		}else{
+			if(a < c) return a;
+			return b < c ? c : b;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Decides how many records OutputPKVBuffer extracts per iteration. With
+ * priter.queue.adaptive the queue length is tuned while the job runs instead of
+ * being fixed by priter.queue.portion/length/uniqlength: every
+ * priter.queue.adaptive.epoch iterations the progress of the table
+ * (measureProgress) is compared with the one of the previous epoch, and the
+ * convergence per second decides the next step. The length keeps moving in the
+ * same direction while the rate improves; when it drops the controller turns
+ * back with a smaller step, so it settles around the best length and follows it
+ * when the workload changes.
+ *
+ * The signals are also kept as counters, for the static settings too: the
+ * extracted records, the spilled bytes sent to the map, the time the reduce
+ * spent updating and the rest of the iteration (map activation and transfer).
+ * QUEUE_LENGTH is the last decided length.
+ */
+public class QueueSizeController {
+	private static final Log LOG = LogFactory.getLog(QueueSizeController.class.getName());
+
+	public static enum Counter {
+		QUEUE_LENGTH,
+		QUEUE_GROWS,
+		QUEUE_SHRINKS,
+		EXTRACTED_RECORDS,
+		SPILL_BYTES,
+		UPDATE_MILLIS,
+		ACTIVATION_MILLIS
+	}
+
+	private final boolean adaptive;
+	private final Reporter reporter;
+	private final int epoch;
+	private final int minLength;
+	private final float initPortion;
+
+	//the decided length, 0 until the first extraction
+	private int length;
+	private int eligible = 0;
+	private double step;
+	private int direction = 1;
+
+	private long iterationStart = System.currentTimeMillis();
+	private long updateMillis = 0;
+	private int iterations = 0;
+	private long epochStart = System.currentTimeMillis();
+	private long epochExtracted = 0;
+	private long epochUpdateMillis = 0;
+	private double lastProgress = Double.NaN;
+	private double lastRate = -1;
+
+	public QueueSizeController(JobConf job, Reporter reporter) {
+		this.adaptive = job.getBoolean("priter.queue.adaptive", false);
+		this.reporter = reporter;
+		this.epoch = Math.max(job.getInt("priter.queue.adaptive.epoch", 4), 1);
+		this.minLength = Math.max(job.getInt("priter.queue.adaptive.min", 100), 1);
+		this.step = Math.max(job.getFloat("priter.queue.adaptive.step", 2f), 1.1);
+		this.length = Math.max(job.getInt("priter.queue.length", 0), 0);
+		this.initPortion = job.getFloat("priter.queue.portion", 0.2f);
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * @return the number of records to extract out of eligible ones
+	 */
+	public int queueLength(int eligible) {
+		this.eligible = eligible;
+		if(length == 0){
+			length = Math.max((int)(eligible * initPortion), minLength);
+			count(Counter.QUEUE_LENGTH, length);
+		}
+		return Math.min(length, eligible);
+	}
+
+	/**
+	 * the reduce spent millis updating the table in this iteration
+	 */
+	public void updated(long millis) {
+		updateMillis += millis;
+	}
+
+	/**
+	 * an iteration extracted records and spilled bytes for the map
+	 * @return true if the epoch is over and adjust should be called
+	 */
+	public boolean iterated(int records, long bytes) {
+		long now = System.currentTimeMillis();
+		long activationMillis = Math.max(now - iterationStart - updateMillis, 0);
+		count(Counter.EXTRACTED_RECORDS, records);
+		count(Counter.SPILL_BYTES, bytes);
+		count(Counter.UPDATE_MILLIS, updateMillis);
+		count(Counter.ACTIVATION_MILLIS, activationMillis);
+
+		epochExtracted += records;
+		epochUpdateMillis += updateMillis;
+		iterationStart = now;
+		updateMillis = 0;
+		return adaptive && ++iterations >= epoch;
+	}
+
+	/**
+	 * end the epoch with the current progress of the table and decide the next
+	 * queue length
+	 */
+	public void adjust(double progress) {
+		long now = System.currentTimeMillis();
+		long millis = Math.max(now - epochStart, 1);
+
+		if(!Double.isNaN(lastProgress) && length > 0){
+			double gained = Math.abs(progress - lastProgress);
+			double rate = gained * 1000 / millis;
+
+			//the last move made it worse, turn back with a smaller step
+			if(lastRate >= 0 && rate < lastRate){
+				direction = -direction;
+				step = Math.max(Math.sqrt(step), 1.1);
+			}
+
+			int old = length;
+			int next = direction > 0 ? (int)Math.ceil(length * step) : (int)(length / step);
+			int max = Math.max(eligible, minLength);
+			length = Math.min(Math.max(next, minLength), max);
+			count(length > old ? Counter.QUEUE_GROWS : Counter.QUEUE_SHRINKS, length != old ? 1 : 0);
+			count(Counter.QUEUE_LENGTH, length - old);
+
+			LOG.info("queue length " + old + " -> " + length + ": progress " + gained + " in " + millis + " ms (" +
+					rate + "/s, previous " + lastRate + "/s), " + (epochExtracted == 0 ? 0 : gained / epochExtracted) +
+					" per extracted record, update " + epochUpdateMillis + " ms of the epoch");
+			lastRate = rate;
+		}
+
+		lastProgress = progress;
+		epochStart = now;
+		epochExtracted = 0;
+		epochUpdateMillis = 0;
+		iterations = 0;
+	}
+
+	private void count(Counter counter, long amount) {
+		if(reporter != null && amount != 0) reporter.incrCounter(counter, amount);
+	}
+}
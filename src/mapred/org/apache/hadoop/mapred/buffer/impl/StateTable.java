@@ -0,0 +1,47 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import org.apache.hadoop.io.Valueable;
+import org.apache.hadoop.mapred.JobConfigurable;
+
+/**
+ * The reduce side state table of a prioritized iteration, mapping a key to its
+ * priority, iState and cState. OutputPKVBuffer picks the implementation with
+ * priter.statetable.class, or a primitive table when the key is IntWritable and
+ * the priority/state are both FloatWritable or both DoubleWritable.
+ *
+ * Implementations are not thread safe, callers synchronize on the table.
+ */
+public interface StateTable<K, P extends Valueable, V extends Valueable> extends JobConfigurable {
+
+	int size();
+
+	boolean containsKey(K key);
+
+	/**
+	 * the returned record may be a copy of the stored state, changes to it
+	 * must be written back with put.
+	 * @return the record of key, or null if key is not in the table
+	 */
+	PriorityRecord<P, V> get(K key);
+
+	/**
+	 * insert or overwrite the state of key. Object based tables keep the passed
+	 * priority and state instances, primitive tables copy their values, the key
+	 * is always copied so a reused key instance is fine.
+	 */
+	void put(K key, P priority, V iState, V cState);
+
+	/**
+	 * remove the state of key, used when live rebalancing moves key to another
+	 * partition
+	 * @return false if key is not in the table
+	 */
+	boolean remove(K key);
+
+	StateTableIterator<K, P, V> iterator();
+
+	/**
+	 * @return the bytes held by the table, or -1 if it is not known
+	 */
+	long memoryUsage();
+}
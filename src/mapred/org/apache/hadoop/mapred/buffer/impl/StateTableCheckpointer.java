@@ -0,0 +1,360 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Valueable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Binary checkpoints of a StateTable. A checkpoint is captured into memory while
+ * the caller holds the table lock, then written to the file system by a background
+ * thread, so an iteration only stalls for the serialization of the records. No
+ * checkpoint is ever skipped: a task rolls back to the checkpoint another task
+ * reported, so every task has to write the same iterations.
+ *
+ * If the table is an IncrementalStateTable, a checkpoint only holds the records
+ * changed since the previous one, and every priter.checkpoint.full.frequency-th
+ * checkpoint is a full one. Each checkpoint file is named after its iteration and
+ * starts with a header pointing to the previous checkpoint of its chain, load
+ * walks back to the full checkpoint and applies the chain forward.
+ *
+ * File layout: magic, iteration, snapshot, previous iteration (-1 for a full
+ * checkpoint), record count, then key, priority, iState, cState per record.
+ */
+public class StateTableCheckpointer<K, P extends Valueable, V extends Valueable> {
+	private static final Log LOG = LogFactory.getLog(StateTableCheckpointer.class.getName());
+
+	private static final int MAGIC = 0x50434b50;
+	private static final int FULL = -1;
+
+	private final JobConf job;
+	private final FileSystem fs;
+	private final String baseFile;
+	private final StateTable<K, P, V> table;
+	private final Class<K> keyClass;
+	private final Class<P> priClass;
+	private final Class<V> valClass;
+	private final boolean incremental;
+	private final boolean async;
+	private final int fullFreq;
+
+	//the last checkpoint written to the file system
+	private volatile int lastIteration = 0;
+	private volatile int lastSnapshot = 0;
+
+	//the last checkpoint captured, the next incremental one points to it
+	private int capturedIteration = FULL;
+	private int sinceFull = 0;
+	private volatile boolean forceFull = true;
+
+	//written checkpoint files, the previous chain is removed once a new full checkpoint is written
+	private List<Path> previousChain = new ArrayList<Path>();
+	private List<Path> currentChain = new ArrayList<Path>();
+
+	private Checkpoint pending = null;
+	private boolean writing = false;
+	private WriterThread writer = null;
+
+	private static class Checkpoint {
+		int iteration;
+		int snapshot;
+		int previous;
+		int count = 0;
+		DataOutputBuffer data;
+
+		Checkpoint(int iteration, int snapshot, int previous, int size) {
+			this.iteration = iteration;
+			this.snapshot = snapshot;
+			this.previous = previous;
+			this.data = new DataOutputBuffer(size);
+		}
+	}
+
+	private class WriterThread extends Thread {
+		WriterThread() {
+			super("state table checkpoint writer");
+			setDaemon(true);
+		}
+
+		public void run() {
+			while(true){
+				Checkpoint ckpt;
+				synchronized(StateTableCheckpointer.this){
+					try{
+						while(pending == null){
+							StateTableCheckpointer.this.wait();
+						}
+					}catch(InterruptedException e){
+						return;
+					}
+					ckpt = pending;
+					pending = null;
+					writing = true;
+				}
+
+				try{
+					write(ckpt);
+				}catch(IOException e){
+					e.printStackTrace();
+					//the chain is broken, start a new one
+					forceFull = true;
+				}finally{
+					synchronized(StateTableCheckpointer.this){
+						writing = false;
+						StateTableCheckpointer.this.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	public StateTableCheckpointer(JobConf job, FileSystem fs, String baseFile, StateTable<K, P, V> table,
+			Class<K> keyClass, Class<P> priClass, Class<V> valClass) {
+		this.job = job;
+		this.fs = fs;
+		this.baseFile = baseFile;
+		this.table = table;
+		this.keyClass = keyClass;
+		this.priClass = priClass;
+		this.valClass = valClass;
+		this.async = job.getBoolean("priter.checkpoint.async", true);
+		this.fullFreq = job.getInt("priter.checkpoint.full.frequency", 10);
+		this.incremental = job.getBoolean("priter.checkpoint.incremental", true) &&
+							(table instanceof IncrementalStateTable);
+
+		if(this.incremental){
+			((IncrementalStateTable<K, P, V>)table).trackChanges();
+		}
+	}
+
+	private Path file(int iteration) {
+		return new Path(baseFile + "-" + iteration);
+	}
+
+	/**
+	 * @return the iteration of the last checkpoint written to the file system
+	 */
+	public int lastIteration() {
+		return lastIteration;
+	}
+
+	public int lastSnapshot() {
+		return lastSnapshot;
+	}
+
+	/**
+	 * make the next checkpoint a full one, removed records are not in the change
+	 * set of an incremental one
+	 */
+	public void forceFull() {
+		forceFull = true;
+	}
+
+	/**
+	 * capture a checkpoint of the table, the caller must hold the table lock. If
+	 * the previous checkpoint is still being written, wait for it first.
+	 */
+	public void checkpoint(int iteration, int snapshot) throws IOException {
+		synchronized(this){
+			if(pending != null || writing){
+				LOG.info("checkpoint of iteration " + capturedIteration + " is still being written, " +
+						"iteration " + iteration + " waits for it");
+				waitForWriter();
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		boolean full = forceFull || !incremental || sinceFull >= fullFreq;
+		StateTableIterator<K, P, V> it;
+		int records;
+		if(full){
+			it = table.iterator();
+			records = table.size();
+		}else{
+			it = ((IncrementalStateTable<K, P, V>)table).changedIterator();
+			records = ((IncrementalStateTable<K, P, V>)table).changedSize();
+		}
+
+		Checkpoint ckpt = new Checkpoint(iteration, snapshot, full ? FULL : capturedIteration,
+				(int)Math.min(records * 32L, Integer.MAX_VALUE - 8));
+		while(it.next()){
+			((Writable)it.getKey()).write(ckpt.data);
+			it.getPriority().write(ckpt.data);
+			it.getiState().write(ckpt.data);
+			it.getcState().write(ckpt.data);
+			ckpt.count++;
+		}
+
+		if(incremental){
+			((IncrementalStateTable<K, P, V>)table).clearChanges();
+		}
+		sinceFull = full ? 1 : sinceFull + 1;
+		forceFull = false;
+		capturedIteration = iteration;
+
+		LOG.info("captured " + (full ? "full" : "incremental") + " checkpoint of iteration " + iteration +
+				" with " + ckpt.count + " records in " + ckpt.data.getLength() + " bytes takes " +
+				(System.currentTimeMillis() - start) + " ms");
+
+		if(async){
+			synchronized(this){
+				if(writer == null){
+					writer = new WriterThread();
+					writer.start();
+				}
+				pending = ckpt;
+				notifyAll();
+			}
+		}else{
+			try{
+				write(ckpt);
+			}catch(IOException e){
+				forceFull = true;
+				throw e;
+			}
+		}
+	}
+
+	private void write(Checkpoint ckpt) throws IOException {
+		long start = System.currentTimeMillis();
+		Path path = file(ckpt.iteration);
+		FSDataOutputStream out = fs.create(path, true);
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(ckpt.iteration);
+			out.writeInt(ckpt.snapshot);
+			out.writeInt(ckpt.previous);
+			out.writeInt(ckpt.count);
+			out.write(ckpt.data.getData(), 0, ckpt.data.getLength());
+		}finally{
+			out.close();
+		}
+
+		lastSnapshot = ckpt.snapshot;
+		lastIteration = ckpt.iteration;
+
+		if(ckpt.previous == FULL){
+			for(Path old : previousChain){
+				if(!old.equals(path)) fs.delete(old, false);
+			}
+			previousChain = currentChain;
+			currentChain = new ArrayList<Path>();
+		}
+		currentChain.add(path);
+
+		LOG.info("dumped StateTable checkpoint " + path + " with " + ckpt.count + " records takes " +
+				(System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * block until the checkpoints captured so far are written
+	 */
+	public synchronized void waitForWriter() throws IOException {
+		try{
+			while(pending != null || writing){
+				wait();
+			}
+		}catch(InterruptedException e){
+			throw new IOException("interrupted while waiting for the checkpoint writer");
+		}
+	}
+
+	/**
+	 * load the state table checkpointed at the given iteration into the table
+	 * @return the number of records loaded
+	 */
+	public int load(int iteration) throws IOException {
+		waitForWriter();
+		long start = System.currentTimeMillis();
+
+		LinkedList<Integer> chain = new LinkedList<Integer>();
+		int snapshot = 0;
+		int iter = iteration;
+		while(true){
+			DataInputStream in = new DataInputStream(fs.open(file(iter)));
+			try{
+				if(in.readInt() != MAGIC){
+					throw new IOException(file(iter) + " is not a state table checkpoint");
+				}
+				if(in.readInt() != iter){
+					throw new IOException(file(iter) + " does not hold iteration " + iter);
+				}
+				int snap = in.readInt();
+				if(iter == iteration) snapshot = snap;
+				chain.addFirst(iter);
+				iter = in.readInt();
+			}finally{
+				in.close();
+			}
+			if(iter == FULL) break;
+		}
+
+		//primitive tables copy the values, other tables keep the instances
+		boolean reuse = (table instanceof NumericStateTable);
+		K key = ReflectionUtils.newInstance(keyClass, job);
+		P pri = ReflectionUtils.newInstance(priClass, job);
+		V iState = ReflectionUtils.newInstance(valClass, job);
+		V cState = ReflectionUtils.newInstance(valClass, job);
+
+		int count = 0;
+		synchronized(table){
+			for(int ckptIter : chain){
+				DataInputStream in = new DataInputStream(new BufferedInputStream(fs.open(file(ckptIter)), 1 << 16));
+				try{
+					in.readInt();
+					in.readInt();
+					in.readInt();
+					in.readInt();
+					int records = in.readInt();
+					for(int i=0; i<records; i++){
+						if(!reuse){
+							key = ReflectionUtils.newInstance(keyClass, job);
+							pri = ReflectionUtils.newInstance(priClass, job);
+							iState = ReflectionUtils.newInstance(valClass, job);
+							cState = ReflectionUtils.newInstance(valClass, job);
+						}
+						((Writable)key).readFields(in);
+						pri.readFields(in);
+						iState.readFields(in);
+						cState.readFields(in);
+						table.put(key, pri, iState, cState);
+					}
+					count += records;
+				}finally{
+					in.close();
+				}
+			}
+
+			//the loaded state is the base of the next checkpoint, which starts a new chain
+			if(incremental){
+				((IncrementalStateTable<K, P, V>)table).clearChanges();
+			}
+			capturedIteration = iteration;
+			forceFull = true;
+			lastIteration = iteration;
+			lastSnapshot = snapshot;
+			previousChain = new ArrayList<Path>();
+			currentChain = new ArrayList<Path>();
+			for(int ckptIter : chain){
+				currentChain.add(file(ckptIter));
+			}
+		}
+
+		LOG.info("loaded StateTable checkpoint of iteration " + iteration + " from " + chain.size() +
+				" files with " + count + " records takes " + (System.currentTimeMillis() - start) + " ms");
+		return count;
+	}
+}
@@ -1,12 +1,21 @@
 package org.apache.hadoop.mapred.buffer.impl;
 
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.Valueable;
 
-public interface StateTableIterator<K extends Writable, V extends Writable>  {
+/**
+ * Cursor over a StateTable. The returned key and values may be instances reused
+ * by the cursor, they are only valid until the next call of next(). The setters
+ * change the record under the cursor, the table must not be structurally
+ * modified while iterating.
+ */
+public interface StateTableIterator<K, P extends Valueable, V extends Valueable>  {
 
-	void performTerminationCheck();
+	boolean next();
 	K getKey();
+	P getPriority();
 	V getiState();
 	V getcState();
-	boolean next();
+	void setPriority(P priority);
+	void setiState(V iState);
+	void setcState(V cState);
 }
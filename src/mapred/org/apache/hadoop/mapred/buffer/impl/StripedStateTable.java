@@ -0,0 +1,274 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import org.apache.hadoop.io.Valueable;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * State table split into stripes by the hash of the key, each
+ * stripe a table of its own and locked on its own, so the update threads of a
+ * parallel reduce (priter.reduce.threads) only contend on the same stripe.
+ *
+ * Locking: an update of a key synchronizes on stripe(key), get, put and
+ * containsKey lock the stripe by themselves. Whole table operations (the
+ * iterators, indexAbove, the change tracking) synchronize on the striped table
+ * as before; their cursors only change values, never the structure of a stripe,
+ * so a reader holding just a stripe lock, like the snapshot, is never broken by
+ * them.
+ *
+ * Created by create(stripes): when the stripes are NumericStateTables the
+ * striped table is indexed and incremental too, topIterator merges the stripe
+ * indexes by their top priority.
+ */
+public class StripedStateTable<K, P extends Valueable, V extends Valueable> implements StateTable<K, P, V> {
+
+	protected final StateTable<K, P, V>[] stripes;
+
+	protected StripedStateTable(StateTable<K, P, V>[] stripes) {
+		if(stripes.length == 0){
+			throw new IllegalArgumentException("no stripes");
+		}
+		this.stripes = stripes;
+	}
+
+	public static <K, P extends Valueable, V extends Valueable> StripedStateTable<K, P, V> create(StateTable<K, P, V>[] stripes) {
+		for(StateTable<K, P, V> stripe : stripes){
+			if(!(stripe instanceof NumericStateTable)) return new StripedStateTable<K, P, V>(stripes);
+		}
+		return new Indexed<K, P, V>(stripes);
+	}
+
+	@Override
+	public void configure(JobConf job) {
+		//the stripes are configured when they are created
+	}
+
+	public int stripes() {
+		return stripes.length;
+	}
+
+	/**
+	 * the hash modulo the stripe count picks the stripe, the primitive tables place a key
+	 * by the high bits of its multiplied hash, so the keys of a stripe still spread
+	 * over all of its slots
+	 */
+	public int stripeOf(K key) {
+		int h = key.hashCode();
+		return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % stripes.length;
+	}
+
+	public StateTable<K, P, V> stripe(int i) {
+		return stripes[i];
+	}
+
+	public StateTable<K, P, V> stripe(K key) {
+		return stripes[stripeOf(key)];
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for(StateTable<K, P, V> stripe : stripes){
+			synchronized(stripe){
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(K key) {
+		StateTable<K, P, V> stripe = stripe(key);
+		synchronized(stripe){
+			return stripe.containsKey(key);
+		}
+	}
+
+	@Override
+	public PriorityRecord<P, V> get(K key) {
+		StateTable<K, P, V> stripe = stripe(key);
+		synchronized(stripe){
+			return stripe.get(key);
+		}
+	}
+
+	@Override
+	public void put(K key, P priority, V iState, V cState) {
+		StateTable<K, P, V> stripe = stripe(key);
+		synchronized(stripe){
+			stripe.put(key, priority, iState, cState);
+		}
+	}
+
+	@Override
+	public boolean remove(K key) {
+		StateTable<K, P, V> stripe = stripe(key);
+		synchronized(stripe){
+			return stripe.remove(key);
+		}
+	}
+
+	@Override
+	public StateTableIterator<K, P, V> iterator() {
+		StateTableIterator<K, P, V>[] its = new StateTableIterator[stripes.length];
+		for(int i=0; i<stripes.length; i++){
+			its[i] = stripes[i].iterator();
+		}
+		return new Chain<K, P, V>(its);
+	}
+
+	@Override
+	public long memoryUsage() {
+		long bytes = 0;
+		for(StateTable<K, P, V> stripe : stripes){
+			long stripeBytes = stripe.memoryUsage();
+			if(stripeBytes < 0) return -1;
+			bytes += stripeBytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * cursor visiting the cursors of the stripes one after the other
+	 */
+	protected static class Chain<K, P extends Valueable, V extends Valueable> implements StateTableIterator<K, P, V> {
+		private final StateTableIterator<K, P, V>[] its;
+		private int current = 0;
+
+		Chain(StateTableIterator<K, P, V>[] its) {
+			this.its = its;
+		}
+
+		public boolean next() {
+			while(current < its.length){
+				if(its[current].next()) return true;
+				current++;
+			}
+			return false;
+		}
+		public K getKey() { return its[current].getKey(); }
+		public P getPriority() { return its[current].getPriority(); }
+		public V getiState() { return its[current].getiState(); }
+		public V getcState() { return its[current].getcState(); }
+		public void setPriority(P priority) { its[current].setPriority(priority); }
+		public void setiState(V iState) { its[current].setiState(iState); }
+		public void setcState(V cState) { its[current].setcState(cState); }
+	}
+
+	/**
+	 * striped table of NumericStateTables, indexed and incremental like its stripes
+	 */
+	private static class Indexed<K, P extends Valueable, V extends Valueable> extends StripedStateTable<K, P, V>
+			implements IndexedStateTable<K, P, V>, IncrementalStateTable<K, P, V> {
+
+		Indexed(StateTable<K, P, V>[] stripes) {
+			super(stripes);
+		}
+
+		private IndexedStateTable<K, P, V> indexed(int i) {
+			return (IndexedStateTable<K, P, V>)stripes[i];
+		}
+
+		private IncrementalStateTable<K, P, V> incremental(int i) {
+			return (IncrementalStateTable<K, P, V>)stripes[i];
+		}
+
+		@Override
+		public void indexAbove(P priority) {
+			for(int i=0; i<stripes.length; i++){
+				indexed(i).indexAbove(priority);
+			}
+		}
+
+		@Override
+		public int activeSize() {
+			int size = 0;
+			for(int i=0; i<stripes.length; i++){
+				int active = indexed(i).activeSize();
+				if(active < 0) return -1;
+				size += active;
+			}
+			return size;
+		}
+
+		@Override
+		public double topPriority() {
+			double top = Double.NEGATIVE_INFINITY;
+			for(int i=0; i<stripes.length; i++){
+				top = Math.max(top, indexed(i).topPriority());
+			}
+			return top;
+		}
+
+		/**
+		 * each step takes the top of the stripe with the highest top priority, so
+		 * a record costs O(log N + stripes)
+		 */
+		@Override
+		public StateTableIterator<K, P, V> topIterator() {
+			final StateTableIterator<K, P, V>[] tops = new StateTableIterator[stripes.length];
+			for(int i=0; i<stripes.length; i++){
+				tops[i] = indexed(i).topIterator();
+			}
+
+			return new StateTableIterator<K, P, V>() {
+				private StateTableIterator<K, P, V> cur = null;
+
+				public boolean next() {
+					int best = -1;
+					double top = Double.NEGATIVE_INFINITY;
+					for(int i=0; i<stripes.length; i++){
+						double pri = indexed(i).topPriority();
+						if(pri > top){
+							best = i;
+							top = pri;
+						}
+					}
+					if(best < 0) return false;
+					cur = tops[best];
+					return cur.next();
+				}
+				public K getKey() { return cur.getKey(); }
+				public P getPriority() { return cur.getPriority(); }
+				public V getiState() { return cur.getiState(); }
+				public V getcState() { return cur.getcState(); }
+				public void setPriority(P priority) { cur.setPriority(priority); }
+				public void setiState(V iState) { cur.setiState(iState); }
+				public void setcState(V cState) { cur.setcState(cState); }
+			};
+		}
+
+		@Override
+		public void trackChanges() {
+			for(int i=0; i<stripes.length; i++){
+				incremental(i).trackChanges();
+			}
+		}
+
+		@Override
+		public int changedSize() {
+			int size = 0;
+			for(int i=0; i<stripes.length; i++){
+				int changed = incremental(i).changedSize();
+				if(changed < 0) return -1;
+				size += changed;
+			}
+			return size;
+		}
+
+		@Override
+		public StateTableIterator<K, P, V> changedIterator() {
+			StateTableIterator<K, P, V>[] its = new StateTableIterator[stripes.length];
+			for(int i=0; i<stripes.length; i++){
+				its[i] = incremental(i).changedIterator();
+			}
+			return new Chain<K, P, V>(its);
+		}
+
+		@Override
+		public void clearChanges() {
+			for(int i=0; i<stripes.length; i++){
+				incremental(i).clearChanges();
+			}
+		}
+	}
+}
@@ -5,10 +5,9 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -19,10 +18,15 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.Getable;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.DeltaCombiner;
 import org.apache.hadoop.mapred.FileHandle;
 import org.apache.hadoop.mapred.IFile;
 import org.apache.hadoop.mapred.JobConf;
@@ -155,6 +159,14 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 		}
 		
 		public synchronized OutputFile mergeStream(long sequence) throws IOException {
+			return mergeStream(sequence, 0, true, false);
+		}
+		
+		/**
+		 * Merge the spills into a chunk of the stream sequence. With empty set an
+		 * empty file is made when there is no spill, it ends a pipelined sequence.
+		 */
+		public synchronized OutputFile mergeStream(long sequence, int chunk, boolean last, boolean empty) throws IOException {
 			List<PartitionBufferFile> mergeSpills = new ArrayList<PartitionBufferFile>();
 			long dataSize = 0;
 			long indexSize = partitions * MAP_OUTPUT_INDEX_RECORD_LENGTH;
@@ -171,7 +183,7 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 				}
 			}
 			
-			if (mergeSpills.size() == 0) {
+			if (mergeSpills.size() == 0 && !empty) {
 				LOG.info("Merge stream: no spill files.");
 				return null;
 			}
@@ -182,8 +194,8 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 			PartitionBufferFile snapshot = new PartitionBufferFile(-1, dataFile, indexFile, progress, eof);
 
 			merge(mergeSpills, snapshot);
-			LOG.info("Stream snapshot size " + snapshot.dataSize());
-			return new OutputFile(taskid, sequence, snapshot.data, snapshot.index, partitions);
+			LOG.info("Stream snapshot size " + snapshot.dataSize() + " chunk " + chunk);
+			return new OutputFile(taskid, sequence, chunk, last, snapshot.data, snapshot.index, partitions);
 		}
 
 		private void merge(List<PartitionBufferFile> spills, PartitionBufferFile output) throws IOException {
@@ -533,10 +545,18 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 	private byte[] kvbuffer;           // main output buffer
 	private long kvbufferSize = 0;
 	
-	private Map<Integer, ArrayList<Integer>> partitionMap;
+	// records of a partition are chained through NEXT in collection order, -1 ends a chain
+	private final int[] partitionHead;
+	private final int[] partitionTail;
+	
+	// map side combine of prioritized iteration outputs
+	private final DeltaCombiner deltaCombiner;
+	private DeltaAggregate[] aggregates;
 	private static final int KEYSTART = 0;  // key offset in acct
 	private static final int VALSTART = 1;  // val offset in acct
-	private static final int ACCTSIZE = 2;  // total #fields in acct
+	private static final int VALEND = 2;    // val end in acct
+	private static final int NEXT = 3;      // next record of the partition in acct
+	private static final int ACCTSIZE = 4;  // total #fields in acct
 	private static final int RECSIZE =
 		(ACCTSIZE + 1) * 4;  // acct bytes per record
 
@@ -564,6 +584,14 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 	private int iterative_spill_bufsize = 0;
 	public int iteration = 0;
 	
+	//pipelined mode, the output of an iteration is streamed in chunks while the map activates
+	private final boolean pipelined;
+	private final long pipelineBytes;
+	private final long pipelineInterval;
+	private int chunk = 0;
+	private int pipelineCheck = 0;
+	private long lastChunk = System.currentTimeMillis();
+	
 	@SuppressWarnings("unchecked")
 	public UnSortOutputBuffer(BufferUmbilicalProtocol umbilical, Task task, JobConf job, 
 					Reporter reporter, Progress progress, boolean pipeline,
@@ -642,10 +670,72 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 		//just for iterative MapReduce
 		this.iterative_spill_bufsize = job.getInt("mapred.iterative.map.spillsize", 50000);
 		
-		partitionMap = new HashMap<Integer, ArrayList<Integer>>();
+		boolean async = job.getBoolean("priter.job.async.time", false) || job.getBoolean("priter.job.async.self", false);
+		this.pipelined = job.getBoolean("priter.pipeline", false) && taskid.isMap() && !async;
+		this.pipelineBytes = job.getLong("priter.pipeline.bytes", 4 << 20);
+		this.pipelineInterval = job.getLong("priter.pipeline.interval", 1000);
+		if(this.pipelined){
+			LOG.info("map output is pipelined in chunks of " + pipelineBytes + " bytes or " + pipelineInterval + " ms");
+		}else if(job.getBoolean("priter.pipeline", false)){
+			LOG.warn("priter.pipeline is ignored, asynchronous iterations count whole map outputs");
+		}
+		
+		partitionHead = new int[partitions];
+		partitionTail = new int[partitions];
+		Arrays.fill(partitionHead, -1);
+		Arrays.fill(partitionTail, -1);
+		
+		Class<? extends DeltaCombiner> deltaCombinerClass = job.getDeltaCombinerClass();
+		if(deltaCombinerClass != null){
+			if(keyClass != IntWritable.class){
+				throw new IOException("delta combiner needs IntWritable keys, not " + keyClass.getName());
+			}
+			if(valClass != IntWritable.class && valClass != FloatWritable.class && valClass != DoubleWritable.class){
+				throw new IOException("delta combiner needs Int/Float/DoubleWritable values, not " + valClass.getName());
+			}
+			this.deltaCombiner = ReflectionUtils.newInstance(deltaCombinerClass, job);
+			this.aggregates = new DeltaAggregate[partitions];
+			int expected = job.getInt("priter.combiner.capacity", 1024);
+			for(int i=0; i<partitions; i++){
+				aggregates[i] = new DeltaAggregate(deltaCombiner, valClass, expected);
+			}
+			LOG.info("map outputs are combined by " + deltaCombinerClass.getName());
+		}else{
+			this.deltaCombiner = null;
+		}
+	}
+	
+	/**
+	 * Move the combined outputs into the collection buffer, where the 
+	 * following spill picks them up.
+	 */
+	private void flushCombined() throws IOException {
+		if(deltaCombiner == null) return;
+		
+		IntWritable key = new IntWritable();
+		V value = ReflectionUtils.newInstance(valClass, job);
+		long collected = 0;
+		long combined = 0;
 		for(int i=0; i<partitions; i++){
-			ArrayList<Integer> kvoffset = new ArrayList<Integer>();
-			partitionMap.put(i, kvoffset);
+			DeltaAggregate aggregate = aggregates[i];
+			for(int slot = aggregate.nextSlot(0); slot >= 0; slot = aggregate.nextSlot(slot + 1)){
+				key.set(aggregate.getKey(slot));
+				double v = aggregate.getValue(slot);
+				if(value instanceof FloatWritable){
+					((FloatWritable)value).set((float)v);
+				}else if(value instanceof DoubleWritable){
+					((DoubleWritable)value).set(v);
+				}else{
+					((IntWritable)value).set((int)v);
+				}
+				bufferRecord((K)key, value, i);
+			}
+			collected += aggregate.collected();
+			combined += aggregate.size();
+			aggregate.clear();
+		}
+		if(collected > 0){
+			LOG.info("delta combiner reduced " + collected + " map outputs to " + combined + " records");
 		}
 	}
 
@@ -686,10 +776,7 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 		}
 		
 		eof = false;
-		bufindex = 0;
-		bufvoid  = kvbuffer.length;
-		kvstart = kvend = kvindex = 0;
-		bufstart = bufend = bufindex = bufmark = 0;
+		resetCollection();
 
 		if (restart) {
 			LOG.info("Clear spill files.");
@@ -714,6 +801,7 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 
 	public synchronized OutputFile close() throws IOException {
 		LOG.debug("PartitionBuffer: closed called at progress " + progress.get());
+		flushCombined();
 		this.eof = true;
 		OutputFile finalOutput = flush();
 		return finalOutput;
@@ -721,6 +809,7 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 	
 	public synchronized OutputFile snapshot() throws IOException {
 		LOG.debug("JBuffer " + taskid + " performing snapshot. progress " + progress.get());
+		flushCombined();
 		spillThread.forceSpill(-1);
 		OutputFile snapshot = merger.mergeSnapshot();
 		return snapshot;
@@ -728,6 +817,7 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 	
 	public synchronized void stream(long sequence, boolean reset) throws IOException {
 		LOG.info("JBuffer " + taskid + " performing stream snapshot. sequence " + sequence);
+		flushCombined();
 		spillThread.forceSpill(-1);
 		OutputFile stream = merger.mergeStream(sequence);
 		if (stream != null ) {
@@ -743,12 +833,17 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 	
 	//new added method, should try
 	public synchronized void iterate() throws IOException {
+		flushCombined();
 		synchronized(spillLock){
 			//spillThread.forceSpill(iteration);
 			long outputstart = new Date().getTime();
 			spillThread.forceSpill(-1);
-			OutputFile stream = merger.mergeStream(iteration);
+			//the last chunk of a pipelined iteration ends it even if it is empty
+			OutputFile stream = merger.mergeStream(iteration, chunk, true, chunk > 0);
+			if(chunk > 0) LOG.info("iteration " + iteration + " pipelined in " + (chunk + 1) + " chunks");
 			iteration++;
+			chunk = 0;
+			lastChunk = System.currentTimeMillis();
 			
 			if (stream != null ) {				
 				umbilical.output(stream);
@@ -758,12 +853,9 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 		}
 
 		long resetstart = new Date().getTime();
-		//reset
+		//reset, the buffer is reused by the next iteration
 		eof = false;
-		bufindex = 0;
-		bufvoid  = kvbuffer.length;
-		kvstart = kvend = kvindex = 0;
-		bufstart = bufend = bufindex = bufmark = 0;
+		resetCollection();
 	
 		for (PartitionBufferFile spill : spills) {
 			try {
@@ -775,19 +867,68 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 		}
 		spills.clear();
 
-		kvbuffer = null;
-		kvbuffer = new byte[(int)kvbufferSize];
 		long resetend = new Date().getTime();
 		LOG.info("reset use time " + (resetend-resetstart));
 	}
 	
 	
+	/**
+	 * In pipelined mode, stream the records buffered so far as a chunk of the
+	 * current iteration once they reach priter.pipeline.bytes or
+	 * priter.pipeline.interval ms passed since the last chunk, so the reduces
+	 * update their state while this map is still activating. iterate() sends
+	 * the last chunk, which ends the iteration.
+	 */
+	private void pipeline() throws IOException {
+		if(!pipelined) return;
+		
+		long pending = buffered();
+		if(deltaCombiner != null){
+			for(int i=0; i<partitions; i++){
+				pending += aggregates[i].size() * 12L;
+			}
+		}
+		if(pending == 0) return;
+		if(pending < pipelineBytes){
+			//the clock is only read every 1024 records
+			if((++pipelineCheck & 1023) != 0 || System.currentTimeMillis() - lastChunk < pipelineInterval) return;
+		}
+		
+		flushCombined();
+		synchronized(spillLock){
+			spillThread.forceSpill(-1);
+			OutputFile stream = merger.mergeStream(iteration, chunk, false, false);
+			if(stream == null) return;
+			umbilical.output(stream);
+			chunk++;
+			lastChunk = System.currentTimeMillis();
+			
+			//the spills are merged into the chunk, the buffer is reused for the next one
+			resetCollection();
+			for (PartitionBufferFile spill : spills) {
+				try {
+					spill.delete();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			spills.clear();
+		}
+	}
+	
+	/**
+	 * @return the bytes of the records in the collection buffer
+	 */
+	private long buffered() {
+		return bufindex >= bufstart ? bufindex - bufstart : (bufvoid - bufstart) + bufindex;
+	}
+	
 	public synchronized void clear() {	
 		eof = false;
-		bufindex = 0;
-		bufvoid  = kvbuffer.length;
-		kvstart = kvend = kvindex = 0;
-		bufstart = bufend = bufindex = bufmark = 0;
+		if (kvbuffer == null || kvbuffer.length != this.iterative_spill_bufsize) {
+			kvbuffer = new byte[this.iterative_spill_bufsize];
+		}
+		resetCollection();
 	
 		LOG.info("Clear spill files.");
 		/* reset buffer variables. */
@@ -800,9 +941,6 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 			}
 		}
 		spills.clear();
-
-		kvbuffer = null;
-		kvbuffer = new byte[this.iterative_spill_bufsize];
 	}
 	
 	public synchronized void free() {
@@ -825,38 +963,39 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 			throw new IOException("Method not for use with more than one partition");
 		}
 
-		try {
-			int keystart = bufindex;
-			bb.write(key.getData(), key.getPosition(), key.getLength() - key.getPosition());
-			if (bufindex < keystart) {
-				// wrapped the key; reset required
-				bb.reset();
-				keystart = 0;
-			}
+		bufferRecord(key, value, 0);
+	}
+	
+	private void bufferRecord(DataInputBuffer key, DataInputBuffer value, int partition) throws IOException {
+		synchronized(spillLock){
+			try {
+				int keystart = bufindex;
+				bb.write(key.getData(), key.getPosition(), key.getLength() - key.getPosition());
+				if (bufindex < keystart) {
+					// wrapped the key; reset required
+					bb.reset();
+					keystart = 0;
+				}
 
-			// copy value bytes into buffer
-			int valstart = bufindex;
-			bb.write(value.getData(), value.getPosition(), value.getLength() - value.getPosition());
+				// copy value bytes into buffer
+				int valstart = bufindex;
+				bb.write(value.getData(), value.getPosition(), value.getLength() - value.getPosition());
+
+				if (keystart == bufindex) {
+					// if emitted records make no writes, it's possible to wrap
+					// accounting space without notice
+					bb.write(new byte[0], 0, 0);
+				}
+				int valend = bb.markRecord();
 
-			if (keystart == bufindex) {
-				// if emitted records make no writes, it's possible to wrap
-				// accounting space without notice
-				bb.write(new byte[0], 0, 0);
+
+				// update accounting info
+				index(partition, keystart, valstart, valend);
+			} catch (MapBufferTooSmallException e) {
+				LOG.info("Record too large for in-memory buffer: " + e.getMessage());
+				spillSingleRecord(key, value);
+				return;
 			}
-			int valend = bb.markRecord();
-
-
-			// update accounting info
-			int ind = kvindex * ACCTSIZE;
-			kvoffsets[kvindex] = ind;
-			partitionMap.get(0).add(kvoffsets[kvindex]);
-			kvindices[ind + KEYSTART] = keystart;
-			kvindices[ind + VALSTART] = valstart;
-			kvindex = (kvindex + 1) % kvoffsets.length;
-		} catch (MapBufferTooSmallException e) {
-			LOG.info("Record too large for in-memory buffer: " + e.getMessage());
-			spillSingleRecord(key, value);
-			return;
 		}
 	}
 
@@ -878,6 +1017,58 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 			).initCause(sortSpillException);
 		}
 		
+		int partition = partitioner.getPartition(key, value, partitions);
+		if (partition < 0 || partition >= partitions) {
+			throw new IOException("Illegal partition for " + key + " (" +
+					partition + ")");
+		}
+		
+		if(deltaCombiner != null){
+			aggregates[partition].add(((IntWritable)key).get(), ((Getable)value).getV());
+		}else{
+			bufferRecord(key, value, partition);
+		}
+		pipeline();
+	}
+	
+	/**
+	 * @return a buffer for the map outputs of an activation thread, see merge
+	 */
+	public LocalOutputBuffer<K, V> newLocalBuffer() throws IOException {
+		return new LocalOutputBuffer<K, V>(job, keyClass, valClass, partitions, deltaCombiner);
+	}
+	
+	/**
+	 * move the records collected by an activation thread into this buffer
+	 */
+	public synchronized void merge(LocalOutputBuffer<K, V> local) throws IOException {
+		if (sortSpillException != null) {
+			throw (IOException)new IOException("Spill failed"
+			).initCause(sortSpillException);
+		}
+		
+		if(local.aggregates != null){
+			for(int i=0; i<partitions; i++){
+				aggregates[i].merge(local.aggregates[i]);
+			}
+			pipeline();
+			return;
+		}
+		
+		DataInputBuffer in = new DataInputBuffer();
+		DataInputBuffer key = new DataInputBuffer();
+		DataInputBuffer value = new DataInputBuffer();
+		for(int i=0; i<partitions; i++){
+			local.reset(i, in);
+			while(local.next(in, key, value)){
+				bufferRecord(key, value, i);
+			}
+			local.records[i].reset();
+		}
+		pipeline();
+	}
+	
+	private void bufferRecord(K key, V value, int partition) throws IOException {
 		synchronized(spillLock){
 			try {
 				// serialize key bytes into buffer
@@ -900,20 +1091,9 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 				}
 
 				//LOG.info("map out: " + key + " : " + value);
-				
-				int partition = partitioner.getPartition(key, value, partitions);
-				if (partition < 0 || partition >= partitions) {
-					throw new IOException("Illegal partition for " + key + " (" +
-							partition + ")");
-				}
 
 				// update accounting info
-				int ind = kvindex * ACCTSIZE;
-				kvoffsets[kvindex] = ind;
-				partitionMap.get(partition).add(kvoffsets[kvindex]);
-				kvindices[ind + KEYSTART] = keystart;
-				kvindices[ind + VALSTART] = valstart;
-				kvindex = (kvindex + 1) % kvoffsets.length;
+				index(partition, keystart, valstart, valend);
 			} catch (MapBufferTooSmallException e) {
 				LOG.info("Record too large for in-memory buffer: " + e.getMessage());
 				spillSingleRecord(key, value);
@@ -924,6 +1104,38 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 
 
 
+	/**
+	 * account the record just written to the buffer and chain it to the
+	 * records of its partition
+	 */
+	private void index(int partition, int keystart, int valstart, int valend) {
+		int ind = kvindex * ACCTSIZE;
+		kvoffsets[kvindex] = ind;
+		kvindices[ind + KEYSTART] = keystart;
+		kvindices[ind + VALSTART] = valstart;
+		kvindices[ind + VALEND] = valend;
+		kvindices[ind + NEXT] = -1;
+		if(partitionHead[partition] < 0){
+			partitionHead[partition] = ind;
+		}else{
+			kvindices[partitionTail[partition] + NEXT] = ind;
+		}
+		partitionTail[partition] = ind;
+		kvindex = (kvindex + 1) % kvoffsets.length;
+	}
+	
+	/**
+	 * drop the collected records, the buffer and the accounting arrays are kept
+	 * for the next ones
+	 */
+	private void resetCollection() {
+		kvstart = kvend = kvindex = 0;
+		bufstart = bufend = bufindex = bufmark = 0;
+		bufvoid = kvbuffer.length;
+		Arrays.fill(partitionHead, -1);
+		Arrays.fill(partitionTail, -1);
+	}
+
 	/**
 	 * Swap logical indices st i, j MOD offset capacity.
 	 * @see IndexedSortable#swap
@@ -1189,19 +1401,18 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 							// spill directly
 							DataInputBuffer key = new DataInputBuffer();
 							
-							//spill according to partitionMap, from partition 0 -		
-							ArrayList<Integer> kvoffset = partitionMap.get(i);
-							for(int kvindex : kvoffset){
-								final int kvoff = kvindex;
+							//spill the chain of the partition in collection order
+							for(int kvoff = partitionHead[i]; kvoff >= 0; kvoff = kvindices[kvoff + NEXT]){
 								getVBytesForOffset(kvoff, value);
 								key.reset(kvbuffer, kvindices[kvoff + KEYSTART],
 										(kvindices[kvoff + VALSTART] - kvindices[kvoff + KEYSTART]));
 
 								writer.append(key, value);
 							}
-							partitionMap.get(i).clear();
+							partitionHead[i] = partitionTail[i] = -1;
 						} else {
-							throw new IOException("no combiner allowed!");
+							throw new IOException("reducer combiners need sorted spills, " +
+									"use a DeltaCombiner (priter.combiner.class) to combine map outputs");
 						}
 
 						// close the writer
@@ -1310,10 +1521,7 @@ public class UnSortOutputBuffer<K extends Object, V extends Object>
 	 * deserialized value bytes. Should only be called during a spill.
 	 */
 	private void getVBytesForOffset(int kvoff, InMemValBytes vbytes) {
-		final int nextindex = (kvoff / ACCTSIZE ==
-			(kvend - 1 + kvoffsets.length) % kvoffsets.length)
-			? bufend
-					: kvindices[(kvoff + ACCTSIZE + KEYSTART) % kvindices.length];
+		final int nextindex = kvindices[kvoff + VALEND];
 		int vallen = (nextindex >= kvindices[kvoff + VALSTART])
 		? nextindex - kvindices[kvoff + VALSTART]
 		                        : (bufvoid - kvindices[kvoff + VALSTART]) + nextindex;
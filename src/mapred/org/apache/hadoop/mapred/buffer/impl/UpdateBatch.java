@@ -0,0 +1,108 @@
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Key groups of a reduce pass handed to one thread of the parallel reduce. The
+ * reduce thread appends the serialized records, those of a key one after the
+ * other, the update thread takes them back a group at a time: nextKey moves to
+ * the next key and the batch then iterates the values of that key, like a
+ * ValuesIterator. Keys are grouped by their bytes. The key and value instances
+ * are reused. The batch is filled and drained in turns, never at the same time.
+ */
+public class UpdateBatch<K extends Object, V extends Object> implements Iterator<V> {
+
+	private final ActivationQueue queue;
+	private DataInputBuffer keyIn = new DataInputBuffer();
+	private DataInputBuffer valIn = new DataInputBuffer();
+	private DataOutputBuffer groupKey = new DataOutputBuffer();
+	private DataInputBuffer groupKeyIn = new DataInputBuffer();
+	private Deserializer<K> keyDeserializer;
+	private Deserializer<V> valDeserializer;
+	private K key;
+	private V value;
+
+	//a polled record that is not taken yet
+	private boolean pending = false;
+
+	//groupKey holds the key of the current group, not of the last round
+	private boolean grouped = false;
+
+	public UpdateBatch(JobConf job, Class<K> keyClass, Class<V> valClass) throws IOException {
+		this.queue = new ActivationQueue(job.getInt("priter.activation.queue.chunk", 1 << 16));
+		SerializationFactory serializationFactory = new SerializationFactory(job);
+		this.keyDeserializer = serializationFactory.getDeserializer(keyClass);
+		this.keyDeserializer.open(groupKeyIn);
+		this.valDeserializer = serializationFactory.getDeserializer(valClass);
+		this.valDeserializer.open(valIn);
+	}
+
+	public void append(DataInputBuffer key, DataInputBuffer value) {
+		queue.append(key.getData(), key.getPosition(), key.getLength() - key.getPosition(),
+				value.getData(), value.getPosition(), value.getLength() - value.getPosition());
+	}
+
+	/**
+	 * skip the rest of the current key and move to the next one
+	 * @return false if the batch is drained
+	 */
+	public boolean nextKey() throws IOException {
+		if(grouped){
+			while(hasNext()){
+				pending = false;
+			}
+		}
+		if(!pending && !queue.poll(keyIn, valIn)){
+			//the next round may start with the key this one ended with
+			grouped = false;
+			return false;
+		}
+
+		pending = true;
+		grouped = true;
+		groupKey.reset();
+		groupKey.write(keyIn.getData(), keyIn.getPosition(), keyIn.getLength() - keyIn.getPosition());
+		groupKeyIn.reset(groupKey.getData(), groupKey.getLength());
+		key = keyDeserializer.deserialize(key);
+		return true;
+	}
+
+	public K getKey() {
+		return key;
+	}
+
+	public boolean hasNext() {
+		if(!pending){
+			if(!queue.poll(keyIn, valIn)) return false;
+			pending = true;
+		}
+		return WritableComparator.compareBytes(keyIn.getData(), keyIn.getPosition(), keyIn.getLength() - keyIn.getPosition(),
+				groupKey.getData(), 0, groupKey.getLength()) == 0;
+	}
+
+	public V next() {
+		if(!hasNext()){
+			throw new NoSuchElementException("iterate past last value");
+		}
+		try {
+			value = valDeserializer.deserialize(value);
+		} catch (IOException e) {
+			throw new RuntimeException("problem reading the value of " + key, e);
+		}
+		pending = false;
+		return value;
+	}
+
+	public void remove() {
+		throw new RuntimeException("not implemented");
+	}
+}
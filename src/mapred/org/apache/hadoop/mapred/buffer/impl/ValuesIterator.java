@@ -66,7 +66,7 @@ public class ValuesIterator<KEY,VALUE> implements Iterator<VALUE> {
     hasNext = more;
   }
 
-  RawKeyValueIterator getRawIterator() { return in; }
+  public RawKeyValueIterator getRawIterator() { return in; }
 
   /// Iterator methods
 
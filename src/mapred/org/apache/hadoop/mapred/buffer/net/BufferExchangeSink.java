@@ -22,21 +22,30 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.SequenceInputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.InputCollector;
@@ -48,6 +57,10 @@ import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.TaskAttemptID;
 import org.apache.hadoop.mapred.TaskID;
 import org.apache.hadoop.mapred.buffer.OutputFile;
+import org.apache.hadoop.mapred.buffer.impl.InputPKVBuffer;
+import org.apache.hadoop.mapred.buffer.impl.ValuesIterator;
+import org.apache.hadoop.net.SocketInputStream;
+import org.apache.hadoop.net.SocketOutputStream;
 import org.apache.hadoop.util.Progress;
 
 
@@ -59,6 +72,16 @@ import org.apache.hadoop.util.Progress;
  * 
  * If the input consists of snapshots, then we will create a SnapshotManager
  * object.
+ * 
+ * The connections are non-blocking and watched by a single selector thread.
+ * When a connection has data, the selector hands it to one of a fixed number
+ * of workers (priter.exchange.sink.threads, the number of cores by default),
+ * which handles one output file (header and data) and gives the connection
+ * back to the selector. The threads are bounded by the cores, not by the
+ * number of inputs. The handlers that receive while holding the task are run
+ * by a thread of their own instead, the task takes one of them at a time
+ * anyway and the workers stay free meanwhile. The header of an output file
+ * comes with its length, so it is read in one go.
  *
  * @param <K> The input key type.
  * @param <V> The input value type.
@@ -102,14 +125,22 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 	/* The maximum number of incoming connections. */
 	private int maxConnections;
 
-	/* An executor for running incoming connections. */
-	private Executor executor;
+	/* The workers handling the connections that have data. */
+	private ExecutorService executor;
+	
+	/* The thread handling the connections that receive holding the task. */
+	private ExecutorService taskExecutor;
 
-	/* A thread for accepting new connections. */
+	/* A thread for accepting new connections and selecting the ready ones. */
 	private Thread acceptor;
 
 	/* The channel used for accepting new connections. */
 	private ServerSocketChannel server;
+	
+	private Selector selector;
+	
+	/* Connections handed back by the workers, to watch again. */
+	private Queue<Connection> rearm;
 
 	private InputCollector<K, V> collector;
 
@@ -148,7 +179,10 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 		this.conf = conf;
 		this.progress = new Progress();
 		this.ownerid = task.getTaskID();
-		this.collector = collector;
+		
+		/* The sources of the job send in its wire format. */
+		CompactWire wire = CompactWire.forJob(conf);
+		this.collector = wire == null ? collector : new CompactCollector<K, V>(collector, wire);
 		this.maxConnections = conf.getInt("mapred.reduce.parallel.copies", 20000);
 
 		this.task = task;
@@ -169,14 +203,19 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 	    //this.syncReduces = conf.getInt("priter.graph.partitions", 0);
 	    this.syncReduces = conf.getNumMapTasks();
 	    
-		this.executor = Executors.newFixedThreadPool(Math.min(maxConnections, Math.max(numInputs, 5)));
+		int threads = conf.getInt("priter.exchange.sink.threads", Runtime.getRuntime().availableProcessors());
+		this.executor = Executors.newFixedThreadPool(Math.max(Math.min(threads, numInputs), 1));
+		this.taskExecutor = Executors.newSingleThreadExecutor();
 		this.handlers = Collections.synchronizedSet(new HashSet<Handler>());
 		this.successful = Collections.synchronizedSet(new HashSet<TaskID>());
+		this.rearm = new ConcurrentLinkedQueue<Connection>();
 
 		/* The server socket and selector registration */
 		this.server = ServerSocketChannel.open();
-		this.server.configureBlocking(true);
+		this.server.configureBlocking(false);
 		this.server.socket().bind(new InetSocketAddress(0));
+		this.selector = Selector.open();
+		this.server.register(this.selector, SelectionKey.OP_ACCEPT);
 	}
 
 	public InetSocketAddress getAddress() {
@@ -194,69 +233,42 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 
 	/** Open the sink for incoming connections. */
 	public void open() {
-		/* Create a new thread for accepting new connections. */
+		/* Create a new thread for accepting new connections and
+		 * dispatching the connections that have something to read. */
 		this.acceptor = new Thread() {
 			public void run() {
 				try {
 					while (server.isOpen()) {
-						LOG.info("in server open");
-						SocketChannel channel = server.accept();
-						channel.configureBlocking(true);
-						/* Note: no buffered input stream due to memory pressure. */
-						DataInputStream  istream = new DataInputStream(channel.socket().getInputStream());
-						DataOutputStream ostream = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+						selector.select();
 						
-						LOG.info("server is open");
-						if (complete()) {
-							WritableUtils.writeEnum(ostream, Connect.BUFFER_COMPLETE);
-							ostream.close();
-						}
-						else if (handlers.size() > maxConnections) {
-							LOG.info("Connections full. connections = " + handlers.size() + 
-									 ", max allowed " + maxConnections);
-							WritableUtils.writeEnum(ostream, Connect.CONNECTIONS_FULL);
-							ostream.close();
+						Connection connection;
+						while ((connection = rearm.poll()) != null) {
+							connection.watch();
 						}
-						else {
-							WritableUtils.writeEnum(ostream, Connect.OPEN);
-							ostream.flush();
+						
+						Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+						while (keys.hasNext()) {
+							SelectionKey key = keys.next();
+							keys.remove();
+							if (!key.isValid()) continue;
 							
-							BufferExchange.BufferType type = WritableUtils.readEnum(istream, BufferExchange.BufferType.class);
-							Handler handler = null;
-							if (BufferType.FILE == type) {
-								handler = new FileHandler(collector, istream, ostream);
+							if (key.isAcceptable()) {
+								SocketChannel channel = server.accept();
+								if (channel == null) continue;
+								LOG.info("JBufferSink: " + ownerid + " accepted connection.");
+								connection = new Connection(channel);
+								executor.execute(connection);
 							}
-							else if (BufferType.SNAPSHOT == type) {
-								handler = new SnapshotHandler(collector, istream, ostream);
+							else if (key.isReadable()) {
+								/* A worker owns the connection until it gives it back. */
+								key.interestOps(0);
+								((Connection) key.attachment()).dispatch();
 							}
-							else if (BufferType.STREAM == type) {
-								if(conf.getBoolean("priter.job.async.time", false)){
-									handler = new AsyncTimeTriggerStreamHandler(collector, istream, ostream);
-								}else if(conf.getBoolean("priter.job.async.self", false)){
-									handler = new AsyncSelfTriggerStreamHandler(collector, istream, ostream);
-								}else{
-									handler = new StreamHandler(collector, istream, ostream);
-								}
-							}
-							else if (BufferType.PKVBUF == type) {
-								if(conf.getBoolean("priter.job.mapsync", false)){
-									handler = new SyncPKVBufferHandler(collector, istream, ostream);
-								}else{
-									handler = new ASyncPKVBufferHandler(collector, istream, ostream);
-								}
-							}
-							else {
-								LOG.error("Unknown buffer type " + type);
-								channel.close();
-								continue;
-							}
-							
-							LOG.info("JBufferSink: " + ownerid + " opening connection.");
-							handlers.add(handler);
-							executor.execute(handler);
 						}
 					}
 					LOG.info("JBufferSink " + ownerid + " buffer response server closed.");
+				} catch (ClosedSelectorException e) {
+					LOG.info("JBufferSink " + ownerid + " selector closed.");
 				} catch (IOException e) { 
 					if (!complete()) {
 						e.printStackTrace();
@@ -279,6 +291,9 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 		try {
 			this.acceptor.interrupt();
 			this.server.close();
+			this.selector.close();
+			this.executor.shutdownNow();
+			this.taskExecutor.shutdownNow();
 			this.acceptor = null;
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -334,15 +349,187 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 		}
 	}
 	
+	/**
+	 * Turns the segments received in the compact wire format back into the
+	 * IFile format the collectors read.
+	 */
+	private static class CompactCollector<K extends Object, V extends Object> implements InputCollector<K, V> {
+		private InputCollector<K, V> collector;
+		
+		private CompactWire wire;
+		
+		CompactCollector(InputCollector<K, V> collector, CompactWire wire) {
+			this.collector = collector;
+			this.wire = wire;
+		}
+		
+		public boolean read(DataInputStream istream, OutputFile.Header header) throws IOException {
+			if (!CompactWire.applies(header)) {
+				return collector.read(istream, header);
+			}
+			DataInputStream data = wire.read(istream, header.compressed());
+			if (data == istream) {
+				/* Sent as it is, the collector reads the connection directly. */
+				return collector.read(istream, header);
+			}
+			/* Whatever the collector reads after the data comes from the connection. */
+			DataInputStream in = new DataInputStream(new SequenceInputStream(data, istream));
+			return collector.read(in, header);
+		}
+		
+		public ValuesIterator<K, V> valuesIterator() throws IOException {
+			return collector.valuesIterator();
+		}
+		
+		public void flush() throws IOException {
+			collector.flush();
+		}
+		
+		public void free() {
+			collector.free();
+		}
+		
+		public void close() {
+			collector.close();
+		}
+	}
+	
 	/************************************** CONNECTION CLASS **************************************/
 	
-	abstract class Handler<H extends OutputFile.Header> implements Runnable {
+	/**
+	 * An incoming connection. A worker runs it when it has data: the first
+	 * time to agree on the buffer type, then once per output file.
+	 */
+	private class Connection implements Runnable {
+		private SocketChannel channel;
+		
+		private SelectionKey key = null;
+		
+		private Handler handler = null;
+		
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+		
+		/**
+		 * Run the connection on a worker, or on the task thread if its handler
+		 * receives holding the task.
+		 */
+		void dispatch() {
+			if (handler != null && handler.locksTask()) {
+				taskExecutor.execute(this);
+			}
+			else {
+				executor.execute(this);
+			}
+		}
+		
+		public void run() {
+			boolean open = false;
+			try {
+				open = handler == null ? connect() : handler.step();
+			} catch (Throwable t) {
+				t.printStackTrace();
+				LOG.error(t);
+			}
+			
+			if (open) {
+				rearm.add(this);
+				selector.wakeup();
+			}
+			else {
+				if (key != null) key.cancel();
+				if (handler != null) {
+					done(handler);
+					handler.close();
+				}
+				else {
+					try { channel.close();
+					} catch (IOException e) { }
+				}
+			}
+		}
+		
+		/**
+		 * Watch the connection for the next output file, called by the selector thread.
+		 */
+		void watch() throws IOException {
+			if (key == null) {
+				key = channel.register(selector, SelectionKey.OP_READ, this);
+			}
+			else if (key.isValid()) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+		
+		private boolean connect() throws IOException {
+			/* Note: no buffered input stream, the selector must see every unread byte,
+			 * and due to memory pressure. */
+			DataInputStream  istream = new ChannelDataInputStream(new SocketInputStream(channel, 0));
+			DataOutputStream ostream = new DataOutputStream(new BufferedOutputStream(new SocketOutputStream(channel, 0)));
+			
+			if (complete()) {
+				WritableUtils.writeEnum(ostream, Connect.BUFFER_COMPLETE);
+				ostream.close();
+				return false;
+			}
+			else if (handlers.size() > maxConnections) {
+				LOG.info("Connections full. connections = " + handlers.size() + 
+						 ", max allowed " + maxConnections);
+				WritableUtils.writeEnum(ostream, Connect.CONNECTIONS_FULL);
+				ostream.close();
+				return false;
+			}
+			
+			WritableUtils.writeEnum(ostream, Connect.OPEN);
+			ostream.flush();
+			
+			BufferExchange.BufferType type = WritableUtils.readEnum(istream, BufferExchange.BufferType.class);
+			if (BufferType.FILE == type) {
+				handler = new FileHandler(collector, istream, ostream);
+			}
+			else if (BufferType.SNAPSHOT == type) {
+				handler = new SnapshotHandler(collector, istream, ostream);
+			}
+			else if (BufferType.STREAM == type) {
+				if(conf.getBoolean("priter.job.async.time", false)){
+					handler = new AsyncTimeTriggerStreamHandler(collector, istream, ostream);
+				}else if(conf.getBoolean("priter.job.async.self", false)){
+					handler = new AsyncSelfTriggerStreamHandler(collector, istream, ostream);
+				}else{
+					handler = new StreamHandler(collector, istream, ostream);
+				}
+			}
+			else if (BufferType.PKVBUF == type) {
+				if(conf.getBoolean("priter.job.mapsync", false)){
+					handler = new SyncPKVBufferHandler(collector, istream, ostream);
+				}else{
+					handler = new ASyncPKVBufferHandler(collector, istream, ostream);
+				}
+			}
+			else {
+				LOG.error("Unknown buffer type " + type);
+				return false;
+			}
+			
+			LOG.info("JBufferSink: " + ownerid + " opening connection.");
+			handlers.add(handler);
+			return true;
+		}
+	}
+	
+	abstract class Handler<H extends OutputFile.Header> {
 		protected InputCollector<K, V> collector;
 		
 		protected DataInputStream istream;
 		
 		protected DataOutputStream ostream;
 		
+		/* The open signal and the header, read in one go each. */
+		private byte[] head = new byte[256];
+		
+		private DataInputBuffer headIn = new DataInputBuffer();
+		
 		protected Handler(InputCollector<K, V> collector,
 				          DataInputStream istream, DataOutputStream ostream) { 
 			this.collector = collector;
@@ -367,40 +554,45 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 			}
 		}
 		
-		public final void run() {
-			try {
-				int open = Integer.MAX_VALUE;
-				
-				while (open == Integer.MAX_VALUE) {
-					try {
-						//LOG.info("Waiting for open signal.");
-						open = istream.readInt();
-						//LOG.info("what is open? " + open);
-
-						if (open == Integer.MAX_VALUE) {
-							H header = (H) OutputFile.Header.readHeader(istream);
-							//LOG.info("Handler " + this + " receive " + header.compressed() + " bytes. header: " + header);
-							receive(header);
-						}
-					} catch (IOException e) {
-						e.printStackTrace();
-						LOG.error(e);
-						LOG.info(e);
-						return;
-					}
-					//LOG.info("open ? " + open + " " + (open == Integer.MAX_VALUE));
-				}
-
-			} finally {
-				//LOG.info("Handler done: " + this);
-				done(this);
-				close();
-			}
-			//LOG.info("run finished?");
+		/**
+		 * Receive the next output file of the connection.
+		 * @return false if the source closed the connection.
+		 */
+		public final boolean step() throws IOException {
+			//LOG.info("Waiting for open signal.");
+			istream.readFully(head, 0, 4);
+			if (WritableComparator.readInt(head, 0) != Integer.MAX_VALUE) return false;
+			
+			istream.readFully(head, 0, 4);
+			int length = WritableComparator.readInt(head, 0);
+			if (length > head.length) head = new byte[length];
+			istream.readFully(head, 0, length);
+			headIn.reset(head, length);
+			H header = (H) OutputFile.Header.readHeader(headIn);
+			//LOG.info("Handler " + this + " receive " + header.compressed() + " bytes. header: " + header);
+			receive(header);
+			return true;
 		}
 		
 		protected abstract void receive(H header) throws IOException;
 		
+		/**
+		 * tell the co-located reduce that the map is done with its spill, the
+		 * reduce deletes the spill only then
+		 */
+		protected void ackMapped() throws IOException {
+			if (collector instanceof InputPKVBuffer && ((InputPKVBuffer) collector).readMapped()) {
+				ostream.writeBoolean(true);
+				ostream.flush();
+			}
+		}
+		
+		/**
+		 * @return true if receive holds the task while it reads the data
+		 */
+		protected boolean locksTask() {
+			return true;
+		}
 	}
 	
 	final class SnapshotHandler extends Handler<OutputFile.SnapshotHeader> {
@@ -408,6 +600,10 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 				DataInputStream istream, DataOutputStream ostream) { 
 			super(collector, istream, ostream);
 		}
+		
+		protected boolean locksTask() {
+			return false;
+		}
 
 		public void receive(OutputFile.SnapshotHeader header) throws IOException {
 			Position position = null;
@@ -447,6 +643,10 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 			super(collector, istream, ostream);
 		}
 		
+		protected boolean locksTask() {
+			return false;
+		}
+		
 		public void receive(OutputFile.FileHeader header) throws IOException {
 			/* Get my position for this source taskid. */
 			Position position = null;
@@ -570,7 +770,8 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 						}
 
 						//task.notifyAll();
-						position.set(header.sequence() + 1);
+						//a pipelined chunk keeps the position, the rest of the sequence follows
+						position.set(header.eof() ? header.sequence() + 1 : header.sequence());
 						//LOG.info("Stream handler " + " done receiving up to position " + position.longValue());
 					}
 			
@@ -612,7 +813,9 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 					ostream.flush();
 					//LOG.info("PKVBuffer handler " + hashCode() + " ready to receive -- " + header);
 					
-					if (collector.read(istream, header)) {
+					boolean read = collector.read(istream, header);
+					ackMapped();
+					if (read) {
 						updateProgress(header);
 						task.notifyAll();	
 
@@ -656,7 +859,9 @@ public class BufferExchangeSink<K extends Object, V extends Object> implements B
 					ostream.flush();
 					//LOG.info("PKVBuffer handler " + hashCode() + " ready to receive -- " + header);
 					
-					if (collector.read(istream, header)) {
+					boolean read = collector.read(istream, header);
+					ackMapped();
+					if (read) {
 						updateProgress(header);
 						
 						int recReduces = (syncReducePos.containsKey(position.longValue())) ? syncReducePos.get(position.longValue()) + 1 : 1;
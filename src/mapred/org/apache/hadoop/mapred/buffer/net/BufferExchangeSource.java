@@ -4,9 +4,13 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -14,15 +18,16 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.WritableUtils;
-import org.apache.hadoop.mapred.IFile;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.TaskAttemptID;
 import org.apache.hadoop.mapred.TaskID;
 import org.apache.hadoop.mapred.buffer.OutputFile;
-import org.apache.hadoop.mapred.buffer.impl.KVRecord;
+import org.apache.hadoop.mapred.buffer.impl.MappedSpillFile;
 
 public abstract class BufferExchangeSource<H extends OutputFile.Header> 
 	implements Comparable<BufferExchangeSource>, BufferExchange {
@@ -45,7 +50,7 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 			}
 		}
 		if (request.bufferType() == BufferType.PKVBUF) {
-			return new PKVBufSource(rfs, conf, request, conf.getOutputValueClass());
+			return new PKVBufSource(rfs, conf, request);
 		}
 			
 		return null;
@@ -78,9 +83,17 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 	
 	public boolean rollback = false;
 	
+	/* Send the file data with FileChannel.transferTo instead of through the heap. */
+	private boolean zeroCopy;
+	
+	/* The wire format of the job, null to send the data as it is. */
+	private CompactWire wire;
+	
 	protected BufferExchangeSource(FileSystem rfs, JobConf conf, BufferRequest request) {
 		this.rfs = rfs;
 		this.conf = conf;
+		this.zeroCopy = conf.getBoolean("priter.transfer.zerocopy", true) && rfs instanceof RawLocalFileSystem;
+		this.wire = CompactWire.forJob(conf);
 		this.destination = request.destination();
 		this.partition = request.partition();
 		this.address = request.destAddress();
@@ -169,8 +182,9 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 
 	protected BufferExchange.Connect open(BufferExchange.BufferType bufferType) {
 		if (socket == null) {
-			socket = new Socket();
 			try {
+				/* A socket with a channel, for the zero copy transfer. */
+				socket = SocketChannel.open().socket();
 				socket.connect(this.address);
 
 				ostream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
@@ -201,6 +215,16 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 		return BufferExchange.Connect.OPEN;
 	}
 					
+	/**
+	 * send a header with its length in front, so the sink reads it in one go
+	 */
+	private void writeHeader(OutputFile.Header header) throws IOException {
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		OutputFile.Header.writeHeader(buffer, header);
+		ostream.writeInt(buffer.getLength());
+		ostream.write(buffer.getData(), 0, buffer.getLength());
+	}
+	
 	protected BufferExchange.Transfer transmit(OutputFile file) {
 		try {
 			file.open(rfs);
@@ -216,7 +240,7 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 			//LOG.info("file is " + file + " partition is " + partition);
 			OutputFile.Header header = file.seek(partition);
 
-			OutputFile.Header.writeHeader(ostream, header);
+			writeHeader(header);
 			
 			//LOG.info("send header : " + header);
 			
@@ -226,7 +250,7 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 			//LOG.info("we have feedback " + response);
 			if (BufferExchange.Transfer.READY == response) {
 				//LOG.info(this + " sending " + header);
-				write(header, file.dataInputStream());
+				write(header, file);
 				
 				//write the stop signal for only the priority mechanism
 				if(header instanceof OutputFile.PKVBufferHeader){
@@ -245,7 +269,13 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 		return BufferExchange.Transfer.RETRY;
 	}
 	
-	protected BufferExchange.Transfer transmit2(OutputFile file) {
+	/**
+	 * send a whole output file. With mapped set, the file is a MappedSpillFile and
+	 * a flag tells the receiver what follows: for a receiver on this host only the
+	 * path of the file, which the receiver maps itself and acks once it is done
+	 * with it, otherwise the file data.
+	 */
+	protected BufferExchange.Transfer transmit2(OutputFile file, boolean mapped) {
 		try {
 			file.open(rfs);
 		} catch (IOException e) {
@@ -261,7 +291,7 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 			//LOG.info("file is " + file + " partition is " + partition);
 			OutputFile.Header header = file.seek(0);
 
-			OutputFile.Header.writeHeader(ostream, header);
+			writeHeader(header);
 			
 			//LOG.info("send header : " + header);
 			
@@ -270,7 +300,18 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 			BufferExchange.Transfer response = WritableUtils.readEnum(istream, BufferExchange.Transfer.class);
 			if (BufferExchange.Transfer.READY == response) {
 				//LOG.info(this + " sending " + header);
-				write(header, file.dataInputStream());
+				boolean local = mapped && MappedSpillFile.isLocal(address);
+				if(mapped) ostream.writeBoolean(local);
+				if(local){
+					WritableUtils.writeString(ostream, file.data().toString());
+					ostream.flush();
+					//the receiver maps the file itself, it must not be deleted before the receiver is done
+					if(!istream.readBoolean()){
+						throw new IOException("no ack for the mapped " + file.data());
+					}
+				}else{
+					write(header, file);
+				}
 
 				/*
 				boolean stop = (file.paritions() == -100) ? true : false;
@@ -302,15 +343,43 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 	 * remote task receiving them. 
 	 * Note: The current fault tolerance model does not allow us to multiplex multiple 
 	 * output files. That is, we have to send in units of output files. 
+	 * The data goes from the file to the socket with transferTo when both
+	 * have a channel, the stream is read through the heap otherwise. A job
+	 * with a compact wire format sends its messages in that format.
 	 * @throws IOException
 	 */
-	private void write(OutputFile.Header header, DataInputStream fstream) throws IOException {
+	private void write(OutputFile.Header header, OutputFile file) throws IOException {
 		long length = header.compressed();
 		if (length == 0 && header.progress() < 1.0f) {
 			return;
 		}
 		
 		LOG.debug("Writing data for header " + header);
+		FSDataInputStream fstream = file.dataInputStream();
+		if (wire != null && CompactWire.applies(header)) {
+			wire.write(ostream, fstream, length);
+			return;
+		}
+		
+		if (zeroCopy && socket.getChannel() != null) {
+			ostream.flush();
+			long position = fstream.getPos();
+			FileChannel data = new FileInputStream(((RawLocalFileSystem) rfs).pathToFile(file.data())).getChannel();
+			try {
+				while (length > 0) {
+					long n = data.transferTo(position, length, socket.getChannel());
+					if (n <= 0) {
+						throw new EOFException(file.data() + " ends " + length + " bytes before " + header);
+					}
+					position += n;
+					length -= n;
+				}
+			} finally {
+				data.close();
+			}
+			return;
+		}
+		
 		long bytesSent = 0L;
 		byte[] buf = new byte[64 * 1024];
 		int n = fstream.read(buf, 0, (int)Math.min(length, buf.length));
@@ -571,66 +640,15 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 
 	}
 
-	private static class PKVBufSource<V extends Object> extends BufferExchangeSource<OutputFile.SnapshotHeader> {
+	private static class PKVBufSource extends BufferExchangeSource<OutputFile.SnapshotHeader> {
 		
 		private Map<TaskID, Long> cursor;
-		private Class<V> valClass;
 		
-		public PKVBufSource(FileSystem rfs, JobConf conf, BufferRequest request, Class<V> valClass) {
+		public PKVBufSource(FileSystem rfs, JobConf conf, BufferRequest request) {
 			super(rfs, conf, request);
 			this.cursor = new HashMap<TaskID, Long>();
-			this.valClass = valClass;
 		}
 
-		//transfer in-memory record to map
-		protected BufferExchange.Transfer transmit3(OutputFile file) {
-
-			try {
-				ostream.writeInt(Integer.MAX_VALUE); // Sending something
-				
-				//LOG.info("file is " + file + " partition is " + partition);
-				OutputFile.Header header = file.seek2();
-
-				OutputFile.Header.writeHeader(ostream, header);
-				
-				//LOG.info("send header : " + header);
-				
-				ostream.flush();
-
-				BufferExchange.Transfer response = WritableUtils.readEnum(istream, BufferExchange.Transfer.class);
-				if (BufferExchange.Transfer.READY == response) {
-					
-					IFile.SocketWriter<IntWritable, V> writer = new IFile.SocketWriter(conf, ostream, IntWritable.class, valClass, null, null);
-					LOG.info("sending kv from memory " + file.outputMemQueue.size());
-					synchronized(file.outputMemQueue){
-						for(Object o : file.outputMemQueue){
-							KVRecord<IntWritable, V> record = (KVRecord<IntWritable, V>)o;
-							LOG.info("write " + record);
-							writer.append(record.k, record.v);
-						}
-						
-						writer.close();
-						//ostream.flush();
-						file.outputMemQueue.clear();
-					}
-
-					return BufferExchange.Transfer.SUCCESS;
-				}
-				return response;
-			} catch (IOException e) {
-				close(); // Close so reconnect will figure out current status.
-				LOG.debug(e);
-			}
-			
-			try {
-				file.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			return BufferExchange.Transfer.RETRY;
-		}
-		
 		@Override
 		protected final Transfer transfer(OutputFile file) {
 			OutputFile.PKVBufferHeader header = (OutputFile.PKVBufferHeader) file.header();
@@ -642,11 +660,7 @@ public abstract class BufferExchangeSource<H extends OutputFile.Header>
 				if (result == Connect.OPEN) {
 					//LOG.info("Transfer pkvbuffer file " + file + ". Destination " + destination());
 					Transfer response = null;
-					if(conf.getBoolean("priter.transfer.mem", false)){
-						response = transmit3(file);
-					}else{
-						response = transmit2(file);
-					}
+					response = transmit2(file, conf.getBoolean("priter.transfer.mem", false));
 					
 					if (response == Transfer.TERMINATE) {
 						return Transfer.TERMINATE;
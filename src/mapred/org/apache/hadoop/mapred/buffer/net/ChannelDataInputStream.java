@@ -0,0 +1,50 @@
+package org.apache.hadoop.mapred.buffer.net;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.net.SocketInputStream;
+
+/**
+ * The input stream of a sink connection. Besides the usual reads, the data
+ * of an output file can be moved from the socket straight into a local file
+ * with {@link #readFully(FileChannel, long, long)}, without passing through
+ * the heap.
+ */
+public class ChannelDataInputStream extends DataInputStream {
+	
+	private SocketInputStream socketIn;
+	
+	/* For the probe of the end of stream. */
+	private ByteBuffer one = ByteBuffer.allocate(1);
+
+	public ChannelDataInputStream(SocketInputStream in) {
+		super(in);
+		this.socketIn = in;
+	}
+
+	/**
+	 * Move the next length bytes of the connection into the file at position.
+	 * @throws EOFException if the connection ends before
+	 */
+	public void readFully(FileChannel file, long position, long length) throws IOException {
+		while (length > 0) {
+			long n = file.transferFrom(socketIn.getChannel(), position, length);
+			if (n == 0) {
+				/* Nothing available, or the end of the stream. */
+				socketIn.waitForReadable();
+				one.clear();
+				if (socketIn.getChannel().read(one) < 0) {
+					throw new EOFException("connection closed with " + length + " bytes left");
+				}
+				one.flip();
+				n = file.write(one, position);
+			}
+			position += n;
+			length -= n;
+		}
+	}
+}
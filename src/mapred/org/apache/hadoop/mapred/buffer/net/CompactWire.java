@@ -0,0 +1,311 @@
+package org.apache.hadoop.mapred.buffer.net;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.mapred.IFileInputStream;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.buffer.OutputFile;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * A compact wire format for the PrIter messages, the stream outputs of the
+ * maps and the priority buffers of the reduces. It is agreed per job: with
+ * priter.wire.compact both ends of every connection of the job use it, the
+ * files on disk keep the IFile format.
+ *
+ * A segment whose records all have a 4 byte key (an IntWritable) and a value
+ * of one fixed width (a FloatWritable, DoubleWritable...) is sent in blocks of
+ * up to BLOCK records, each the varint deltas of the keys, zigzag encoded so
+ * an unsorted partition works too, followed by the values as byte columns.
+ * Every block can be compressed further with priter.wire.codec. Other
+ * segments, and segments whose IFile checksum does not match, are sent as
+ * they are. The receiver rebuilds the very same IFile bytes, checksum
+ * included, one block at a time.
+ *
+ * Map outputs compressed with the map output codec and the in-memory
+ * transfer (priter.transfer.mem) are never compacted.
+ */
+public class CompactWire {
+	private static final Log LOG = LogFactory.getLog(CompactWire.class.getName());
+
+	private static final byte RAW = 0;
+	private static final byte COLUMNS = 1;
+	private static final byte CODEC = 2;
+
+	private static final int KEY_WIDTH = 4;
+	private static final int MAX_WIDTH = 64;
+	private static final int BLOCK = 16 * 1024;
+
+	private CompressionCodec codec = null;
+
+	//bytes before and after, for the log
+	private long rawBytes = 0;
+	private long wireBytes = 0;
+
+	private CompactWire(JobConf job) {
+		Class<?> codecClass = job.getClass("priter.wire.codec", null);
+		if(codecClass != null){
+			codec = (CompressionCodec) ReflectionUtils.newInstance(codecClass, job);
+		}
+	}
+
+	/**
+	 * @return the wire format of the job, null if the job sends the files as they are
+	 */
+	public static CompactWire forJob(JobConf job) {
+		if(!job.getBoolean("priter.wire.compact", false)) return null;
+		if(job.getCompressMapOutput() || job.getBoolean("priter.transfer.mem", false)) return null;
+		return new CompactWire(job);
+	}
+
+	/**
+	 * @return true if the data of the header goes in the compact format
+	 */
+	public static boolean applies(OutputFile.Header header) {
+		return header.compressed() > 0 &&
+			(header instanceof OutputFile.StreamHeader || header instanceof OutputFile.PKVBufferHeader);
+	}
+
+	/**
+	 * Read the segment of length bytes at the position of in and send it to
+	 * out. The segment is read twice, to check it and to encode it, and never
+	 * held in memory as a whole.
+	 */
+	public void write(DataOutputStream out, FSDataInputStream in, long length) throws IOException {
+		long start = in.getPos();
+		int width = check(in, length);
+		in.seek(start);
+
+		long sent = 1;
+		if(width < 0){
+			out.writeByte(RAW);
+			byte[] buf = new byte[64 * 1024];
+			for(long left = length; left > 0; ){
+				int n = in.read(buf, 0, (int)Math.min(left, buf.length));
+				if(n < 0) throw new EOFException("segment ends " + left + " bytes early");
+				out.write(buf, 0, n);
+				left -= n;
+			}
+			sent += length;
+		}else{
+			out.writeByte(codec == null ? COLUMNS : COLUMNS | CODEC);
+			WritableUtils.writeVInt(out, width);
+			sent += WritableUtils.getVIntSize(width) + columns(in, width, out);
+		}
+		out.flush();
+
+		rawBytes += length;
+		wireBytes += sent;
+		if(LOG.isDebugEnabled()){
+			LOG.debug("sent " + length + " bytes as " + sent + ", " + wireBytes + " of " + rawBytes + " so far");
+		}
+	}
+
+	/**
+	 * Receive a segment sent by write.
+	 * @return the stream of the length bytes of the segment in the IFile
+	 * format, in itself if the segment was sent as it is
+	 */
+	public DataInputStream read(DataInputStream in, long length) throws IOException {
+		byte mode = in.readByte();
+		if(mode == RAW) return in;
+		if((mode & CODEC) != 0 && codec == null) throw new IOException("compressed segment but no priter.wire.codec");
+		return new DataInputStream(new Rebuilder(in, WritableUtils.readVInt(in), (mode & CODEC) != 0, length));
+	}
+
+	/**
+	 * read the records of the segment and verify its checksum
+	 * @return the width of the values, or -1 if the segment does not fit the
+	 * format or does not match its checksum
+	 */
+	private int check(InputStream segment, long length) throws IOException {
+		if(length < DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, Integer.MAX_VALUE).getChecksumSize()){
+			return -1;
+		}
+		//the checksum is verified when the last data byte is read
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new IFileInputStream(segment, length)));
+		byte[] record = new byte[KEY_WIDTH + MAX_WIDTH];
+		int width = -1;
+		try{
+			while(true){
+				int keyLen = WritableUtils.readVInt(in);
+				int valLen = WritableUtils.readVInt(in);
+				if(keyLen == -1 && valLen == -1) break;
+				if(keyLen != KEY_WIDTH || valLen < 0 || valLen > MAX_WIDTH) return -1;
+				if(width < 0) width = valLen;
+				if(valLen != width) return -1;
+				in.readFully(record, 0, keyLen + valLen);
+			}
+			if(in.read() != -1) return -1;
+		}catch(ChecksumException e){
+			LOG.warn("segment of " + length + " bytes does not match its checksum, sent as it is");
+			return -1;
+		}catch(EOFException e){
+			return -1;
+		}
+		return width < 0 ? 0 : width;
+	}
+
+	/**
+	 * encode the records of a checked segment as blocks of key deltas and
+	 * value columns, ended by an empty block
+	 * @return the bytes sent
+	 */
+	private long columns(DataInputStream in, int width, DataOutputStream out) throws IOException {
+		DataOutputBuffer block = new DataOutputBuffer();
+		DataOutputBuffer deltas = new DataOutputBuffer();
+		DataOutputBuffer compressed = codec == null ? null : new DataOutputBuffer();
+		byte[] values = new byte[BLOCK * width];
+		long sent = 0;
+		long prev = 0;
+		boolean end = false;
+		while(!end){
+			deltas.reset();
+			int count = 0;
+			while(count < BLOCK){
+				int keyLen = WritableUtils.readVInt(in);
+				int valLen = WritableUtils.readVInt(in);
+				if(keyLen == -1 && valLen == -1){
+					end = true;
+					break;
+				}
+				int key = in.readInt();
+				long delta = key - prev;
+				WritableUtils.writeVLong(deltas, (delta << 1) ^ (delta >> 63));
+				prev = key;
+				for(int b=0; b<width; b++){
+					values[b * BLOCK + count] = in.readByte();
+				}
+				count++;
+			}
+			if(count == 0) break;
+
+			block.reset();
+			WritableUtils.writeVInt(block, count);
+			block.write(deltas.getData(), 0, deltas.getLength());
+			for(int b=0; b<width; b++){
+				block.write(values, b * BLOCK, count);
+			}
+			DataOutputBuffer frame = block;
+			if(codec != null){
+				compressed.reset();
+				OutputStream cout = codec.createOutputStream(compressed);
+				cout.write(block.getData(), 0, block.getLength());
+				cout.close();
+				frame = compressed;
+			}
+			WritableUtils.writeVInt(out, frame.getLength());
+			out.write(frame.getData(), 0, frame.getLength());
+			sent += WritableUtils.getVIntSize(frame.getLength()) + frame.getLength();
+		}
+		out.writeByte(0);
+		return sent + 1;
+	}
+
+	/**
+	 * Rebuilds the IFile bytes of a segment from its blocks as they are read.
+	 */
+	private class Rebuilder extends InputStream {
+		private DataInputStream in;
+		private int width;
+		private boolean compressed;
+		private long length;
+
+		private DataChecksum sum = DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, Integer.MAX_VALUE);
+		private DataOutputBuffer out = new DataOutputBuffer();
+		private int pos = 0;
+		private long rebuilt = 0;
+		private boolean last = false;
+		private long prev = 0;
+
+		private byte[] frame = new byte[0];
+		private int[] keys = new int[0];
+		private byte[] values = new byte[0];
+		private byte[] one = new byte[1];
+
+		Rebuilder(DataInputStream in, int width, boolean compressed, long length) {
+			this.in = in;
+			this.width = width;
+			this.compressed = compressed;
+			this.length = length;
+		}
+
+		public int read() throws IOException {
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			while(pos == out.getLength()){
+				if(last) return -1;
+				next();
+			}
+			int n = Math.min(len, out.getLength() - pos);
+			System.arraycopy(out.getData(), pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		private void next() throws IOException {
+			out.reset();
+			pos = 0;
+			int frameLen = WritableUtils.readVInt(in);
+			if(frameLen == 0){
+				WritableUtils.writeVInt(out, -1);
+				WritableUtils.writeVInt(out, -1);
+				sum.update(out.getData(), 0, out.getLength());
+				byte[] checksum = new byte[sum.getChecksumSize()];
+				sum.writeValue(checksum, 0, false);
+				out.write(checksum);
+				last = true;
+			}else{
+				if(frame.length < frameLen) frame = new byte[frameLen];
+				in.readFully(frame, 0, frameLen);
+				InputStream body = new ByteArrayInputStream(frame, 0, frameLen);
+				if(compressed) body = codec.createInputStream(body);
+				DataInputStream block = new DataInputStream(body);
+
+				int count = WritableUtils.readVInt(block);
+				if(keys.length < count){
+					keys = new int[count];
+					values = new byte[count * width];
+				}
+				for(int i=0; i<count; i++){
+					long zigzag = WritableUtils.readVLong(block);
+					prev += (zigzag >>> 1) ^ -(zigzag & 1);
+					keys[i] = (int)prev;
+				}
+				block.readFully(values, 0, count * width);
+
+				for(int i=0; i<count; i++){
+					WritableUtils.writeVInt(out, KEY_WIDTH);
+					WritableUtils.writeVInt(out, width);
+					out.writeInt(keys[i]);
+					for(int b=0; b<width; b++){
+						out.write(values[b * count + i]);
+					}
+				}
+				sum.update(out.getData(), 0, out.getLength());
+			}
+
+			rebuilt += out.getLength();
+			if(rebuilt > length || (last && rebuilt != length)){
+				throw new IOException("rebuilt segment of " + rebuilt + " bytes, expected " + length);
+			}
+		}
+	}
+}
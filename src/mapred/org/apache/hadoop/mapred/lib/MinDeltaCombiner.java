@@ -0,0 +1,10 @@
+package org.apache.hadoop.mapred.lib;
+
+import org.apache.hadoop.mapred.DeltaCombiner;
+import org.apache.hadoop.mapred.MapReduceBase;
+
+public class MinDeltaCombiner extends MapReduceBase implements DeltaCombiner {
+	public double combine(double accumulated, double delta) {
+		return Math.min(accumulated, delta);
+	}
+}
@@ -1,9 +1,23 @@
 package org.apache.hadoop.mapred.lib;
 
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.RoutingTable;
 
 public class PrIterPartitioner<V> extends HashPartitioner<IntWritable, V> {
+	//routing of the task, swapped at an iteration boundary when live rebalancing moved keys
+	private static volatile RoutingTable routing = null;
+
+	public static void setRouting(RoutingTable table) {
+		routing = table;
+	}
+
+	public static RoutingTable getRouting() {
+		return routing;
+	}
+
 	public int getPartition(IntWritable key, V value, int numReduceTasks) {
-		  return key.get() % numReduceTasks;
+		RoutingTable table = routing;
+		if(table == null || table.size() == 0) return key.get() % numReduceTasks;
+		return table.getPartition(key.get());
 	}
 }
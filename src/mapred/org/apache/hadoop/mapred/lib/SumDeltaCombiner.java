@@ -0,0 +1,10 @@
+package org.apache.hadoop.mapred.lib;
+
+import org.apache.hadoop.mapred.DeltaCombiner;
+import org.apache.hadoop.mapred.MapReduceBase;
+
+public class SumDeltaCombiner extends MapReduceBase implements DeltaCombiner {
+	public double combine(double accumulated, double delta) {
+		return accumulated + delta;
+	}
+}
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.buffer.impl.InputPKVBuffer;
+import org.apache.hadoop.mapred.buffer.impl.IterationLatency;
+import org.apache.hadoop.mapred.buffer.impl.NumericUpdate;
+import org.apache.hadoop.mapred.buffer.impl.OutputPKVBuffer;
+
+/**
+ * Runs a prioritized PageRank on a synthetic graph in process. Every node links
+ * to k + 1 and 7k + 3 modulo the node count, so every node has two in-links and
+ * two out-links and all the ranks converge to 1.
+ */
+public class TestLocalIterativeRunner extends TestCase {
+
+  private static final int NODES = 2000;
+  private static final float DAMPING = 0.8f;
+
+  public static class RankActivator extends MapReduceBase
+      implements Activator<IntWritable, FloatWritable, FloatWritable> {
+    private int partition;
+    private int partitions;
+
+    public void configure(JobConf job) {
+      partition = job.getInt("mapred.task.partition", -1);
+      partitions = job.getNumReduceTasks();
+    }
+
+    public void initStarter(InputPKVBuffer<IntWritable, FloatWritable> starter) throws IOException {
+      for (int k = partition; k < NODES; k += partitions) {
+        starter.init(new IntWritable(k), new FloatWritable(1 - DAMPING));
+      }
+    }
+
+    public void activate(IntWritable key, FloatWritable value,
+        OutputCollector<IntWritable, FloatWritable> output, Reporter reporter) throws IOException {
+      float delta = value.get() * DAMPING / 2;
+      output.collect(new IntWritable((key.get() + 1) % NODES), new FloatWritable(delta));
+      output.collect(new IntWritable((key.get() * 7 + 3) % NODES), new FloatWritable(delta));
+    }
+
+    public void iterate() {
+    }
+  }
+
+  public static class RankUpdater extends MapReduceBase
+      implements Updater<IntWritable, FloatWritable, FloatWritable>, NumericUpdate<IntWritable> {
+    private int partition;
+    private int partitions;
+
+    public void configure(JobConf job) {
+      partition = job.getInt("mapred.task.partition", -1);
+      partitions = job.getNumReduceTasks();
+    }
+
+    public void initStateTable(OutputPKVBuffer<IntWritable, FloatWritable, FloatWritable> table) {
+      for (int k = partition; k < NODES; k += partitions) {
+        table.init(new IntWritable(k), new FloatWritable(0), new FloatWritable(1 - DAMPING));
+      }
+    }
+
+    public FloatWritable resetiState() {
+      return new FloatWritable(0);
+    }
+
+    public FloatWritable decidePriority(IntWritable key, FloatWritable iState) {
+      return new FloatWritable(iState.get());
+    }
+
+    public FloatWritable decideTopK(IntWritable key, FloatWritable cState) {
+      return new FloatWritable(cState.get());
+    }
+
+    public void updateState(IntWritable key, Iterator<FloatWritable> values,
+        OutputPKVBuffer<IntWritable, FloatWritable, FloatWritable> buffer, Reporter reporter)
+        throws IOException {
+      float delta = 0;
+      while (values.hasNext()) {
+        delta += values.next().get();
+      }
+      buffer.update(key, delta, this);
+    }
+
+    public boolean update(IntWritable key, double delta, double[] record, boolean found) {
+      record[1] += delta;
+      record[2] += delta;
+      record[0] = record[1];
+      return true;
+    }
+
+    public void iterate() {
+    }
+  }
+
+  public void testPageRank() throws IOException {
+    JobConf job = new JobConf();
+    job.set("mapred.job.tracker", "local");
+    job.set("fs.default.name", "file:///");
+    FileSystem fs = FileSystem.getLocal(job);
+    Path dir = new Path(System.getProperty("test.build.data", "/tmp"), "localiterative").makeQualified(fs);
+    Path input = new Path(dir, "input");
+    Path output = new Path(dir, "output");
+    fs.delete(dir, true);
+
+    try {
+      //the graph is synthetic, the input only gives the maps a split
+      FSDataOutputStream out = fs.create(new Path(input, "part-0"));
+      out.writeBytes("0\t1\n");
+      out.close();
+
+      FileInputFormat.addInputPath(job, input);
+      FileOutputFormat.setOutputPath(job, output);
+      job.setOutputFormat(TextOutputFormat.class);
+      job.setBoolean("priter.job", true);
+      job.setInt("priter.local.snapshot.iterations", 5);
+      job.setInt("priter.snapshot.topk", 10);
+      job.setFloat("priter.queue.portion", 0.2f);
+      job.setFloat("priter.stop.difference", 0.0001f);
+      job.setMapOutputKeyClass(IntWritable.class);
+      job.setMapOutputValueClass(FloatWritable.class);
+      job.setOutputKeyClass(IntWritable.class);
+      job.setOutputValueClass(FloatWritable.class);
+      job.setPriorityClass(FloatWritable.class);
+      job.setActivatorClass(RankActivator.class);
+      job.setUpdaterClass(RankUpdater.class);
+      job.setNumMapTasks(2);
+      job.setNumReduceTasks(2);
+
+      RunningJob running = JobClient.runJob(job);
+      assertTrue(running.isSuccessful());
+      long iterations = running.getCounters().findCounter(IterationLatency.Counter.ITERATIONS).getCounter();
+      assertTrue(iterations > 0);
+
+      //the last text snapshot holds the top ranks, all near 1
+      int last = -1;
+      for (FileStatus status : fs.listStatus(output)) {
+        String name = status.getPath().getName();
+        if (name.startsWith("snapshot-") && !name.endsWith(".bin")) {
+          last = Math.max(last, Integer.parseInt(name.substring("snapshot-".length())));
+        }
+      }
+      assertTrue("no snapshot written", last >= 0);
+
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          fs.open(new Path(output, "snapshot-" + last))));
+      int lines = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        int key = Integer.parseInt(fields[0]);
+        assertTrue(key >= 0 && key < NODES);
+        assertEquals(1.0, Float.parseFloat(fields[1]), 0.01);
+        lines++;
+      }
+      reader.close();
+      assertEquals(10, lines);
+    } finally {
+      fs.delete(dir, true);
+    }
+  }
+}
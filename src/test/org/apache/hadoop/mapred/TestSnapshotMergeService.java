@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+
+public class TestSnapshotMergeService extends TestCase {
+
+  private static final int TASKS = 3;
+
+  private JobConf job;
+  private FileSystem fs;
+  private Path output;
+  private List<Float> priorities = new ArrayList<Float>();
+
+  protected void setUp() throws IOException {
+    job = new JobConf();
+    job.set("fs.default.name", "file:///");
+    fs = FileSystem.getLocal(job);
+    output = new Path(System.getProperty("test.build.data", "/tmp"), "snapshotmerge").makeQualified(fs);
+    fs.delete(output, true);
+    job.set("mapred.output.dir", output.toString());
+    job.setPriorityClass(FloatWritable.class);
+    job.setOutputValueClass(FloatWritable.class);
+    job.setInt("priter.snapshot.topk", 50);
+  }
+
+  protected void tearDown() throws IOException {
+    fs.delete(output, true);
+  }
+
+  /**
+   * write the snapshot file of every task, key k has priority k / 10 and value
+   * -k, the keys of task t are t, t + TASKS...
+   */
+  private void writeTasks(int snapshot, int keys) throws IOException {
+    Random r = new Random(snapshot);
+    for (int t = 0; t < TASKS; t++) {
+      TopKSnapshotFile.Writer<FloatWritable, IntWritable, FloatWritable> writer =
+        new TopKSnapshotFile.Writer<FloatWritable, IntWritable, FloatWritable>(job, fs,
+            new Path(output, t + "/topKsnapshot-" + snapshot),
+            FloatWritable.class, IntWritable.class, FloatWritable.class);
+      List<Integer> mine = new ArrayList<Integer>();
+      for (int k = t; k < keys; k += TASKS) {
+        mine.add(k);
+      }
+      //the writer sorts
+      Collections.shuffle(mine, r);
+      for (int k : mine) {
+        writer.append(new FloatWritable(k / 10f), new IntWritable(k), new FloatWritable(-k));
+      }
+      writer.close(0);
+    }
+  }
+
+  private List<Integer> tasks() {
+    return Arrays.asList(0, 1, 2);
+  }
+
+  private void checkText(int snapshot, int keys, int topk) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        fs.open(new Path(output, "snapshot-" + snapshot))));
+    try {
+      for (int i = 0; i < topk; i++) {
+        int k = keys - 1 - i;
+        assertEquals(k + "\t" + (float) -k, reader.readLine());
+      }
+      assertNull(reader.readLine());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testMergeTopK() throws IOException {
+    writeTasks(4, 300);
+    SnapshotMergeService service = new SnapshotMergeService();
+    assertEquals(50, service.mergeNow(new JobID("merge", 1), job, 4, tasks()));
+    checkText(4, 300, 50);
+
+    //the binary file holds the same records from the highest priority down
+    IFile.PriorityReader<FloatWritable, IntWritable, FloatWritable> reader =
+      new IFile.PriorityReader<FloatWritable, IntWritable, FloatWritable>(job, fs,
+          new Path(output, "snapshot-4.bin"), null, null);
+    DataInputBuffer pri = new DataInputBuffer();
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer val = new DataInputBuffer();
+    FloatWritable p = new FloatWritable();
+    IntWritable k = new IntWritable();
+    int count = 0;
+    while (reader.next(pri, key, val)) {
+      p.readFields(pri);
+      k.readFields(key);
+      assertEquals(299 - count, k.get());
+      assertEquals((299 - count) / 10f, p.get());
+      count++;
+    }
+    reader.close();
+    assertEquals(50, count);
+  }
+
+  public void testFewerRecordsThanTopK() throws IOException {
+    writeTasks(1, 20);
+    //a task that wrote no file is skipped
+    fs.delete(new Path(output, "1"), true);
+    SnapshotMergeService service = new SnapshotMergeService();
+    assertEquals(13, service.mergeNow(new JobID("merge", 2), job, 1, tasks()));
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        fs.open(new Path(output, "snapshot-1"))));
+    int lines = 0;
+    int last = Integer.MAX_VALUE;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      int k = Integer.parseInt(line.substring(0, line.indexOf('\t')));
+      assertTrue(k % TASKS != 1);
+      assertTrue(k < last);
+      last = k;
+      lines++;
+    }
+    reader.close();
+    assertEquals(13, lines);
+  }
+
+  public void testQueuedMerges() throws IOException {
+    JobID jobid = new JobID("merge", 3);
+    SnapshotMergeService service = new SnapshotMergeService();
+    Thread thread = new Thread(service, "snapshot merger");
+    thread.setDaemon(true);
+    thread.start();
+    try {
+      for (int snapshot = 0; snapshot < 3; snapshot++) {
+        writeTasks(snapshot, 100 + snapshot * 100);
+        service.merge(jobid, job, snapshot, tasks());
+      }
+      service.finish(jobid);
+      for (int snapshot = 0; snapshot < 3; snapshot++) {
+        checkText(snapshot, 100 + snapshot * 100, 50);
+      }
+
+      //nothing is queued any more, cancel returns at once
+      service.cancel(jobid);
+      service.finish(jobid);
+    } finally {
+      thread.interrupt();
+    }
+  }
+}
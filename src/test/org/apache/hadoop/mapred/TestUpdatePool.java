@@ -0,0 +1,181 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.buffer.impl.OutputPKVBuffer;
+import org.apache.hadoop.mapred.buffer.impl.ValuesIterator;
+import org.apache.hadoop.util.Progress;
+
+public class TestUpdatePool extends TestCase {
+
+  /** the records of a reduce pass, grouped by key */
+  private static class Records implements RawKeyValueIterator {
+    private DataOutputBuffer out = new DataOutputBuffer();
+    private List<int[]> offsets = new ArrayList<int[]>();
+    private int current = -1;
+    private DataInputBuffer key = new DataInputBuffer();
+    private DataInputBuffer value = new DataInputBuffer();
+
+    void add(int k, float v) throws IOException {
+      int start = out.getLength();
+      new IntWritable(k).write(out);
+      int mid = out.getLength();
+      new FloatWritable(v).write(out);
+      offsets.add(new int[] { start, mid, out.getLength() });
+    }
+
+    public DataInputBuffer getKey() {
+      int[] o = offsets.get(current);
+      key.reset(out.getData(), o[0], o[1] - o[0]);
+      return key;
+    }
+
+    public DataInputBuffer getValue() {
+      int[] o = offsets.get(current);
+      value.reset(out.getData(), o[1], o[2] - o[1]);
+      return value;
+    }
+
+    public boolean next() {
+      return ++current < offsets.size();
+    }
+
+    public void close() {
+    }
+
+    public Progress getProgress() {
+      return new Progress();
+    }
+  }
+
+  /** records the values of every updateState call */
+  private static class Recorder implements Updater<IntWritable, FloatWritable, FloatWritable> {
+    final List<Integer> keys = Collections.synchronizedList(new ArrayList<Integer>());
+    final Map<Integer, Float> sums = Collections.synchronizedMap(new HashMap<Integer, Float>());
+
+    public void configure(JobConf job) {
+    }
+
+    public void initStateTable(OutputPKVBuffer<IntWritable, FloatWritable, FloatWritable> table) {
+    }
+
+    public FloatWritable resetiState() {
+      return new FloatWritable(0);
+    }
+
+    public FloatWritable decidePriority(IntWritable key, FloatWritable iState) {
+      return iState;
+    }
+
+    public FloatWritable decideTopK(IntWritable key, FloatWritable cState) {
+      return cState;
+    }
+
+    public void updateState(IntWritable key, Iterator<FloatWritable> values,
+        OutputPKVBuffer<IntWritable, FloatWritable, FloatWritable> table, Reporter reporter) {
+      float sum = 0;
+      while (values.hasNext()) {
+        sum += values.next().get();
+      }
+      keys.add(key.get());
+      assertNull("key " + key + " updated twice", sums.put(key.get(), sum));
+    }
+
+    public void iterate() {
+    }
+  }
+
+  private JobConf job;
+  private Recorder updater;
+  private UpdatePool<IntWritable, FloatWritable, FloatWritable> pool;
+
+  protected void setUp() throws IOException {
+    job = new JobConf();
+    job.setMapOutputKeyClass(IntWritable.class);
+    job.setMapOutputValueClass(FloatWritable.class);
+    job.setInt("priter.reduce.threads", 3);
+    job.setInt("priter.reduce.batch", 2);
+    job.setInt("priter.activation.queue.chunk", 64);
+    updater = new Recorder();
+    //no state table, keys are routed by their value
+    pool = new UpdatePool<IntWritable, FloatWritable, FloatWritable>(job, updater, null, Reporter.NULL) {
+      int threadOf(IntWritable key) {
+        return key.get() % 3;
+      }
+    };
+  }
+
+  protected void tearDown() {
+    pool.close();
+  }
+
+  private int update(Records records) throws IOException {
+    ValuesIterator<IntWritable, FloatWritable> values = new ValuesIterator<IntWritable, FloatWritable>(
+        records, WritableComparator.get(IntWritable.class), IntWritable.class, FloatWritable.class,
+        job, Reporter.NULL);
+    return pool.update(values, null);
+  }
+
+  public void testRoundsSplitOnKeys() throws IOException {
+    //a key has more records than a whole round, it is not split
+    Records records = new Records();
+    for (int k = 0; k < 40; k++) {
+      int count = k % 5 == 0 ? 20 : k % 3 + 1;
+      for (int i = 0; i < count; i++) {
+        records.add(k, 1);
+      }
+    }
+    assertEquals(40, update(records));
+    assertEquals(40, updater.keys.size());
+    for (int k = 0; k < 40; k++) {
+      assertEquals((float) (k % 5 == 0 ? 20 : k % 3 + 1), updater.sums.get(k));
+    }
+  }
+
+  public void testPassesStartWithLastKey() throws IOException {
+    Records first = new Records();
+    first.add(1, 1);
+    first.add(4, 2);
+    assertEquals(2, update(first));
+
+    //the thread of keys 1 and 4 starts the next pass with the key it ended with
+    updater.sums.clear();
+    Records second = new Records();
+    second.add(4, 3);
+    second.add(4, 4);
+    second.add(7, 5);
+    assertEquals(2, update(second));
+    assertEquals(7f, updater.sums.get(4));
+    assertEquals(5f, updater.sums.get(7));
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred.buffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.IFile;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.mapred.buffer.impl.HashInputBuffer;
+import org.apache.hadoop.mapred.buffer.impl.ValuesIterator;
+import org.apache.hadoop.util.Progress;
+
+public class TestHashInputBuffer extends TestCase {
+
+  private JobConf job;
+  private HashInputBuffer<Text, IntWritable> buffer;
+  private int sequence = 0;
+
+  protected void setUp() throws IOException {
+    job = new JobConf();
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(IntWritable.class);
+    buffer = new HashInputBuffer<Text, IntWritable>(job, null, Reporter.NULL, new Progress(),
+        Text.class, IntWritable.class, null);
+  }
+
+  /** send the records as the map output of one task */
+  private void read(List<String> keys, List<Integer> values) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FSDataOutputStream out = new FSDataOutputStream(bytes, null);
+    IFile.Writer<Text, IntWritable> writer = new IFile.Writer<Text, IntWritable>(
+        job, out, Text.class, IntWritable.class, null, null);
+    for (int i = 0; i < keys.size(); i++) {
+      writer.append(new Text(keys.get(i)), new IntWritable(values.get(i)));
+    }
+    writer.close();
+
+    TaskAttemptID owner = TaskAttemptID.forName("attempt_200707121733_0003_m_00000" + (sequence % 10) + "_0");
+    OutputFile.StreamHeader header = new OutputFile.StreamHeader(owner, sequence++);
+    header.compressed(writer.getCompressedLength());
+    header.decompressed(writer.getRawLength());
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    assertTrue(buffer.read(in, header));
+  }
+
+  /** @return the values of every key, checking that each key comes once */
+  private Map<String, List<Integer>> reduce() throws IOException {
+    Map<String, List<Integer>> groups = new HashMap<String, List<Integer>>();
+    ValuesIterator<Text, IntWritable> values = buffer.valuesIterator();
+    while (values.more()) {
+      List<Integer> list = new ArrayList<Integer>();
+      assertNull("key grouped twice", groups.put(values.getKey().toString(), list));
+      while (values.hasNext()) {
+        list.add(values.next().get());
+      }
+      values.nextKey();
+    }
+    return groups;
+  }
+
+  public void testGroupsAcrossMapOutputs() throws IOException {
+    Map<String, List<Integer>> expected = new HashMap<String, List<Integer>>();
+    Random r = new Random(9);
+    int value = 0;
+    //more keys and values than the initial table, so it grows and rehashes
+    for (int map = 0; map < 5; map++) {
+      List<String> keys = new ArrayList<String>();
+      List<Integer> values = new ArrayList<Integer>();
+      for (int i = 0; i < 2000; i++) {
+        String key = "k" + r.nextInt(3000);
+        keys.add(key);
+        values.add(value);
+        if (!expected.containsKey(key)) expected.put(key, new ArrayList<Integer>());
+        expected.get(key).add(value);
+        value++;
+      }
+      read(keys, values);
+    }
+    //the values of a key come in arrival order
+    assertEquals(expected, reduce());
+  }
+
+  public void testEmptyOutputsAndFree() throws IOException {
+    read(new ArrayList<String>(), new ArrayList<Integer>());
+    assertTrue(reduce().isEmpty());
+
+    List<String> keys = new ArrayList<String>();
+    List<Integer> values = new ArrayList<Integer>();
+    keys.add("a");
+    values.add(1);
+    keys.add("");
+    values.add(2);
+    keys.add("a");
+    values.add(3);
+    read(keys, values);
+    Map<String, List<Integer>> groups = reduce();
+    assertEquals(2, groups.size());
+    assertEquals(2, groups.get("a").size());
+    assertEquals(3, (int) groups.get("a").get(1));
+    assertEquals(2, (int) groups.get("").get(0));
+
+    //the next pass starts from an empty table
+    buffer.free();
+    assertTrue(reduce().isEmpty());
+    keys.clear();
+    values.clear();
+    keys.add("a");
+    values.add(4);
+    read(keys, values);
+    groups = reduce();
+    assertEquals(1, groups.size());
+    assertEquals(1, groups.get("a").size());
+    assertEquals(4, (int) groups.get("a").get(0));
+  }
+
+  public void testIncompleteOutput() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FSDataOutputStream out = new FSDataOutputStream(bytes, null);
+    IFile.Writer<Text, IntWritable> writer = new IFile.Writer<Text, IntWritable>(
+        job, out, Text.class, IntWritable.class, null, null);
+    writer.append(new Text("a"), new IntWritable(1));
+    writer.close();
+
+    OutputFile.StreamHeader header = new OutputFile.StreamHeader(
+        TaskAttemptID.forName("attempt_200707121733_0003_m_000001_0"), 0);
+    header.compressed(writer.getCompressedLength());
+    header.decompressed(writer.getRawLength() + 10);
+    try {
+      buffer.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), header);
+      fail("read a map output shorter than its header");
+    } catch (IOException e) {
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+public class TestActivationQueue extends TestCase {
+
+  private static byte[] record(int i, int len) {
+    byte[] b = new byte[len];
+    for (int j = 0; j < len; j++) {
+      b[j] = (byte) (i + j);
+    }
+    return b;
+  }
+
+  private static void assertRecord(int i, int len, DataInputBuffer in) {
+    assertEquals(len, in.getLength() - in.getPosition());
+    byte[] data = in.getData();
+    for (int j = 0; j < len; j++) {
+      assertEquals(record(i, len)[j], data[in.getPosition() + j]);
+    }
+  }
+
+  public void testVInt() throws Exception {
+    int[] values = { 0, 1, -1, 127, 128, -112, -113, 255, 65536, -65537,
+        Integer.MAX_VALUE, Integer.MIN_VALUE };
+    DataOutputBuffer out = new DataOutputBuffer();
+    byte[] data = new byte[5];
+    for (int v : values) {
+      out.reset();
+      WritableUtils.writeVInt(out, v);
+      int end = ActivationQueue.writeVInt(data, 0, v);
+      assertEquals(out.getLength(), end);
+      for (int i = 0; i < end; i++) {
+        assertEquals(out.getData()[i], data[i]);
+      }
+    }
+  }
+
+  public void testOrder() {
+    ActivationQueue queue = new ActivationQueue(256);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    assertFalse(queue.poll(key, value));
+
+    Random r = new Random(1);
+    int[] lens = new int[2000];
+    for (int i = 0; i < lens.length; i++) {
+      //some records are larger than a chunk
+      lens[i] = i % 97 == 0 ? 1000 : r.nextInt(40);
+      queue.append(record(i, 4), 0, 4, record(i, lens[i]), 0, lens[i]);
+      if (i % 3 == 0) {
+        //interleave, half of the records are polled as they come
+        int j = i / 3;
+        assertTrue(queue.poll(key, value));
+        assertRecord(j, 4, key);
+        assertRecord(j, lens[j], value);
+      }
+    }
+    for (int j = (lens.length + 2) / 3; j < lens.length; j++) {
+      assertTrue(queue.poll(key, value));
+      assertRecord(j, 4, key);
+      assertRecord(j, lens[j], value);
+    }
+    assertFalse(queue.poll(key, value));
+  }
+
+  public void testClear() {
+    ActivationQueue queue = new ActivationQueue(64);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    for (int i = 0; i < 50; i++) {
+      queue.append(record(i, 4), 0, 4, record(i, 8), 0, 8);
+    }
+    queue.clear();
+    assertFalse(queue.poll(key, value));
+    queue.append(record(7, 4), 0, 4, record(7, 8), 0, 8);
+    assertTrue(queue.poll(key, value));
+    assertRecord(7, 8, value);
+    assertFalse(queue.poll(key, value));
+  }
+
+  public void testProducerConsumer() throws Exception {
+    final ActivationQueue queue = new ActivationQueue(128);
+    final int count = 200000;
+    Thread producer = new Thread() {
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          int len = i % 13;
+          queue.append(record(i, 4), 0, 4, record(i, len), 0, len);
+        }
+      }
+    };
+    producer.start();
+
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    int next = 0;
+    long deadline = System.currentTimeMillis() + 60000;
+    while (next < count) {
+      if (queue.poll(key, value)) {
+        assertRecord(next, 4, key);
+        assertRecord(next, next % 13, value);
+        next++;
+      } else {
+        assertTrue("consumer stalled at " + next, System.currentTimeMillis() < deadline);
+        Thread.yield();
+      }
+    }
+    producer.join();
+    assertFalse(queue.poll(key, value));
+  }
+}
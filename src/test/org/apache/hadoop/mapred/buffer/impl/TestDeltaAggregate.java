@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.lib.MinDeltaCombiner;
+import org.apache.hadoop.mapred.lib.SumDeltaCombiner;
+
+public class TestDeltaAggregate extends TestCase {
+
+  private static Map<Integer, Double> contents(DeltaAggregate aggregate) {
+    Map<Integer, Double> map = new HashMap<Integer, Double>();
+    for (int slot = aggregate.nextSlot(0); slot >= 0; slot = aggregate.nextSlot(slot + 1)) {
+      assertNull("key seen twice", map.put(aggregate.getKey(slot), aggregate.getValue(slot)));
+    }
+    assertEquals(aggregate.size(), map.size());
+    return map;
+  }
+
+  public void testSumGrowsPastCapacity() {
+    DeltaAggregate aggregate = new DeltaAggregate(new SumDeltaCombiner(), DoubleWritable.class, 4);
+    Map<Integer, Double> expected = new HashMap<Integer, Double>();
+    Random r = new Random(17);
+    for (int i = 0; i < 100000; i++) {
+      int key = r.nextInt(5000) - 2500;
+      double delta = r.nextInt(100);
+      aggregate.add(key, delta);
+      Double old = expected.get(key);
+      expected.put(key, old == null ? delta : old + delta);
+    }
+    assertEquals(100000, aggregate.collected());
+    assertEquals(expected, contents(aggregate));
+  }
+
+  public void testMin() {
+    DeltaAggregate aggregate = new DeltaAggregate(new MinDeltaCombiner(), DoubleWritable.class, 16);
+    aggregate.add(3, 5.0);
+    aggregate.add(3, 2.0);
+    aggregate.add(3, 7.0);
+    aggregate.add(-1, 1.5);
+    Map<Integer, Double> map = contents(aggregate);
+    assertEquals(2.0, map.get(3));
+    assertEquals(1.5, map.get(-1));
+  }
+
+  public void testFloatsFoldAsFloats() {
+    DeltaAggregate aggregate = new DeltaAggregate(new SumDeltaCombiner(), FloatWritable.class, 16);
+    float sum = 0;
+    Random r = new Random(3);
+    for (int i = 0; i < 1000; i++) {
+      float delta = r.nextFloat() / 3;
+      aggregate.add(1, delta);
+      sum += delta;
+    }
+    assertEquals(sum, (float) contents(aggregate).get(1).doubleValue());
+    assertEquals((double) sum, contents(aggregate).get(1));
+  }
+
+  public void testIntsFoldAsInts() {
+    DeltaAggregate aggregate = new DeltaAggregate(new SumDeltaCombiner(), IntWritable.class, 16);
+    aggregate.add(1, Integer.MAX_VALUE);
+    aggregate.add(1, 1);
+    assertEquals((double) (Integer.MAX_VALUE + 1), contents(aggregate).get(1));
+  }
+
+  public void testMergeAndClear() {
+    DeltaAggregate a = new DeltaAggregate(new SumDeltaCombiner(), DoubleWritable.class, 16);
+    DeltaAggregate b = new DeltaAggregate(new SumDeltaCombiner(), DoubleWritable.class, 16);
+    a.add(1, 1.0);
+    a.add(2, 2.0);
+    b.add(2, 3.0);
+    b.add(4, 4.0);
+    b.add(4, 1.0);
+    a.merge(b);
+    assertEquals(0, b.size());
+    assertEquals(0, b.collected());
+    assertEquals(-1, b.nextSlot(0));
+    assertEquals(5, a.collected());
+    Map<Integer, Double> map = contents(a);
+    assertEquals(3, map.size());
+    assertEquals(1.0, map.get(1));
+    assertEquals(5.0, map.get(2));
+    assertEquals(5.0, map.get(4));
+
+    a.clear();
+    assertEquals(0, a.size());
+    assertEquals(-1, a.nextSlot(0));
+    a.add(2, 1.0);
+    assertEquals(1.0, contents(a).get(2));
+  }
+}
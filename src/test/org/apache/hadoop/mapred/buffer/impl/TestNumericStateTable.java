@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.JobConf;
+
+public class TestNumericStateTable extends TestCase {
+
+  private static <T extends NumericStateTable<?, ?>> T configure(T table, boolean offheap) {
+    JobConf job = new JobConf();
+    job.setBoolean("priter.statetable.offheap", offheap);
+    job.setInt("priter.statetable.capacity", 8);
+    table.configure(job);
+    return table;
+  }
+
+  /** the table holds exactly the keys and priorities of expected */
+  private static void check(NumericStateTable<?, ?> table, Map<Integer, Double> expected) {
+    assertEquals(expected.size(), table.size());
+    int seen = 0;
+    for (int slot = table.nextSlot(0); slot >= 0; slot = table.nextSlot(slot + 1)) {
+      int key = table.getKey(slot);
+      assertEquals(slot, table.find(key));
+      assertEquals(expected.get(key), table.getPriority(slot));
+      assertEquals(key * 2.0, table.getcState(slot));
+      seen++;
+    }
+    assertEquals(expected.size(), seen);
+    for (int key : expected.keySet()) {
+      assertTrue(table.find(key) >= 0);
+    }
+  }
+
+  private void randomOps(boolean offheap) {
+    IntDoubleStateTable table = configure(new IntDoubleStateTable(), offheap);
+    Map<Integer, Double> expected = new HashMap<Integer, Double>();
+    Random r = new Random(offheap ? 7 : 11);
+    for (int i = 0; i < 50000; i++) {
+      //few keys, so long probe runs are removed from and refilled
+      int key = r.nextInt(3000) - 1000;
+      if (r.nextInt(3) == 0) {
+        assertEquals(expected.remove(key) != null, table.remove(key));
+        assertEquals(-1, table.find(key));
+      } else {
+        double pri = r.nextInt(1000);
+        int slot = table.insert(key);
+        table.set(slot, pri, 0, key * 2.0);
+        expected.put(key, pri);
+      }
+    }
+    check(table, expected);
+  }
+
+  public void testInsertRemove() {
+    randomOps(false);
+  }
+
+  public void testInsertRemoveOffheap() {
+    randomOps(true);
+  }
+
+  public void testInsertZeroesFreedSlot() {
+    IntFloatStateTable table = configure(new IntFloatStateTable(), false);
+    int slot = table.insert(5);
+    table.set(slot, 3, 4, 5);
+    assertTrue(table.remove(5));
+    assertFalse(table.remove(5));
+    slot = table.insert(5);
+    assertEquals(0.0, table.getPriority(slot));
+    assertEquals(0.0, table.getiState(slot));
+    assertEquals(0.0, table.getcState(slot));
+    assertEquals(slot, table.insert(5));
+    assertEquals(1, table.size());
+  }
+
+  public void testBackwardShift() {
+    IntDoubleStateTable table = configure(new IntDoubleStateTable(), false);
+    //keys in one probe run, removing from the front shifts the rest back
+    Map<Integer, Double> expected = new HashMap<Integer, Double>();
+    for (int key = 0; key < 40; key++) {
+      table.set(table.insert(key), key, 0, key * 2.0);
+      expected.put(key, (double) key);
+    }
+    for (int key = 0; key < 40; key += 3) {
+      assertTrue(table.remove(key));
+      expected.remove(key);
+      check(table, expected);
+    }
+  }
+
+  public void testTopOrder() {
+    IntDoubleStateTable table = configure(new IntDoubleStateTable(), false);
+    Random r = new Random(5);
+    for (int key = 0; key < 200; key++) {
+      table.set(table.insert(key), r.nextInt(100), 0, 0);
+    }
+    table.indexAbove(new DoubleWritable(50));
+    int active = 0;
+    for (int slot = table.nextSlot(0); slot >= 0; slot = table.nextSlot(slot + 1)) {
+      if (table.getPriority(slot) > 50) active++;
+    }
+    assertEquals(active, table.activeSize());
+
+    //changes after indexing move the slots in the heap, and growing rebuilds it
+    for (int key = 0; key < 200; key += 2) {
+      int slot = table.find(key);
+      double pri = table.getPriority(slot);
+      double now = r.nextInt(100);
+      if (pri > 50) active--;
+      if (now > 50) active++;
+      table.setPriority(slot, now);
+    }
+    for (int key = 200; key < 400; key++) {
+      double pri = r.nextInt(100);
+      if (pri > 50) active++;
+      table.set(table.insert(key), pri, 0, 0);
+    }
+    if (table.getPriority(table.find(1)) > 50) active--;
+    assertTrue(table.remove(1));
+    assertEquals(active, table.activeSize());
+
+    double top = Double.NEGATIVE_INFINITY;
+    for (int slot = table.nextSlot(0); slot >= 0; slot = table.nextSlot(slot + 1)) {
+      top = Math.max(top, table.getPriority(slot));
+    }
+    assertEquals(top, table.topPriority());
+
+    StateTableIterator<IntWritable, DoubleWritable, DoubleWritable> it = table.topIterator();
+    double last = Double.POSITIVE_INFINITY;
+    int polled = 0;
+    while (it.next()) {
+      double pri = it.getPriority().get();
+      assertTrue(pri > 50);
+      assertTrue(pri <= last);
+      last = pri;
+      polled++;
+    }
+    assertEquals(active, polled);
+    assertEquals(0, table.activeSize());
+  }
+
+  public void testTrackChanges() {
+    IntFloatStateTable table = configure(new IntFloatStateTable(), false);
+    for (int key = 0; key < 20; key++) {
+      table.put(new IntWritable(key), new FloatWritable(1), new FloatWritable(0), new FloatWritable(0));
+    }
+    table.trackChanges();
+    assertEquals(20, table.changedSize());
+    table.clearChanges();
+    assertEquals(0, table.changedSize());
+    table.setcState(table.find(3), 1);
+    table.setcState(table.find(3), 2);
+    table.put(new IntWritable(7), new FloatWritable(2), new FloatWritable(0), new FloatWritable(0));
+    assertEquals(2, table.changedSize());
+
+    StateTableIterator<IntWritable, FloatWritable, FloatWritable> it = table.changedIterator();
+    int sum = 0;
+    while (it.next()) {
+      sum += it.getKey().get();
+    }
+    assertEquals(10, sum);
+  }
+}
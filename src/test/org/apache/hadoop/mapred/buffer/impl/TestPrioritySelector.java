@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestPrioritySelector extends TestCase {
+
+  public void testStaticSelect() {
+    Random r = new Random(1);
+    for (int n = 1; n < 300; n += 7) {
+      double[] values = new double[n];
+      for (int i = 0; i < n; i++) {
+        //few distinct values, so there are many ties with the pivot
+        values[i] = r.nextInt(n / 3 + 1);
+      }
+      double[] sorted = values.clone();
+      Arrays.sort(sorted);
+      int index = r.nextInt(n);
+      assertEquals(sorted[index], PrioritySelector.select(values, 0, n, index));
+      for (int i = 0; i < index; i++) {
+        assertTrue(values[i] <= values[index]);
+      }
+      for (int i = index + 1; i < n; i++) {
+        assertTrue(values[i] >= values[index]);
+      }
+    }
+  }
+
+  public void testExactCuts() {
+    PrioritySelector selector = new PrioritySelector(1 << 16);
+    Random r = new Random(2);
+    int n = 5000;
+    double[] sorted = new double[n];
+    for (int i = 0; i < n; i++) {
+      sorted[i] = r.nextInt(500);
+      selector.add(sorted[i]);
+    }
+    selector.add(Double.NaN);
+    assertEquals(n, selector.seen());
+    assertTrue(selector.exact());
+    Arrays.sort(sorted);
+
+    for (int k : new int[] { 1, 2, 10, 999, 2500, n - 1, n }) {
+      double cut = sorted[n - k];
+      assertEquals(cut, selector.select(k));
+      //the ties with the cut fill the top k exactly
+      int higher = 0;
+      for (double v : sorted) {
+        if (v > cut) higher++;
+      }
+      assertEquals(k - higher, selector.ties(k));
+    }
+    //k is clamped to the added priorities
+    assertEquals(sorted[0], selector.select(n + 10));
+    assertEquals(sorted[n - 1], selector.select(0));
+  }
+
+  public void testDistinct() {
+    PrioritySelector selector = new PrioritySelector(100);
+    for (double v : new double[] { 5, 5, 3, 9, 9, 9, 1 }) {
+      selector.add(v);
+    }
+    assertEquals(9.0, selector.distinct(1));
+    assertEquals(5.0, selector.distinct(2));
+    assertEquals(3.0, selector.distinct(3));
+    assertEquals(1.0, selector.distinct(4));
+    assertEquals(1.0, selector.distinct(10));
+    //select still works once distinct has sorted the values
+    assertEquals(9.0, selector.select(3));
+    assertEquals(5.0, selector.select(4));
+    assertEquals(1, selector.ties(4));
+  }
+
+  public void testClear() {
+    PrioritySelector selector = new PrioritySelector(10);
+    try {
+      selector.select(1);
+      fail("selected from nothing");
+    } catch (IllegalStateException e) {
+    }
+    selector.add(4);
+    assertEquals(4.0, selector.select(1));
+    selector.clear();
+    assertEquals(0, selector.seen());
+    selector.add(2);
+    assertEquals(2.0, selector.select(1));
+  }
+
+  public void testSampledCut() {
+    int limit = 10000;
+    PrioritySelector selector = new PrioritySelector(limit);
+    int n = 200000;
+    for (int i = 0; i < n; i++) {
+      selector.add(i);
+    }
+    assertFalse(selector.exact());
+    assertEquals(n, selector.seen());
+    //the rank of the cut is off by about n/sqrt(limit)
+    long k = n / 10;
+    double cut = selector.select(k);
+    assertEquals(n - k, cut, 10.0 * n / Math.sqrt(limit));
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.JobConf;
+
+public class TestStateTableCheckpointer extends TestCase {
+
+  private JobConf job;
+  private FileSystem fs;
+  private Path dir;
+  private IntDoubleStateTable table;
+  private StateTableCheckpointer<IntWritable, DoubleWritable, DoubleWritable> checkpointer;
+
+  protected void setUp() throws IOException {
+    job = new JobConf();
+    job.setBoolean("priter.checkpoint.async", true);
+    job.setInt("priter.checkpoint.full.frequency", 3);
+    fs = FileSystem.getLocal(job);
+    dir = new Path(System.getProperty("test.build.data", "/tmp"), "checkpointer").makeQualified(fs);
+    fs.delete(dir, true);
+    table = new IntDoubleStateTable();
+    table.configure(job);
+    checkpointer = new StateTableCheckpointer<IntWritable, DoubleWritable, DoubleWritable>(job, fs,
+        new Path(dir, "statetable").toString(), table, IntWritable.class, DoubleWritable.class, DoubleWritable.class);
+  }
+
+  protected void tearDown() throws IOException {
+    fs.delete(dir, true);
+  }
+
+  public void testNoCheckpointSkipped() throws IOException {
+    for (int key = 0; key < 20000; key++) {
+      table.set(table.insert(key), key, 0, key);
+    }
+    //back to back, each checkpoint waits for the previous one to be written
+    for (int iteration = 1; iteration <= 6; iteration++) {
+      synchronized (table) {
+        table.setcState(table.find(iteration), -iteration);
+        checkpointer.checkpoint(iteration, iteration);
+      }
+    }
+    checkpointer.waitForWriter();
+    assertEquals(6, checkpointer.lastIteration());
+    for (int iteration = 4; iteration <= 6; iteration++) {
+      assertTrue(fs.exists(new Path(dir, "statetable-" + iteration)));
+    }
+
+    //every iteration can be rolled back to
+    for (int iteration = 6; iteration >= 4; iteration--) {
+      table.setcState(table.find(1), 100);
+      table.setcState(table.find(5), 100);
+      //the full checkpoint of iteration 4, then one changed record per iteration
+      assertEquals(20000 + iteration - 4, checkpointer.load(iteration));
+      assertEquals(-1.0, table.getcState(table.find(1)));
+      assertEquals(iteration >= 5 ? -5.0 : 5.0, table.getcState(table.find(5)));
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred.buffer.impl;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.JobConf;
+
+public class TestUpdateBatch extends TestCase {
+
+  private JobConf job;
+  private UpdateBatch<IntWritable, FloatWritable> batch;
+  private DataOutputBuffer out = new DataOutputBuffer();
+  private DataInputBuffer key = new DataInputBuffer();
+  private DataInputBuffer value = new DataInputBuffer();
+
+  protected void setUp() throws IOException {
+    job = new JobConf();
+    job.setInt("priter.activation.queue.chunk", 64);
+    batch = new UpdateBatch<IntWritable, FloatWritable>(job, IntWritable.class, FloatWritable.class);
+  }
+
+  private void append(int k, float v) throws IOException {
+    out.reset();
+    new IntWritable(k).write(out);
+    int keyLength = out.getLength();
+    new FloatWritable(v).write(out);
+    key.reset(out.getData(), 0, keyLength);
+    value.reset(out.getData(), keyLength, out.getLength() - keyLength);
+    batch.append(key, value);
+  }
+
+  public void testEmpty() throws IOException {
+    assertFalse(batch.hasNext());
+    assertFalse(batch.nextKey());
+  }
+
+  public void testGroups() throws IOException {
+    //runs of a key, and a key coming back after another one
+    int[] keys = { 1, 1, 1, 2, 3, 3, 1, 1 };
+    for (int i = 0; i < keys.length; i++) {
+      append(keys[i], i);
+    }
+
+    int[] groups = { 1, 2, 3, 1 };
+    int[][] values = { { 0, 1, 2 }, { 3 }, { 4, 5 }, { 6, 7 } };
+    for (int g = 0; g < groups.length; g++) {
+      assertTrue(batch.nextKey());
+      assertEquals(groups[g], batch.getKey().get());
+      for (int v : values[g]) {
+        assertTrue(batch.hasNext());
+        assertEquals((float) v, batch.next().get());
+      }
+      assertFalse(batch.hasNext());
+    }
+    assertFalse(batch.nextKey());
+  }
+
+  public void testSkipsUnreadValues() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      append(i / 10, i);
+    }
+    for (int k = 0; k < 10; k++) {
+      assertTrue(batch.nextKey());
+      assertEquals(k, batch.getKey().get());
+      //read only some of the values, nextKey skips the rest
+      for (int i = 0; i < k; i++) {
+        assertEquals((float) (k * 10 + i), batch.next().get());
+      }
+    }
+    assertFalse(batch.nextKey());
+  }
+
+  public void testRefill() throws IOException {
+    append(5, 1);
+    assertTrue(batch.nextKey());
+    assertEquals(1f, batch.next().get());
+    assertFalse(batch.nextKey());
+
+    //the batch is filled again for the next round
+    append(5, 2);
+    append(6, 3);
+    assertTrue(batch.nextKey());
+    assertEquals(5, batch.getKey().get());
+    assertEquals(2f, batch.next().get());
+    assertTrue(batch.nextKey());
+    assertEquals(6, batch.getKey().get());
+    assertEquals(3f, batch.next().get());
+    assertFalse(batch.hasNext());
+    assertFalse(batch.nextKey());
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred.buffer.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapred.IFile;
+import org.apache.hadoop.mapred.JobConf;
+
+public class TestCompactWire extends TestCase {
+
+  private static final int PREFIX = 13;
+
+  private JobConf conf;
+  private FileSystem fs;
+  private Path file;
+
+  protected void setUp() throws IOException {
+    conf = new JobConf();
+    conf.setBoolean("priter.wire.compact", true);
+    fs = FileSystem.getLocal(conf).getRaw();
+    file = new Path(System.getProperty("test.build.data", "/tmp"), "compactwire").makeQualified(fs);
+    fs.delete(file, true);
+  }
+
+  protected void tearDown() throws IOException {
+    fs.delete(file, true);
+  }
+
+  /** write records as one IFile segment after PREFIX bytes, @return its length */
+  private long writeSegment(int records, boolean text) throws IOException {
+    FSDataOutputStream out = fs.create(file);
+    out.write(new byte[PREFIX]);
+    Random r = new Random(records);
+    if (text) {
+      IFile.Writer<IntWritable, Text> writer = new IFile.Writer<IntWritable, Text>(
+          conf, out, IntWritable.class, Text.class, null, null);
+      for (int i = 0; i < records; i++) {
+        writer.append(new IntWritable(r.nextInt()), new Text("v" + r.nextInt(100)));
+      }
+      writer.close();
+    } else {
+      IFile.Writer<IntWritable, FloatWritable> writer = new IFile.Writer<IntWritable, FloatWritable>(
+          conf, out, IntWritable.class, FloatWritable.class, null, null);
+      for (int i = 0; i < records; i++) {
+        writer.append(new IntWritable(r.nextInt(records * 4) - records), new FloatWritable(r.nextFloat()));
+      }
+      writer.close();
+    }
+    long length = out.getPos() - PREFIX;
+    out.close();
+    return length;
+  }
+
+  private byte[] segment(long length) throws IOException {
+    byte[] bytes = new byte[(int) length];
+    FSDataInputStream in = fs.open(file);
+    in.readFully(PREFIX, bytes);
+    in.close();
+    return bytes;
+  }
+
+  /** send the segment through the wire, @return what was sent */
+  private byte[] send(CompactWire wire, long length) throws IOException {
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(sent);
+    FSDataInputStream in = fs.open(file);
+    in.seek(PREFIX);
+    wire.write(out, in, length);
+    in.close();
+    out.writeInt(42);
+    out.close();
+    return sent.toByteArray();
+  }
+
+  /** receive the segment, checking the connection goes on after it */
+  private byte[] receive(CompactWire wire, byte[] sent, long length) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(sent));
+    DataInputStream data = wire.read(in, length);
+    byte[] segment = new byte[(int) length];
+    data.readFully(segment);
+    assertEquals(-1, data == in ? -1 : data.read());
+    assertEquals(42, in.readInt());
+    return segment;
+  }
+
+  private void checkRoundTrip(CompactWire wire, int records) throws IOException {
+    long length = writeSegment(records, false);
+    byte[] sent = send(wire, length);
+    assertTrue("sent " + sent.length + " of " + length, sent.length < length);
+    assertTrue(Arrays.equals(segment(length), receive(wire, sent, length)));
+  }
+
+  public void testColumns() throws IOException {
+    CompactWire wire = CompactWire.forJob(conf);
+    checkRoundTrip(wire, 1);
+    checkRoundTrip(wire, 1000);
+    //more records than a block
+    checkRoundTrip(wire, 40000);
+  }
+
+  public void testCodec() throws IOException {
+    conf.setClass("priter.wire.codec", DefaultCodec.class, Object.class);
+    checkRoundTrip(CompactWire.forJob(conf), 40000);
+  }
+
+  public void testEmptySegment() throws IOException {
+    CompactWire wire = CompactWire.forJob(conf);
+    long length = writeSegment(0, false);
+    assertTrue(Arrays.equals(segment(length), receive(wire, send(wire, length), length)));
+  }
+
+  public void testOtherRecordsSentRaw() throws IOException {
+    CompactWire wire = CompactWire.forJob(conf);
+    long length = writeSegment(100, true);
+    byte[] sent = send(wire, length);
+    assertEquals(0, sent[0]);
+    assertTrue(Arrays.equals(segment(length), receive(wire, sent, length)));
+  }
+
+  public void testChecksumMismatchSentRaw() throws IOException {
+    CompactWire wire = CompactWire.forJob(conf);
+    long length = writeSegment(1000, false);
+    //flip a bit of the last value, the records still fit the format
+    RandomAccessFile raf = new RandomAccessFile(file.toUri().getPath(), "rw");
+    long pos = PREFIX + length - 4 - 2 - 1;
+    raf.seek(pos);
+    int b = raf.read();
+    raf.seek(pos);
+    raf.write(b ^ 1);
+    raf.close();
+
+    byte[] sent = send(wire, length);
+    assertEquals(0, sent[0]);
+    assertEquals(1 + length + 4, sent.length);
+    //the receiver gets the corrupt segment as it is and its reader fails
+    assertTrue(Arrays.equals(segment(length), receive(wire, sent, length)));
+  }
+
+  public void testNotForCompressedMapOutput() {
+    conf.setCompressMapOutput(true);
+    assertNull(CompactWire.forJob(conf));
+  }
+}